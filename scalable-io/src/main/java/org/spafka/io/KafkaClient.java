@@ -24,7 +24,8 @@ import java.io.Closeable;
 import java.util.List;
 
 /**
- * The interface for {@link NetworkClient}
+ * The interface for {@link NetworkClient}. The I/O layer under it is {@link Selector}, which an
+ * implementation polls from {@link #poll(long, long)}.
  */
 public interface KafkaClient extends Closeable {
 
@@ -0,0 +1,441 @@
+package org.spafka.io;
+
+
+import org.apache.kafka.common.network.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+
+
+/**
+ * A non-blocking selector over many connections, after Kafka's own: one nio selector, a
+ * {@link KafkaChannel} per connection id, size-prefixed requests and responses.
+ *
+ * Payloads given to {@link #send(String, ByteBuffer)} are queued per connection and written
+ * together, up to {@link #MAX_BATCH} at a time, each with its size, in one gathering write. Every
+ * response that is complete when a connection is read is taken, not only the first, and staged;
+ * each {@link #poll(long)} then moves the oldest staged response of each connection to
+ * {@link #completedReceives()}, so that a connection with many responses does not crowd out the
+ * others, and polls without waiting while responses are staged. The staged responses of a
+ * connection that fails are still returned. Connections idle for longer than
+ * {@code connectionMaxIdleMs} are closed, and reported as disconnected.
+ *
+ * This is the I/O layer for implementations of {@link KafkaClient}.
+ *
+ * Not thread safe, except {@link #wakeup()}.
+ */
+public class Selector {
+
+    private static final Logger log = LoggerFactory.getLogger(Selector.class);
+
+    /** The number of queued payloads written in one gathering write at most. */
+    static final int MAX_BATCH = 64;
+    private static final long DEFAULT_CONNECTION_MAX_IDLE_MS = 9 * 60 * 1000L;
+
+    private final java.nio.channels.Selector nioSelector;
+    private final ChannelBuilder channelBuilder;
+    private final int maxReceiveSize;
+    private final long connectionMaxIdleMs;
+
+    private final Map<String, KafkaChannel> channels = new HashMap<>();
+    // The payloads of each connection not handed to its channel yet.
+    private final Map<String, ArrayDeque<ByteBuffer>> queuedSends = new HashMap<>();
+    // Connections by last activity, least recent first.
+    private final LinkedHashMap<String, Long> lastActivity = new LinkedHashMap<>(16, .75F, true);
+    private final Set<SelectionKey> immediatelyConnectedKeys = new HashSet<>();
+    // The responses read but not returned yet, by connection, in the order they were read.
+    private final Map<String, ArrayDeque<NetworkReceive>> stagedReceives = new LinkedHashMap<>();
+    private final List<NetworkReceive> completedReceives = new ArrayList<>();
+    private final List<Send> completedSends = new ArrayList<>();
+    private final List<String> connected = new ArrayList<>();
+    private final List<String> disconnected = new ArrayList<>();
+
+    public Selector() throws IOException {
+        this(plaintext(), NetworkReceive.UNLIMITED, DEFAULT_CONNECTION_MAX_IDLE_MS);
+    }
+
+    public Selector(ChannelBuilder channelBuilder, int maxReceiveSize, long connectionMaxIdleMs)
+            throws IOException {
+        this.nioSelector = java.nio.channels.Selector.open();
+        this.channelBuilder = channelBuilder;
+        this.maxReceiveSize = maxReceiveSize;
+        this.connectionMaxIdleMs = connectionMaxIdleMs;
+    }
+
+    private static ChannelBuilder plaintext() {
+        ChannelBuilder builder = new PlaintextChannelBuilder();
+        builder.configure(Collections.<String, Object>emptyMap());
+        return builder;
+    }
+
+
+    public void connect(String id, InetSocketAddress address, int sendBufferSize, int receiveBufferSize) throws IOException {
+        if (this.channels.containsKey(id))
+            throw new IllegalStateException("There is already a connection for id " + id);
+
+        SocketChannel socketChannel = SocketChannel.open();
+        socketChannel.configureBlocking(false);
+        Socket socket = socketChannel.socket();
+        socket.setKeepAlive(true);
+        if (sendBufferSize != Selectable.USE_DEFAULT_BUFFER_SIZE)
+            socket.setSendBufferSize(sendBufferSize);
+        if (receiveBufferSize != Selectable.USE_DEFAULT_BUFFER_SIZE)
+            socket.setReceiveBufferSize(receiveBufferSize);
+        socket.setTcpNoDelay(true);
+        boolean connected;
+        try {
+            connected = socketChannel.connect(address);
+        } catch (UnresolvedAddressException e) {
+            socketChannel.close();
+            throw new IOException("Can't resolve address: " + address, e);
+        } catch (IOException e) {
+            socketChannel.close();
+            throw e;
+        }
+        SelectionKey key = socketChannel.register(nioSelector, SelectionKey.OP_CONNECT);
+        KafkaChannel channel;
+        try {
+            channel = channelBuilder.buildChannel(id, key, maxReceiveSize);
+        } catch (RuntimeException e) {
+            key.cancel();
+            socketChannel.close();
+            throw e;
+        }
+        key.attach(channel);
+        this.channels.put(id, channel);
+        this.lastActivity.put(id, System.currentTimeMillis());
+
+        if (connected) {
+            // OP_CONNECT won't trigger for immediately connected channels
+            log.debug("Immediately connected to node {}", id);
+            immediatelyConnectedKeys.add(key);
+            key.interestOps(0);
+        }
+    }
+
+
+    /** Takes over a channel that is connected already, e.g. one accepted by a server. */
+    public void register(String id, SocketChannel socketChannel) throws ClosedChannelException {
+        SelectionKey key = socketChannel.register(nioSelector, SelectionKey.OP_READ);
+        KafkaChannel channel = channelBuilder.buildChannel(id, key, maxReceiveSize);
+        key.attach(channel);
+        this.channels.put(id, channel);
+        this.lastActivity.put(id, System.currentTimeMillis());
+    }
+
+
+    /**
+     * Queues a payload to be sent, with its size, to the given connection on the next polls. The
+     * payload must not be changed until it is reported in {@link #completedSends()}.
+     */
+    public void send(String id, ByteBuffer payload) {
+        KafkaChannel channel = channelOrFail(id);
+        ArrayDeque<ByteBuffer> queue = queuedSends.get(channel.id());
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            queuedSends.put(channel.id(), queue);
+        }
+        queue.add(payload);
+    }
+
+
+    public void wakeup() {
+        this.nioSelector.wakeup();
+    }
+
+
+    /**
+     * Does whatever I/O can be done on each connection without blocking: completes connections,
+     * writes queued payloads and reads responses, waiting up to {@code timeout} ms for one of
+     * them to be possible. Then the results are in {@link #completedReceives()},
+     * {@link #completedSends()}, {@link #connected()} and {@link #disconnected()}.
+     */
+    public void poll(long timeout) throws IOException {
+        if (timeout < 0)
+            throw new IllegalArgumentException("timeout should be >= 0");
+
+        clear();
+        startSends();
+
+        if (!stagedReceives.isEmpty() || !immediatelyConnectedKeys.isEmpty())
+            timeout = 0;
+
+        int readyKeys = select(timeout);
+        long now = System.currentTimeMillis();
+
+        if (readyKeys > 0 || !immediatelyConnectedKeys.isEmpty()) {
+            pollSelectionKeys(this.nioSelector.selectedKeys(), false, now);
+            pollSelectionKeys(immediatelyConnectedKeys, true, now);
+        }
+
+        addToCompletedReceives();
+
+        closeIdleConnections(now);
+    }
+
+    private void clear() {
+        this.completedSends.clear();
+        this.completedReceives.clear();
+        this.connected.clear();
+        this.disconnected.clear();
+    }
+
+    /** Hands the queued payloads of every connection that is not writing to its channel. */
+    private void startSends() {
+        Iterator<Map.Entry<String, ArrayDeque<ByteBuffer>>> it = queuedSends.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, ArrayDeque<ByteBuffer>> entry = it.next();
+            KafkaChannel channel = channels.get(entry.getKey());
+            if (channel == null) {
+                it.remove();
+            } else if (channel.ready() && !channel.hasSend()) {
+                channel.setSend(BatchSend.take(channel.id(), entry.getValue()));
+                if (entry.getValue().isEmpty())
+                    it.remove();
+            }
+        }
+    }
+
+    private void pollSelectionKeys(Iterable<SelectionKey> selectionKeys, boolean isImmediatelyConnected, long now) {
+        Iterator<SelectionKey> iterator = selectionKeys.iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            KafkaChannel channel = (KafkaChannel) key.attachment();
+
+            lastActivity.put(channel.id(), now);
+
+            try {
+
+                /* complete any connections that have finished their handshake (either normally or immediately) */
+                if (isImmediatelyConnected || key.isConnectable()) {
+                    if (channel.finishConnect()) {
+                        this.connected.add(channel.id());
+                    } else
+                        continue;
+                }
+
+                /* if channel is not ready finish prepare */
+                if (channel.isConnected() && !channel.ready())
+                    channel.prepare();
+
+                /* if channel is ready read from any connections that have readable data */
+                if (channel.ready() && key.isReadable()) {
+                    NetworkReceive networkReceive;
+                    while ((networkReceive = channel.read()) != null)
+                        addToStagedReceives(channel.id(), networkReceive);
+                }
+
+                /* if channel is ready write to any sockets that have space in their buffer and for which we have data */
+                if (channel.ready() && key.isWritable()) {
+                    Send send = channel.write();
+                    if (send != null) {
+                        this.completedSends.add(send);
+                        startSend(channel);
+                    }
+                }
+
+                /* cancel any defunct sockets */
+                if (!key.isValid()) {
+                    close(channel);
+                    this.disconnected.add(channel.id());
+                }
+
+            } catch (Exception e) {
+                String desc = channel.socketDescription();
+                if (e instanceof IOException)
+                    log.debug("Connection with {} disconnected", desc, e);
+                else
+                    log.warn("Unexpected error from {}; closing connection", desc, e);
+                close(channel);
+                this.disconnected.add(channel.id());
+            }
+        }
+    }
+
+    private void addToStagedReceives(String id, NetworkReceive receive) {
+        ArrayDeque<NetworkReceive> receives = stagedReceives.get(id);
+        if (receives == null) {
+            receives = new ArrayDeque<>();
+            stagedReceives.put(id, receives);
+        }
+        receives.add(receive);
+    }
+
+    /** Moves the oldest staged response of each connection to the completed ones. */
+    private void addToCompletedReceives() {
+        Iterator<ArrayDeque<NetworkReceive>> it = stagedReceives.values().iterator();
+        while (it.hasNext()) {
+            ArrayDeque<NetworkReceive> receives = it.next();
+            completedReceives.add(receives.poll());
+            if (receives.isEmpty())
+                it.remove();
+        }
+    }
+
+    /** Starts writing the next payloads of a connection right away, rather than on the next poll. */
+    private void startSend(KafkaChannel channel) {
+        ArrayDeque<ByteBuffer> queue = queuedSends.get(channel.id());
+        if (queue != null) {
+            channel.setSend(BatchSend.take(channel.id(), queue));
+            if (queue.isEmpty())
+                queuedSends.remove(channel.id());
+        }
+    }
+
+    private void closeIdleConnections(long now) {
+        Iterator<Map.Entry<String, Long>> it = lastActivity.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            if (now - entry.getValue() < connectionMaxIdleMs)
+                // The rest were active more recently.
+                break;
+            KafkaChannel channel = channels.get(entry.getKey());
+            log.debug("Closing connection {} idle for {} ms", entry.getKey(), now - entry.getValue());
+            it.remove();
+            if (channel != null) {
+                close(channel);
+                this.disconnected.add(channel.id());
+            }
+        }
+    }
+
+
+    private int select(long ms) throws IOException {
+        if (ms < 0L)
+            throw new IllegalArgumentException("timeout should be >= 0");
+
+        if (ms == 0L)
+            return this.nioSelector.selectNow();
+        else
+            return this.nioSelector.select(ms);
+    }
+
+    /** The responses returned by the last poll, at most one for each connection. */
+    public List<NetworkReceive> completedReceives() {
+        return this.completedReceives;
+    }
+
+    /** The batches of payloads written completely in the last poll. */
+    public List<Send> completedSends() {
+        return this.completedSends;
+    }
+
+    /** The connections completed in the last poll. */
+    public List<String> connected() {
+        return this.connected;
+    }
+
+    /** The connections closed in the last poll, because of an error or because they were idle. */
+    public List<String> disconnected() {
+        return this.disconnected;
+    }
+
+    public boolean isChannelReady(String id) {
+        KafkaChannel channel = this.channels.get(id);
+        return channel != null && channel.ready();
+    }
+
+    public void close(String id) {
+        KafkaChannel channel = this.channels.get(id);
+        if (channel != null)
+            close(channel);
+    }
+
+    /** Closes every connection and the selector. */
+    public void close() {
+        for (KafkaChannel channel : new ArrayList<>(this.channels.values()))
+            close(channel);
+        try {
+            this.nioSelector.close();
+        } catch (IOException | SecurityException e) {
+            log.error("Exception closing nioSelector:", e);
+        }
+    }
+
+    private void close(KafkaChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.error("Exception closing connection to node {}:", channel.id(), e);
+        }
+        this.channels.remove(channel.id());
+        this.queuedSends.remove(channel.id());
+        this.lastActivity.remove(channel.id());
+    }
+
+    private KafkaChannel channelOrFail(String id) {
+        KafkaChannel channel = this.channels.get(id);
+        if (channel == null)
+            throw new IllegalStateException("Attempt to retrieve channel for which there is no connection. Connection id " + id + " existing connections " + channels.keySet());
+        return channel;
+    }
+
+    /** Up to {@link #MAX_BATCH} size-prefixed payloads, written with gathering writes. */
+    static final class BatchSend implements Send {
+        private final String destination;
+        private final ByteBuffer[] buffers;
+        private final long size;
+        private long remaining;
+
+        private BatchSend(String destination, ByteBuffer[] buffers, long size) {
+            this.destination = destination;
+            this.buffers = buffers;
+            this.size = size;
+            this.remaining = size;
+        }
+
+        /** Takes the first payloads of the queue, as many as go in one batch. */
+        static BatchSend take(String destination, ArrayDeque<ByteBuffer> queue) {
+            int n = Math.min(queue.size(), MAX_BATCH);
+            ByteBuffer[] buffers = new ByteBuffer[2 * n];
+            long size = 0;
+            for (int i = 0; i < n; i++) {
+                ByteBuffer payload = queue.poll();
+                ByteBuffer header = ByteBuffer.allocate(4);
+                header.putInt(0, payload.remaining());
+                buffers[2 * i] = header;
+                buffers[2 * i + 1] = payload;
+                size += 4 + payload.remaining();
+            }
+            return new BatchSend(destination, buffers, size);
+        }
+
+        /** The number of payloads in the batch. */
+        int count() {
+            return buffers.length / 2;
+        }
+
+        @Override
+        public String destination() {
+            return destination;
+        }
+
+        @Override
+        public boolean completed() {
+            return remaining <= 0;
+        }
+
+        @Override
+        public long writeTo(GatheringByteChannel channel) throws IOException {
+            long written = channel.write(buffers);
+            if (written < 0)
+                throw new EOFException("Wrote negative bytes to channel. This shouldn't happen.");
+            remaining -= written;
+            return written;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+    }
+
+}
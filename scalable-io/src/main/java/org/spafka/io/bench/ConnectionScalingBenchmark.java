@@ -0,0 +1,275 @@
+package org.spafka.io.bench;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how the server models of this module ({@code virtual}, {@code nio}, {@code reactor}
+ * and {@code bio}, see {@link EchoBenchmark}) cope with many connections: for each count it opens
+ * that many connections, reports the threads and heap of the process while they are all idle,
+ * and then the echo round trips per second while every one of them has a message in flight.
+ *
+ * Unlike {@link EchoBenchmark} the clients do not take a thread per connection: a few selector
+ * threads drive all of them, so the threads reported are the server's. Connections bind to
+ * 127.0.0.1, 127.0.0.2, ... in turn, 20000 each, to stay clear of the ephemeral port range of one
+ * address. Both ends of every connection are in this process, so it needs twice as many file
+ * descriptors as connections ({@code ulimit -n}).
+ *
+ * <pre>
+ *   ConnectionScalingBenchmark [servers=virtual,nio,reactor] [connections=10000,100000]
+ *                              [seconds=10] [messageSize=64]
+ * </pre>
+ */
+public class ConnectionScalingBenchmark {
+
+    private static final int CONNECTIONS_PER_ADDRESS = 20000;
+    private static final int IDLE_SECONDS = 2;
+
+    public static void main(String[] args) throws Exception {
+        String[] servers = (args.length > 0 ? args[0] : "virtual,nio,reactor").split(",");
+        String[] counts = (args.length > 1 ? args[1] : "10000,100000").split(",");
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int messageSize = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        for (String server : servers) {
+            for (String count : counts) {
+                run(server, Integer.parseInt(count), seconds, messageSize);
+            }
+        }
+    }
+
+    private static void run(String name, int connections, int seconds, int messageSize)
+            throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        int threadsBefore = threads.getThreadCount();
+        int[] port = new int[1];
+        LongAdder roundTrips = new LongAdder();
+        ClientLoop[] loops = new ClientLoop[Runtime.getRuntime().availableProcessors()];
+        Closeable server = EchoBenchmark.startServer(name, port);
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new ClientLoop("client-" + i, messageSize, roundTrips);
+                loops[i].start();
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < connections; i++) {
+                SocketChannel channel = null;
+                try {
+                    channel = SocketChannel.open();
+                    channel.bind(new InetSocketAddress(localAddress(i), 0));
+                    channel.connect(new InetSocketAddress("127.0.0.1", port[0]));
+                } catch (IOException e) {
+                    if (channel != null) {
+                        channel.close();
+                    }
+                    // E.g. too many open files.
+                    System.out.printf("%-8s %7d connections: failed after %d: %s%n", name,
+                        connections, i, e);
+                    return;
+                }
+                loops[i % loops.length].add(channel);
+            }
+            double connectSeconds = (System.nanoTime() - start) / 1e9;
+
+            Thread.sleep(IDLE_SECONDS * 1000L);
+            System.gc();
+            long heap = memory.getHeapMemoryUsage().getUsed();
+            System.out.printf("%-8s %7d connections idle:   connected in %6.2f s, "
+                + "%6d threads, %,8d KB heap%n", name, connections, connectSeconds,
+                threads.getThreadCount() - threadsBefore - loops.length, heap / 1024);
+
+            for (ClientLoop loop : loops) {
+                loop.activate();
+            }
+            Thread.sleep(Math.min(seconds, 2) * 1000L);
+            start = System.nanoTime();
+            long before = roundTrips.sum();
+            Thread.sleep(seconds * 1000L);
+            long count = roundTrips.sum() - before;
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            double perSecond = count / elapsed;
+            System.out.printf("%-8s %7d connections active: %,12.0f round trips/s, "
+                + "mean latency %,10.1f us%n", name, connections, perSecond,
+                connections / perSecond * 1e6);
+
+            // Let the messages in flight come back, so no connection is closed on unread data.
+            for (ClientLoop loop : loops) {
+                loop.active = false;
+            }
+            Thread.sleep(1000L);
+        } finally {
+            try {
+                // Before the server, so it sees its connections being closed.
+                shutdown(loops);
+            } finally {
+                server.close();
+            }
+        }
+    }
+
+    private static void shutdown(ClientLoop[] loops) throws InterruptedException {
+        for (ClientLoop loop : loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    private static String localAddress(int connection) {
+        return "127.0.0." + (1 + connection / CONNECTIONS_PER_ADDRESS);
+    }
+
+    /** A selector thread that drives the client end of many connections. */
+    private static final class ClientLoop extends Thread {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private final List<SelectionKey> keys = new ArrayList<>();
+        private final int messageSize;
+        private final LongAdder roundTrips;
+        private volatile boolean active;
+        private volatile boolean running = true;
+        private boolean started;
+
+        ClientLoop(String name, int messageSize, LongAdder roundTrips) throws IOException {
+            super(name);
+            this.selector = Selector.open();
+            this.messageSize = messageSize;
+            this.roundTrips = roundTrips;
+            setDaemon(true);
+        }
+
+        void add(SocketChannel channel) {
+            pending.offer(channel);
+            selector.wakeup();
+        }
+
+        /** Starts every connection sending messages, each as soon as the last one came back. */
+        void activate() {
+            active = true;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    registerPending();
+                    if (active && !started) {
+                        started = true;
+                        for (SelectionKey key : keys) {
+                            try {
+                                send(key);
+                            } catch (IOException e) {
+                                key.cancel();
+                                key.channel().close();
+                            }
+                        }
+                    }
+                    selector.select();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        try {
+                            if (!key.isValid()) {
+                                continue;
+                            }
+                            if (key.isWritable()) {
+                                write(key);
+                            } else if (key.isReadable()) {
+                                read(key);
+                            }
+                        } catch (IOException e) {
+                            // Counts as no round trips; the other connections go on.
+                            key.cancel();
+                            key.channel().close();
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            } finally {
+                for (SelectionKey key : keys) {
+                    try {
+                        key.channel().close();
+                    } catch (IOException e) {
+                        // Closing anyway.
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // Closing anyway.
+                }
+            }
+        }
+
+        private void registerPending() throws IOException {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                // The echo of a message is read into the second buffer.
+                ByteBuffer[] buffers = {EchoBenchmark.message(messageSize),
+                    ByteBuffer.allocateDirect(messageSize)};
+                keys.add(channel.register(selector, 0, buffers));
+            }
+        }
+
+        private void send(SelectionKey key) throws IOException {
+            ((ByteBuffer[]) key.attachment())[0].clear();
+            write(key);
+        }
+
+        private void write(SelectionKey key) throws IOException {
+            ByteBuffer[] buffers = (ByteBuffer[]) key.attachment();
+            ((SocketChannel) key.channel()).write(buffers[0]);
+            if (buffers[0].hasRemaining()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else {
+                buffers[1].clear();
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void read(SelectionKey key) throws IOException {
+            ByteBuffer echo = ((ByteBuffer[]) key.attachment())[1];
+            if (((SocketChannel) key.channel()).read(echo) < 0) {
+                throw new EOFException("Server closed the connection");
+            }
+            if (!echo.hasRemaining()) {
+                roundTrips.increment();
+                if (active) {
+                    send(key);
+                } else {
+                    key.interestOps(0);
+                }
+            }
+        }
+
+        void shutdown() throws InterruptedException {
+            running = false;
+            selector.wakeup();
+            join();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package org.spafka.io.bench;
+
+import org.spafka.io.bio.BioServer;
+import org.spafka.io.nio.NioServer;
+import org.spafka.io.reactor.multi.MultiReactorServer;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures the echo throughput of the server models of this module: {@link BioServer}, a thread
+ * per connection ({@code bio}) or a virtual thread per connection ({@code virtual}),
+ * {@link NioServer}, one selector thread ({@code nio}), and {@link MultiReactorServer}, a few
+ * selector threads for all connections ({@code reactor}).
+ * Each client connection runs on a thread of its own and sends a message, waits for the echo and
+ * sends the next one, so the score is round trips per second over all connections. A message
+ * starts with the length of the rest of it, so it is a frame to the servers that expect frames
+ * and comes back byte for byte from all of them.
+ *
+ * <pre>
+ *   EchoBenchmark [servers=bio,reactor] [connections=64] [seconds=10] [messageSize=128]
+ * </pre>
+ *
+ * See {@link ConnectionScalingBenchmark} for tens of thousands of connections.
+ */
+public class EchoBenchmark {
+
+    private static final int WARMUP_SECONDS = 2;
+
+    public static void main(String[] args) throws Exception {
+        String[] servers = (args.length > 0 ? args[0] : "bio,reactor").split(",");
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int messageSize = args.length > 3 ? Integer.parseInt(args[3]) : 128;
+        for (String server : servers) {
+            run(server, connections, seconds, messageSize);
+        }
+    }
+
+    /** Starts the named server on a free port. */
+    static Closeable startServer(String name, int[] port) throws IOException {
+        switch (name) {
+            case "bio":
+                return serveInBackground(new BioServer(0), "bio-acceptor", port);
+            case "virtual":
+                return serveInBackground(
+                    new BioServer(0, BioServer.virtualThreads()), "virtual-acceptor", port);
+            case "nio": {
+                NioServer server = new NioServer(0).bind();
+                Thread thread = new Thread(server::start, "nio-selector");
+                thread.setDaemon(true);
+                thread.start();
+                port[0] = server.port();
+                return server;
+            }
+            case "reactor": {
+                MultiReactorServer server = new MultiReactorServer(new InetSocketAddress(0),
+                    Runtime.getRuntime().availableProcessors(), MultiReactorServer.ECHO).start();
+                port[0] = server.port();
+                return server;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown server " + name);
+        }
+    }
+
+    /** Accepts the connections of {@code server} on a daemon thread of the given name. */
+    private static BioServer serveInBackground(BioServer server, String threadName, int[] port) {
+        Thread thread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, threadName);
+        thread.setDaemon(true);
+        thread.start();
+        port[0] = server.port();
+        return server;
+    }
+
+    private static void run(String name, int connections, int seconds, int messageSize)
+            throws Exception {
+        int[] port = new int[1];
+        Closeable server = startServer(name, port);
+        try {
+            InetSocketAddress address = new InetSocketAddress("127.0.0.1", port[0]);
+            LongAdder roundTrips = new LongAdder();
+            CountDownLatch done = new CountDownLatch(connections);
+            List<Client> clients = new ArrayList<>();
+            for (int i = 0; i < connections; i++) {
+                Client client = new Client(address, messageSize, roundTrips, done);
+                clients.add(client);
+                client.start();
+            }
+            Thread.sleep(WARMUP_SECONDS * 1000L);
+            long start = System.nanoTime();
+            long before = roundTrips.sum();
+            Thread.sleep(seconds * 1000L);
+            long count = roundTrips.sum() - before;
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            for (Client client : clients) {
+                client.running = false;
+            }
+            done.await();
+            double perSecond = count / elapsed;
+            System.out.printf("%-8s %6d connections %6d bytes: %,12.0f round trips/s, "
+                + "mean latency %,8.1f us%n", name, connections, messageSize, perSecond,
+                connections / perSecond * 1e6);
+        } finally {
+            server.close();
+        }
+    }
+
+    /** A message of the given size that is also a length-prefixed frame. */
+    static ByteBuffer message(int messageSize) {
+        if (messageSize < 4) {
+            throw new IllegalArgumentException("messageSize must be at least 4: " + messageSize);
+        }
+        ByteBuffer message = ByteBuffer.allocateDirect(messageSize);
+        message.putInt(0, messageSize - 4);
+        return message;
+    }
+
+    /** Sends a message and waits for its echo, over and over. */
+    private static final class Client extends Thread {
+        private final InetSocketAddress address;
+        private final ByteBuffer message;
+        private final ByteBuffer echo;
+        private final LongAdder roundTrips;
+        private final CountDownLatch done;
+        volatile boolean running = true;
+
+        Client(InetSocketAddress address, int messageSize, LongAdder roundTrips,
+               CountDownLatch done) {
+            this.address = address;
+            this.message = message(messageSize);
+            this.echo = ByteBuffer.allocateDirect(messageSize);
+            this.roundTrips = roundTrips;
+            this.done = done;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try (SocketChannel channel = SocketChannel.open(address)) {
+                channel.socket().setTcpNoDelay(true);
+                while (running) {
+                    message.clear();
+                    while (message.hasRemaining()) {
+                        channel.write(message);
+                    }
+                    echo.clear();
+                    while (echo.hasRemaining()) {
+                        if (channel.read(echo) < 0) {
+                            throw new EOFException("Server closed the connection");
+                        }
+                    }
+                    roundTrips.increment();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+}
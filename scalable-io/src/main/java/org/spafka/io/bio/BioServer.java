@@ -1,29 +1,96 @@
 package org.spafka.io.bio;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ThreadFactory;
 
-public class BioServer {
+/**
+ * The threads come from a {@link ThreadFactory}: platform threads by default, which take a stack
+ * and a kernel thread each and so cap the server at a few thousand connections, or
+ * {@link #virtualThreads()}, with which the same blocking code scales to as many connections as
+ * there are file descriptors, since a virtual thread blocked on a socket only holds its heap stack.
+ */
+public class BioServer implements Closeable {
+	// The stack of the platform threads used when there are no virtual threads.
+	private static final long SMALL_STACK_SIZE = 256 * 1024;
 
-	public static void main(String[] args) {
-		int port = 6666;
-		ServerSocket ss = null;
+	private final ServerSocket ss;
+	private final ThreadFactory threads;
+
+	public BioServer(int port) throws IOException {
+		this(port, Thread::new);
+	}
+
+	public BioServer(int port, ThreadFactory threads) throws IOException {
+		ss = new ServerSocket(port, 1024);
+		this.threads = threads;
+	}
+
+	/**
+	 * Virtual threads on JDK 21 and later ({@code Thread.ofVirtual().factory()}, looked up
+	 * reflectively since the module builds for Java 8), and daemon platform threads with small
+	 * stacks before.
+	 */
+	public static ThreadFactory virtualThreads() {
 		try {
-			ss = new ServerSocket(port);
-			System.out.println("Bio Server start listen on port " + port + "!!!!");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			return runnable -> {
+				Thread thread = new Thread(null, runnable, "bio-handler", SMALL_STACK_SIZE);
+				thread.setDaemon(true);
+				return thread;
+			};
+		}
+	}
+
+	/** The port the server listens on, e.g. when bound to port 0. */
+	public int port() {
+		return ss.getLocalPort();
+	}
 
-			while (true) {
-				Socket socket = ss.accept();// 不断接收请求
-				new Thread(new ServerHandler(socket)).start();
+	/** Accepts connections until the server is closed, each served by a thread of its own. */
+	public void serve() throws IOException {
+		while (true) {
+			Socket socket;
+			try {
+				socket = ss.accept();// 不断接收请求
+			} catch (SocketException e) {
+				if (ss.isClosed()) {
+					return;
+				}
+				throw e;
 			}
+			threads.newThread(new ServerHandler(socket)).start();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		ss.close();
+	}
+
+	/** BioServer [port=6666] [virtual] */
+	public static void main(String[] args) {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 6666;
+		boolean virtual = args.length > 1 && "virtual".equals(args[1]);
+		BioServer server = null;
+		try {
+			server = virtual ? new BioServer(port, virtualThreads()) : new BioServer(port);
+			System.out.println("Bio Server start listen on port " + port + "!!!!");
+			server.serve();
 
 		} catch (IOException e) {
 			e.printStackTrace();
 		} finally {
 			try {
-				if (null != ss) {
-					ss.close();
+				if (null != server) {
+					server.close();
 				}
 			} catch (IOException e) {
 				e.printStackTrace();
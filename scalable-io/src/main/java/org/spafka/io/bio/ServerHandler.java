@@ -1,9 +1,13 @@
 package org.spafka.io.bio;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 
+import lombok.extern.log4j.Log4j;
+
+@Log4j
 public class ServerHandler implements Runnable {
 	private static final int MAX_INPUT = 1024;
 	private Socket socket;
@@ -16,25 +20,33 @@ public class ServerHandler implements Runnable {
 	public void run() {
 
 		try {
-			System.out.println(Thread.currentThread().getName());
+			socket.setTcpNoDelay(true);
+			InputStream in = socket.getInputStream();
+			OutputStream out = socket.getOutputStream();
 			byte[] input = new byte[MAX_INPUT];
-			socket.getInputStream().read(input);//接收
-			byte[] output = process(input);//处理
-			socket.getOutputStream().write(output);//回应
+			int n;
+			// 连接关闭前一直 接收 -> 处理 -> 回应
+			while ((n = in.read(input)) > 0) {
+				out.write(process(input, n));
+			}
 		} catch (IOException e) {
-			e.printStackTrace();
+			// Usually the client resetting the connection, which is routine for thousands of them.
+			log.debug("Closing " + socket.getRemoteSocketAddress(), e);
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Closing anyway.
+			}
 		}
 		
 	}
 
-	private byte[] process(byte[] cmd) {
-		
-		try {
-			System.out.println(new String(cmd,"UTF-8"));
-		} catch (UnsupportedEncodingException e) {
-			e.printStackTrace();
-		}
-		return cmd;
+	private byte[] process(byte[] cmd, int length) {
+		// echo
+		byte[] output = new byte[length];
+		System.arraycopy(cmd, 0, output, 0, length);
+		return output;
 	}
 
 }
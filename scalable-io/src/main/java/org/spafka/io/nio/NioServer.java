@@ -1,125 +1,407 @@
 package org.spafka.io.nio;
 
 import lombok.extern.log4j.Log4j;
+import org.spafka.io.reactor.LengthPrefixedFrames;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * With {@link WorkerMode#INLINE} requests are handled on the selector thread. With
+ * {@link WorkerMode#POOL} or {@link WorkerMode#VIRTUAL} they are handed to workers, so a slow
+ * handler does not stall the other connections: replies come back through a lock-free queue that
+ * the selector thread drains, and are written in the order of the requests of each connection.
+ *
+ * At most {@code maxPendingRequests} requests are being handled at once. When that many are,
+ * connections stop being read (OP_READ is cleared) and their bytes wait in the socket buffers,
+ * which makes clients slow down, until half of them have completed.
+ */
 @Log4j
-public class NioServer {
+public class NioServer implements Closeable {
 	private static int BUF_SIZE = 1024;
+	private static final int MAX_FRAME = 16 << 20;
+
+	/** Where requests are handled. */
+	public enum WorkerMode {
+		/** On the selector thread. */
+		INLINE,
+		/** On a fixed pool of threads, with a queue of up to {@code maxPendingRequests}. */
+		POOL,
+		/** On a virtual thread each, on JDK 21 and later; on a pool before. */
+		VIRTUAL
+	}
+
+	/** Turns a request payload into a reply payload. */
+	public interface RequestHandler {
+		ByteBuffer handle(ByteBuffer request) throws Exception;
+	}
+
+	public static final RequestHandler ECHO = request -> request;
+
 	private int port;
 	private Selector selector;
-	private ExecutorService threadPool = Executors.newFixedThreadPool(10);
+	private final RequestHandler handler;
+	private final ExecutorService threadPool;
+	private final int maxPendingRequests;
+	private final Queue<Reply> completions = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean wakenUp = new AtomicBoolean();
+	// Connections that have stopped reading because too many requests are pending.
+	private final List<SelectionKey> paused = new ArrayList<>();
+	// Only changed on the selector thread.
+	private int pendingRequests;
+	private volatile boolean running = true;
+	private ServerSocketChannel ssc;
 
 	public NioServer(int port) {
+		this(port, ECHO, WorkerMode.INLINE, 0, Integer.MAX_VALUE);
+	}
+
+	public NioServer(int port, RequestHandler handler, WorkerMode mode, int workers,
+			int maxPendingRequests) {
 		this.port = port;
+		this.handler = handler;
+		if (maxPendingRequests <= 0) {
+			throw new IllegalArgumentException("maxPendingRequests must be positive: "
+				+ maxPendingRequests);
+		}
+		this.maxPendingRequests = maxPendingRequests;
+		switch (mode) {
+			case INLINE:
+				threadPool = null;
+				break;
+			case VIRTUAL:
+				ExecutorService virtual = newVirtualThreadExecutor();
+				threadPool = virtual != null ? virtual : newPool(workers, maxPendingRequests);
+				break;
+			default:
+				threadPool = newPool(workers, maxPendingRequests);
+		}
+	}
+
+	private static ExecutorService newPool(int workers, int maxPendingRequests) {
+		// The selector never has more requests out than the queue takes. A linked queue only
+		// allocates for the requests it holds, so Integer.MAX_VALUE stands for no bound.
+		return new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<>(maxPendingRequests));
+	}
+
+	/** Executors.newVirtualThreadPerTaskExecutor() of JDK 21, or null on older JDKs. */
+	static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory =
+				java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			log.warn("Virtual threads need JDK 21 or later, using a thread pool instead");
+			return null;
+		}
+	}
+
+	/** A request of a connection, which becomes ready to be written once handled. */
+	private static final class Reply {
+		final SelectionKey key;
+		final ByteBuffer request;
+		volatile ByteBuffer payload;
+		volatile Throwable failure;
+
+		Reply(SelectionKey key, ByteBuffer request) {
+			this.key = key;
+			this.request = request;
+		}
+
+		boolean isDone() {
+			return payload != null || failure != null;
+		}
+	}
 
+	/** The state of a connection, attached to its key. */
+	private static final class Connection {
+		ByteBuffer input = ByteBuffer.allocate(BUF_SIZE);
+		// Requests in the order they were read, replied to in that order.
+		final ArrayDeque<Reply> replies = new ArrayDeque<>();
+		final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+	}
+
+	/** Opens the listening socket, so {@link #port()} is known before {@link #start()}. */
+	public NioServer bind() throws IOException {
+		selector = Selector.open();
+		ssc = ServerSocketChannel.open();
+		ssc.socket().bind(new InetSocketAddress(port), 1024);
+		ssc.configureBlocking(false);
+		ssc.register(selector, SelectionKey.OP_ACCEPT);
+		return this;
 	}
 
 	public void start() {
-		ServerSocketChannel ssc = null;
 		try {
-			selector = Selector.open();
-			ssc = ServerSocketChannel.open();
-			ssc.socket().bind(new InetSocketAddress(port));
-			ssc.configureBlocking(false);
-			ssc.register(selector, SelectionKey.OP_ACCEPT);
-			log.info("start success,listen on port " + port);
-
-			while (true) {
+			if (selector == null) {
+				bind();
+			}
+			log.info("start success,listen on port " + port());
+
+			while (running) {
 				/**
 				 * select操作执行时其他线程register,将会阻塞.可以在任意时刻关闭通道或者取消键.
 				 * 因为select操作并未对Key.cancell()同步,因此有可能再selectedKey中出现的key是已经被取消的.
 				 * 这一点需要注意.需要校验:key.isValid() && key.isReadable()
 				 */
-				if (selector.select(500) == 0) {
+				wakenUp.set(false);
+				drainCompletions();
+				if (selector.select() == 0) {
 					continue;
 				}
 				Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
 				while (iter.hasNext()) {
 					SelectionKey key = iter.next();
-					if (key.isAcceptable()) {
-						log.info("server recieve an accept");
-						handleAccept(key);
-					}
-					if (key.isValid() && key.isReadable()) {
-						log.info("server recieve a read");
-						handleRead(key);
-					}
-					if (key.isWritable() && key.isValid()) {
-						log.info("server recieve a write");
-						handleWrite(key);
-					}
-					if (key.isConnectable()) {
-						log.info("server recieve a isConnectable = true");
-					}
-					if (!key.isValid()){
-						key.cancel();
-						log.error("");
-					}
 					iter.remove();
+					try {
+						if (key.isValid() && key.isAcceptable()) {
+							handleAccept(key);
+						}
+						if (key.isValid() && key.isReadable()) {
+							handleRead(key);
+						}
+						if (key.isValid() && key.isWritable()) {
+							handleWrite(key);
+						}
+					} catch (IOException e) {
+						// The connection is gone, the server is not.
+						closeConnection(key);
+					}
 				}
 			}
 
-		} catch (IOException e) {
-			e.printStackTrace();
+		} catch (IOException | ClosedSelectorException e) {
+			if (running) {
+				log.error("NioServer failed", e);
+			}
+		} finally {
+			closeAll();
 		}
 	}
 
-	public void close() throws IOException {
+	private void closeAll() {
+		if (selector != null && selector.isOpen()) {
+			for (SelectionKey key : selector.keys()) {
+				closeConnection(key);
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Closing anyway.
+			}
+		}
+		if (threadPool != null) {
+			threadPool.shutdown();
+		}
+	}
+
+	/** The port the server listens on, e.g. when started on port 0. */
+	public int port() {
+		return ssc.socket().getLocalPort();
+	}
+
+	/** Stops the selector thread, which closes the connections and the workers on its way out. */
+	@Override
+	public void close() {
+		running = false;
 		selector.wakeup();
-		selector.close();
-		threadPool.shutdown();
 	}
 
-	public static void handleAccept(SelectionKey key) throws IOException {
+	public void handleAccept(SelectionKey key) throws IOException {
 		ServerSocketChannel ssChannel = (ServerSocketChannel) key.channel();
-		SocketChannel sc = ssChannel.accept();
-		sc.configureBlocking(false);
-		//
-		sc.register(key.selector(), SelectionKey.OP_READ, ByteBuffer.allocateDirect(BUF_SIZE));
-		
+		SocketChannel sc;
+		while ((sc = ssChannel.accept()) != null) {
+			sc.configureBlocking(false);
+			sc.socket().setTcpNoDelay(true);
+			SelectionKey connKey = sc.register(key.selector(), SelectionKey.OP_READ, new Connection());
+			if (pendingRequests >= maxPendingRequests) {
+				pause(connKey);
+			}
+		}
 	}
 
-	public static void handleRead(SelectionKey key) throws IOException {
-
+	public void handleRead(SelectionKey key) throws IOException {
+		Connection conn = (Connection) key.attachment();
+		if (pendingRequests >= maxPendingRequests) {
+			pause(key);
+			return;
+		}
 		SocketChannel sc = (SocketChannel) key.channel();
-		ByteBuffer buf = (ByteBuffer) key.attachment();
-		long bytesRead = sc.read(buf);
-		while (bytesRead > 0) {
-			buf.flip();
-			while (buf.hasRemaining()) {
-				 buf.get();
+		if (!conn.input.hasRemaining()) {
+			ByteBuffer bigger = ByteBuffer.allocate(
+				Math.min(conn.input.capacity() * 2, LengthPrefixedFrames.HEADER_SIZE + MAX_FRAME));
+			if (bigger.capacity() == conn.input.capacity()) {
+				throw new IOException("Frame larger than " + MAX_FRAME + " bytes");
+			}
+			conn.input.flip();
+			bigger.put(conn.input);
+			conn.input = bigger;
+		}
+		if (sc.read(conn.input) < 0) {
+			closeConnection(key);
+			return;
+		}
+		decode(key, conn);
+	}
+
+	/** Hands out the complete requests read so far, as many as may be pending. */
+	private void decode(SelectionKey key, Connection conn) throws IOException {
+		conn.input.flip();
+		try {
+			ByteBuffer frame;
+			while (pendingRequests < maxPendingRequests
+					&& (frame = LengthPrefixedFrames.next(conn.input, MAX_FRAME)) != null) {
+				// Copied, since the input buffer is reused while the request is being handled.
+				ByteBuffer request = ByteBuffer.allocate(frame.remaining());
+				request.put(frame).flip();
+				dispatch(key, conn, request);
+			}
+		} finally {
+			conn.input.compact();
+		}
+		if (pendingRequests >= maxPendingRequests) {
+			pause(key);
+		}
+		flush(key, conn);
+	}
+
+	private void dispatch(SelectionKey key, Connection conn, ByteBuffer request) {
+		Reply reply = new Reply(key, request);
+		conn.replies.add(reply);
+		if (threadPool == null) {
+			handle(reply);
+			return;
+		}
+		pendingRequests++;
+		threadPool.execute(() -> {
+			handle(reply);
+			completions.offer(reply);
+			if (wakenUp.compareAndSet(false, true)) {
+				selector.wakeup();
+			}
+		});
+	}
+
+	private void handle(Reply reply) {
+		try {
+			reply.payload = handler.handle(reply.request);
+		} catch (Throwable t) {
+			reply.failure = t;
+		}
+	}
+
+	/** Writes the replies that are done, and resumes reading once enough requests completed. */
+	private void drainCompletions() {
+		Reply reply;
+		List<SelectionKey> done = new ArrayList<>();
+		while ((reply = completions.poll()) != null) {
+			pendingRequests--;
+			if (reply.key.isValid()) {
+				done.add(reply.key);
+			}
+		}
+		for (SelectionKey key : done) {
+			try {
+				if (key.isValid()) {
+					flush(key, (Connection) key.attachment());
+				}
+			} catch (IOException e) {
+				closeConnection(key);
+			}
+		}
+		if (!paused.isEmpty() && pendingRequests <= maxPendingRequests / 2) {
+			resume();
+		}
+	}
+
+	private void pause(SelectionKey key) {
+		if ((key.interestOps() & SelectionKey.OP_READ) != 0) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			paused.add(key);
+		}
+	}
+
+	private void resume() {
+		List<SelectionKey> keys = new ArrayList<>(paused);
+		paused.clear();
+		for (SelectionKey key : keys) {
+			if (!key.isValid()) {
+				continue;
+			}
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			try {
+				// Requests that were read but not handed out yet go first.
+				decode(key, (Connection) key.attachment());
+			} catch (IOException e) {
+				closeConnection(key);
 			}
-			buf.clear();
-			bytesRead = sc.read(buf);
 		}
-		if (bytesRead == -1) {
-			sc.close();
+	}
+
+	/** Queues the replies that are done, in request order, and writes until the socket blocks. */
+	private void flush(SelectionKey key, Connection conn) throws IOException {
+		while (!conn.replies.isEmpty() && conn.replies.peekFirst().isDone()) {
+			Reply reply = conn.replies.pollFirst();
+			if (reply.failure != null) {
+				throw new IOException("Request failed", reply.failure);
+			}
+			conn.output.add(LengthPrefixedFrames.header(reply.payload.remaining()));
+			conn.output.add(reply.payload);
 		}
+		handleWrite(key);
 	}
 
-	public static void handleWrite(SelectionKey key) throws IOException {
-		ByteBuffer buf = (ByteBuffer) key.attachment();
-		buf.flip();
+	public void handleWrite(SelectionKey key) throws IOException {
+		Connection conn = (Connection) key.attachment();
 		SocketChannel sc = (SocketChannel) key.channel();
-		while (buf.hasRemaining()) {
-			sc.write(buf);
+		while (!conn.output.isEmpty()) {
+			ByteBuffer[] buffers = conn.output.toArray(new ByteBuffer[0]);
+			sc.write(buffers);
+			while (!conn.output.isEmpty() && !conn.output.peekFirst().hasRemaining()) {
+				conn.output.pollFirst();
+			}
+			if (buffers[buffers.length - 1].hasRemaining()) {
+				break;
+			}
+		}
+		if (conn.output.isEmpty()) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		} else {
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		}
+	}
+
+	private void closeConnection(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			// Closing anyway.
 		}
-		buf.compact();
 	}
 
 	public static void main(String[] args) {
-		new NioServer(5555).start();
+		new NioServer(5555, ECHO, WorkerMode.POOL, 10, 1024).start();
 
 	}
 
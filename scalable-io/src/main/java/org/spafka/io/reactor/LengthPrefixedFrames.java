@@ -0,0 +1,50 @@
+package org.spafka.io.reactor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Frames of a 4 byte big-endian length followed by that many bytes of payload, the framing of the
+ * reactor handlers. A read may hold part of a frame or several frames, so decoding takes frames
+ * off the front of the bytes read so far, and leaves a partial frame for the next read.
+ */
+public final class LengthPrefixedFrames {
+
+    public static final int HEADER_SIZE = 4;
+
+    private LengthPrefixedFrames() {
+    }
+
+    /**
+     * Takes the next frame off {@code input}, which is ready to be read from, and returns its
+     * payload as a slice of {@code input}, which is only valid until {@code input} is changed.
+     * Returns null, and leaves {@code input} as it was, if the frame is not complete yet.
+     *
+     * @throws IOException if the length of the frame is negative or above {@code maxLength}
+     */
+    public static ByteBuffer next(ByteBuffer input, int maxLength) throws IOException {
+        if (input.remaining() < HEADER_SIZE) {
+            return null;
+        }
+        int start = input.position();
+        int length = input.getInt(start);
+        if (length < 0 || length > maxLength) {
+            throw new IOException(
+                "Invalid frame length " + length + ", the maximum is " + maxLength);
+        }
+        if (input.remaining() < HEADER_SIZE + length) {
+            return null;
+        }
+        ByteBuffer payload = input.duplicate();
+        payload.position(start + HEADER_SIZE).limit(start + HEADER_SIZE + length);
+        input.position(start + HEADER_SIZE + length);
+        return payload.slice();
+    }
+
+    /** The header of a frame of {@code length} bytes, ready to be written. */
+    public static ByteBuffer header(int length) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(0, length);
+        return header;
+    }
+}
@@ -5,18 +5,31 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 
-import javax.xml.bind.DatatypeConverter;
+import org.spafka.io.reactor.LengthPrefixedFrames;
 
+/**
+ * Reads accumulate in {@code input} until frames are complete, and every complete frame of a read
+ * is processed, so a request may span reads and a read may hold several requests. Requests are
+ * pipelined: replies are queued in order and written with gathering writes until the socket
+ * would block, while reading goes on, until too many reply bytes are waiting.
+ */
 class Handler implements Runnable {
-	private static final int MAXIN = 1024;
-	private static final int MAXOUT = 1024;
+	private static final int MIN_INPUT = 1024;
+	private static final int MAX_FRAME = 16 << 20;
+	// Stop reading requests while this many reply bytes wait for the socket.
+	private static final int MAX_PENDING_OUTPUT = 1 << 20;
+	private static final int MAX_GATHER = 64;
+
 	final SocketChannel socket;
 	final SelectionKey sk;
-	ByteBuffer input = ByteBuffer.allocate(MAXIN);
-	ByteBuffer output = ByteBuffer.allocate(MAXOUT);
-	static final int READING = 0, SENDING = 1;
-	int state = READING;
+	// The bytes read and not decoded yet, ready to be written to.
+	ByteBuffer input = ByteBuffer.allocate(MIN_INPUT);
+	final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+	long pendingOutput;
 
 	public Handler(Selector sel, SocketChannel c) throws IOException {
 		socket = c;
@@ -28,58 +41,93 @@ class Handler implements Runnable {
 		sel.wakeup();
 	}
 
-	boolean inputIsComplete() {
-		return true;
-	}
-
 	boolean outputIsComplete() {
-		return true;
+		return output.isEmpty();
 	}
 
-	void process() {
-		byte[] bytes = new byte[input.position()];
-		input.flip();
-		input.get(bytes);
-		input.clear();
-		
-		System.out.println("input:"+DatatypeConverter.printHexBinary(bytes));
-		
-		
+	/** Handles one request, whose payload is only valid during the call. Echoes it by default. */
+	void process(ByteBuffer request) {
+		ByteBuffer reply = ByteBuffer.allocate(request.remaining());
+		reply.put(request).flip();
+		output.add(LengthPrefixedFrames.header(reply.remaining()));
+		output.add(reply);
+		pendingOutput += LengthPrefixedFrames.HEADER_SIZE + reply.remaining();
 	}
 
 	public void run() {
 		try {
-			if (state == READING)
+			if (sk.isReadable())
 				read();
-			else if (state == SENDING)
+			if (sk.isValid() && sk.isWritable())
 				send();
-		} catch (IOException ex) { }
+		} catch (IOException ex) {
+			close();
+		}
 	}
 
 	void read() throws IOException {
-		socket.read(input);
-		System.out.println("read");
-		if (inputIsComplete()) {
-			process();
-			state = SENDING;
+		if (!input.hasRemaining()) {
+			grow();
+		}
+		int n = socket.read(input);
+		if (n < 0) {
+			close();
+			return;
+		}
+		input.flip();
+		ByteBuffer request;
+		while ((request = LengthPrefixedFrames.next(input, MAX_FRAME)) != null) {
+			process(request);
+		}
+		input.compact();
+		if (!outputIsComplete()) {
 			// Normally also do first write now
-			sk.interestOps(SelectionKey.OP_WRITE); // 第三步,接收write事件
+			send();
 		}
 	}
 
+	/** Makes room for the rest of a frame that is larger than the input buffer. */
+	private void grow() throws IOException {
+		if (input.capacity() >= LengthPrefixedFrames.HEADER_SIZE + MAX_FRAME) {
+			throw new IOException("Frame larger than " + MAX_FRAME + " bytes");
+		}
+		ByteBuffer bigger = ByteBuffer.allocate(
+			Math.min(input.capacity() * 2, LengthPrefixedFrames.HEADER_SIZE + MAX_FRAME));
+		input.flip();
+		bigger.put(input);
+		input = bigger;
+	}
+
+	/** Writes queued replies until the socket would block, and updates the interest set. */
 	void send() throws IOException {
-		output.clear();
-		output.put("111".getBytes());
-		output.flip();
-		socket.write(output);
-		
-		System.out.println("write");
-		if (outputIsComplete()){
-			sk.interestOps(SelectionKey.OP_READ);
-			state = READING;
-//			sk.cancel(); // write完就结束了, 关闭select key
+		boolean blocked = false;
+		while (!outputIsComplete() && !blocked) {
+			int n = 0;
+			for (ByteBuffer buffer : output) {
+				if (n == gather.length)
+					break;
+				gather[n++] = buffer;
+			}
+			pendingOutput -= socket.write(gather, 0, n);
+			blocked = gather[n - 1].hasRemaining();
+			while (!output.isEmpty() && !output.peekFirst().hasRemaining()) {
+				output.pollFirst();
+			}
+			Arrays.fill(gather, 0, n, null);
 		}
-			
+		int ops = 0;
+		if (pendingOutput < MAX_PENDING_OUTPUT)
+			ops |= SelectionKey.OP_READ;
+		if (!outputIsComplete())
+			ops |= SelectionKey.OP_WRITE; // 第三步,接收write事件
+		sk.interestOps(ops);
+	}
 
+	void close() {
+		sk.cancel();
+		try {
+			socket.close();
+		} catch (IOException ex) { }
+		output.clear();
 	}
-}
\ No newline at end of file
+}
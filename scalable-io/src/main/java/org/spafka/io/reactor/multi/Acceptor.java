@@ -1,46 +1,76 @@
-//package org.spafka.io.reactor.multi;
-//
-//import lombok.extern.log4j.Log4j;
-//
-//import java.io.IOException;
-//import java.nio.channels.Selector;
-//import java.nio.channels.ServerSocketChannel;
-//import java.nio.channels.SocketChannel;
-//@Log4j
-//public abstract class Acceptor extends Thread {
-//
-//    protected final Selector selector;
-//    protected final ServerSocketChannel serverChannel;
-//    protected final boolean useMultipleReactors;
-//
-//    public Acceptor(Selector selector, ServerSocketChannel serverChannel, boolean useMultipleReactors){
-//        this.selector = selector;
-//        this.serverChannel = serverChannel;
-//        this.useMultipleReactors = useMultipleReactors;
-//    }
-//
-//    @Override
-//    public void run() {
-//        log.info(selector+" accept...");
-//        try {
-//             SocketChannel clientChannel = serverChannel.accept();
-//             if(clientChannel != null){
-//                 log.info(selector+" clientChannel not null...");
-//                 //如果使用阻塞的select方式，且目的是开启了多个reactor池，而不是mainReactor和subReactor的关系的话，
-//                 //则下面就不是nextSubSelector().selector，而是改为传递当前实例的selector对象即可
-//                 handle(useMultipleReactors ? nextSubReactor().selector : selector, clientChannel);
-//             }else{
-//                 log.info(selector+" clientChannel is null...");
-//             }
-//        } catch (IOException e) {
-//            e.printStackTrace();
-//        }
-//    }
-//
-//    /**
-//     * 在每个具体的Handler下调用run方法是为了令其从connecting状态变为reading状态，
-//     * 和原pdf版本下的做法是一样的，只不过原pdf版本是在构造函数直接修改设置了感兴趣为read事件
-//     */
-//    public abstract void handle(Selector selector, SocketChannel clientSocket);
-//
-//}
\ No newline at end of file
+package org.spafka.io.reactor.multi;
+
+import lombok.extern.log4j.Log4j;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The main reactor: a selector thread that only accepts connections, and hands each to the next
+ * of the sub {@link Reactor}s in turn, which then owns it for its whole life.
+ */
+@Log4j
+public class Acceptor extends Thread {
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Reactor[] reactors;
+    private int next;
+    private volatile boolean running = true;
+
+    public Acceptor(ServerSocketChannel serverChannel, Reactor[] reactors) throws IOException {
+        super("acceptor");
+        this.serverChannel = serverChannel;
+        this.reactors = reactors;
+        this.selector = Selector.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                if (selector.select() > 0) {
+                    selector.selectedKeys().clear();
+                    accept();
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                log.error("Acceptor failed", e);
+            }
+        }
+    }
+
+    /** Accepts every connection that is waiting, not only the one that woke the selector up. */
+    private void accept() {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                // E.g. too many open files: keep serving the connections there are.
+                log.warn("Failed to accept a connection", e);
+                return;
+            }
+            if (channel == null) {
+                return;
+            }
+            reactors[next].register(channel);
+            next = next + 1 == reactors.length ? 0 : next + 1;
+        }
+    }
+
+    /** Stops accepting connections and waits for the thread to finish. */
+    public void shutdown() throws InterruptedException, IOException {
+        running = false;
+        selector.wakeup();
+        join();
+        selector.close();
+    }
+}
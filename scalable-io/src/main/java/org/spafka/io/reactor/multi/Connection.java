@@ -0,0 +1,167 @@
+package org.spafka.io.reactor.multi;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * A connection of a {@link MultiReactorServer}, owned by one {@link Reactor} for its whole life.
+ * Its methods must only be called from that reactor's thread, i.e. from the {@link Handler}
+ * callbacks.
+ *
+ * Reads go into a buffer shared by all connections of the reactor, and a connection only gets a
+ * buffer of its own while the handler leaves a partial request unread, so idle connections hold
+ * no buffers. Replies are queued and written with gathering writes; whatever the socket does
+ * not take is written when it becomes writable again.
+ */
+public final class Connection {
+
+    private static final int MIN_INPUT = 4096;
+    private static final int MAX_INPUT = 16 << 20;
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final Reactor reactor;
+    private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+    // The bytes the handler left unread, ready to be written to, or null if there are none.
+    private ByteBuffer input;
+    private Object attachment;
+    private boolean closed;
+
+    Connection(SocketChannel channel, SelectionKey key, Reactor reactor) {
+        this.channel = channel;
+        this.key = key;
+        this.reactor = reactor;
+    }
+
+    public SocketChannel channel() {
+        return channel;
+    }
+
+    public SocketAddress remoteAddress() {
+        return channel.socket().getRemoteSocketAddress();
+    }
+
+    public Reactor reactor() {
+        return reactor;
+    }
+
+    /** Per connection state of the {@link Handler}. */
+    public void attach(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    public Object attachment() {
+        return attachment;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /** The number of buffers written but not yet taken by the socket. */
+    public int pendingWrites() {
+        return output.size();
+    }
+
+    /**
+     * Queues {@code buffer} to be written, and writes it at once if nothing else is queued. The
+     * buffer must not be changed until it has been written.
+     */
+    public void write(ByteBuffer buffer) throws IOException {
+        if (closed) {
+            throw new IOException("Connection to " + remoteAddress() + " is closed");
+        }
+        output.add(buffer);
+        if (output.size() == 1) {
+            flush();
+        }
+    }
+
+    /** Reads what the socket has, and hands it to the handler. */
+    void onReadable(ByteBuffer shared, Handler handler) throws IOException {
+        ByteBuffer buffer = input != null ? input : shared;
+        if (!buffer.hasRemaining()) {
+            buffer = input = grow(input);
+        }
+        int n = channel.read(buffer);
+        if (n < 0) {
+            close();
+            return;
+        }
+        if (n == 0) {
+            return;
+        }
+        buffer.flip();
+        handler.onRead(this, buffer);
+        if (closed) {
+            shared.clear();
+            return;
+        }
+        if (!buffer.hasRemaining()) {
+            input = null;
+        } else if (buffer == shared) {
+            int capacity = Math.max(MIN_INPUT, Integer.highestOneBit(buffer.remaining()) * 2);
+            input = ByteBuffer.allocate(capacity);
+            input.put(buffer);
+        } else {
+            buffer.compact();
+        }
+        shared.clear();
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() >= MAX_INPUT) {
+            throw new IOException("Request larger than " + MAX_INPUT + " bytes");
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    /** Writes the queued buffers until the socket would block, then waits for OP_WRITE. */
+    void flush() throws IOException {
+        ByteBuffer[] gather = reactor.gatherBuffers();
+        while (!output.isEmpty()) {
+            int n = 0;
+            Iterator<ByteBuffer> it = output.iterator();
+            while (n < gather.length && it.hasNext()) {
+                gather[n++] = it.next();
+            }
+            channel.write(gather, 0, n);
+            while (!output.isEmpty() && !output.peekFirst().hasRemaining()) {
+                output.pollFirst();
+            }
+            boolean blocked = n > 0 && gather[n - 1].hasRemaining();
+            Arrays.fill(gather, 0, n, null);
+            if (blocked) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    /** Closes the connection and drops what has not been written yet. */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to do with the channel.
+        }
+        output.clear();
+        input = null;
+        reactor.onClosed(this);
+    }
+}
@@ -0,0 +1,50 @@
+package org.spafka.io.reactor.multi;
+
+import org.spafka.io.reactor.LengthPrefixedFrames;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link Handler} for protocols of {@link LengthPrefixedFrames}: it hands each complete frame to
+ * {@link #onFrame}, however the frames were split into reads, and keeps a partial frame until
+ * the rest of it has been read. Replies written with {@link #writeFrame} are queued in order, so
+ * clients may pipeline requests.
+ *
+ * Payloads are slices of the reactor's read buffer, which is reused for the next read once
+ * {@link #onFrame} returns, so a handler that keeps one must copy it; {@link #writeFrame} does.
+ */
+public abstract class LengthPrefixedHandler implements Handler {
+
+    private final int maxFrameLength;
+
+    protected LengthPrefixedHandler(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    public final void onRead(Connection connection, ByteBuffer input) throws IOException {
+        ByteBuffer payload;
+        while (!connection.isClosed()
+                && (payload = LengthPrefixedFrames.next(input, maxFrameLength)) != null) {
+            onFrame(connection, payload);
+        }
+    }
+
+    /**
+     * Handles a frame, whose payload is only valid during the call: it may be overwritten by the
+     * next read as soon as the call returns.
+     */
+    protected abstract void onFrame(Connection connection, ByteBuffer payload) throws IOException;
+
+    /**
+     * Writes {@code payload} as a frame, after the frames written before it. The payload is copied,
+     * since the socket may not take it before the buffer it is in is reused.
+     */
+    public static void writeFrame(Connection connection, ByteBuffer payload) throws IOException {
+        ByteBuffer frame =
+            ByteBuffer.allocate(LengthPrefixedFrames.HEADER_SIZE + payload.remaining());
+        frame.putInt(payload.remaining()).put(payload).flip();
+        connection.write(frame);
+    }
+}
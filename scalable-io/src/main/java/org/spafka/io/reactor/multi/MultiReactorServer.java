@@ -0,0 +1,98 @@
+package org.spafka.io.reactor.multi;
+
+import lombok.extern.log4j.Log4j;
+import org.spafka.io.reactor.LengthPrefixedFrames;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * A server of one main reactor, the {@link Acceptor}, and N sub {@link Reactor}s, each a selector
+ * thread that does the I/O of the connections it is given round-robin, with the protocol given as
+ * a {@link Handler}. Handlers run on the reactor threads, so they must not block; a handler that
+ * needs to should hand the work to a pool of its own.
+ */
+@Log4j
+public class MultiReactorServer implements Closeable {
+
+    /** Writes back whatever it reads. */
+    public static final Handler ECHO = (connection, input) -> {
+        ByteBuffer reply = ByteBuffer.allocate(input.remaining());
+        reply.put(input).flip();
+        connection.write(reply);
+    };
+
+    /** Writes back every {@link LengthPrefixedFrames} frame it reads, as a frame. */
+    public static final Handler FRAMED_ECHO = new LengthPrefixedHandler(16 << 20) {
+        @Override
+        protected void onFrame(Connection connection, ByteBuffer payload) throws IOException {
+            writeFrame(connection, payload);
+        }
+    };
+
+    private final ServerSocketChannel serverChannel;
+    private final Reactor[] reactors;
+    private final Acceptor acceptor;
+
+    public MultiReactorServer(InetSocketAddress address, int numReactors, Handler handler)
+            throws IOException {
+        if (numReactors <= 0) {
+            throw new IllegalArgumentException("numReactors must be positive: " + numReactors);
+        }
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(address, 1024);
+        reactors = new Reactor[numReactors];
+        for (int i = 0; i < numReactors; i++) {
+            reactors[i] = new Reactor("sub-reactor-" + i, handler);
+        }
+        acceptor = new Acceptor(serverChannel, reactors);
+    }
+
+    public MultiReactorServer start() {
+        for (Reactor reactor : reactors) {
+            reactor.start();
+        }
+        acceptor.start();
+        log.info("start success, listen on port " + port() + " with " + reactors.length
+            + " reactors");
+        return this;
+    }
+
+    /** The port the server listens on, e.g. when bound to port 0. */
+    public int port() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public int numConnections() {
+        int n = 0;
+        for (Reactor reactor : reactors) {
+            n += reactor.numConnections();
+        }
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            acceptor.shutdown();
+            serverChannel.close();
+            for (Reactor reactor : reactors) {
+                reactor.shutdown();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing", e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 5555;
+        int numReactors = args.length > 1
+            ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        new MultiReactorServer(new InetSocketAddress(port), numReactors, ECHO).start();
+    }
+}
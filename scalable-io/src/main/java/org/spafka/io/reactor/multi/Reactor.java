@@ -1,92 +1,167 @@
-//package org.spafka.io.reactor.multi;
-//
-//import lombok.extern.log4j.Log4j;
-//
-//import java.io.IOException;
-//import java.net.InetSocketAddress;
-//import java.nio.channels.SelectionKey;
-//import java.nio.channels.Selector;
-//import java.nio.channels.ServerSocketChannel;
-//import java.java.util.Iterator;
-//@Log4j
-//public abstract class Reactor extends Thread{
-//
-//    protected final int port;
-//    protected final ServerSocketChannel serverChannel;
-//    protected final boolean isMainReactor;
-//    protected final boolean useMultipleReactors;
-//    protected final long timeout;
-//    protected Selector selector;
-//
-//    public Reactor(int port, ServerSocketChannel serverChannel, boolean isMainReactor, boolean useMultipleReactors, long timeout){
-//        this.port = port;
-//        this.serverChannel = serverChannel;
-//        this.isMainReactor = isMainReactor;
-//        this.useMultipleReactors = useMultipleReactors;
-//        this.timeout = timeout;
-//    }
-//
-//    @Override
-//    public void run(){
-//        try {
-//            init();
-//            while(!Thread.interrupted()){
-//                //不可以使用阻塞的select方式，否则accept后subReactor的selector在register的时候会一直阻塞
-//                //但是修改为带有超时的select或者selectNow后，subReactor的selector在register就不会阻塞了
-//                //最终选择了带有超时的select是因为使用selectNow的无限循环会导致CPU飙高特别快
-//                //并且如果使用阻塞的select方式，还需要知道在哪里调用wakeup，否则会一直阻塞，使用非阻塞方式就不需要wakeup了
-//                //selector.select();
-//                //if(selector.selectNow() > 0){
-//                if(selector.select(timeout) > 0){
-//                    log.info(selector+" isMainReactor="+isMainReactor+" select...");
-//                    Iterator<SelectionKey> keyIt = selector.selectedKeys().iterator();
-//                    while(keyIt.hasNext()){
-//                        SelectionKey key = keyIt.next();
-//                        dispatch(key);
-//                        keyIt.remove();
-//                    }
-//                }
-//            }
-//            log.info(getClass().getSimpleName()+" end on "+port+" ..."+"\n");
-//        } catch (IOException e) {
-//            e.printStackTrace();
-//        }
-//    }
-//
-//    private void init() throws IOException{
-//        selector = Selector.open();
-//        log.info(selector+" isMainReactor="+isMainReactor);
-//
-//        if(isMainReactor){
-//            //serverChannel = ServerSocketChannel.open();
-//            serverChannel.socket().bind(new InetSocketAddress(port));
-//            serverChannel.configureBlocking(false);
-//            SelectionKey key = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
-//            key.attach(new Acceptor(selector));
-//            log.info(getClass().getSimpleName()+" start on "+port+" ..."+"\n");
-//        }else{
-//
-//        }
-//
-//        //如果使用阻塞的select方式，且开启下面的代码的话，相当于开启了多个reactor池，而不是mainReactor和subReactor的关系了
-//        //SelectionKey key = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
-//        //key.attach(newAcceptor(selector, serverChannel));
-//    }
-//
-//   // public abstract Acceptor new Acceptor(Selector selector);
-//
-//    /**
-//     * 事件和事件处理器的绑定
-//     * <ul>
-//     * <li>管理IO读/写事件到事件处理器的一一对应的绑定</li>
-//     * </ul>
-//     */
-//    private void dispatch(SelectionKey key){
-//        Runnable r = (Runnable)key.attachment();
-//        if(r != null){
-//            r.run();
-//        }
-//    }
-//
-//
-//}
\ No newline at end of file
+package org.spafka.io.reactor.multi;
+
+import lombok.extern.log4j.Log4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A sub reactor: one selector thread that does all I/O of the connections handed to it by the
+ * {@link Acceptor}, which stay with it until they are closed.
+ *
+ * Channels are not registered by the acceptor, since {@code register} blocks while the selector
+ * is in {@code select()}: they go through a lock-free queue that the reactor drains itself
+ * before each select. The acceptor only wakes the selector up when it is not already being woken
+ * up, so a burst of connections costs one {@code wakeup()}, and none is lost: the flag is cleared
+ * before the queue is drained, so a channel queued after the drain always sees it cleared.
+ */
+@Log4j
+public class Reactor extends Thread {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_GATHER = 64;
+
+    private final Selector selector;
+    private final Handler handler;
+    private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakenUp = new AtomicBoolean();
+    private final AtomicInteger numConnections = new AtomicInteger();
+    // Shared by all connections, since only this thread reads.
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER];
+    private volatile boolean running = true;
+
+    public Reactor(String name, Handler handler) throws IOException {
+        super(name);
+        this.selector = Selector.open();
+        this.handler = handler;
+    }
+
+    /** Hands over an accepted channel, to be registered by this reactor's thread. */
+    public void register(SocketChannel channel) {
+        pending.offer(channel);
+        if (wakenUp.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /** The number of connections registered with this reactor and still open. */
+    public int numConnections() {
+        return numConnections.get();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                wakenUp.set(false);
+                registerPending();
+                if (selector.select() > 0) {
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        dispatch(key);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                log.error(getName() + " failed", e);
+            }
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = pending.poll()) != null) {
+            Connection connection = null;
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                connection = new Connection(channel, key, this);
+                key.attach(connection);
+                numConnections.incrementAndGet();
+                handler.onOpen(connection);
+            } catch (IOException e) {
+                log.warn("Failed to register " + channel, e);
+                if (connection != null) {
+                    connection.close();
+                } else {
+                    closeQuietly(channel);
+                }
+            }
+        }
+    }
+
+    private void dispatch(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (key.isValid() && key.isWritable()) {
+                connection.flush();
+            }
+            if (key.isValid() && key.isReadable()) {
+                connection.onReadable(readBuffer, handler);
+            }
+        } catch (IOException | RuntimeException e) {
+            // One connection failing must not stop the others.
+            if (log.isDebugEnabled()) {
+                log.debug("Closing " + connection.remoteAddress(), e);
+            }
+            readBuffer.clear();
+            connection.close();
+        }
+    }
+
+    ByteBuffer[] gatherBuffers() {
+        return gatherBuffers;
+    }
+
+    void onClosed(Connection connection) {
+        numConnections.decrementAndGet();
+        handler.onClose(connection);
+    }
+
+    private void closeAll() {
+        if (selector.isOpen()) {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            closeQuietly(selector);
+        }
+        SocketChannel channel;
+        while ((channel = pending.poll()) != null) {
+            closeQuietly(channel);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Closing anyway.
+        }
+    }
+
+    /** Stops the reactor, which closes all its connections, and waits for it to finish. */
+    public void shutdown() throws InterruptedException {
+        running = false;
+        selector.wakeup();
+        join();
+    }
+}
@@ -0,0 +1,140 @@
+package org.spafka.io;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.kafka.common.network.NetworkReceive;
+import org.apache.kafka.common.network.PlaintextChannelBuilder;
+import org.apache.kafka.common.network.Selectable;
+import org.apache.kafka.common.network.Send;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.spafka.io.reactor.multi.MultiReactorServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestSelector {
+
+    private MultiReactorServer server;
+    private InetSocketAddress address;
+    private Selector selector;
+
+    @Before
+    public void setUp() throws IOException {
+        // Echoes size-prefixed frames, the framing of the selector.
+        server = new MultiReactorServer(new InetSocketAddress("127.0.0.1", 0), 2,
+            MultiReactorServer.FRAMED_ECHO).start();
+        address = new InetSocketAddress("127.0.0.1", server.port());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (selector != null) {
+            selector.close();
+        }
+        server.close();
+    }
+
+    private Selector newSelector(long connectionMaxIdleMs) throws IOException {
+        PlaintextChannelBuilder builder = new PlaintextChannelBuilder();
+        builder.configure(new HashMap<String, Object>());
+        return new Selector(builder, NetworkReceive.UNLIMITED, connectionMaxIdleMs);
+    }
+
+    private void connect(String id) throws IOException {
+        selector.connect(id, address, Selectable.USE_DEFAULT_BUFFER_SIZE,
+            Selectable.USE_DEFAULT_BUFFER_SIZE);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!selector.isChannelReady(id)) {
+            assertTrue("connect to " + id, System.currentTimeMillis() < deadline);
+            selector.poll(10);
+        }
+    }
+
+    private static ByteBuffer payload(String id, int i) {
+        return ByteBuffer.wrap((id + "-" + i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(NetworkReceive receive) {
+        ByteBuffer payload = receive.payload();
+        payload.rewind();
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void sendsAreBatchedAndOneReceivePerConnectionIsReturnedPerPoll() throws Exception {
+        selector = newSelector(60000);
+        String[] ids = {"0", "1"};
+        int n = Selector.MAX_BATCH + 36;
+        for (String id : ids) {
+            connect(id);
+        }
+        for (String id : ids) {
+            for (int i = 0; i < n; i++) {
+                selector.send(id, payload(id, i));
+            }
+        }
+
+        List<Integer> batches = new ArrayList<>();
+        List<String> received = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (received.size() < ids.length * n) {
+            assertTrue("echo of " + received.size(), System.currentTimeMillis() < deadline);
+            selector.poll(10);
+            for (Send send : selector.completedSends()) {
+                if (send.destination().equals("0")) {
+                    batches.add(((Selector.BatchSend) send).count());
+                }
+            }
+            Set<String> sources = new HashSet<>();
+            for (NetworkReceive receive : selector.completedReceives()) {
+                assertTrue("two receives of " + receive.source() + " in one poll",
+                    sources.add(receive.source()));
+                received.add(string(receive));
+            }
+        }
+
+        // Queued payloads go out in as few batches as fit.
+        assertEquals("[" + Selector.MAX_BATCH + ", 36]", batches.toString());
+        for (String id : ids) {
+            int next = 0;
+            for (String echo : received) {
+                if (echo.startsWith(id + "-")) {
+                    assertEquals(id + "-" + next++, echo);
+                }
+            }
+            assertEquals(n, next);
+        }
+        assertTrue(selector.disconnected().isEmpty());
+    }
+
+    @Test
+    public void idleConnectionsAreClosed() throws Exception {
+        selector = newSelector(200);
+        connect("idle");
+        connect("busy");
+        long deadline = System.currentTimeMillis() + 5000;
+        List<String> disconnected = new ArrayList<>();
+        int i = 0;
+        while (disconnected.isEmpty()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            selector.send("busy", payload("busy", i++));
+            selector.poll(20);
+            disconnected.addAll(selector.disconnected());
+        }
+        assertEquals("[idle]", disconnected.toString());
+        assertTrue(!selector.isChannelReady("idle"));
+        assertTrue(selector.isChannelReady("busy"));
+    }
+}
@@ -0,0 +1,82 @@
+package org.spafka.io.bio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestBioServer {
+
+	private BioServer server;
+	private Thread thread;
+
+	private void start(BioServer server) {
+		this.server = server;
+		thread = new Thread(() -> {
+			try {
+				server.serve();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		thread.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.close();
+		thread.join();
+	}
+
+	private static String echo(Socket socket, String message) throws IOException {
+		OutputStream out = socket.getOutputStream();
+		InputStream in = socket.getInputStream();
+		byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+		out.write(bytes);
+		byte[] echo = new byte[bytes.length];
+		for (int n = 0; n < echo.length; ) {
+			int read = in.read(echo, n, echo.length - n);
+			if (read < 0) {
+				throw new IOException("closed");
+			}
+			n += read;
+		}
+		return new String(echo, StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void platformThreads() throws IOException {
+		start(new BioServer(0));
+		try (Socket socket = new Socket("127.0.0.1", server.port())) {
+			assertEquals("hello", echo(socket, "hello"));
+			assertEquals("again", echo(socket, "again"));
+		}
+	}
+
+	@Test
+	public void virtualThreadsServeManyConnectionsAtOnce() throws IOException {
+		start(new BioServer(0, BioServer.virtualThreads()));
+		List<Socket> sockets = new ArrayList<>();
+		try {
+			// All open at once, each blocking a thread of the server while idle.
+			for (int i = 0; i < 200; i++) {
+				sockets.add(new Socket("127.0.0.1", server.port()));
+			}
+			for (int i = 0; i < sockets.size(); i++) {
+				assertEquals("m" + i, echo(sockets.get(i), "m" + i));
+			}
+		} finally {
+			for (Socket socket : sockets) {
+				socket.close();
+			}
+		}
+	}
+}
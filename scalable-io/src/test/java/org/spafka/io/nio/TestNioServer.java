@@ -0,0 +1,130 @@
+package org.spafka.io.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestNioServer {
+
+	private NioServer server;
+	private Thread thread;
+
+	private SocketChannel start(NioServer.RequestHandler handler, NioServer.WorkerMode mode,
+			int maxPendingRequests) throws IOException {
+		server = new NioServer(0, handler, mode, 4, maxPendingRequests).bind();
+		thread = new Thread(server::start);
+		thread.start();
+		return SocketChannel.open(new InetSocketAddress("127.0.0.1", server.port()));
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		server.close();
+		thread.join();
+	}
+
+	private static void writeFrame(SocketChannel channel, String payload) throws IOException {
+		byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = ByteBuffer.allocate(4 + bytes.length);
+		frame.putInt(bytes.length).put(bytes).flip();
+		while (frame.hasRemaining()) {
+			channel.write(frame);
+		}
+	}
+
+	private static String readFrame(SocketChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(4);
+		readFully(channel, header);
+		ByteBuffer payload = ByteBuffer.allocate(header.getInt(0));
+		readFully(channel, payload);
+		return new String(payload.array(), StandardCharsets.UTF_8);
+	}
+
+	private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new IOException("closed");
+			}
+		}
+	}
+
+	@Test
+	public void inlineEcho() throws IOException {
+		try (SocketChannel channel = start(NioServer.ECHO, NioServer.WorkerMode.INLINE, 16)) {
+			writeFrame(channel, "hello");
+			writeFrame(channel, "");
+			assertEquals("hello", readFrame(channel));
+			assertEquals("", readFrame(channel));
+		}
+	}
+
+	@Test
+	public void repliesKeepRequestOrderAcrossWorkers() throws IOException {
+		// Earlier requests take longer, so they complete after later ones.
+		NioServer.RequestHandler slowFirst = request -> {
+			int i = Integer.parseInt(StandardCharsets.UTF_8.decode(request.duplicate()).toString());
+			Thread.sleep(5 * (8 - i));
+			return request;
+		};
+		try (SocketChannel channel = start(slowFirst, NioServer.WorkerMode.POOL, 64)) {
+			for (int i = 0; i < 8; i++) {
+				writeFrame(channel, String.valueOf(i));
+			}
+			for (int i = 0; i < 8; i++) {
+				assertEquals(String.valueOf(i), readFrame(channel));
+			}
+		}
+	}
+
+	@Test
+	public void stopsReadingWhileWorkersAreBusy() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger handled = new AtomicInteger();
+		NioServer.RequestHandler blocking = request -> {
+			handled.incrementAndGet();
+			release.await();
+			return request;
+		};
+		try (SocketChannel channel = start(blocking, NioServer.WorkerMode.POOL, 2)) {
+			for (int i = 0; i < 6; i++) {
+				writeFrame(channel, "r" + i);
+			}
+			Thread.sleep(200);
+			// No more than two requests are handed out until some complete.
+			assertTrue(handled.get() <= 2);
+			release.countDown();
+			for (int i = 0; i < 6; i++) {
+				assertEquals("r" + i, readFrame(channel));
+			}
+			assertEquals(6, handled.get());
+		}
+	}
+
+	@Test
+	public void workersWithoutABoundOnPendingRequests() throws IOException {
+		try (SocketChannel channel =
+				start(NioServer.ECHO, NioServer.WorkerMode.POOL, Integer.MAX_VALUE)) {
+			writeFrame(channel, "unbounded");
+			assertEquals("unbounded", readFrame(channel));
+		}
+	}
+
+	@Test
+	public void virtualModeFallsBackBeforeJdk21() throws IOException {
+		try (SocketChannel channel = start(NioServer.ECHO, NioServer.WorkerMode.VIRTUAL, 16)) {
+			writeFrame(channel, "virtual");
+			assertEquals("virtual", readFrame(channel));
+		}
+	}
+}
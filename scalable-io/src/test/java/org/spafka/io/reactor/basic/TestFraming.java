@@ -0,0 +1,108 @@
+package org.spafka.io.reactor.basic;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.spafka.io.reactor.LengthPrefixedFrames;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestFraming {
+
+	private Reactor reactor;
+	private Thread thread;
+	private SocketChannel channel;
+
+	@Before
+	public void setUp() throws IOException {
+		reactor = new Reactor(0);
+		thread = new Thread(reactor);
+		thread.start();
+		channel = SocketChannel.open(
+			new InetSocketAddress("127.0.0.1", reactor.serverSocket.socket().getLocalPort()));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		channel.close();
+		thread.interrupt();
+		reactor.selector.wakeup();
+		thread.join();
+		reactor.serverSocket.close();
+	}
+
+	private static byte[] frame(String payload) {
+		byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = ByteBuffer.allocate(4 + bytes.length);
+		frame.putInt(bytes.length).put(bytes);
+		return frame.array();
+	}
+
+	private void write(byte[] bytes, int from, int to) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes, from, to - from);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private String readFrame() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(4);
+		readFully(header);
+		ByteBuffer payload = ByteBuffer.allocate(header.getInt(0));
+		readFully(payload);
+		return new String(payload.array(), StandardCharsets.UTF_8);
+	}
+
+	private void readFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new IOException("closed");
+			}
+		}
+	}
+
+	@Test
+	public void pipelinedFramesInOneWrite() throws IOException {
+		ByteBuffer all = ByteBuffer.allocate(1024);
+		for (String s : new String[] {"one", "", "three"}) {
+			all.put(frame(s));
+		}
+		write(all.array(), 0, all.position());
+		assertEquals("one", readFrame());
+		assertEquals("", readFrame());
+		assertEquals("three", readFrame());
+	}
+
+	@Test
+	public void framesSpanningReads() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < 100000) {
+			sb.append("spafka ");
+		}
+		byte[] large = frame(sb.toString());
+		// The header alone, then the payload in pieces.
+		write(large, 0, 2);
+		Thread.sleep(20);
+		write(large, 2, 5000);
+		Thread.sleep(20);
+		write(large, 5000, large.length);
+		assertEquals(sb.toString(), readFrame());
+	}
+
+	@Test
+	public void decoderLeavesPartialFrames() throws IOException {
+		ByteBuffer input = ByteBuffer.wrap(frame("abc"), 0, 5);
+		assertNull(LengthPrefixedFrames.next(input, 100));
+		assertEquals(0, input.position());
+		input.limit(7);
+		assertEquals(3, LengthPrefixedFrames.next(input, 100).remaining());
+		assertEquals(7, input.position());
+	}
+}
@@ -0,0 +1,116 @@
+package org.spafka.io.reactor.multi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class TestLengthPrefixedHandler {
+
+    private MultiReactorServer server;
+    private SocketChannel channel;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MultiReactorServer(new InetSocketAddress("127.0.0.1", 0), 2,
+            MultiReactorServer.FRAMED_ECHO).start();
+        channel = SocketChannel.open();
+        // A small receive window, so that replies back up on the server while the client writes.
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, 8192);
+        channel.connect(new InetSocketAddress("127.0.0.1", server.port()));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        channel.close();
+        server.close();
+    }
+
+    private static byte[] payload(int length, int seed) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (seed + i * 31);
+        }
+        return payload;
+    }
+
+    private void write(ByteBuffer output) throws IOException {
+        while (output.hasRemaining()) {
+            channel.write(output);
+        }
+    }
+
+    private byte[] readFrame() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        readFully(header);
+        ByteBuffer payload = ByteBuffer.allocate(header.getInt(0));
+        readFully(payload);
+        return payload.array();
+    }
+
+    private void readFully(ByteBuffer input) throws IOException {
+        while (input.hasRemaining()) {
+            if (channel.read(input) < 0) {
+                throw new IOException("closed");
+            }
+        }
+    }
+
+    private void writeFrames(int from, int to) throws IOException {
+        int total = 0;
+        for (int i = from; i < to; i++) {
+            total += 4 + length(i);
+        }
+        ByteBuffer output = ByteBuffer.allocate(total);
+        for (int i = from; i < to; i++) {
+            output.putInt(length(i)).put(payload(length(i), i));
+        }
+        output.flip();
+        write(output);
+    }
+
+    private static int length(int frame) {
+        return frame == 0 ? 8 << 20 : frame % 300;
+    }
+
+    @Test
+    public void severalFramesInOneWriteAreEchoedInOrder() throws Exception {
+        // The reply to the first frame fills the socket, so the replies to the frames after it are
+        // still queued when the read buffer they came in is reused for the next write.
+        writeFrames(0, 1);
+        int frames = 1;
+        for (int round = 0; round < 10; round++, frames += 50) {
+            Thread.sleep(20);
+            writeFrames(frames, frames + 50);
+        }
+        for (int i = 0; i < frames; i++) {
+            assertArrayEquals(payload(length(i), i), readFrame());
+        }
+    }
+
+    @Test
+    public void aFrameSplitAcrossTwoWritesIsEchoedOnce() throws Exception {
+        byte[] payload = payload(1000, 7);
+        ByteBuffer output = ByteBuffer.allocate(4 + payload.length);
+        output.putInt(payload.length).put(payload).flip();
+        ByteBuffer first = (ByteBuffer) output.duplicate().limit(300);
+        write(first);
+        // Give the reactor time to read the partial frame on its own.
+        Thread.sleep(100);
+        output.position(300);
+        write(output);
+        assertArrayEquals(payload, readFrame());
+
+        // The connection is still in step after the split frame.
+        byte[] next = payload(5, 9);
+        write((ByteBuffer) ByteBuffer.allocate(4 + next.length).putInt(next.length).put(next).flip());
+        assertArrayEquals(next, readFrame());
+    }
+}
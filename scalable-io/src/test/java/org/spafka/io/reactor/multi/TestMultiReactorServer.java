@@ -0,0 +1,85 @@
+package org.spafka.io.reactor.multi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestMultiReactorServer {
+
+    private MultiReactorServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MultiReactorServer(new InetSocketAddress("127.0.0.1", 0), 3,
+            MultiReactorServer.ECHO).start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    private static String echo(SocketChannel channel, String message) throws IOException {
+        ByteBuffer output = ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8));
+        while (output.hasRemaining()) {
+            channel.write(output);
+        }
+        ByteBuffer input = ByteBuffer.allocate(output.capacity());
+        while (input.hasRemaining()) {
+            if (channel.read(input) < 0) {
+                throw new IOException("closed");
+            }
+        }
+        return new String(input.array(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void connectionsAreSpreadOverReactors() throws Exception {
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.port());
+        List<SocketChannel> channels = new ArrayList<>();
+        try {
+            for (int i = 0; i < 30; i++) {
+                channels.add(SocketChannel.open(address));
+            }
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < channels.size(); i++) {
+                    String message = "hello " + i + " in round " + round;
+                    assertEquals(message, echo(channels.get(i), message));
+                }
+            }
+            assertEquals(30, server.numConnections());
+        } finally {
+            for (SocketChannel channel : channels) {
+                channel.close();
+            }
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.numConnections() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, server.numConnections());
+    }
+
+    @Test
+    public void largeRepliesAreWrittenWhenTheSocketDrains() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 4 << 20) {
+            sb.append("0123456789abcdef");
+        }
+        try (SocketChannel channel =
+                 SocketChannel.open(new InetSocketAddress("127.0.0.1", server.port()))) {
+            // The echo of a few MB fills the socket buffers long before it is read.
+            assertEquals(sb.toString(), echo(channel, sb.toString()));
+        }
+    }
+}
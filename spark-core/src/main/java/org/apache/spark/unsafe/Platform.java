@@ -23,6 +23,7 @@ import sun.misc.Unsafe;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 
 public final class Platform {
@@ -43,6 +44,9 @@ public final class Platform {
 
   public static final int DOUBLE_ARRAY_OFFSET;
 
+  /** Offset of {@code java.nio.Buffer.address}, the memory address of a direct buffer. */
+  private static final long BUFFER_ADDRESS_OFFSET;
+
   private static final boolean unaligned;
   static {
     boolean _unaligned;
@@ -131,6 +135,19 @@ public final class Platform {
     _UNSAFE.putDouble(object, offset, value);
   }
 
+  public static long getLongVolatile(Object object, long offset) {
+    return _UNSAFE.getLongVolatile(object, offset);
+  }
+
+  public static void putLongVolatile(Object object, long offset, long value) {
+    _UNSAFE.putLongVolatile(object, offset, value);
+  }
+
+  public static boolean compareAndSwapLong(
+      Object object, long offset, long expected, long value) {
+    return _UNSAFE.compareAndSwapLong(object, offset, expected, value);
+  }
+
   public static Object getObjectVolatile(Object object, long offset) {
     return _UNSAFE.getObjectVolatile(object, offset);
   }
@@ -178,6 +195,29 @@ public final class Platform {
     throw new IllegalStateException("unreachable");
   }
 
+  /** The address of the memory of a direct {@code buffer}, e.g. one mapped from a file. */
+  public static long getDirectBufferAddress(ByteBuffer buffer) {
+    assert buffer.isDirect() : "not a direct buffer";
+    return _UNSAFE.getLong(buffer, BUFFER_ADDRESS_OFFSET);
+  }
+
+  /**
+   * Frees the memory of a direct {@code buffer}, or unmaps a mapped one, right away instead of
+   * once the buffer is garbage collected. The buffer must not be used afterwards.
+   */
+  public static void freeDirectBuffer(ByteBuffer buffer) {
+    try {
+      Field cleanerField = Class.forName("java.nio.DirectByteBuffer").getDeclaredField("cleaner");
+      cleanerField.setAccessible(true);
+      Cleaner cleaner = (Cleaner) cleanerField.get(buffer);
+      if (cleaner != null) {
+        cleaner.clean();
+      }
+    } catch (Exception e) {
+      throwException(e);
+    }
+  }
+
   public static void setMemory(Object object, long offset, long size, byte value) {
     _UNSAFE.setMemory(object, offset, size, value);
   }
@@ -244,6 +284,7 @@ public final class Platform {
       LONG_ARRAY_OFFSET = _UNSAFE.arrayBaseOffset(long[].class);
       FLOAT_ARRAY_OFFSET = _UNSAFE.arrayBaseOffset(float[].class);
       DOUBLE_ARRAY_OFFSET = _UNSAFE.arrayBaseOffset(double[].class);
+      BUFFER_ADDRESS_OFFSET = bufferAddressOffset(_UNSAFE);
     } else {
       BOOLEAN_ARRAY_OFFSET = 0;
       BYTE_ARRAY_OFFSET = 0;
@@ -252,6 +293,15 @@ public final class Platform {
       LONG_ARRAY_OFFSET = 0;
       FLOAT_ARRAY_OFFSET = 0;
       DOUBLE_ARRAY_OFFSET = 0;
+      BUFFER_ADDRESS_OFFSET = 0;
+    }
+  }
+
+  private static long bufferAddressOffset(Unsafe unsafe) {
+    try {
+      return unsafe.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+    } catch (NoSuchFieldException e) {
+      throw new IllegalStateException(e);
     }
   }
 }
@@ -91,4 +91,32 @@ public final class LongArray {
     assert index < length : "index (" + index + ") should < length (" + length + ")";
     return Platform.getLong(baseObj, baseOffset + index * WIDTH);
   }
+
+  /**
+   * Returns the value at position {@code index}, with volatile semantics.
+   */
+  public long getVolatile(int index) {
+    assert index >= 0 : "index (" + index + ") should >= 0";
+    assert index < length : "index (" + index + ") should < length (" + length + ")";
+    return Platform.getLongVolatile(baseObj, baseOffset + index * WIDTH);
+  }
+
+  /**
+   * Sets the value at position {@code index}, with volatile semantics.
+   */
+  public void setVolatile(int index, long value) {
+    assert index >= 0 : "index (" + index + ") should >= 0";
+    assert index < length : "index (" + index + ") should < length (" + length + ")";
+    Platform.putLongVolatile(baseObj, baseOffset + index * WIDTH, value);
+  }
+
+  /**
+   * Atomically sets the value at position {@code index} to {@code value} if it currently is
+   * {@code expected}, and returns whether it did.
+   */
+  public boolean compareAndSet(int index, long expected, long value) {
+    assert index >= 0 : "index (" + index + ") should >= 0";
+    assert index < length : "index (" + index + ") should < length (" + length + ")";
+    return Platform.compareAndSwapLong(baseObj, baseOffset + index * WIDTH, expected, value);
+  }
 }
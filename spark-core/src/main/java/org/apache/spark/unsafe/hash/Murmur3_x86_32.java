@@ -21,6 +21,13 @@ import org.apache.spark.unsafe.Platform;
 
 /**
  * 32-bit Murmur3 hasher.  This is based on Guava's Murmur3_32HashFunction.
+ *
+ * Besides hashing one value per call, it hashes whole batches of a column: the {@code hash*}
+ * methods taking an {@code int[] hashes} read the seed of each row from it and write the row's
+ * hash back, so that hashing several columns in turn chains the hashes the same way as calling
+ * the single-value methods with the previous column's hash as seed. The batch loops have no
+ * branches and no dependencies between rows, so the JIT can unroll them and overlap the rows'
+ * multiplications.
  */
 public final class Murmur3_x86_32 {
   private static final int C1 = 0xcc9e2d51;
@@ -115,6 +122,65 @@ public final class Murmur3_x86_32 {
     return fmix(h1, 8);
   }
 
+  /**
+   * Hashes {@code input[inputOffset]} to {@code input[inputOffset + numRows - 1]}, using
+   * {@code hashes[i]} as the seed of row {@code i} and replacing it with the row's hash.
+   */
+  public static void hashInts(int[] input, int inputOffset, int[] hashes, int numRows) {
+    assert (inputOffset + numRows <= input.length && numRows <= hashes.length);
+    for (int i = 0; i < numRows; i++) {
+      hashes[i] = fmix(mixH1(hashes[i], mixK1(input[inputOffset + i])), 4);
+    }
+  }
+
+  /** Like {@link #hashInts(int[], int, int[], int)}, for longs. */
+  public static void hashLongs(long[] input, int inputOffset, int[] hashes, int numRows) {
+    assert (inputOffset + numRows <= input.length && numRows <= hashes.length);
+    for (int i = 0; i < numRows; i++) {
+      long value = input[inputOffset + i];
+      int h1 = mixH1(hashes[i], mixK1((int) value));
+      hashes[i] = fmix(mixH1(h1, mixK1((int) (value >>> 32))), 8);
+    }
+  }
+
+  /**
+   * Like {@link #hashInts(int[], int, int[], int)}, for {@code numRows} ints stored one after
+   * the other from {@code offset}, e.g. in a page or an off-heap column.
+   */
+  public static void hashUnsafeInts(Object base, long offset, int[] hashes, int numRows) {
+    assert (numRows <= hashes.length);
+    for (int i = 0; i < numRows; i++) {
+      int value = Platform.getInt(base, offset + i * 4L);
+      hashes[i] = fmix(mixH1(hashes[i], mixK1(value)), 4);
+    }
+  }
+
+  /**
+   * Like {@link #hashLongs(long[], int, int[], int)}, for {@code numRows} longs stored one after
+   * the other from {@code offset}, e.g. in a page or an off-heap column.
+   */
+  public static void hashUnsafeLongs(Object base, long offset, int[] hashes, int numRows) {
+    assert (numRows <= hashes.length);
+    for (int i = 0; i < numRows; i++) {
+      long value = Platform.getLong(base, offset + i * 8L);
+      int h1 = mixH1(hashes[i], mixK1((int) value));
+      hashes[i] = fmix(mixH1(h1, mixK1((int) (value >>> 32))), 8);
+    }
+  }
+
+  /**
+   * Hashes {@code numRows} byte regions of {@code base}, the region of row {@code i} starting at
+   * {@code offsets[i]} and {@code lengths[i]} bytes long, as {@link #hashUnsafeBytes2} does, using
+   * {@code hashes[i]} as its seed and replacing it with its hash.
+   */
+  public static void hashUnsafeBytes2(
+      Object base, long[] offsets, int[] lengths, int[] hashes, int numRows) {
+    assert (numRows <= offsets.length && numRows <= lengths.length && numRows <= hashes.length);
+    for (int i = 0; i < numRows; i++) {
+      hashes[i] = hashUnsafeBytes2(base, offsets[i], lengths[i], hashes[i]);
+    }
+  }
+
   private static int mixK1(int k1) {
     k1 *= C1;
     k1 = Integer.rotateLeft(k1, 15);
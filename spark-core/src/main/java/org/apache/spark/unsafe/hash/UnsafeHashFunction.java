@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.unsafe.hash;
+
+import org.apache.spark.unsafe.array.LongArray;
+import org.apache.spark.unsafe.types.UTF8String;
+
+/**
+ * A hash function over regions of memory, e.g. the keys of a
+ * {@link org.apache.spark.unsafe.map.BytesToBytesMap}, with hashes of up to 64 bits.
+ */
+public interface UnsafeHashFunction {
+
+  long hashUnsafeBytes(Object base, long offset, int lengthInBytes);
+
+  /** Whether the hashes have 64 significant bits, rather than being sign-extended ints. */
+  boolean is64Bit();
+
+  default long hash(UTF8String string) {
+    return hashUnsafeBytes(string.getBaseObject(), string.getBaseOffset(), string.numBytes());
+  }
+
+  /** The hash of the longs of {@code array}, which must not be larger than 2 GB. */
+  default long hash(LongArray array) {
+    assert (array.size() * 8 <= Integer.MAX_VALUE);
+    return hashUnsafeBytes(
+      array.getBaseObject(), array.getBaseOffset(), (int) (array.size() * 8));
+  }
+
+  /**
+   * {@link Murmur3_x86_32#hashUnsafeBytes} with seed 42, which equals
+   * {@link Murmur3_x86_32#hashUnsafeWords} on regions of whole words, as used for
+   * {@code UnsafeRow} keys.
+   */
+  UnsafeHashFunction MURMUR3_32 = new UnsafeHashFunction() {
+    @Override
+    public long hashUnsafeBytes(Object base, long offset, int lengthInBytes) {
+      return Murmur3_x86_32.hashUnsafeBytes(base, offset, lengthInBytes, 42);
+    }
+
+    @Override
+    public boolean is64Bit() {
+      return false;
+    }
+
+    @Override
+    public String toString() {
+      return "MURMUR3_32";
+    }
+  };
+
+  /** {@link XXH64} with seed 42. */
+  UnsafeHashFunction XXHASH64 = new UnsafeHashFunction() {
+    @Override
+    public long hashUnsafeBytes(Object base, long offset, int lengthInBytes) {
+      return XXH64.hashUnsafeBytes(base, offset, lengthInBytes, 42);
+    }
+
+    @Override
+    public boolean is64Bit() {
+      return true;
+    }
+
+    @Override
+    public String toString() {
+      return "XXHASH64";
+    }
+  };
+
+  /** {@link WyHash} with seed 42. */
+  UnsafeHashFunction WYHASH = new UnsafeHashFunction() {
+    @Override
+    public long hashUnsafeBytes(Object base, long offset, int lengthInBytes) {
+      return WyHash.hashUnsafeBytes(base, offset, lengthInBytes, 42);
+    }
+
+    @Override
+    public boolean is64Bit() {
+      return true;
+    }
+
+    @Override
+    public String toString() {
+      return "WYHASH";
+    }
+  };
+}
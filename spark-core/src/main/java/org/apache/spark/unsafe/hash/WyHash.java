@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.unsafe.hash;
+
+import java.nio.ByteOrder;
+
+import org.apache.spark.unsafe.Platform;
+
+/**
+ * 64-bit wyhash, version final4 of https://github.com/wangyi-fudan/wyhash with its default secret.
+ * It mixes 16 bytes with a single 64x64->128 bit multiplication, so it needs fewer operations per
+ * byte than {@link XXH64}, and it reads keys of up to 16 bytes with at most four loads and no loop.
+ */
+public final class WyHash {
+  private static final boolean IS_BIG_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+
+  private static final long SECRET_0 = 0xa0761d6478bd642fL;
+  private static final long SECRET_1 = 0xe7037ed1a0b428dbL;
+  private static final long SECRET_2 = 0x8ebc6af09c88c6e3L;
+  private static final long SECRET_3 = 0x589965cc75374cc3L;
+
+  private final long seed;
+
+  public WyHash(long seed) {
+    this.seed = seed;
+  }
+
+  @Override
+  public String toString() {
+    return "wyhash(seed=" + seed + ")";
+  }
+
+  public long hashLong(long input) {
+    return hashLong(input, seed);
+  }
+
+  /** The hash of the 8 bytes of {@code input} in little-endian order. */
+  public static long hashLong(long input, long seed) {
+    seed ^= mix(seed ^ SECRET_0, SECRET_1);
+    long a = (input << 32) | (input >>> 32);
+    return finish(a, input, seed, 8);
+  }
+
+  public long hashUnsafeBytes(Object base, long offset, int length) {
+    return hashUnsafeBytes(base, offset, length, seed);
+  }
+
+  public static long hashUnsafeBytes(Object base, long offset, int length, long seed) {
+    assert (length >= 0) : "lengthInBytes cannot be negative";
+    seed ^= mix(seed ^ SECRET_0, SECRET_1);
+    long a;
+    long b;
+    if (length <= 16) {
+      if (length >= 4) {
+        // Two overlapping reads from each end cover any length from 4 to 16.
+        long shift = (length >>> 3) << 2;
+        a = (getUnsignedInt(base, offset) << 32) | getUnsignedInt(base, offset + shift);
+        b = (getUnsignedInt(base, offset + length - 4) << 32) |
+          getUnsignedInt(base, offset + length - 4 - shift);
+      } else if (length > 0) {
+        a = ((Platform.getByte(base, offset) & 0xFFL) << 16) |
+          ((Platform.getByte(base, offset + (length >>> 1)) & 0xFFL) << 8) |
+          (Platform.getByte(base, offset + length - 1) & 0xFFL);
+        b = 0;
+      } else {
+        a = 0;
+        b = 0;
+      }
+    } else {
+      int remaining = length;
+      if (remaining > 48) {
+        long see1 = seed;
+        long see2 = seed;
+        do {
+          seed = mix(getLong(base, offset) ^ SECRET_1, getLong(base, offset + 8) ^ seed);
+          see1 = mix(getLong(base, offset + 16) ^ SECRET_2, getLong(base, offset + 24) ^ see1);
+          see2 = mix(getLong(base, offset + 32) ^ SECRET_3, getLong(base, offset + 40) ^ see2);
+          offset += 48;
+          remaining -= 48;
+        } while (remaining > 48);
+        seed ^= see1 ^ see2;
+      }
+      while (remaining > 16) {
+        seed = mix(getLong(base, offset) ^ SECRET_1, getLong(base, offset + 8) ^ seed);
+        offset += 16;
+        remaining -= 16;
+      }
+      a = getLong(base, offset + remaining - 16);
+      b = getLong(base, offset + remaining - 8);
+    }
+    return finish(a, b, seed, length);
+  }
+
+  private static long finish(long a, long b, long seed, long length) {
+    a ^= SECRET_1;
+    b ^= seed;
+    long low = a * b;
+    long high = unsignedMultiplyHigh(a, b);
+    return mix(low ^ SECRET_0 ^ length, high ^ SECRET_1);
+  }
+
+  /** The 128-bit product of {@code a} and {@code b}, folded by xor-ing its halves. */
+  private static long mix(long a, long b) {
+    return (a * b) ^ unsignedMultiplyHigh(a, b);
+  }
+
+  /** The upper 64 bits of the unsigned 128-bit product, as Math.multiplyHigh of Java 9 does. */
+  static long unsignedMultiplyHigh(long a, long b) {
+    long a1 = a >> 32;
+    long a2 = a & 0xFFFFFFFFL;
+    long b1 = b >> 32;
+    long b2 = b & 0xFFFFFFFFL;
+    long a2b2 = a2 * b2;
+    long t = a1 * b2 + (a2b2 >>> 32);
+    long tLow = a2 * b1 + (t & 0xFFFFFFFFL);
+    long signedHigh = a1 * b1 + (t >> 32) + (tLow >> 32);
+    // Turn the signed product into the unsigned one.
+    return signedHigh + ((a >> 63) & b) + ((b >> 63) & a);
+  }
+
+  private static long getLong(Object base, long offset) {
+    long value = Platform.getLong(base, offset);
+    return IS_BIG_ENDIAN ? Long.reverseBytes(value) : value;
+  }
+
+  private static long getUnsignedInt(Object base, long offset) {
+    int value = Platform.getInt(base, offset);
+    return (IS_BIG_ENDIAN ? Integer.reverseBytes(value) : value) & 0xFFFFFFFFL;
+  }
+}
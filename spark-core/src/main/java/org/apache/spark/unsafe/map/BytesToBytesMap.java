@@ -29,7 +29,8 @@ import org.apache.spark.unsafe.Platform;
 import org.apache.spark.unsafe.UnsafeAlignedOffset;
 import org.apache.spark.unsafe.array.ByteArrayMethods;
 import org.apache.spark.unsafe.array.LongArray;
-import org.apache.spark.unsafe.hash.Murmur3_x86_32;
+import org.apache.spark.unsafe.bitset.BitSetMethods;
+import org.apache.spark.unsafe.hash.UnsafeHashFunction;
 import org.apache.spark.unsafe.memory.MemoryBlock;
 import org.apache.spark.util.collection.unsafe.sort.UnsafeSorterSpillReader;
 import org.apache.spark.util.collection.unsafe.sort.UnsafeSorterSpillWriter;
@@ -41,12 +42,19 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * An append-only hash map where keys and values are contiguous regions of bytes.
  *
  * This is backed by a power-of-2-sized hash table, using quadratic probing with triangular numbers,
- * which is guaranteed to exhaust the space.
+ * which is guaranteed to exhaust the space. Alternatively, see {@link ProbingScheme#SWISS}, slots
+ * are probed in groups of 8 through a separate array of control bytes.
+ *
+ * Keys are hashed with 32-bit Murmur3 by default. With a 64-bit {@link UnsafeHashFunction}, all
+ * 64 bits are stored and compared, so that keys are compared far less often in maps of hundreds
+ * of millions of keys, where 32-bit hash codes collide a lot.
  *
  * The map can support up to 2^29 keys. If the key cardinality is higher than this, you should
  * probably be using sorting instead of hashing for better cache locality.
@@ -61,12 +69,55 @@ import java.util.LinkedList;
  * This means that the first four bytes store the entire record (key + value) length. This format
  * is compatible with {@link org.apache.spark.util.collection.unsafe.sort.UnsafeExternalSorter},
  * so we can pass records from this map directly into the sorter to sort records in place.
+ *
+ * The map has a single writer, except during a concurrent build started by
+ * {@link #beginConcurrentBuild()}, in which several threads insert into the same hash table.
  */
 public final class BytesToBytesMap extends MemoryConsumer {
 
   private static final Logger logger = LoggerFactory.getLogger(BytesToBytesMap.class);
 
-  private static final HashMapGrowthStrategy growthStrategy = HashMapGrowthStrategy.DOUBLING;
+  /** Slots of the old table moved per lookup during an incremental resize, at least. */
+  private static final int MIN_MIGRATION_STEP = 16;
+
+  /**
+   * How a map looks for a key in its hash table.
+   */
+  public enum ProbingScheme {
+    /**
+     * Visit single slots in triangular-number order, reading the stored hash code of every
+     * occupied slot on the way.
+     */
+    TRIANGULAR,
+    /**
+     * Swiss-table style probing. Slots form groups of 8, and every group has a control word with
+     * one byte per slot: either empty, or the top 7 bits of the hash code of the slot's key. A
+     * lookup compares the 8 bytes with the key's tag in a few word operations and only reads the
+     * slots whose tag matches, so even at load factors up to 7/8 most lookups touch one control
+     * word and at most one slot. Groups are visited in triangular-number order.
+     *
+     * A key that is found costs one more cache miss than with triangular probing, for the control
+     * word, so this pays off when many lookups miss or the load factor is high.
+     */
+    SWISS
+  }
+
+  /** A control byte marking an empty slot. Tags of occupied slots have the high bit clear. */
+  private static final long EMPTY_CONTROL = 0x80L;
+  private static final long LOW_BITS = 0x0101010101010101L;
+  private static final long HIGH_BITS = 0x8080808080808080L;
+
+  /** Bloom filter bits per key the hash table can hold before it grows. */
+  private static final int BLOOM_BITS_PER_KEY = 10;
+  /** A Bloom filter block is one cache line. */
+  private static final int BLOOM_BLOCK_BITS = 512;
+  private static final int BLOOM_BLOCK_WORDS = BLOOM_BLOCK_BITS / 64;
+  /** Bits set per key, each picked by 9 bits of the remixed hash code. */
+  private static final int BLOOM_NUM_HASHES = 6;
+  private static final long BLOOM_MIX = 0x9E3779B97F4A7C15L;
+
+  /** Position of a {@link Location} for a key that is known to be absent but not located yet. */
+  private static final int UNKNOWN_POS = -1;
 
   private final TaskMemoryManager taskMemoryManager;
 
@@ -104,7 +155,8 @@ public final class BytesToBytesMap extends MemoryConsumer {
    * A single array to store the key and value.
    *
    * Position {@code 2 * i} in the array is used to track a pointer to the key at index {@code i},
-   * while position {@code 2 * i + 1} in the array holds key's full 32-bit hashcode.
+   * while position {@code 2 * i + 1} in the array holds key's full hashcode: 64 bits with a
+   * 64-bit {@link #hashFunction}, or else 32 bits, sign-extended.
    */
   @Nullable private LongArray longArray;
   // TODO: we're wasting 32 bits of space here; we can probably store fewer bits of the hashcode
@@ -122,6 +174,48 @@ public final class BytesToBytesMap extends MemoryConsumer {
    */
   private boolean canGrowArray = true;
 
+  private final ProbingScheme probingScheme;
+
+  /**
+   * The control words of the slot groups of {@link #longArray}, one per 8 slots. Only used with
+   * {@link ProbingScheme#SWISS}.
+   */
+  @Nullable private LongArray controlArray;
+
+  private boolean bloomFilterEnabled = false;
+
+  /**
+   * A blocked Bloom filter over the hash codes of the keys, see {@link #enableBloomFilter()}. The
+   * block of a key is chosen by the low bits of its hash code, and the bits in the block by the
+   * high bits of the remixed hash code.
+   */
+  @Nullable private LongArray bloomFilter;
+
+  private int bloomBlockMask;
+
+  private final HashMapGrowthStrategy growthStrategy;
+
+  /** Hashes keys passed without a hash code. */
+  private final UnsafeHashFunction hashFunction;
+
+  // While an incremental resize is in progress, the arrays of the previous table. Its entries are
+  // moved to the current table a few slots at a time by `lookup()`; until then lookups search both.
+
+  @Nullable private LongArray oldLongArray;
+  @Nullable private LongArray oldControlArray;
+  @Nullable private LongArray oldBloomFilter;
+  private int oldMask;
+  private int oldBloomBlockMask;
+
+  /** Slots of {@link #oldLongArray} below this index have been moved to the current table. */
+  private int migrateCursor;
+
+  /**
+   * Slots moved per lookup. Finishes the move before the current table can fill up, as every new
+   * key is looked up first.
+   */
+  private final int migrationStep;
+
   private final double loadFactor;
 
   /**
@@ -172,6 +266,11 @@ public final class BytesToBytesMap extends MemoryConsumer {
   private volatile MapIterator destructiveIterator = null;
   private LinkedList<UnsafeSorterSpillWriter> spillWriters = new LinkedList<>();
 
+  /**
+   * The concurrent build in progress, if any.
+   */
+  @Nullable private ConcurrentBuild concurrentBuild = null;
+
   public BytesToBytesMap(
       TaskMemoryManager taskMemoryManager,
       BlockManager blockManager,
@@ -180,17 +279,67 @@ public final class BytesToBytesMap extends MemoryConsumer {
       double loadFactor,
       long pageSizeBytes,
       boolean enablePerfMetrics) {
+    this(taskMemoryManager, blockManager, serializerManager, initialCapacity, loadFactor,
+      pageSizeBytes, enablePerfMetrics, ProbingScheme.TRIANGULAR);
+  }
+
+  public BytesToBytesMap(
+      TaskMemoryManager taskMemoryManager,
+      BlockManager blockManager,
+      SerializerManager serializerManager,
+      int initialCapacity,
+      double loadFactor,
+      long pageSizeBytes,
+      boolean enablePerfMetrics,
+      ProbingScheme probingScheme) {
+    this(taskMemoryManager, blockManager, serializerManager, initialCapacity, loadFactor,
+      pageSizeBytes, enablePerfMetrics, probingScheme, HashMapGrowthStrategy.DOUBLING);
+  }
+
+  public BytesToBytesMap(
+      TaskMemoryManager taskMemoryManager,
+      BlockManager blockManager,
+      SerializerManager serializerManager,
+      int initialCapacity,
+      double loadFactor,
+      long pageSizeBytes,
+      boolean enablePerfMetrics,
+      ProbingScheme probingScheme,
+      HashMapGrowthStrategy growthStrategy) {
+    this(taskMemoryManager, blockManager, serializerManager, initialCapacity, loadFactor,
+      pageSizeBytes, enablePerfMetrics, probingScheme, growthStrategy,
+      UnsafeHashFunction.MURMUR3_32);
+  }
+
+  public BytesToBytesMap(
+      TaskMemoryManager taskMemoryManager,
+      BlockManager blockManager,
+      SerializerManager serializerManager,
+      int initialCapacity,
+      double loadFactor,
+      long pageSizeBytes,
+      boolean enablePerfMetrics,
+      ProbingScheme probingScheme,
+      HashMapGrowthStrategy growthStrategy,
+      UnsafeHashFunction hashFunction) {
     super(taskMemoryManager, pageSizeBytes, taskMemoryManager.getTungstenMemoryMode());
     this.taskMemoryManager = taskMemoryManager;
     this.blockManager = blockManager;
     this.serializerManager = serializerManager;
     this.loadFactor = loadFactor;
+    this.probingScheme = probingScheme;
+    this.growthStrategy = growthStrategy;
+    this.hashFunction = hashFunction;
     this.loc = new Location();
     this.pageSizeBytes = pageSizeBytes;
     this.enablePerfMetrics = enablePerfMetrics;
     if (initialCapacity <= 0) {
       throw new IllegalArgumentException("Initial capacity must be greater than 0");
     }
+    if (loadFactor <= 0 || loadFactor >= 1) {
+      // A lookup stops at the first empty slot, so there must always be one.
+      throw new IllegalArgumentException("Load factor " + loadFactor + " must be in (0, 1)");
+    }
     if (initialCapacity > MAX_CAPACITY) {
       throw new IllegalArgumentException(
         "Initial capacity " + initialCapacity + " exceeds maximum capacity of " + MAX_CAPACITY);
@@ -200,6 +349,7 @@ public final class BytesToBytesMap extends MemoryConsumer {
         TaskMemoryManager.MAXIMUM_PAGE_SIZE_BYTES);
     }
     this.initialCapacity = initialCapacity;
+    this.migrationStep = Math.max(MIN_MIGRATION_STEP, (int) Math.ceil(2 / loadFactor));
     allocate(initialCapacity);
   }
 
@@ -258,10 +408,7 @@ public final class BytesToBytesMap extends MemoryConsumer {
       if (destructive) {
         destructiveIterator = this;
         // longArray will not be used anymore if destructive is true, release it now.
-        if (longArray != null) {
-          freeArray(longArray);
-          longArray = null;
-        }
+        freeArrays();
       }
     }
 
@@ -436,8 +583,11 @@ public final class BytesToBytesMap extends MemoryConsumer {
    * This java.java.util.function always return the same {@link Location} instance to avoid object allocation.
    */
   public Location lookup(Object keyBase, long keyOffset, int keyLength) {
-    safeLookup(keyBase, keyOffset, keyLength, loc,
-      Murmur3_x86_32.hashUnsafeWords(keyBase, keyOffset, keyLength, 42));
+    if (oldLongArray != null) {
+      migrate(migrationStep);
+    }
+    lookup(keyBase, keyOffset, keyLength, loc,
+      hashFunction.hashUnsafeBytes(keyBase, keyOffset, keyLength));
     return loc;
   }
 
@@ -446,9 +596,14 @@ public final class BytesToBytesMap extends MemoryConsumer {
    * and read/write values.
    *
    * This java.java.util.function always return the same {@link Location} instance to avoid object allocation.
+   * The given hash must be the one of the map's hash function, which therefore must not be 64-bit.
    */
   public Location lookup(Object keyBase, long keyOffset, int keyLength, int hash) {
-    safeLookup(keyBase, keyOffset, keyLength, loc, hash);
+    assert(!hashFunction.is64Bit());
+    if (oldLongArray != null) {
+      migrate(migrationStep);
+    }
+    lookup(keyBase, keyOffset, keyLength, loc, hash);
     return loc;
   }
 
@@ -458,26 +613,60 @@ public final class BytesToBytesMap extends MemoryConsumer {
    * This is a thread-safe version of `lookup`, could be used by multiple threads.
    */
   public void safeLookup(Object keyBase, long keyOffset, int keyLength, Location loc, int hash) {
+    assert(!hashFunction.is64Bit());
+    lookup(keyBase, keyOffset, keyLength, loc, hash);
+  }
+
+  private void lookup(Object keyBase, long keyOffset, int keyLength, Location loc, long hash) {
     assert(longArray != null);
 
     if (enablePerfMetrics) {
       numKeyLookups++;
     }
-    int pos = hash & mask;
+    if (bloomFilter != null && !mightContain(bloomFilter, bloomBlockMask, (int) hash) &&
+        (oldBloomFilter == null || !mightContain(oldBloomFilter, oldBloomBlockMask, (int) hash))) {
+      loc.with(longArray, UNKNOWN_POS, hash, false);
+      return;
+    }
+    probe(longArray, controlArray, mask, keyBase, keyOffset, keyLength, loc, hash);
+    if (!loc.isDefined && oldLongArray != null) {
+      // The key may not have been moved yet. If it is not there either, it goes to the current
+      // table.
+      final int newPos = loc.pos;
+      probe(oldLongArray, oldControlArray, oldMask, keyBase, keyOffset, keyLength, loc, hash);
+      if (!loc.isDefined) {
+        loc.with(longArray, newPos, hash, false);
+      }
+    }
+  }
+
+  private void probe(
+      LongArray array,
+      @Nullable LongArray control,
+      int tableMask,
+      Object keyBase,
+      long keyOffset,
+      int keyLength,
+      Location loc,
+      long hash) {
+    if (control != null) {
+      groupProbe(array, control, tableMask, keyBase, keyOffset, keyLength, loc, hash);
+      return;
+    }
+    int pos = (int) hash & tableMask;
     int step = 1;
     while (true) {
       if (enablePerfMetrics) {
         numProbes++;
       }
-      if (longArray.get(pos * 2) == 0) {
+      if (array.get(pos * 2) == 0) {
         // This is a new key.
-        loc.with(pos, hash, false);
+        loc.with(array, pos, hash, false);
         return;
       } else {
-        long stored = longArray.get(pos * 2 + 1);
-        if ((int) (stored) == hash) {
+        if (array.get(pos * 2 + 1) == hash) {
           // Full hash code matches.  Let's compare the keys for equality.
-          loc.with(pos, hash, true);
+          loc.with(array, pos, hash, true);
           if (loc.getKeyLength() == keyLength) {
             final boolean areEqual = ByteArrayMethods.arrayEquals(
               keyBase,
@@ -492,17 +681,199 @@ public final class BytesToBytesMap extends MemoryConsumer {
           }
         }
       }
-      pos = (pos + step) & mask;
+      pos = (pos + step) & tableMask;
+      step++;
+    }
+  }
+
+  private void groupProbe(
+      LongArray array,
+      LongArray control,
+      int tableMask,
+      Object keyBase,
+      long keyOffset,
+      int keyLength,
+      Location loc,
+      long hash) {
+    final long tags = LOW_BITS * tagOf((int) hash);
+    final int groupMask = tableMask >>> 3;
+    int group = ((int) hash & tableMask) >>> 3;
+    int step = 1;
+    while (true) {
+      if (enablePerfMetrics) {
+        numProbes++;
+      }
+      final long controlWord = control.get(group);
+      // Bytes of the group equal to the tag become zero; find them with the usual SWAR trick. It
+      // may also flag a byte right above a match, which the hash comparison below rules out.
+      final long diff = controlWord ^ tags;
+      long matches = (diff - LOW_BITS) & ~diff & HIGH_BITS;
+      while (matches != 0) {
+        final int pos = (group << 3) + (Long.numberOfTrailingZeros(matches) >>> 3);
+        if (array.get(pos * 2 + 1) == hash) {
+          loc.with(array, pos, hash, true);
+          if (loc.getKeyLength() == keyLength && ByteArrayMethods.arrayEquals(
+              keyBase, keyOffset, loc.getKeyBase(), loc.getKeyOffset(), keyLength)) {
+            return;
+          }
+        }
+        matches &= matches - 1;
+      }
+      final long empty = controlWord & HIGH_BITS;
+      if (empty != 0) {
+        // Keys are never removed, so the key would be in this group if it were in the map.
+        loc.with(array, (group << 3) + (Long.numberOfTrailingZeros(empty) >>> 3), hash, false);
+        return;
+      }
+      group = (group + step) & groupMask;
+      step++;
+    }
+  }
+
+  /** The top 7 bits of a hash code, stored in the control byte of the key's slot. */
+  private static long tagOf(int hash) {
+    return hash >>> 25;
+  }
+
+  private void setControl(int pos, long control) {
+    final int group = pos >>> 3;
+    final int shift = (pos & 7) << 3;
+    controlArray.set(group, (controlArray.get(group) & ~(0xFFL << shift)) | (control << shift));
+  }
+
+  /**
+   * Returns the slot a new key with hash code {@code hash} goes to: the first empty slot of its
+   * probe sequence.
+   */
+  private int firstEmptySlot(int hash) {
+    if (controlArray == null) {
+      int pos = hash & mask;
+      int step = 1;
+      while (longArray.get(pos * 2) != 0) {
+        pos = (pos + step) & mask;
+        step++;
+      }
+      return pos;
+    }
+    final int groupMask = mask >>> 3;
+    int group = (hash & mask) >>> 3;
+    int step = 1;
+    long empty;
+    while ((empty = controlArray.get(group) & HIGH_BITS) == 0) {
+      group = (group + step) & groupMask;
+      step++;
+    }
+    return (group << 3) + (Long.numberOfTrailingZeros(empty) >>> 3);
+  }
+
+  /**
+   * Returns the slot of the current table that points to the record at {@code address}.
+   */
+  private int slotOf(int hash, long address) {
+    if (controlArray == null) {
+      int pos = hash & mask;
+      int step = 1;
+      while (longArray.get(pos * 2) != address) {
+        pos = (pos + step) & mask;
+        step++;
+      }
+      return pos;
+    }
+    final int groupMask = mask >>> 3;
+    int group = (hash & mask) >>> 3;
+    int step = 1;
+    while (true) {
+      for (int pos = group << 3; pos < (group + 1) << 3; pos++) {
+        if (longArray.get(pos * 2) == address) {
+          return pos;
+        }
+      }
+      group = (group + step) & groupMask;
       step++;
     }
   }
 
+  /**
+   * Keeps a Bloom filter of the keys next to the hash table, so that looking up a key that is not
+   * in the map usually costs one cache line of the filter instead of a walk along the key's probe
+   * sequence, which pays off when most lookups miss, e.g. the probe side of a selective join.
+   *
+   * The filter takes about 10 bits per key the table can hold, allocated through this map like
+   * its other arrays, and is rebuilt from the stored hash codes whenever the table grows. It can
+   * be enabled at any time; keys already in the map are added to it.
+   *
+   * @return true if the filter is enabled and false if memory could not be acquired for it.
+   */
+  public boolean enableBloomFilter() {
+    assert (longArray != null);
+    assert (concurrentBuild == null);
+    if (bloomFilterEnabled) {
+      return true;
+    }
+    finishMigration();
+    LongArray filter;
+    try {
+      filter = allocateBloomFilter((int) (longArray.size() / 2));
+    } catch (OutOfMemoryError e) {
+      return false;
+    }
+    bloomFilterEnabled = true;
+    installBloomFilter(filter);
+    for (int i = 0; i < longArray.size(); i += 2) {
+      if (longArray.get(i) != 0) {
+        addToBloomFilter((int) longArray.get(i + 1));
+      }
+    }
+    return true;
+  }
+
+  private LongArray allocateBloomFilter(int capacity) {
+    final long bits = (long) (capacity * loadFactor) * BLOOM_BITS_PER_KEY;
+    final long numBlocks = ByteArrayMethods.nextPowerOf2(
+      Math.max(1L, (bits + BLOOM_BLOCK_BITS - 1) / BLOOM_BLOCK_BITS));
+    return allocateArray(numBlocks * BLOOM_BLOCK_WORDS);
+  }
+
+  private void installBloomFilter(LongArray filter) {
+    filter.zeroOut();
+    bloomFilter = filter;
+    bloomBlockMask = (int) (filter.size() / BLOOM_BLOCK_WORDS) - 1;
+  }
+
+  private void addToBloomFilter(int hash) {
+    final Object base = bloomFilter.getBaseObject();
+    final long blockOffset = bloomFilter.getBaseOffset() + (long) (hash & bloomBlockMask) * 64;
+    long mixed = hash * BLOOM_MIX;
+    for (int i = 0; i < BLOOM_NUM_HASHES; i++) {
+      BitSetMethods.set(base, blockOffset, (int) (mixed >>> 55));
+      mixed <<= 9;
+    }
+  }
+
+  private static boolean mightContain(LongArray filter, int blockMask, int hash) {
+    final Object base = filter.getBaseObject();
+    final long blockOffset = filter.getBaseOffset() + (long) (hash & blockMask) * 64;
+    long mixed = hash * BLOOM_MIX;
+    for (int i = 0; i < BLOOM_NUM_HASHES; i++) {
+      if (!BitSetMethods.isSet(base, blockOffset, (int) (mixed >>> 55))) {
+        return false;
+      }
+      mixed <<= 9;
+    }
+    return true;
+  }
+
   /**
    * Handle returned by {@link BytesToBytesMap#lookup(Object, long, int)} java.java.util.function.
    */
   public final class Location {
     /** An index into the hash map's Long array */
     private int pos;
+    /**
+     * The array {@code pos} indexes into: {@link #longArray}, or {@link #oldLongArray} for a key
+     * that has not been moved yet during an incremental resize.
+     */
+    private LongArray array;
     /** True if this location points to a position where a key is defined, false otherwise */
     private boolean isDefined;
     /**
@@ -510,7 +881,7 @@ public final class BytesToBytesMap extends MemoryConsumer {
      * {@link BytesToBytesMap#lookup(Object, long, int, int)}. Caching this hashcode here allows us
      * to avoid re-hashing the key when storing a value for that key.
      */
-    private int keyHashcode;
+    private long keyHashcode;
     private Object baseObject;  // the base object for key and value
     private long keyOffset;
     private int keyLength;
@@ -540,18 +911,26 @@ public final class BytesToBytesMap extends MemoryConsumer {
       valueLength = totalLength - keyLength - uaoSize;
     }
 
-    private Location with(int pos, int keyHashcode, boolean isDefined) {
-      assert(longArray != null);
+    private Location with(LongArray array, int pos, long keyHashcode, boolean isDefined) {
+      assert(array != null);
+      this.array = array;
       this.pos = pos;
       this.isDefined = isDefined;
       this.keyHashcode = keyHashcode;
       if (isDefined) {
-        final long fullKeyAddress = longArray.get(pos * 2);
+        final long fullKeyAddress = array.get(pos * 2);
         updateAddressesAndSizes(fullKeyAddress);
       }
       return this;
     }
 
+    private Location withAddress(long fullKeyAddress) {
+      this.isDefined = true;
+      this.memoryPage = null;
+      updateAddressesAndSizes(fullKeyAddress);
+      return this;
+    }
+
     private Location with(MemoryBlock page, long offsetInPage) {
       this.isDefined = true;
       this.memoryPage = page;
@@ -689,6 +1068,7 @@ public final class BytesToBytesMap extends MemoryConsumer {
       assert (klen % 8 == 0);
       assert (vlen % 8 == 0);
       assert (longArray != null);
+      assert (concurrentBuild == null) : "Use a ConcurrentWriter during a concurrent build";
 
       if (numKeys == MAX_CAPACITY
         // The map could be reused from last spill (because of no enough memory to grow),
@@ -697,6 +1077,11 @@ public final class BytesToBytesMap extends MemoryConsumer {
         return false;
       }
 
+      if (pos == UNKNOWN_POS) {
+        // The Bloom filter ruled the key out without probing for its slot.
+        pos = firstEmptySlot((int) keyHashcode);
+      }
+
       // Here, we'll copy the data into our data pages. Because we only store a relative offset from
       // the key address instead of storing the absolute address of the value, the key and value
       // must be stored in the same memory page.
@@ -721,7 +1106,7 @@ public final class BytesToBytesMap extends MemoryConsumer {
       Platform.copyMemory(vbase, voff, base, offset, vlen);
       offset += vlen;
       // put this value at the beginning of the list
-      Platform.putLong(base, offset, isDefined ? longArray.get(pos * 2) : 0);
+      Platform.putLong(base, offset, isDefined ? array.get(pos * 2) : 0);
 
       // --- Update bookkeeping data structures ----------------------------------------------------
       offset = currentPage.getBaseOffset();
@@ -729,17 +1114,28 @@ public final class BytesToBytesMap extends MemoryConsumer {
       pageCursor += recordLength;
       final long storedKeyAddress = taskMemoryManager.encodePageNumberAndOffset(
         currentPage, recordOffset);
-      longArray.set(pos * 2, storedKeyAddress);
+      array.set(pos * 2, storedKeyAddress);
       updateAddressesAndSizes(storedKeyAddress);
       numValues++;
       if (!isDefined) {
         numKeys++;
-        longArray.set(pos * 2 + 1, keyHashcode);
+        array.set(pos * 2 + 1, keyHashcode);
+        if (controlArray != null) {
+          setControl(pos, tagOf((int) keyHashcode));
+        }
+        if (bloomFilter != null) {
+          addToBloomFilter((int) keyHashcode);
+        }
         isDefined = true;
 
         if (numKeys >= growthThreshold && longArray.size() < MAX_CAPACITY) {
           try {
             growAndRehash();
+            if (oldLongArray == null) {
+              // Every entry was moved at once; keep pointing at this key for further appends.
+              array = longArray;
+              pos = slotOf((int) keyHashcode, storedKeyAddress);
+            }
           } catch (OutOfMemoryError oom) {
             canGrowArray = false;
           }
@@ -783,8 +1179,35 @@ public final class BytesToBytesMap extends MemoryConsumer {
     assert (capacity >= 0);
     capacity = Math.max((int) Math.min(MAX_CAPACITY, ByteArrayMethods.nextPowerOf2(capacity)), 64);
     assert (capacity <= MAX_CAPACITY);
-    longArray = allocateArray(capacity * 2);
+    // Allocate everything before touching the map, so that it is unchanged if memory runs out.
+    final LongArray newLongArray = allocateArray(capacity * 2);
+    LongArray newControlArray = null;
+    LongArray newBloomFilter = null;
+    try {
+      if (probingScheme == ProbingScheme.SWISS) {
+        newControlArray = allocateArray(capacity >>> 3);
+      }
+      if (bloomFilterEnabled) {
+        newBloomFilter = allocateBloomFilter(capacity);
+      }
+    } catch (OutOfMemoryError e) {
+      freeArray(newLongArray);
+      if (newControlArray != null) {
+        freeArray(newControlArray);
+      }
+      throw e;
+    }
+    longArray = newLongArray;
     longArray.zeroOut();
+    controlArray = newControlArray;
+    if (controlArray != null) {
+      for (int i = 0; i < controlArray.size(); i++) {
+        controlArray.set(i, LOW_BITS * EMPTY_CONTROL);
+      }
+    }
+    if (newBloomFilter != null) {
+      installBloomFilter(newBloomFilter);
+    }
 
     this.growthThreshold = (int) (capacity * loadFactor);
     this.mask = capacity - 1;
@@ -798,10 +1221,7 @@ public final class BytesToBytesMap extends MemoryConsumer {
    */
   public void free() {
     updatePeakMemoryUsed();
-    if (longArray != null) {
-      freeArray(longArray);
-      longArray = null;
-    }
+    freeArrays();
     Iterator<MemoryBlock> dataPagesIterator = dataPages.iterator();
     while (dataPagesIterator.hasNext()) {
       MemoryBlock dataPage = dataPagesIterator.next();
@@ -820,6 +1240,22 @@ public final class BytesToBytesMap extends MemoryConsumer {
     }
   }
 
+  private void freeArrays() {
+    freeOldArrays();
+    if (longArray != null) {
+      freeArray(longArray);
+      longArray = null;
+    }
+    if (controlArray != null) {
+      freeArray(controlArray);
+      controlArray = null;
+    }
+    if (bloomFilter != null) {
+      freeArray(bloomFilter);
+      bloomFilter = null;
+    }
+  }
+
   public TaskMemoryManager getTaskMemoryManager() {
     return taskMemoryManager;
   }
@@ -836,7 +1272,12 @@ public final class BytesToBytesMap extends MemoryConsumer {
     for (MemoryBlock dataPage : dataPages) {
       totalDataPagesSize += dataPage.size();
     }
-    return totalDataPagesSize + ((longArray != null) ? longArray.memoryBlock().size() : 0L);
+    return totalDataPagesSize + ((longArray != null) ? longArray.memoryBlock().size() : 0L) +
+      ((controlArray != null) ? controlArray.memoryBlock().size() : 0L) +
+      ((bloomFilter != null) ? bloomFilter.memoryBlock().size() : 0L) +
+      ((oldLongArray != null) ? oldLongArray.memoryBlock().size() : 0L) +
+      ((oldControlArray != null) ? oldControlArray.memoryBlock().size() : 0L) +
+      ((oldBloomFilter != null) ? oldBloomFilter.memoryBlock().size() : 0L);
   }
 
   private void updatePeakMemoryUsed() {
@@ -874,6 +1315,7 @@ public final class BytesToBytesMap extends MemoryConsumer {
    */
   public LongArray getArray() {
     assert(longArray != null);
+    finishMigration();
     return longArray;
   }
 
@@ -884,7 +1326,7 @@ public final class BytesToBytesMap extends MemoryConsumer {
     updatePeakMemoryUsed();
     numKeys = 0;
     numValues = 0;
-    freeArray(longArray);
+    freeArrays();
     while (dataPages.size() > 0) {
       MemoryBlock dataPage = dataPages.removeLast();
       freePage(dataPage);
@@ -896,35 +1338,654 @@ public final class BytesToBytesMap extends MemoryConsumer {
   }
 
   /**
-   * Grows the size of the hash table and re-hash everything.
+   * Grows the size of the hash table and re-hash everything. With an incremental
+   * {@link HashMapGrowthStrategy}, the entries are moved by later lookups instead.
    */
   @VisibleForTesting
   void growAndRehash() {
     assert(longArray != null);
+    // The current table only has room for the keys of the previous one once they all moved.
+    finishMigration();
 
     // Store references to the old data structures to be used when we re-hash
-    final LongArray oldLongArray = longArray;
-    final int oldCapacity = (int) oldLongArray.size() / 2;
+    final LongArray previousLongArray = longArray;
+    final LongArray previousControlArray = controlArray;
+    final LongArray previousBloomFilter = bloomFilter;
+    final int previousMask = mask;
+    final int previousBloomBlockMask = bloomBlockMask;
+    final int oldCapacity = (int) previousLongArray.size() / 2;
 
     // Allocate the new data structures
     allocate(Math.min(growthStrategy.nextCapacity(oldCapacity), MAX_CAPACITY));
 
-    // Re-mask (we don't recompute the hashcode because we stored all 32 bits of it)
-    for (int i = 0; i < oldLongArray.size(); i += 2) {
-      final long keyPointer = oldLongArray.get(i);
+    oldLongArray = previousLongArray;
+    oldControlArray = previousControlArray;
+    oldBloomFilter = previousBloomFilter;
+    oldMask = previousMask;
+    oldBloomBlockMask = previousBloomBlockMask;
+    migrateCursor = 0;
+    if (!growthStrategy.isIncremental()) {
+      finishMigration();
+    }
+  }
+
+  /**
+   * Moves the entries in the next {@code maxSlots} slots of the old table to the current one, and
+   * frees the old table after its last slot.
+   */
+  private void migrate(int maxSlots) {
+    assert(oldLongArray != null);
+    final int end = (int) Math.min(oldMask + 1L, (long) migrateCursor + maxSlots);
+    // Re-mask (we don't recompute the hashcode because we stored all of it)
+    for (int i = migrateCursor; i < end; i++) {
+      final long keyPointer = oldLongArray.get(i * 2);
       if (keyPointer == 0) {
         continue;
       }
-      final int hashcode = (int) oldLongArray.get(i + 1);
-      int newPos = hashcode & mask;
-      int step = 1;
-      while (longArray.get(newPos * 2) != 0) {
-        newPos = (newPos + step) & mask;
-        step++;
+      final long hashcode = oldLongArray.get(i * 2 + 1);
+      final int newPos = firstEmptySlot((int) hashcode);
+      if (controlArray != null) {
+        setControl(newPos, tagOf((int) hashcode));
+      }
+      if (bloomFilter != null) {
+        addToBloomFilter((int) hashcode);
       }
       longArray.set(newPos * 2, keyPointer);
       longArray.set(newPos * 2 + 1, hashcode);
     }
-    freeArray(oldLongArray);
+    migrateCursor = end;
+    if (end == oldMask + 1) {
+      freeOldArrays();
+    }
+  }
+
+  /**
+   * Moves all entries left in the old table, if an incremental resize is in progress.
+   */
+  private void finishMigration() {
+    if (oldLongArray != null) {
+      migrate(Integer.MAX_VALUE);
+    }
+  }
+
+  private void freeOldArrays() {
+    if (oldLongArray != null) {
+      freeArray(oldLongArray);
+      oldLongArray = null;
+    }
+    if (oldControlArray != null) {
+      freeArray(oldControlArray);
+      oldControlArray = null;
+    }
+    if (oldBloomFilter != null) {
+      freeArray(oldBloomFilter);
+      oldBloomFilter = null;
+    }
+  }
+
+  // --- Concurrent build ------------------------------------------------------------------------
+
+  /**
+   * Set in the hash word of a slot claimed during a concurrent build, so that a claimed slot is
+   * told apart from an empty one even when the key's hash is 0. The low 32 bits hold the hash;
+   * the tag is dropped when the build finishes.
+   */
+  private static final long CLAIMED = 1L << 32;
+
+  /** Slots of the old table moved by one helper at a time during a concurrent resize. */
+  private static final int MIGRATION_CHUNK = 1024;
+
+  /** The most new keys a writer counts locally before adding them to the table's count. */
+  private static final int MAX_KEY_BATCH = 64;
+
+  private static final int NOT_RESIZING = 0;
+  private static final int ALLOCATING = 1;
+  private static final int MIGRATING = 2;
+  private static final int CANNOT_GROW = 3;
+
+  /**
+   * Starts building this map from several threads at once, e.g. one hash aggregation table per
+   * executor instead of one per task. Each thread inserts through its own {@link ConcurrentWriter}
+   * from {@link ConcurrentBuild#newWriter()}, which appends records to data pages of its own and
+   * claims slots of the shared hash table with CAS.
+   *
+   * When the table has to grow, every writer that runs into the resize helps moving the entries to
+   * the new table, a chunk of slots at a time, instead of waiting for one thread to move them all.
+   *
+   * No other method of this map may be called until {@link ConcurrentBuild#finish()} returns.
+   */
+  public ConcurrentBuild beginConcurrentBuild() {
+    assert (longArray != null);
+    if (concurrentBuild != null) {
+      throw new IllegalStateException("A concurrent build is already in progress");
+    }
+    if (probingScheme != ProbingScheme.TRIANGULAR) {
+      throw new IllegalStateException("Concurrent builds need triangular probing");
+    }
+    if (hashFunction.is64Bit()) {
+      // Claimed slots tag the upper half of the stored hash code.
+      throw new IllegalStateException("Concurrent builds need a 32-bit hash function");
+    }
+    finishMigration();
+    concurrentBuild = new ConcurrentBuild();
+    return concurrentBuild;
+  }
+
+  /**
+   * The hash table of a concurrent build. It has the layout of {@link #longArray}; its slots are
+   * claimed by CAS on the hash word and published by a volatile write of the address word.
+   */
+  private static final class ConcurrentTable {
+    final LongArray array;
+    final int mask;
+    final int growthThreshold;
+    /** Keys in the table, not counting those writers have not added yet. */
+    final AtomicInteger numKeys;
+    final AtomicInteger resizeState;
+    /** The table this one is being moved to. Set before resizeState becomes MIGRATING. */
+    volatile ConcurrentTable next = null;
+    final AtomicInteger nextChunk = new AtomicInteger(0);
+    final AtomicInteger chunksDone = new AtomicInteger(0);
+
+    ConcurrentTable(LongArray array, int growthThreshold, int numKeys, boolean canGrow) {
+      this.array = array;
+      this.mask = (int) (array.size() / 2) - 1;
+      this.growthThreshold = growthThreshold;
+      this.numKeys = new AtomicInteger(numKeys);
+      this.resizeState = new AtomicInteger(canGrow ? NOT_RESIZING : CANNOT_GROW);
+    }
+
+    int numChunks() {
+      return (mask + MIGRATION_CHUNK) / MIGRATION_CHUNK;
+    }
+  }
+
+  /**
+   * A concurrent build of this map, see {@link BytesToBytesMap#beginConcurrentBuild()}.
+   */
+  public final class ConcurrentBuild {
+
+    private volatile ConcurrentTable table =
+      new ConcurrentTable(longArray, growthThreshold, numKeys, canGrowArray);
+
+    private final CopyOnWriteArrayList<ConcurrentWriter> writers = new CopyOnWriteArrayList<>();
+
+    // Guarded by this build.
+    private int openWriters = 0;
+    private int keysAdded = 0;
+    private int valuesAdded = 0;
+
+    private ConcurrentBuild() { }
+
+    /**
+     * Returns a new writer. A writer must only be used by one thread at a time.
+     */
+    public ConcurrentWriter newWriter() {
+      ConcurrentWriter writer = new ConcurrentWriter(this);
+      synchronized (this) {
+        if (concurrentBuild != this) {
+          throw new IllegalStateException("The concurrent build has finished");
+        }
+        openWriters++;
+      }
+      writers.add(writer);
+      return writer;
+    }
+
+    /**
+     * Ends the build, after which the map can be used as usual again. All writers must have been
+     * closed. If the map had a Bloom filter, it is rebuilt for the final table, or disabled if
+     * memory for it cannot be acquired.
+     */
+    public void finish() {
+      synchronized (this) {
+        if (openWriters != 0) {
+          throw new IllegalStateException(openWriters + " writers are still open");
+        }
+        ConcurrentTable t = table;
+        synchronized (BytesToBytesMap.this) {
+          longArray = t.array;
+          mask = t.mask;
+          growthThreshold = t.growthThreshold;
+          canGrowArray = t.resizeState.get() != CANNOT_GROW;
+          numKeys += keysAdded;
+          numValues += valuesAdded;
+          // Writers own the pages they filled; single-threaded appends start a new one.
+          currentPage = null;
+          pageCursor = 0;
+          concurrentBuild = null;
+          // Drop the CLAIMED tags, which the rest of the map would take for hash code bits.
+          for (int i = 0; i <= mask; i++) {
+            longArray.set(i * 2 + 1, (int) longArray.get(i * 2 + 1));
+          }
+          if (bloomFilter != null) {
+            // Writers do not maintain the filter; rebuild it from the final table.
+            freeArray(bloomFilter);
+            bloomFilter = null;
+            bloomFilterEnabled = false;
+            if (!enableBloomFilter()) {
+              logger.warn("Could not acquire memory to rebuild the Bloom filter after a " +
+                "concurrent build; lookups go without it");
+            }
+          }
+        }
+      }
+    }
+
+    private synchronized void closeWriter(ConcurrentWriter writer) {
+      keysAdded += writer.numKeys;
+      valuesAdded += writer.numValues;
+      openWriters--;
+      writers.remove(writer);
+    }
+
+    /**
+     * Called by a writer that brought the number of keys of {@code t} over its threshold.
+     */
+    private void grow(ConcurrentWriter writer, ConcurrentTable t) {
+      if (t.array.size() >= MAX_CAPACITY) {
+        t.resizeState.compareAndSet(NOT_RESIZING, CANNOT_GROW);
+        return;
+      }
+      if (!t.resizeState.compareAndSet(NOT_RESIZING, ALLOCATING)) {
+        return;
+      }
+      // Writers that see ALLOCATING stop inserting into t, so t.numKeys is final once they have
+      // left it, which helpResize waits for.
+      int capacity = Math.min(growthStrategy.nextCapacity(t.mask + 1), MAX_CAPACITY);
+      capacity = Math.max(
+        (int) Math.min(MAX_CAPACITY, ByteArrayMethods.nextPowerOf2(capacity)), 64);
+      LongArray array;
+      try {
+        synchronized (BytesToBytesMap.this) {
+          array = allocateArray(capacity * 2);
+        }
+      } catch (OutOfMemoryError oom) {
+        t.resizeState.set(CANNOT_GROW);
+        return;
+      }
+      array.zeroOut();
+      t.next = new ConcurrentTable(array, (int) (capacity * loadFactor), 0, true);
+      t.resizeState.set(MIGRATING);
+      helpResize(writer, t);
+    }
+
+    /**
+     * Helps moving {@code t} to its next table, and returns once {@code t} is no longer current.
+     * The caller must not be active in {@code t}.
+     */
+    private void helpResize(ConcurrentWriter writer, ConcurrentTable t) {
+      writer.helping = t;
+      if (table != t) {
+        writer.helping = null;
+        return;
+      }
+      int state;
+      while ((state = t.resizeState.get()) == ALLOCATING) {
+        Thread.yield();
+      }
+      if (state != MIGRATING) {
+        // Growing failed; writers go on inserting into t.
+        writer.helping = null;
+        return;
+      }
+      // Writers that were inserting when the resize started may still be claiming slots.
+      for (ConcurrentWriter w : writers) {
+        while (w.active == t) {
+          Thread.yield();
+        }
+      }
+      int numChunks = t.numChunks();
+      int chunk;
+      while ((chunk = t.nextChunk.getAndIncrement()) < numChunks) {
+        migrate(t, chunk);
+        if (t.chunksDone.incrementAndGet() == numChunks) {
+          writer.helping = null;
+          finishResize(t);
+          return;
+        }
+      }
+      writer.helping = null;
+      while (table == t) {
+        Thread.yield();
+      }
+    }
+
+    /**
+     * Moves the entries in one chunk of the slots of {@code t} to its next table. Chunks are moved
+     * in parallel, so slots of the new table are claimed with CAS too.
+     */
+    private void migrate(ConcurrentTable t, int chunk) {
+      ConcurrentTable next = t.next;
+      int end = Math.min(t.mask + 1, (chunk + 1) * MIGRATION_CHUNK);
+      for (int i = chunk * MIGRATION_CHUNK; i < end; i++) {
+        final long keyPointer = t.array.get(i * 2);
+        if (keyPointer == 0) {
+          continue;
+        }
+        final int hashcode = (int) t.array.get(i * 2 + 1);
+        int newPos = hashcode & next.mask;
+        int step = 1;
+        while (!next.array.compareAndSet(newPos * 2 + 1, 0, claimed(hashcode))) {
+          newPos = (newPos + step) & next.mask;
+          step++;
+        }
+        next.array.set(newPos * 2, keyPointer);
+      }
+    }
+
+    /**
+     * Called by the helper that moved the last chunk of {@code t}. Frees the old table once no
+     * helper reads it any more.
+     */
+    private void finishResize(ConcurrentTable t) {
+      ConcurrentTable next = t.next;
+      next.numKeys.set(t.numKeys.get());
+      table = next;
+      for (ConcurrentWriter w : writers) {
+        while (w.helping == t) {
+          Thread.yield();
+        }
+      }
+      synchronized (BytesToBytesMap.this) {
+        longArray = next.array;
+        freeArray(t.array);
+      }
+    }
+  }
+
+  /**
+   * Inserts into the map during a concurrent build. Each writer appends to its own data pages, so
+   * records of different writers never share a page, and returns the same {@link Location} from
+   * every call, which is only valid until the next call on this writer.
+   *
+   * The map makes sure every key is stored once and that values appended to a key concurrently
+   * are all kept. Updating a value in place, e.g. an aggregation buffer, is up to the caller, as
+   * other writers may update the same value at the same time.
+   */
+  public final class ConcurrentWriter {
+
+    private final ConcurrentBuild build;
+    private final Location loc = new Location();
+
+    /** The table this writer is looking up or inserting into, if any. */
+    private volatile ConcurrentTable active = null;
+    /** The table this writer is helping to resize, if any. */
+    private volatile ConcurrentTable helping = null;
+
+    private MemoryBlock page = null;
+    private long pageCursor = 0;
+
+    /** A record written past the page cursor that is not published in the table yet. */
+    private long pendingAddress = 0;
+    private long pendingNextOffset = 0;
+    private long pendingLength = 0;
+
+    private int numKeys = 0;
+    private int numValues = 0;
+    /** New keys not yet added to the count of the table. */
+    private int pendingKeys = 0;
+    private boolean closed = false;
+
+    private ConcurrentWriter(ConcurrentBuild build) {
+      this.build = build;
+    }
+
+    /**
+     * Looks up a key. The returned location may be read but not appended to.
+     */
+    public Location lookup(Object keyBase, long keyOffset, int keyLength) {
+      int hash = (int) hashFunction.hashUnsafeBytes(keyBase, keyOffset, keyLength);
+      ConcurrentTable t = enter();
+      try {
+        int pos = hash & t.mask;
+        int step = 1;
+        while (true) {
+          long address = t.array.getVolatile(pos * 2);
+          if (address == 0) {
+            long word = t.array.getVolatile(pos * 2 + 1);
+            if (word == 0) {
+              loc.isDefined = false;
+              return loc;
+            }
+            if ((int) word == hash) {
+              address = awaitPublished(t, pos);
+            }
+          }
+          if (address != 0 && (int) t.array.get(pos * 2 + 1) == hash &&
+              keyEquals(address, keyBase, keyOffset, keyLength)) {
+            return loc;
+          }
+          pos = (pos + step) & t.mask;
+          step++;
+        }
+      } finally {
+        active = null;
+      }
+    }
+
+    /**
+     * Returns the location of the value of a key, inserting the key with the given value first if
+     * it is not in the map yet. The key and value must be word-aligned.
+     *
+     * @return the location of the key's value, or null if the key is new and memory could not be
+     *         acquired for it.
+     */
+    public Location putIfAbsent(
+        Object kbase, long koff, int klen, Object vbase, long voff, int vlen) {
+      return insert(kbase, koff, klen, vbase, voff, vlen, true) ? loc : null;
+    }
+
+    /**
+     * Appends a value for a key, like {@link Location#append}. The key and value must be
+     * word-aligned.
+     *
+     * @return true if the value was appended and false if memory could not be acquired.
+     */
+    public boolean append(Object kbase, long koff, int klen, Object vbase, long voff, int vlen) {
+      return insert(kbase, koff, klen, vbase, voff, vlen, false);
+    }
+
+    /**
+     * Ends this writer. Its pages stay in the map.
+     */
+    public void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (pendingKeys > 0) {
+        ConcurrentTable t = enter();
+        t.numKeys.addAndGet(pendingKeys);
+        pendingKeys = 0;
+        active = null;
+      }
+      // The last record written may have been dropped, leaving a page without records.
+      if (page != null &&
+          UnsafeAlignedOffset.getSize(page.getBaseObject(), page.getBaseOffset()) == 0) {
+        synchronized (BytesToBytesMap.this) {
+          dataPages.remove(page);
+          freePage(page);
+        }
+      }
+      page = null;
+      build.closeWriter(this);
+    }
+
+    /**
+     * Makes this writer active in the current table, first helping to resize it if needed.
+     */
+    private ConcurrentTable enter() {
+      while (true) {
+        ConcurrentTable t = build.table;
+        active = t;
+        // A resizer sets the state before it waits for active writers to leave t, so either it
+        // sees this writer active or this writer sees the resize.
+        int state = t.resizeState.get();
+        if (build.table == t && state != ALLOCATING && state != MIGRATING) {
+          return t;
+        }
+        active = null;
+        build.helpResize(this, t);
+      }
+    }
+
+    private boolean insert(
+        Object kbase, long koff, int klen, Object vbase, long voff, int vlen, boolean ifAbsent) {
+      assert (klen % 8 == 0);
+      assert (vlen % 8 == 0);
+      assert (!closed);
+      int hash = (int) hashFunction.hashUnsafeBytes(kbase, koff, klen);
+      ConcurrentTable t = enter();
+      boolean grow = false;
+      try {
+        int pos = hash & t.mask;
+        int step = 1;
+        while (true) {
+          long address = t.array.getVolatile(pos * 2);
+          if (address == 0) {
+            long word = t.array.getVolatile(pos * 2 + 1);
+            if (word == 0) {
+              // The key is not in the map.
+              if (pendingAddress == 0) {
+                if (t.resizeState.get() == CANNOT_GROW &&
+                    t.numKeys.get() + pendingKeys >= t.growthThreshold) {
+                  return false;
+                }
+                if (!writeRecord(kbase, koff, klen, vbase, voff, vlen, 0)) {
+                  return false;
+                }
+              }
+              if (!t.array.compareAndSet(pos * 2 + 1, 0, claimed(hash))) {
+                // Another writer claimed the slot first; look at it again.
+                continue;
+              }
+              t.array.setVolatile(pos * 2, pendingAddress);
+              publishRecord();
+              numKeys++;
+              pendingKeys++;
+              int batch = t.resizeState.get() == CANNOT_GROW ? 1 : keyBatch(t);
+              if (pendingKeys >= batch) {
+                grow = t.numKeys.addAndGet(pendingKeys) >= t.growthThreshold;
+                pendingKeys = 0;
+              }
+              return true;
+            }
+            if ((int) word != hash) {
+              pos = (pos + step) & t.mask;
+              step++;
+              continue;
+            }
+            address = awaitPublished(t, pos);
+          }
+          if ((int) t.array.get(pos * 2 + 1) == hash && keyEquals(address, kbase, koff, klen)) {
+            if (ifAbsent) {
+              // Drop the record, if any, written for a key that turned out to be there already.
+              pendingAddress = 0;
+              return true;
+            }
+            if (pendingAddress == 0) {
+              if (!writeRecord(kbase, koff, klen, vbase, voff, vlen, address)) {
+                return false;
+              }
+            }
+            // Put the new value at the beginning of the key's list.
+            long head = address;
+            Platform.putLong(page.getBaseObject(), pendingNextOffset, head);
+            while (!t.array.compareAndSet(pos * 2, head, pendingAddress)) {
+              head = t.array.getVolatile(pos * 2);
+              Platform.putLong(page.getBaseObject(), pendingNextOffset, head);
+            }
+            publishRecord();
+            return true;
+          }
+          pos = (pos + step) & t.mask;
+          step++;
+        }
+      } finally {
+        active = null;
+        if (grow) {
+          build.grow(this, t);
+        }
+      }
+    }
+
+    private int keyBatch(ConcurrentTable t) {
+      // Keep the keys counted by no table well below the free slots, so the table cannot fill up
+      // before someone notices it has to grow.
+      int free = t.mask + 1 - t.growthThreshold;
+      return Math.max(1, Math.min(MAX_KEY_BATCH, free / (4 * build.writers.size())));
+    }
+
+    private boolean keyEquals(long address, Object keyBase, long keyOffset, int keyLength) {
+      loc.withAddress(address);
+      return loc.keyLength == keyLength && ByteArrayMethods.arrayEquals(
+        keyBase, keyOffset, loc.baseObject, loc.keyOffset, keyLength);
+    }
+
+    /**
+     * Writes a record past the cursor of this writer's page, acquiring a new page if needed. The
+     * record becomes part of the page once {@link #publishRecord()} is called.
+     */
+    private boolean writeRecord(
+        Object kbase, long koff, int klen, Object vbase, long voff, int vlen, long next) {
+      int uaoSize = UnsafeAlignedOffset.getUaoSize();
+      final long recordLength = (2 * uaoSize) + klen + vlen + 8;
+      if (page == null || page.size() - pageCursor < recordLength) {
+        MemoryBlock newPage;
+        try {
+          synchronized (BytesToBytesMap.this) {
+            newPage = allocatePage(recordLength + uaoSize);
+            dataPages.add(newPage);
+          }
+        } catch (OutOfMemoryError e) {
+          return false;
+        }
+        page = newPage;
+        UnsafeAlignedOffset.putSize(page.getBaseObject(), page.getBaseOffset(), 0);
+        pageCursor = uaoSize;
+      }
+      final Object base = page.getBaseObject();
+      long offset = page.getBaseOffset() + pageCursor;
+      final long recordOffset = offset;
+      UnsafeAlignedOffset.putSize(base, offset, klen + vlen + uaoSize);
+      UnsafeAlignedOffset.putSize(base, offset + uaoSize, klen);
+      offset += (2 * uaoSize);
+      Platform.copyMemory(kbase, koff, base, offset, klen);
+      offset += klen;
+      Platform.copyMemory(vbase, voff, base, offset, vlen);
+      offset += vlen;
+      Platform.putLong(base, offset, next);
+      pendingAddress = taskMemoryManager.encodePageNumberAndOffset(page, recordOffset);
+      pendingNextOffset = offset;
+      pendingLength = recordLength;
+      return true;
+    }
+
+    private void publishRecord() {
+      final Object base = page.getBaseObject();
+      final long offset = page.getBaseOffset();
+      UnsafeAlignedOffset.putSize(base, offset, UnsafeAlignedOffset.getSize(base, offset) + 1);
+      pageCursor += pendingLength;
+      loc.withAddress(pendingAddress);
+      pendingAddress = 0;
+      numValues++;
+    }
+  }
+
+  private static long claimed(int hashcode) {
+    return (hashcode & 0xFFFFFFFFL) | CLAIMED;
+  }
+
+  /**
+   * Waits for the writer that claimed slot {@code pos} of {@code t} to publish its record. The
+   * record is written before the slot is claimed, so this only takes a few instructions.
+   */
+  private static long awaitPublished(ConcurrentTable t, int pos) {
+    long address;
+    while ((address = t.array.getVolatile(pos * 2)) == 0) {
+      Thread.yield();
+    }
+    return address;
   }
 }
@@ -26,11 +26,25 @@ public interface HashMapGrowthStrategy {
 
   int nextCapacity(int currentCapacity);
 
+  /**
+   * Whether the entries are moved to the grown hash map a few at a time, by the lookups that
+   * follow, rather than all at once while the insert that made the map grow waits.
+   */
+  default boolean isIncremental() {
+    return false;
+  }
+
   /**
    * Double the size of the hash map every time.
    */
   HashMapGrowthStrategy DOUBLING = new Doubling();
 
+  /**
+   * Double the size of the hash map every time, moving the entries incrementally. This keeps the
+   * latency of every insert low at the cost of searching two tables while entries are moved.
+   */
+  HashMapGrowthStrategy INCREMENTAL_DOUBLING = new IncrementalDoubling();
+
   class Doubling implements HashMapGrowthStrategy {
 
     private static final int ARRAY_MAX = ByteArrayMethods.MAX_ROUNDED_ARRAY_LENGTH;
@@ -44,4 +58,12 @@ public interface HashMapGrowthStrategy {
     }
   }
 
+  class IncrementalDoubling extends Doubling {
+
+    @Override
+    public boolean isIncremental() {
+      return true;
+    }
+  }
+
 }
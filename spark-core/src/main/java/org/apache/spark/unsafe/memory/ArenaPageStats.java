@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.unsafe.memory;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A snapshot of how the kernel backs the memory of {@link OffHeapArenas}, read from
+ * {@code /proc/self/smaps}: how much of it is resident, and how much of that sits on huge pages.
+ *
+ * Hardware TLB miss counters are not readable from the JVM, so {@link #tlbEntries()} estimates
+ * the TLB pressure instead, as the number of pages needed to map the resident memory. smaps
+ * reports whole mappings, and the kernel may merge an arena's mapping with adjacent anonymous
+ * memory, so the counts of such mappings are scaled by the part that overlaps the arenas. On
+ * systems without smaps everything but {@link #reservedBytes()} is 0.
+ */
+public final class ArenaPageStats {
+
+  private static final long SMALL_PAGE = 4096;
+  private static final long HUGE_PAGE = 2L << 20;
+
+  private final long reservedBytes;
+  private final long residentBytes;
+  private final long hugePageBytes;
+
+  ArenaPageStats(long reservedBytes, long residentBytes, long hugePageBytes) {
+    this.reservedBytes = reservedBytes;
+    this.residentBytes = residentBytes;
+    this.hugePageBytes = hugePageBytes;
+  }
+
+  /** Reads the stats of the address ranges {@code [start, end)} in {@code ranges}. */
+  static ArenaPageStats read(List<long[]> ranges) {
+    long reserved = 0;
+    for (long[] range : ranges) {
+      reserved += range[1] - range[0];
+    }
+    double resident = 0;
+    double huge = 0;
+    try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/smaps"))) {
+      double overlap = 0;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int colon = line.indexOf(':');
+        if (colon < 0 || line.indexOf(' ') < colon) {
+          // A mapping header, e.g. "7f12a0000000-7f12b0000000 rw-p 00000000 00:00 0".
+          int dash = line.indexOf('-');
+          int space = line.indexOf(' ');
+          if (dash <= 0 || space < dash) {
+            overlap = 0;
+            continue;
+          }
+          long start = Long.parseUnsignedLong(line.substring(0, dash), 16);
+          long end = Long.parseUnsignedLong(line.substring(dash + 1, space), 16);
+          overlap = overlapFraction(start, end, ranges);
+        } else if (overlap > 0) {
+          String key = line.substring(0, colon);
+          switch (key) {
+            case "Rss":
+              resident += overlap * kiloBytes(line, colon);
+              break;
+            case "AnonHugePages":
+              huge += overlap * kiloBytes(line, colon);
+              break;
+            case "Shared_Hugetlb":
+            case "Private_Hugetlb":
+              // Not included in Rss.
+              double hugetlb = overlap * kiloBytes(line, colon);
+              resident += hugetlb;
+              huge += hugetlb;
+              break;
+            default:
+              break;
+          }
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      return new ArenaPageStats(reserved, 0, 0);
+    }
+    return new ArenaPageStats(reserved, (long) resident, (long) huge);
+  }
+
+  private static double overlapFraction(long start, long end, List<long[]> ranges) {
+    long overlap = 0;
+    for (long[] range : ranges) {
+      overlap += Math.max(0, Math.min(end, range[1]) - Math.max(start, range[0]));
+    }
+    return end > start ? (double) overlap / (end - start) : 0;
+  }
+
+  private static long kiloBytes(String line, int colon) {
+    String value = line.substring(colon + 1).trim();
+    int space = value.indexOf(' ');
+    return Long.parseLong(space < 0 ? value : value.substring(0, space)) * 1024;
+  }
+
+  /** Bytes of address space reserved by the arenas. */
+  public long reservedBytes() {
+    return reservedBytes;
+  }
+
+  /** Bytes of the arenas backed by physical memory. */
+  public long residentBytes() {
+    return residentBytes;
+  }
+
+  /** Bytes of the arenas backed by 2 MB pages, transparent or from hugetlbfs. */
+  public long hugePageBytes() {
+    return hugePageBytes;
+  }
+
+  /** The TLB entries needed to map the resident memory of the arenas. */
+  public long tlbEntries() {
+    return hugePageBytes / HUGE_PAGE + (residentBytes - hugePageBytes) / SMALL_PAGE;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("reservedBytes=%d residentBytes=%d hugePageBytes=%d tlbEntries=%d",
+      reservedBytes, residentBytes, hugePageBytes, tlbEntries());
+  }
+}
@@ -17,59 +17,68 @@
 
 package org.apache.spark.unsafe.memory;
 
+import com.google.common.annotations.VisibleForTesting;
 import org.apache.spark.unsafe.Platform;
 
-import javax.annotation.concurrent.GuardedBy;
 import java.lang.ref.WeakReference;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
 
 /**
  * A simple {@link MemoryAllocator} that can allocate up to 16GB using a JVM long primitive array.
+ *
+ * Freed arrays of 4KB to 64MB are kept for reuse in a {@link SizeClassedPool}, through weak
+ * references so that the garbage collector can still reclaim them.
  */
 public class HeapMemoryAllocator implements MemoryAllocator {
 
-  @GuardedBy("this")
-  private final Map<Long, LinkedList<WeakReference<long[]>>> bufferPoolsBySize = new HashMap<>();
+  private final SizeClassedPool<WeakReference<long[]>> pool;
+
+  public HeapMemoryAllocator() {
+    this(MemoryAllocator.POOL_THREAD_CACHE_BYTES, MemoryAllocator.POOL_DEPOT_BYTES);
+  }
 
-  private static final int POOLING_THRESHOLD_BYTES = 1024 * 1024;
+  @VisibleForTesting
+  HeapMemoryAllocator(long threadCacheBytes, long depotBytes) {
+    pool = new SizeClassedPool<WeakReference<long[]>>(threadCacheBytes, depotBytes) {
+      @Override
+      protected void release(WeakReference<long[]> block) {
+        // Left to the garbage collector.
+      }
+
+      @Override
+      protected boolean isCleared(WeakReference<long[]> block) {
+        return block.get() == null;
+      }
+    };
+  }
 
-  /**
-   * Returns true if allocations of the given size should go through the pooling mechanism and
-   * false otherwise.
-   */
-  private boolean shouldPool(long size) {
-    // Very small allocations are less likely to benefit from pooling.
-    return size >= POOLING_THRESHOLD_BYTES;
+  /** Statistics of the reuse of freed arrays. */
+  public MemoryPoolStats poolStats() {
+    return pool.stats();
+  }
+
+  /** Drops the freed arrays cached for reuse, except those cached by other live threads. */
+  public void trimPool() {
+    pool.trim();
   }
 
   @Override
   public MemoryBlock allocate(long size) throws OutOfMemoryError {
-    int numWords = (int) ((size + 7) / 8);
-    long alignedSize = numWords * 8L;
-    assert (alignedSize >= size);
-    if (shouldPool(alignedSize)) {
-      synchronized (this) {
-        final LinkedList<WeakReference<long[]>> pool = bufferPoolsBySize.get(alignedSize);
-        if (pool != null) {
-          while (!pool.isEmpty()) {
-            final WeakReference<long[]> arrayReference = pool.pop();
-            final long[] array = arrayReference.get();
-            if (array != null) {
-              assert (array.length * 8L >= size);
-              MemoryBlock memory = new MemoryBlock(array, Platform.LONG_ARRAY_OFFSET, size);
-              if (MemoryAllocator.MEMORY_DEBUG_FILL_ENABLED) {
-                memory.fill(MemoryAllocator.MEMORY_DEBUG_FILL_CLEAN_VALUE);
-              }
-              return memory;
-            }
-          }
-          bufferPoolsBySize.remove(alignedSize);
-        }
+    int sizeClass = SizeClassedPool.sizeClass(size);
+    long[] array = null;
+    if (sizeClass >= 0) {
+      WeakReference<long[]> arrayReference = pool.poll(sizeClass);
+      if (arrayReference != null) {
+        // May have been collected since the pool checked it, in which case we allocate anew.
+        array = arrayReference.get();
+      }
+      if (array == null) {
+        array = new long[(int) (SizeClassedPool.classSize(sizeClass) / 8)];
       }
+    } else {
+      array = new long[(int) ((size + 7) / 8)];
     }
-    long[] array = new long[numWords];
+    assert (array.length * 8L >= size);
+    pool.recordInUse(sizeClass, size, 1);
     MemoryBlock memory = new MemoryBlock(array, Platform.LONG_ARRAY_OFFSET, size);
     if (MemoryAllocator.MEMORY_DEBUG_FILL_ENABLED) {
       memory.fill(MemoryAllocator.MEMORY_DEBUG_FILL_CLEAN_VALUE);
@@ -101,18 +110,11 @@ public class HeapMemoryAllocator implements MemoryAllocator {
     long[] array = (long[]) memory.obj;
     memory.setObjAndOffset(null, 0);
 
-    long alignedSize = ((size + 7) / 8) * 8;
-    if (shouldPool(alignedSize)) {
-      synchronized (this) {
-        LinkedList<WeakReference<long[]>> pool = bufferPoolsBySize.get(alignedSize);
-        if (pool == null) {
-          pool = new LinkedList<>();
-          bufferPoolsBySize.put(alignedSize, pool);
-        }
-        pool.add(new WeakReference<>(array));
-      }
-    } else {
-      // Do nothing
+    int sizeClass = SizeClassedPool.sizeClass(size);
+    pool.recordInUse(sizeClass, size, -1);
+    // Arrays wrapped by MemoryBlock.fromLongArray() may not be of the size of their class.
+    if (sizeClass >= 0 && array.length * 8L == SizeClassedPool.classSize(sizeClass)) {
+      pool.offer(sizeClass, new WeakReference<>(array));
     }
   }
 }
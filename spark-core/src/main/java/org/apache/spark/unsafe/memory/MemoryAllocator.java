@@ -30,6 +30,15 @@ public interface MemoryAllocator {
   byte MEMORY_DEBUG_FILL_CLEAN_VALUE = (byte)0xa5;
   byte MEMORY_DEBUG_FILL_FREED_VALUE = (byte)0x5a;
 
+  /**
+   * Bytes of freed blocks each thread keeps for reuse, per allocator. Set this and
+   * {@link #POOL_DEPOT_BYTES} to 0 to free every block right away.
+   */
+  long POOL_THREAD_CACHE_BYTES = Long.getLong("spark.memory.pool.threadCacheBytes", 4L << 20);
+
+  /** Bytes of freed blocks kept for reuse by any thread, per allocator. */
+  long POOL_DEPOT_BYTES = Long.getLong("spark.memory.pool.depotBytes", 64L << 20);
+
   /**
    * Allocates a contiguous block of memory. Note that the allocated memory is not guaranteed
    * to be zeroed out (call `fill(0)` on the result if this is necessary).
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.unsafe.memory;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of how well the block pool of a {@link MemoryAllocator} works. All values are live and
+ * cumulative since the allocator was created, except the byte counts, which are current.
+ */
+public final class MemoryPoolStats {
+
+  final LongAdder threadCacheHits = new LongAdder();
+  final LongAdder depotHits = new LongAdder();
+  final LongAdder misses = new LongAdder();
+  final LongAdder unpooled = new LongAdder();
+  final LongAdder released = new LongAdder();
+  final LongAdder cachedBytes = new LongAdder();
+  final LongAdder inUseBytes = new LongAdder();
+  final LongAdder slackBytes = new LongAdder();
+
+  MemoryPoolStats() {
+  }
+
+  /** Allocations served from the allocating thread's own cache. */
+  public long threadCacheHits() {
+    return threadCacheHits.sum();
+  }
+
+  /** Allocations served from the depot shared by all threads. */
+  public long depotHits() {
+    return depotHits.sum();
+  }
+
+  /** Allocations of a pooled size that found nothing cached and allocated new memory. */
+  public long misses() {
+    return misses.sum();
+  }
+
+  /** Allocations too small or too large to be pooled. */
+  public long unpooled() {
+    return unpooled.sum();
+  }
+
+  /** Freed blocks released instead of cached, because the caches were full. */
+  public long released() {
+    return released.sum();
+  }
+
+  /** The fraction of pooled allocations served from a cache, or 0 if there were none. */
+  public double hitRatio() {
+    long hits = threadCacheHits() + depotHits();
+    long total = hits + misses();
+    return total == 0 ? 0.0 : (double) hits / total;
+  }
+
+  /**
+   * Bytes held by freed blocks waiting in the caches. For the on-heap allocator, whose caches
+   * only hold weak references, some of them may have been garbage collected already.
+   */
+  public long cachedBytes() {
+    return cachedBytes.sum();
+  }
+
+  /** Bytes of the pooled blocks in use, counting each at the size of its class. */
+  public long inUseBytes() {
+    return inUseBytes.sum();
+  }
+
+  /** Bytes of the pooled blocks in use that are beyond the size that was asked for. */
+  public long slackBytes() {
+    return slackBytes.sum();
+  }
+
+  /**
+   * The fraction of the pooled memory, in use or cached, that serves no allocation: the slack of
+   * the blocks in use plus the cached blocks.
+   */
+  public double fragmentation() {
+    long cached = cachedBytes();
+    long total = inUseBytes() + cached;
+    return total == 0 ? 0.0 : (double) (slackBytes() + cached) / total;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+      "threadCacheHits=%d depotHits=%d misses=%d unpooled=%d released=%d hitRatio=%.3f " +
+        "cachedBytes=%d inUseBytes=%d slackBytes=%d fragmentation=%.3f",
+      threadCacheHits(), depotHits(), misses(), unpooled(), released(), hitRatio(),
+      cachedBytes(), inUseBytes(), slackBytes(), fragmentation());
+  }
+}
@@ -0,0 +1,345 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.unsafe.memory;
+
+import org.apache.spark.unsafe.Platform;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Large off-heap arenas that {@link UnsafeMemoryAllocator} carves its pages out of, instead of
+ * asking {@code malloc} for every page, so that pages sit on few huge pages and, optionally, in
+ * the memory of the NUMA node of the thread that allocates them.
+ *
+ * Arenas are {@code arenaSize} bytes and aligned to 2 MB. They are either plain anonymous memory,
+ * which the kernel backs with transparent huge pages when
+ * {@code /sys/kernel/mm/transparent_hugepage/enabled} is {@code always}, or, if
+ * {@code hugePageDir} names a hugetlbfs mount, a mapping of a file there, which is always backed
+ * by huge pages. Pages are carved in units of 4 KB, first fit, and pages of 2 MB or more start on
+ * a 2 MB boundary. An arena that becomes empty is released unless it is the last of its node.
+ *
+ * Java cannot bind memory to a node, so NUMA awareness relies on the kernel placing memory where
+ * it is first touched: each thread allocates from the arenas of the node it runs on, and a new
+ * arena is touched in full by the thread that creates it. Threads may still migrate afterwards.
+ */
+public final class OffHeapArenas {
+
+  private static final long UNIT = 4096;
+  private static final long HUGE_PAGE = 2L << 20;
+  private static final int HUGE_PAGE_UNITS = (int) (HUGE_PAGE / UNIT);
+
+  private final long arenaSize;
+  private final File hugePageDir;
+  private final boolean numaAware;
+  private final int[] cpuToNode;
+
+  @GuardedBy("this")
+  private final List<Arena> arenas = new ArrayList<>();
+  @GuardedBy("this")
+  private long allocations = 0;
+  @GuardedBy("this")
+  private long fallbacks = 0;
+  @GuardedBy("this")
+  private long allocatedBytes = 0;
+
+  /**
+   * @param arenaSize bytes of each arena, rounded up to a multiple of 2 MB
+   * @param hugePageDir a directory on a hugetlbfs mount to map arenas from, or null to use
+   *                    anonymous memory and transparent huge pages
+   * @param numaAware whether to keep separate arenas per NUMA node
+   */
+  public OffHeapArenas(long arenaSize, File hugePageDir, boolean numaAware) {
+    long rounded = (arenaSize + HUGE_PAGE - 1) / HUGE_PAGE * HUGE_PAGE;
+    if (rounded <= 0 || rounded / UNIT > Integer.MAX_VALUE ||
+        (hugePageDir != null && rounded > Integer.MAX_VALUE)) {
+      throw new IllegalArgumentException("Invalid arena size: " + arenaSize);
+    }
+    this.arenaSize = rounded;
+    this.hugePageDir = hugePageDir;
+    this.numaAware = numaAware;
+    this.cpuToNode = numaAware ? readCpuToNode() : new int[0];
+  }
+
+  /**
+   * The arenas configured through the {@code spark.memory.offHeap.arenas.*} system properties, or
+   * null if {@code spark.memory.offHeap.arenas.enabled} is not true.
+   */
+  static OffHeapArenas fromSystemProperties() {
+    if (!Boolean.getBoolean("spark.memory.offHeap.arenas.enabled")) {
+      return null;
+    }
+    String dir = System.getProperty("spark.memory.offHeap.arenas.hugePageDir");
+    return new OffHeapArenas(
+      Long.getLong("spark.memory.offHeap.arenas.size", 256L << 20),
+      dir == null || dir.isEmpty() ? null : new File(dir),
+      Boolean.getBoolean("spark.memory.offHeap.arenas.numa"));
+  }
+
+  /**
+   * Carves {@code size} bytes out of an arena of the current thread's node, reserving a new arena
+   * if none has room. Returns 0 if the page must come from {@code malloc} instead, because it is
+   * larger than an arena or no arena could be reserved.
+   */
+  public synchronized long allocate(long size) {
+    allocations++;
+    if (size > arenaSize) {
+      fallbacks++;
+      return 0;
+    }
+    int units = (int) ((size + UNIT - 1) / UNIT);
+    int node = currentNode();
+    for (Arena arena : arenas) {
+      if (arena.node == node) {
+        long address = arena.allocate(units);
+        if (address != 0) {
+          allocatedBytes += units * UNIT;
+          return address;
+        }
+      }
+    }
+    Arena arena;
+    try {
+      arena = new Arena(node);
+    } catch (IOException | OutOfMemoryError e) {
+      fallbacks++;
+      return 0;
+    }
+    arenas.add(arena);
+    allocatedBytes += units * UNIT;
+    return arena.allocate(units);
+  }
+
+  /** Gives back a page if it was carved out of an arena, and returns whether it was. */
+  public synchronized boolean free(long address) {
+    Iterator<Arena> it = arenas.iterator();
+    while (it.hasNext()) {
+      Arena arena = it.next();
+      if (arena.contains(address)) {
+        allocatedBytes -= arena.free(address) * UNIT;
+        if (arena.isEmpty() && hasOtherArena(arena)) {
+          it.remove();
+          arena.release();
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Releases every arena. Pages carved out of them must not be used anymore. */
+  public synchronized void close() {
+    for (Arena arena : arenas) {
+      arena.release();
+    }
+    arenas.clear();
+    allocatedBytes = 0;
+  }
+
+  /** Pages asked for, including those that fell back to {@code malloc}. */
+  public synchronized long allocations() {
+    return allocations;
+  }
+
+  /** Pages that had to come from {@code malloc}. */
+  public synchronized long fallbacks() {
+    return fallbacks;
+  }
+
+  /** Bytes of the arenas' pages in use, rounded up to 4 KB per page. */
+  public synchronized long allocatedBytes() {
+    return allocatedBytes;
+  }
+
+  public synchronized int numArenas() {
+    return arenas.size();
+  }
+
+  /**
+   * How the arenas are backed by the kernel, read from {@code /proc/self/smaps}. This is more
+   * expensive than the other statistics, so it is meant for occasional reporting.
+   */
+  public ArenaPageStats pageStats() {
+    List<long[]> ranges = new ArrayList<>();
+    synchronized (this) {
+      for (Arena arena : arenas) {
+        ranges.add(new long[] {arena.base, arena.base + arena.size});
+      }
+    }
+    return ArenaPageStats.read(ranges);
+  }
+
+  @GuardedBy("this")
+  private boolean hasOtherArena(Arena arena) {
+    for (Arena other : arenas) {
+      if (other != arena && other.node == arena.node) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** The NUMA node of the CPU the current thread last ran on, or 0 if that is unknown. */
+  private int currentNode() {
+    if (cpuToNode.length == 0) {
+      return 0;
+    }
+    try {
+      String stat = new String(
+        Files.readAllBytes(new File("/proc/thread-self/stat").toPath()), StandardCharsets.UTF_8);
+      // The command name in parentheses may contain spaces; "processor" is the 39th field.
+      String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+      int cpu = Integer.parseInt(fields[36]);
+      return cpu < cpuToNode.length ? cpuToNode[cpu] : 0;
+    } catch (IOException | RuntimeException e) {
+      return 0;
+    }
+  }
+
+  private static int[] readCpuToNode() {
+    File[] nodes = new File("/sys/devices/system/node").listFiles(
+      (dir, name) -> name.matches("node\\d+"));
+    if (nodes == null || nodes.length < 2) {
+      return new int[0];
+    }
+    int[] cpuToNode = new int[0];
+    for (File node : nodes) {
+      int nodeId = Integer.parseInt(node.getName().substring(4));
+      String cpuList;
+      try {
+        cpuList = new String(Files.readAllBytes(new File(node, "cpulist").toPath()),
+          StandardCharsets.UTF_8).trim();
+      } catch (IOException e) {
+        continue;
+      }
+      // e.g. "0-7,16-23"
+      for (String range : cpuList.split(",")) {
+        if (range.isEmpty()) {
+          continue;
+        }
+        String[] bounds = range.split("-");
+        int first = Integer.parseInt(bounds[0]);
+        int last = Integer.parseInt(bounds[bounds.length - 1]);
+        if (last >= cpuToNode.length) {
+          cpuToNode = Arrays.copyOf(cpuToNode, last + 1);
+        }
+        for (int cpu = first; cpu <= last; cpu++) {
+          cpuToNode[cpu] = nodeId;
+        }
+      }
+    }
+    return cpuToNode;
+  }
+
+  /** One arena, guarded by the enclosing {@link OffHeapArenas}. */
+  private final class Arena {
+    final int node;
+    final long size = arenaSize;
+    final int numUnits = (int) (arenaSize / UNIT);
+    /** The memory to give back: a mapping of a hugetlbfs file, or a malloc'ed address. */
+    final MappedByteBuffer mapping;
+    final long mallocAddress;
+    final long base;
+    /** Units in use, and the length in units of each page by its first unit. */
+    final BitSet used = new BitSet(numUnits);
+    final int[] pageUnits = new int[numUnits];
+    int usedUnits = 0;
+
+    Arena(int node) throws IOException {
+      this.node = node;
+      if (hugePageDir != null) {
+        File file = File.createTempFile("spark-arena-", ".mem", hugePageDir);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+          raf.setLength(size);
+          mapping = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+          // The mapping keeps the memory; the name is not needed.
+          file.delete();
+        }
+        mallocAddress = 0;
+        base = Platform.getDirectBufferAddress(mapping);
+      } else {
+        mapping = null;
+        mallocAddress = Platform.allocateMemory(size + HUGE_PAGE);
+        base = (mallocAddress + HUGE_PAGE - 1) & -HUGE_PAGE;
+      }
+      if (numaAware) {
+        // First touch places the memory on this thread's node.
+        Platform.setMemory(base, (byte) 0, size);
+      }
+    }
+
+    long allocate(int units) {
+      int alignment = units >= HUGE_PAGE_UNITS ? HUGE_PAGE_UNITS : 1;
+      int start = used.nextClearBit(0);
+      while (true) {
+        start = (start + alignment - 1) / alignment * alignment;
+        if (start + units > numUnits) {
+          return 0;
+        }
+        int nextUsed = used.nextSetBit(start);
+        if (nextUsed < 0 || nextUsed >= start + units) {
+          break;
+        }
+        start = used.nextClearBit(nextUsed);
+      }
+      used.set(start, start + units);
+      pageUnits[start] = units;
+      usedUnits += units;
+      return base + start * UNIT;
+    }
+
+    boolean contains(long address) {
+      return address >= base && address < base + size;
+    }
+
+    /** Frees the page at {@code address} and returns its length in units. */
+    int free(long address) {
+      int start = (int) ((address - base) / UNIT);
+      int units = pageUnits[start];
+      assert units > 0 : "not the start of a page in use";
+      pageUnits[start] = 0;
+      used.clear(start, start + units);
+      usedUnits -= units;
+      return units;
+    }
+
+    boolean isEmpty() {
+      return usedUnits == 0;
+    }
+
+    void release() {
+      if (mapping != null) {
+        Platform.freeDirectBuffer(mapping);
+      } else {
+        Platform.freeMemory(mallocAddress);
+      }
+    }
+  }
+}
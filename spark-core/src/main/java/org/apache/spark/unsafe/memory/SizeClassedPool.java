@@ -0,0 +1,251 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.unsafe.memory;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches freed blocks of a {@link MemoryAllocator} by size class, so that allocating a block of a
+ * size that was freed recently reuses it instead of going to the JVM or to {@code malloc}.
+ *
+ * Sizes from 4 KB to 64 MB are rounded up to one of four classes per power of two, which wastes
+ * at most a fifth of a block. Smaller blocks are not pooled, rather than padded to 4 KB.
+ *
+ * Each thread keeps freed blocks in a cache of its own, up to {@code threadCacheBytes} and 16
+ * blocks per class, which it uses without any synchronization. Blocks that do not fit go to a
+ * depot shared by all threads, a lock-free stack per class holding up to {@code depotBytes}.
+ * Blocks that fit in neither are released.
+ *
+ * A thread's cache is only used by that thread. When a thread dies, its cache is moved to the
+ * depot by the next thread that starts using the pool, or by {@link #trim()}.
+ */
+abstract class SizeClassedPool<T> {
+
+  private static final int MIN_SHIFT = 12;
+  private static final int MAX_SHIFT = 26;
+  private static final int CLASSES_PER_DOUBLING = 4;
+  private static final int CLASS_SHIFT = 2;
+  static final int NUM_CLASSES = (MAX_SHIFT - MIN_SHIFT) * CLASSES_PER_DOUBLING + 1;
+
+  private static final int MAX_THREAD_CACHE_BLOCKS = 16;
+
+  private final long threadCacheBytes;
+  private final long maxDepotBytes;
+  private final ConcurrentLinkedDeque<T>[] depot;
+  private final AtomicLong depotBytes = new AtomicLong();
+  private final ConcurrentLinkedQueue<ThreadCache> threadCaches = new ConcurrentLinkedQueue<>();
+  private final ThreadLocal<ThreadCache> threadCache = ThreadLocal.withInitial(this::newCache);
+  private final MemoryPoolStats stats = new MemoryPoolStats();
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  SizeClassedPool(long threadCacheBytes, long maxDepotBytes) {
+    this.threadCacheBytes = threadCacheBytes;
+    this.maxDepotBytes = maxDepotBytes;
+    this.depot = new ConcurrentLinkedDeque[NUM_CLASSES];
+    for (int i = 0; i < NUM_CLASSES; i++) {
+      depot[i] = new ConcurrentLinkedDeque<>();
+    }
+  }
+
+  /** Releases a block the pool does not keep, e.g. frees its memory. */
+  protected abstract void release(T block);
+
+  /** Whether a cached block is gone already, e.g. because it was only weakly referenced. */
+  protected boolean isCleared(T block) {
+    return false;
+  }
+
+  /** The size class of blocks of {@code size} bytes, or -1 if such blocks are not pooled. */
+  static int sizeClass(long size) {
+    if (size < 1L << MIN_SHIFT || size > 1L << MAX_SHIFT) {
+      return -1;
+    }
+    if (size == 1L << MIN_SHIFT) {
+      return 0;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(size - 1);
+    int step = (int) ((size - 1) >>> (exponent - CLASS_SHIFT)) & (CLASSES_PER_DOUBLING - 1);
+    return ((exponent - MIN_SHIFT) << CLASS_SHIFT) + step + 1;
+  }
+
+  /** The size of the blocks of {@code sizeClass}, which fits every size of the class. */
+  static long classSize(int sizeClass) {
+    if (sizeClass == 0) {
+      return 1L << MIN_SHIFT;
+    }
+    int exponent = MIN_SHIFT + ((sizeClass - 1) >>> CLASS_SHIFT);
+    int step = (sizeClass - 1) & (CLASSES_PER_DOUBLING - 1);
+    return (1L << exponent) + ((long) (step + 1) << (exponent - CLASS_SHIFT));
+  }
+
+  MemoryPoolStats stats() {
+    return stats;
+  }
+
+  /** Takes a cached block of {@code sizeClass}, or returns null if there is none. */
+  T poll(int sizeClass) {
+    long size = classSize(sizeClass);
+    T block;
+    while ((block = threadCache.get().poll(sizeClass)) != null) {
+      stats.cachedBytes.add(-size);
+      if (!isCleared(block)) {
+        stats.threadCacheHits.increment();
+        return block;
+      }
+    }
+    while ((block = depot[sizeClass].pollFirst()) != null) {
+      depotBytes.addAndGet(-size);
+      stats.cachedBytes.add(-size);
+      if (!isCleared(block)) {
+        stats.depotHits.increment();
+        return block;
+      }
+    }
+    stats.misses.increment();
+    return null;
+  }
+
+  /** Caches a freed block of {@code sizeClass}, or releases it if the caches are full. */
+  void offer(int sizeClass, T block) {
+    long size = classSize(sizeClass);
+    if (!threadCache.get().offer(sizeClass, block, size)) {
+      offerToDepot(sizeClass, block, size);
+    }
+  }
+
+  /**
+   * Records that a block of {@code requested} bytes, of {@code sizeClass} or not pooled if that
+   * is -1, was handed out ({@code delta} 1) or given back ({@code delta} -1).
+   */
+  void recordInUse(int sizeClass, long requested, int delta) {
+    if (sizeClass < 0) {
+      if (delta > 0) {
+        stats.unpooled.increment();
+      }
+      return;
+    }
+    long size = classSize(sizeClass);
+    stats.inUseBytes.add(delta * size);
+    stats.slackBytes.add(delta * (size - requested));
+  }
+
+  /**
+   * Releases every block in the depot and in the caches of this thread and of dead threads. The
+   * caches of other live threads are left alone, as only their owners may touch them.
+   */
+  void trim() {
+    threadCache.get().drain();
+    reclaimDeadThreadCaches();
+    for (int i = 0; i < NUM_CLASSES; i++) {
+      long size = classSize(i);
+      T block;
+      while ((block = depot[i].pollFirst()) != null) {
+        depotBytes.addAndGet(-size);
+        stats.cachedBytes.add(-size);
+        releaseBlock(block);
+      }
+    }
+  }
+
+  private void offerToDepot(int sizeClass, T block, long size) {
+    if (depotBytes.addAndGet(size) <= maxDepotBytes) {
+      depot[sizeClass].offerFirst(block);
+      stats.cachedBytes.add(size);
+    } else {
+      depotBytes.addAndGet(-size);
+      releaseBlock(block);
+    }
+  }
+
+  private void releaseBlock(T block) {
+    stats.released.increment();
+    release(block);
+  }
+
+  private ThreadCache newCache() {
+    reclaimDeadThreadCaches();
+    ThreadCache cache = new ThreadCache();
+    threadCaches.add(cache);
+    return cache;
+  }
+
+  private void reclaimDeadThreadCaches() {
+    for (ThreadCache cache : threadCaches) {
+      // isAlive() returning false makes everything the dead thread did visible here, and only
+      // the thread that manages to remove the cache drains it.
+      if (!cache.owner.isAlive() && threadCaches.remove(cache)) {
+        cache.drain();
+      }
+    }
+  }
+
+  /** The blocks cached by one thread, touched only by that thread until it dies. */
+  private final class ThreadCache {
+    final Thread owner = Thread.currentThread();
+    final Object[][] blocks = new Object[NUM_CLASSES][];
+    final int[] counts = new int[NUM_CLASSES];
+    long bytes = 0;
+
+    @SuppressWarnings("unchecked")
+    T poll(int sizeClass) {
+      int count = counts[sizeClass];
+      if (count == 0) {
+        return null;
+      }
+      Object[] cached = blocks[sizeClass];
+      T block = (T) cached[--count];
+      cached[count] = null;
+      counts[sizeClass] = count;
+      bytes -= classSize(sizeClass);
+      return block;
+    }
+
+    boolean offer(int sizeClass, T block, long size) {
+      if (bytes + size > threadCacheBytes) {
+        return false;
+      }
+      Object[] cached = blocks[sizeClass];
+      if (cached == null) {
+        cached = blocks[sizeClass] = new Object[MAX_THREAD_CACHE_BLOCKS];
+      }
+      int count = counts[sizeClass];
+      if (count == cached.length) {
+        return false;
+      }
+      cached[count] = block;
+      counts[sizeClass] = count + 1;
+      bytes += size;
+      stats.cachedBytes.add(size);
+      return true;
+    }
+
+    /** Moves every cached block to the depot, releasing what does not fit. */
+    void drain() {
+      for (int i = 0; i < NUM_CLASSES; i++) {
+        long size = classSize(i);
+        T block;
+        while ((block = poll(i)) != null) {
+          stats.cachedBytes.add(-size);
+          offerToDepot(i, block, size);
+        }
+      }
+    }
+  }
+}
@@ -17,16 +17,80 @@
 
 package org.apache.spark.unsafe.memory;
 
+import com.google.common.annotations.VisibleForTesting;
 import org.apache.spark.unsafe.Platform;
 
+import javax.annotation.Nullable;
+
 /**
  * A simple {@link MemoryAllocator} that uses {@code Unsafe} to allocate off-heap memory.
+ *
+ * Freed blocks of 4KB to 64MB are kept for reuse in a {@link SizeClassedPool}. The memory they
+ * hold is not accounted for by any memory manager, so the pool's limits should stay small next to
+ * {@code spark.memory.offHeap.size}.
+ *
+ * With {@code spark.memory.offHeap.arenas.enabled}, blocks are carved out of
+ * {@link OffHeapArenas} backed by huge pages rather than allocated one by one.
  */
 public class UnsafeMemoryAllocator implements MemoryAllocator {
 
+  private final SizeClassedPool<Long> pool;
+
+  /** Where blocks are carved out of, or null to allocate each with {@code malloc}. */
+  @Nullable
+  private final OffHeapArenas arenas;
+
+  public UnsafeMemoryAllocator() {
+    this(MemoryAllocator.POOL_THREAD_CACHE_BYTES, MemoryAllocator.POOL_DEPOT_BYTES,
+      OffHeapArenas.fromSystemProperties());
+  }
+
+  @VisibleForTesting
+  UnsafeMemoryAllocator(long threadCacheBytes, long depotBytes) {
+    this(threadCacheBytes, depotBytes, null);
+  }
+
+  public UnsafeMemoryAllocator(
+      long threadCacheBytes,
+      long depotBytes,
+      @Nullable OffHeapArenas arenas) {
+    this.arenas = arenas;
+    this.pool = new SizeClassedPool<Long>(threadCacheBytes, depotBytes) {
+      @Override
+      protected void release(Long address) {
+        freeMemory(address);
+      }
+    };
+  }
+
+  /** The arenas blocks are carved out of, or null if there are none. */
+  @Nullable
+  public OffHeapArenas arenas() {
+    return arenas;
+  }
+
+  /** Statistics of the reuse of freed blocks. */
+  public MemoryPoolStats poolStats() {
+    return pool.stats();
+  }
+
+  /** Frees the blocks cached for reuse, except those cached by other live threads. */
+  public void trimPool() {
+    pool.trim();
+  }
+
   @Override
   public MemoryBlock allocate(long size) throws OutOfMemoryError {
-    long address = Platform.allocateMemory(size);
+    int sizeClass = SizeClassedPool.sizeClass(size);
+    long address;
+    if (sizeClass >= 0) {
+      Long cached = pool.poll(sizeClass);
+      address = cached != null
+        ? cached : allocateMemory(SizeClassedPool.classSize(sizeClass));
+    } else {
+      address = allocateMemory(size);
+    }
+    pool.recordInUse(sizeClass, size, 1);
     MemoryBlock memory = new MemoryBlock(null, address, size);
     if (MemoryAllocator.MEMORY_DEBUG_FILL_ENABLED) {
       memory.fill(MemoryAllocator.MEMORY_DEBUG_FILL_CLEAN_VALUE);
@@ -47,11 +111,33 @@ public class UnsafeMemoryAllocator implements MemoryAllocator {
     if (MemoryAllocator.MEMORY_DEBUG_FILL_ENABLED) {
       memory.fill(MemoryAllocator.MEMORY_DEBUG_FILL_FREED_VALUE);
     }
-    Platform.freeMemory(memory.offset);
+    int sizeClass = SizeClassedPool.sizeClass(memory.size());
+    pool.recordInUse(sizeClass, memory.size(), -1);
+    if (sizeClass >= 0) {
+      pool.offer(sizeClass, memory.offset);
+    } else {
+      freeMemory(memory.offset);
+    }
     // As an additional layer of defense against use-after-free bugs, we mutate the
     // MemoryBlock to reset its pointer.
     memory.offset = 0;
     // Mark the page as freed (so we can detect double-frees).
     memory.pageNumber = MemoryBlock.FREED_IN_ALLOCATOR_PAGE_NUMBER;
   }
+
+  private long allocateMemory(long size) {
+    if (arenas != null) {
+      long address = arenas.allocate(size);
+      if (address != 0) {
+        return address;
+      }
+    }
+    return Platform.allocateMemory(size);
+  }
+
+  private void freeMemory(long address) {
+    if (arenas == null || !arenas.free(address)) {
+      Platform.freeMemory(address);
+    }
+  }
 }
@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.unsafe.types;
+
+import java.nio.ByteOrder;
+
+import org.apache.spark.unsafe.Platform;
+import org.apache.spark.unsafe.array.ByteArrayMethods;
+
+/**
+ * Word-at-a-time (SWAR, SIMD within a register) operations on the bytes of {@link UTF8String}s,
+ * which look at 8 bytes with a few long operations instead of a loop over the bytes. Words are
+ * read at any offset, so on platforms without unaligned access every operation goes byte by
+ * byte.
+ */
+final class ByteSwar {
+
+  private static final boolean UNALIGNED = Platform.unaligned();
+  private static final boolean IS_LITTLE_ENDIAN =
+      ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+  private static final long ONES = 0x0101010101010101L;
+  private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+  private static final long HIGH_BITS = 0x8080808080808080L;
+
+  private ByteSwar() {
+  }
+
+  /** The 8 bytes at the given address, the first of them in the lowest byte of the word. */
+  private static long getWord(Object base, long offset) {
+    long word = Platform.getLong(base, offset);
+    return IS_LITTLE_ENDIAN ? word : Long.reverseBytes(word);
+  }
+
+  private static long broadcast(byte b) {
+    return (b & 0xFFL) * ONES;
+  }
+
+  /**
+   * The high bit of each byte of `word` that is zero, and nothing else. Unlike the usual
+   * `(word - ONES) & ~word & HIGH_BITS` this has no false positives after the first zero byte,
+   * so all bits set can be taken as matches.
+   */
+  private static long zeroBytes(long word) {
+    return ~(((word & LOW_BITS) + LOW_BITS) | word | LOW_BITS);
+  }
+
+  /** The position in the word of the lowest byte that has a bit set in `mask`. */
+  private static int firstByte(long mask) {
+    return Long.numberOfTrailingZeros(mask) >>> 3;
+  }
+
+  /** Whether all `numBytes` bytes at the given address are below 0x80. */
+  static boolean isAscii(Object base, long offset, int numBytes) {
+    int i = 0;
+    if (UNALIGNED) {
+      for (; i + 8 <= numBytes; i += 8) {
+        if ((Platform.getLong(base, offset + i) & HIGH_BITS) != 0) {
+          return false;
+        }
+      }
+    }
+    for (; i < numBytes; i++) {
+      if (Platform.getByte(base, offset + i) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** The position of the first `b` in the bytes [from, to) at the given address, or -1. */
+  static int indexOf(Object base, long offset, int from, int to, byte b) {
+    int i = from;
+    if (UNALIGNED) {
+      long pattern = broadcast(b);
+      for (; i + 8 <= to; i += 8) {
+        long matches = zeroBytes(getWord(base, offset + i) ^ pattern);
+        if (matches != 0) {
+          return i + firstByte(matches);
+        }
+      }
+    }
+    for (; i < to; i++) {
+      if (Platform.getByte(base, offset + i) == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * The position of the first occurrence of the `length` bytes at (sbase, soffset) that lies
+   * within the bytes [from, to) at (base, offset), or -1. The positions whose first and last bytes
+   * match those of the pattern are found 8 at a time, and only they are compared in full, which
+   * skips almost all positions of text that is not made of a few repeated bytes.
+   */
+  static int indexOf(
+      Object base, long offset, int from, int to, Object sbase, long soffset, int length) {
+    assert (length > 0);
+    if (length == 1) {
+      return indexOf(base, offset, from, to, Platform.getByte(sbase, soffset));
+    }
+    final byte first = Platform.getByte(sbase, soffset);
+    final byte last = Platform.getByte(sbase, soffset + length - 1);
+    final int lastStart = to - length;
+    int i = from;
+    if (UNALIGNED) {
+      long firstPattern = broadcast(first);
+      long lastPattern = broadcast(last);
+      // The word of last bytes ends at i + length + 7, which must not be past `to`.
+      for (; i + 7 <= lastStart; i += 8) {
+        long candidates = zeroBytes(getWord(base, offset + i) ^ firstPattern) &
+          zeroBytes(getWord(base, offset + i + length - 1) ^ lastPattern);
+        while (candidates != 0) {
+          int pos = i + firstByte(candidates);
+          if (ByteArrayMethods.arrayEquals(base, offset + pos, sbase, soffset, length)) {
+            return pos;
+          }
+          candidates &= candidates - 1;
+        }
+      }
+    }
+    for (; i <= lastStart; i++) {
+      if (Platform.getByte(base, offset + i) == first &&
+          ByteArrayMethods.arrayEquals(base, offset + i, sbase, soffset, length)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** The number of bytes equal to `b` at the start of the `numBytes` bytes at the address. */
+  static int countLeading(Object base, long offset, int numBytes, byte b) {
+    int i = 0;
+    if (UNALIGNED) {
+      long pattern = broadcast(b);
+      for (; i + 8 <= numBytes; i += 8) {
+        long diff = getWord(base, offset + i) ^ pattern;
+        if (diff != 0) {
+          return i + firstByte(diff);
+        }
+      }
+    }
+    while (i < numBytes && Platform.getByte(base, offset + i) == b) {
+      i++;
+    }
+    return i;
+  }
+
+  /** The number of bytes equal to `b` at the end of the `numBytes` bytes at the address. */
+  static int countTrailing(Object base, long offset, int numBytes, byte b) {
+    int end = numBytes;
+    if (UNALIGNED) {
+      long pattern = broadcast(b);
+      for (; end >= 8; end -= 8) {
+        long diff = getWord(base, offset + end - 8) ^ pattern;
+        if (diff != 0) {
+          // The last bytes are the highest ones of the word.
+          return numBytes - end + (Long.numberOfLeadingZeros(diff) >>> 3);
+        }
+      }
+    }
+    while (end > 0 && Platform.getByte(base, offset + end - 1) == b) {
+      end--;
+    }
+    return numBytes - end;
+  }
+
+  /** Copies `numBytes` ASCII bytes from the given address to `target`, with a-z made upper case. */
+  static void toUpperCaseAscii(Object base, long offset, byte[] target, int numBytes) {
+    flipCaseAscii(base, offset, target, numBytes, (byte) 'a', (byte) 'z');
+  }
+
+  /** Copies `numBytes` ASCII bytes from the given address to `target`, with A-Z made lower case. */
+  static void toLowerCaseAscii(Object base, long offset, byte[] target, int numBytes) {
+    flipCaseAscii(base, offset, target, numBytes, (byte) 'A', (byte) 'Z');
+  }
+
+  /**
+   * Copies the bytes, flipping the case bit 0x20 of those in [lo, hi]. Adding 0x80 - lo to a byte
+   * below 0x80 sets its high bit if it is at least `lo`, without a carry into the next byte, and
+   * likewise for hi + 1, so a byte is in the range if the first sum has the high bit and the
+   * second has not.
+   */
+  private static void flipCaseAscii(
+      Object base, long offset, byte[] target, int numBytes, byte lo, byte hi) {
+    int i = 0;
+    if (UNALIGNED) {
+      long atLeastLo = (0x80 - lo) * ONES;
+      long aboveHi = (0x80 - hi - 1) * ONES;
+      for (; i + 8 <= numBytes; i += 8) {
+        long word = Platform.getLong(base, offset + i);
+        long inRange = (word + atLeastLo) & ~(word + aboveHi) & HIGH_BITS;
+        Platform.putLong(target, Platform.BYTE_ARRAY_OFFSET + i, word ^ (inRange >>> 2));
+      }
+    }
+    for (; i < numBytes; i++) {
+      byte b = Platform.getByte(base, offset + i);
+      target[i] = b >= lo && b <= hi ? (byte) (b ^ 0x20) : b;
+    }
+  }
+}
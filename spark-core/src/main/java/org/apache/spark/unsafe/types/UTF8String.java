@@ -53,6 +53,13 @@ public final class UTF8String implements Comparable<UTF8String>, Externalizable,
   private long offset;
   private int numBytes;
 
+  // Whether all bytes are ASCII, see isAscii(). Reset whenever the bytes change.
+  private byte asciiState = ASCII_UNKNOWN;
+
+  private static final byte ASCII_UNKNOWN = 0;
+  private static final byte ASCII = 1;
+  private static final byte NOT_ASCII = 2;
+
   public Object getBaseObject() { return base; }
   public long getBaseOffset() { return offset; }
 
@@ -129,6 +136,17 @@ public final class UTF8String implements Comparable<UTF8String>, Externalizable,
     this(null, 0, 0);
   }
 
+  /**
+   * Points this string at other bytes. Only for views that are reused on purpose, such as the
+   * tokens of {@link UTF8StringTokenizer}, since everything else takes strings to be immutable.
+   */
+  void pointTo(Object base, long offset, int numBytes) {
+    this.base = base;
+    this.offset = offset;
+    this.numBytes = numBytes;
+    this.asciiState = ASCII_UNKNOWN;
+  }
+
   /**
    * Writes the content of this string into a memory address, identified by an object and an offset.
    * The target memory address must already been allocated, and have enough space to hold all the
@@ -311,6 +329,18 @@ public final class UTF8String implements Comparable<UTF8String>, Externalizable,
     return substring(start, end);
   }
 
+  /**
+   * Returns whether all bytes of this string are ASCII, i.e. every character is a single byte.
+   * Computed 8 bytes at a time on first use and cached, since the ASCII fast paths of search,
+   * case conversion and trimming ask for it on every call.
+   */
+  public boolean isAscii() {
+    if (asciiState == ASCII_UNKNOWN) {
+      asciiState = ByteSwar.isAscii(base, offset, numBytes) ? ASCII : NOT_ASCII;
+    }
+    return asciiState == ASCII;
+  }
+
   /**
    * Returns whether this contains `substring` or not.
    */
@@ -318,14 +348,7 @@ public final class UTF8String implements Comparable<UTF8String>, Externalizable,
     if (substring.numBytes == 0) {
       return true;
     }
-
-    byte first = substring.getByte(0);
-    for (int i = 0; i <= numBytes - substring.numBytes; i++) {
-      if (getByte(i) == first && matchAt(substring, i)) {
-        return true;
-      }
-    }
-    return false;
+    return find(substring, 0) >= 0;
   }
 
   /**
@@ -357,23 +380,15 @@ public final class UTF8String implements Comparable<UTF8String>, Externalizable,
     if (numBytes == 0) {
       return EMPTY_UTF8;
     }
+    if (!isAscii()) {
+      return toUpperCaseSlow();
+    }
 
     byte[] bytes = new byte[numBytes];
-    bytes[0] = (byte) Character.toTitleCase(getByte(0));
-    for (int i = 0; i < numBytes; i++) {
-      byte b = getByte(i);
-      if (numBytesForFirstByte(b) != 1) {
-        // fallback
-        return toUpperCaseSlow();
-      }
-      int upper = Character.toUpperCase((int) b);
-      if (upper > 127) {
-        // fallback
-        return toUpperCaseSlow();
-      }
-      bytes[i] = (byte) upper;
-    }
-    return fromBytes(bytes);
+    ByteSwar.toUpperCaseAscii(base, offset, bytes, numBytes);
+    UTF8String result = fromBytes(bytes);
+    result.asciiState = ASCII;
+    return result;
   }
 
   private UTF8String toUpperCaseSlow() {
@@ -387,23 +402,15 @@ public final class UTF8String implements Comparable<UTF8String>, Externalizable,
     if (numBytes == 0) {
       return EMPTY_UTF8;
     }
+    if (!isAscii()) {
+      return toLowerCaseSlow();
+    }
 
     byte[] bytes = new byte[numBytes];
-    bytes[0] = (byte) Character.toTitleCase(getByte(0));
-    for (int i = 0; i < numBytes; i++) {
-      byte b = getByte(i);
-      if (numBytesForFirstByte(b) != 1) {
-        // fallback
-        return toLowerCaseSlow();
-      }
-      int lower = Character.toLowerCase((int) b);
-      if (lower > 127) {
-        // fallback
-        return toLowerCaseSlow();
-      }
-      bytes[i] = (byte) lower;
-    }
-    return fromBytes(bytes);
+    ByteSwar.toLowerCaseAscii(base, offset, bytes, numBytes);
+    UTF8String result = fromBytes(bytes);
+    result.asciiState = ASCII;
+    return result;
   }
 
   private UTF8String toLowerCaseSlow() {
@@ -496,16 +503,14 @@ public final class UTF8String implements Comparable<UTF8String>, Externalizable,
   }
 
   public UTF8String trim() {
-    int s = 0;
-    // skip all of the space (0x20) in the left side
-    while (s < this.numBytes && getByte(s) == 0x20) s++;
+    // skip all of the space (0x20) in the left side, 8 bytes at a time
+    int s = ByteSwar.countLeading(base, offset, numBytes, (byte) 0x20);
     if (s == this.numBytes) {
       // empty string
       return EMPTY_UTF8;
     }
     // skip all of the space (0x20) in the right side
-    int e = this.numBytes - 1;
-    while (e > s && getByte(e) == 0x20) e--;
+    int e = this.numBytes - 1 - ByteSwar.countTrailing(base, offset + s, numBytes - s, (byte) 0x20);
     return copyUTF8String(s, e);
   }
 
@@ -525,9 +530,8 @@ public final class UTF8String implements Comparable<UTF8String>, Externalizable,
   }
 
   public UTF8String trimLeft() {
-    int s = 0;
     // skip all of the space (0x20) in the left side
-    while (s < this.numBytes && getByte(s) == 0x20) s++;
+    int s = ByteSwar.countLeading(base, offset, numBytes, (byte) 0x20);
     if (s == this.numBytes) {
       // empty string
       return EMPTY_UTF8;
@@ -573,9 +577,8 @@ public final class UTF8String implements Comparable<UTF8String>, Externalizable,
   }
 
   public UTF8String trimRight() {
-    int e = numBytes - 1;
     // skip all of the space (0x20) in the right side
-    while (e >= 0 && getByte(e) == 0x20) e--;
+    int e = numBytes - 1 - ByteSwar.countTrailing(base, offset, numBytes, (byte) 0x20);
 
     if (e < 0) {
       // empty string
@@ -677,6 +680,10 @@ public final class UTF8String implements Comparable<UTF8String>, Externalizable,
     if (v.numBytes() == 0) {
       return 0;
     }
+    if (isAscii()) {
+      // Positions in characters are positions in bytes.
+      return find(v, Math.max(0, Math.min(start, numBytes)));
+    }
 
     // locate to the start position.
     int i = 0; // position in byte
@@ -705,13 +712,7 @@ public final class UTF8String implements Comparable<UTF8String>, Externalizable,
    */
   private int find(UTF8String str, int start) {
     assert (str.numBytes > 0);
-    while (start <= numBytes - str.numBytes) {
-      if (ByteArrayMethods.arrayEquals(base, offset + start, str.base, str.offset, str.numBytes)) {
-        return start;
-      }
-      start += 1;
-    }
-    return -1;
+    return ByteSwar.indexOf(base, offset, start, numBytes, str.base, str.offset, str.numBytes);
   }
 
   /**
@@ -923,6 +924,10 @@ public final class UTF8String implements Comparable<UTF8String>, Externalizable,
     return fromBytes(result);
   }
 
+  /**
+   * Splits this string around the regular expression `pattern`, copying every token. To split
+   * around a literal delimiter without allocating, see {@link #tokenize(UTF8String)}.
+   */
   public UTF8String[] split(UTF8String pattern, int limit) {
     String[] splits = toString().split(pattern.toString(), limit);
     UTF8String[] res = new UTF8String[splits.length];
@@ -932,6 +937,16 @@ public final class UTF8String implements Comparable<UTF8String>, Externalizable,
     return res;
   }
 
+  /**
+   * Returns a tokenizer over the tokens of this string between occurrences of the literal
+   * `delimiter`, which are views of this string's bytes rather than copies.
+   */
+  public UTF8StringTokenizer tokenize(UTF8String delimiter) {
+    UTF8StringTokenizer tokenizer = new UTF8StringTokenizer(delimiter);
+    tokenizer.reset(this);
+    return tokenizer;
+  }
+
   public UTF8String replace(UTF8String search, UTF8String replace) {
     if (EMPTY_UTF8.equals(search)) {
       return this;
@@ -1364,6 +1379,7 @@ public final class UTF8String implements Comparable<UTF8String>, Externalizable,
   }
 
   public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+    asciiState = ASCII_UNKNOWN;
     offset = BYTE_ARRAY_OFFSET;
     numBytes = in.readInt();
     base = new byte[numBytes];
@@ -1379,6 +1395,7 @@ public final class UTF8String implements Comparable<UTF8String>, Externalizable,
 
   @Override
   public void read(Kryo kryo, Input in) {
+    this.asciiState = ASCII_UNKNOWN;
     this.offset = BYTE_ARRAY_OFFSET;
     this.numBytes = in.readInt();
     this.base = new byte[numBytes];
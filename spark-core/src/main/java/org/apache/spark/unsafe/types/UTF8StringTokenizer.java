@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.unsafe.types;
+
+import org.apache.spark.unsafe.Platform;
+
+/**
+ * Splits {@link UTF8String}s around a literal delimiter of one or more bytes without allocating.
+ * Tokens are not copied: {@link #token()} is a single view that is moved over the input's bytes
+ * by each {@link #next()}, so it must be copied (see {@link UTF8String#copy()}) to be kept. One
+ * tokenizer can be {@link #reset} to split many inputs, e.g. the lines of a file:
+ *
+ * <pre>
+ *   UTF8StringTokenizer words = new UTF8StringTokenizer(UTF8String.fromString(" "));
+ *   for (UTF8String line : lines) {
+ *     words.reset(line);
+ *     while (words.next()) {
+ *       count(words.token());
+ *     }
+ *   }
+ * </pre>
+ *
+ * Unlike {@link UTF8String#split(UTF8String, int)} the delimiter is not a regular expression and
+ * empty tokens are kept, including trailing ones, so n delimiters always give n + 1 tokens.
+ */
+public final class UTF8StringTokenizer {
+
+  private final Object delimiterBase;
+  private final long delimiterOffset;
+  private final int delimiterLength;
+  private final byte delimiterByte;
+
+  private final UTF8String token = UTF8String.fromBytes(ByteArray.EMPTY_BYTE);
+
+  private Object base;
+  private long offset;
+  private int numBytes;
+  // The start of the next token, or -1 once the last token has been returned.
+  private int position = -1;
+  // The number of tokens left before the rest of the input is returned as one, or -1 for no limit.
+  private int remaining;
+
+  public UTF8StringTokenizer(UTF8String delimiter) {
+    if (delimiter.numBytes() == 0) {
+      throw new IllegalArgumentException("The delimiter must not be empty");
+    }
+    this.delimiterBase = delimiter.getBaseObject();
+    this.delimiterOffset = delimiter.getBaseOffset();
+    this.delimiterLength = delimiter.numBytes();
+    this.delimiterByte = Platform.getByte(delimiterBase, delimiterOffset);
+  }
+
+  /** Starts splitting `input`, which must not change until its last token has been read. */
+  public UTF8StringTokenizer reset(UTF8String input) {
+    return reset(input, -1);
+  }
+
+  /**
+   * Starts splitting `input` into at most `limit` tokens, the last of which holds the rest of the
+   * input, as with the limit of {@link String#split(String, int)}. A limit of 0 or less means no
+   * limit.
+   */
+  public UTF8StringTokenizer reset(UTF8String input, int limit) {
+    this.base = input.getBaseObject();
+    this.offset = input.getBaseOffset();
+    this.numBytes = input.numBytes();
+    this.position = 0;
+    this.remaining = limit > 0 ? limit : -1;
+    return this;
+  }
+
+  /**
+   * Moves {@link #token()} to the next token, and returns false if there is none. The input
+   * must have been given to {@link #reset} first.
+   */
+  public boolean next() {
+    if (position < 0) {
+      return false;
+    }
+    int end = -1;
+    if (remaining != 1) {
+      end = delimiterLength == 1
+        ? ByteSwar.indexOf(base, offset, position, numBytes, delimiterByte)
+        : ByteSwar.indexOf(base, offset, position, numBytes,
+            delimiterBase, delimiterOffset, delimiterLength);
+    }
+    if (remaining > 0) {
+      remaining--;
+    }
+    if (end < 0) {
+      token.pointTo(base, offset + position, numBytes - position);
+      position = -1;
+    } else {
+      token.pointTo(base, offset + position, end - position);
+      position = end + delimiterLength;
+    }
+    return true;
+  }
+
+  /**
+   * The token found by the last {@link #next()}, a view of the input that is reused for every
+   * token.
+   */
+  public UTF8String token() {
+    return token;
+  }
+}
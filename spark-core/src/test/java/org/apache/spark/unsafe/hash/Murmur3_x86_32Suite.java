@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.unsafe.hash;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.spark.unsafe.Platform;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class Murmur3_x86_32Suite {
+
+  private static final int SEED = 42;
+  private static final int NUM_ROWS = 1000;
+
+  private final Random random = new Random(7);
+
+  @Test
+  public void batchesOfIntsMatchSingleValues() {
+    int[] values = new int[NUM_ROWS + 3];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = random.nextInt();
+    }
+    int[] hashes = new int[NUM_ROWS];
+    Arrays.fill(hashes, SEED);
+    Murmur3_x86_32.hashInts(values, 3, hashes, NUM_ROWS);
+    for (int i = 0; i < NUM_ROWS; i++) {
+      assertEquals(Murmur3_x86_32.hashInt(values[i + 3], SEED), hashes[i]);
+    }
+
+    int[] fromPage = new int[NUM_ROWS];
+    Arrays.fill(fromPage, SEED);
+    Murmur3_x86_32.hashUnsafeInts(values, Platform.INT_ARRAY_OFFSET + 12, fromPage, NUM_ROWS);
+    assertArrayEquals(hashes, fromPage);
+  }
+
+  @Test
+  public void batchesOfLongsChainHashesAcrossColumns() {
+    long[] first = new long[NUM_ROWS];
+    long[] second = new long[NUM_ROWS];
+    for (int i = 0; i < NUM_ROWS; i++) {
+      first[i] = random.nextLong();
+      second[i] = random.nextLong();
+    }
+    int[] hashes = new int[NUM_ROWS];
+    Arrays.fill(hashes, SEED);
+    Murmur3_x86_32.hashLongs(first, 0, hashes, NUM_ROWS);
+    Murmur3_x86_32.hashUnsafeLongs(second, Platform.LONG_ARRAY_OFFSET, hashes, NUM_ROWS);
+    for (int i = 0; i < NUM_ROWS; i++) {
+      int expected = Murmur3_x86_32.hashLong(second[i], Murmur3_x86_32.hashLong(first[i], SEED));
+      assertEquals(expected, hashes[i]);
+    }
+  }
+
+  @Test
+  public void batchesOfByteRegions() {
+    byte[] page = new byte[4096];
+    long[] offsets = new long[NUM_ROWS];
+    int[] lengths = new int[NUM_ROWS];
+    int[] hashes = new int[NUM_ROWS];
+    for (int i = 0; i < NUM_ROWS; i++) {
+      byte[] row = ("row-" + i).getBytes(StandardCharsets.UTF_8);
+      int start = random.nextInt(page.length - row.length);
+      System.arraycopy(row, 0, page, start, row.length);
+      offsets[i] = Platform.BYTE_ARRAY_OFFSET + start;
+      lengths[i] = row.length;
+      hashes[i] = i;
+    }
+    int[] expected = new int[NUM_ROWS];
+    for (int i = 0; i < NUM_ROWS; i++) {
+      expected[i] = Murmur3_x86_32.hashUnsafeBytes2(page, offsets[i], lengths[i], i);
+    }
+    Murmur3_x86_32.hashUnsafeBytes2(page, offsets, lengths, hashes, NUM_ROWS);
+    assertArrayEquals(expected, hashes);
+  }
+}
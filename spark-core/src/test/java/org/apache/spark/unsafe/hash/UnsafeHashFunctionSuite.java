@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.unsafe.hash;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.apache.spark.unsafe.Platform;
+import org.apache.spark.unsafe.array.LongArray;
+import org.apache.spark.unsafe.memory.MemoryBlock;
+import org.apache.spark.unsafe.types.UTF8String;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class UnsafeHashFunctionSuite {
+
+  private static final long SEED = 42;
+
+  // Hashes of the first LENGTHS[i] bytes of input() by the reference C implementations.
+  private static final int[] LENGTHS =
+    {0, 1, 3, 4, 7, 8, 9, 15, 16, 17, 31, 32, 33, 47, 48, 49, 63, 64, 100, 199};
+  private static final long[] XXH64_HASHES = {
+    -7444071767201028348L, -2707323769083221954L, -6929980721426455356L, -2107308798017991369L,
+    -6159549576538757013L, 1868127502227284328L, -8728555242048693368L, -4709990685711922048L,
+    61925762387120022L, -7708555401071276924L, -4969374290967312298L, 8723431806716874651L,
+    -4597324593162312910L, -7450254535828692018L, 12311711219030171L, -4270816653545139351L,
+    -4143289598161502048L, 6422503185678809186L, -8014914948772484517L, 6580145988517825479L};
+  private static final long[] WYHASH_HASHES = {
+    8214933296199428989L, 3576723292574070815L, 3844571708289807011L, -3746715832031814383L,
+    -2283596537259541603L, -2553103508620319689L, -7674643505112177341L, 2773378724771622384L,
+    3711313833271812890L, 3365728962539559002L, 1755413143259227538L, -2431724247003771787L,
+    -2157597675893957277L, -5352772732481108065L, 728076528236607203L, -6611236767129152615L,
+    -756595636069016213L, 799519214582129423L, -3668263839654720126L, 326638264913118996L};
+
+  private static byte[] input() {
+    byte[] bytes = new byte[200];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) (i * 31 + 7);
+    }
+    return bytes;
+  }
+
+  @Test
+  public void matchesReferenceImplementations() {
+    byte[] bytes = input();
+    for (int i = 0; i < LENGTHS.length; i++) {
+      assertEquals(XXH64_HASHES[i],
+        XXH64.hashUnsafeBytes(bytes, Platform.BYTE_ARRAY_OFFSET, LENGTHS[i], SEED));
+      assertEquals(WYHASH_HASHES[i],
+        WyHash.hashUnsafeBytes(bytes, Platform.BYTE_ARRAY_OFFSET, LENGTHS[i], SEED));
+    }
+    // The well-known hash of the empty input with seed 0.
+    assertEquals(0xEF46DB3751D8E999L,
+      XXH64.hashUnsafeBytes(bytes, Platform.BYTE_ARRAY_OFFSET, 0, 0));
+  }
+
+  @Test
+  public void primitivesHashLikeTheirBytes() {
+    Random random = new Random(1);
+    for (int i = 0; i < 100; i++) {
+      long value = random.nextLong();
+      long[] word = {value};
+      assertEquals(XXH64.hashUnsafeBytes(word, Platform.LONG_ARRAY_OFFSET, 8, SEED),
+        XXH64.hashLong(value, SEED));
+      assertEquals(WyHash.hashUnsafeBytes(word, Platform.LONG_ARRAY_OFFSET, 8, SEED),
+        WyHash.hashLong(value, SEED));
+      int[] half = {(int) value};
+      assertEquals(XXH64.hashUnsafeBytes(half, Platform.INT_ARRAY_OFFSET, 4, SEED),
+        XXH64.hashInt((int) value, SEED));
+    }
+  }
+
+  @Test
+  public void unsignedMultiplyHigh() {
+    Random random = new Random(2);
+    BigInteger mask = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+    for (int i = 0; i < 1000; i++) {
+      long a = i == 0 ? -1L : random.nextLong();
+      long b = i == 0 ? -1L : random.nextLong();
+      long expected = new BigInteger(Long.toUnsignedString(a))
+        .multiply(new BigInteger(Long.toUnsignedString(b))).shiftRight(64).and(mask).longValue();
+      assertEquals(expected, WyHash.unsignedMultiplyHigh(a, b));
+    }
+  }
+
+  @Test
+  public void hashesStringsAndLongArrays() {
+    UTF8String string = UTF8String.fromString("hello, world");
+    for (UnsafeHashFunction function : new UnsafeHashFunction[] {
+        UnsafeHashFunction.MURMUR3_32, UnsafeHashFunction.XXHASH64, UnsafeHashFunction.WYHASH}) {
+      byte[] bytes = string.getBytes();
+      assertEquals(function.hashUnsafeBytes(bytes, Platform.BYTE_ARRAY_OFFSET, bytes.length),
+        function.hash(string));
+
+      long[] longs = {1L, 2L, 3L};
+      LongArray array = new LongArray(MemoryBlock.fromLongArray(longs));
+      assertEquals(function.hashUnsafeBytes(longs, Platform.LONG_ARRAY_OFFSET, 24),
+        function.hash(array));
+    }
+    long[] word = {7L};
+    assertEquals(Murmur3_x86_32.hashUnsafeWords(word, Platform.LONG_ARRAY_OFFSET, 8, 42),
+      UnsafeHashFunction.MURMUR3_32.hashUnsafeBytes(word, Platform.LONG_ARRAY_OFFSET, 8));
+  }
+}
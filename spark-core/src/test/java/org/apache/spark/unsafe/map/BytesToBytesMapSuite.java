@@ -0,0 +1,497 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.unsafe.map;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.memory.TaskMemoryManager;
+import org.apache.spark.memory.TestMemoryManager;
+import org.apache.spark.unsafe.Platform;
+import org.apache.spark.unsafe.hash.UnsafeHashFunction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class BytesToBytesMapSuite {
+
+  private static final long PAGE_SIZE_BYTES = 1L << 20;
+
+  private TestMemoryManager memoryManager;
+  private TaskMemoryManager taskMemoryManager;
+
+  @Before
+  public void setup() {
+    memoryManager = new TestMemoryManager(
+      new SparkConf().set("spark.memory.offHeap.enabled", "false"));
+    taskMemoryManager = new TaskMemoryManager(memoryManager, 0);
+  }
+
+  @After
+  public void tearDown() {
+    assertEquals(0L, taskMemoryManager.cleanUpAllAllocatedMemory());
+  }
+
+  private static long[] word(long value) {
+    return new long[] { value };
+  }
+
+  private static long valueOf(BytesToBytesMap.Location loc) {
+    return Platform.getLong(loc.getValueBase(), loc.getValueOffset());
+  }
+
+  private static void runInParallel(int numThreads, final Callable<Void> task) throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<Void>> futures = new ArrayList<>();
+      for (int i = 0; i < numThreads; i++) {
+        futures.add(pool.submit(task));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void concurrentBuildStoresEachKeyOnce() throws Exception {
+    final int numKeys = 20000;
+    // A small initial capacity makes the writers resize the table many times.
+    final BytesToBytesMap map = new BytesToBytesMap(taskMemoryManager, 64, PAGE_SIZE_BYTES);
+    final BytesToBytesMap.ConcurrentBuild build = map.beginConcurrentBuild();
+    try {
+      runInParallel(4, new Callable<Void>() {
+        @Override
+        public Void call() {
+          BytesToBytesMap.ConcurrentWriter writer = build.newWriter();
+          try {
+            for (long i = 0; i < numKeys; i++) {
+              long[] key = word(i);
+              BytesToBytesMap.Location loc = writer.putIfAbsent(
+                key, Platform.LONG_ARRAY_OFFSET, 8, key, Platform.LONG_ARRAY_OFFSET, 8);
+              assertNotNull(loc);
+              assertEquals(i, valueOf(loc));
+            }
+          } finally {
+            writer.close();
+          }
+          return null;
+        }
+      });
+      build.finish();
+
+      assertEquals(numKeys, map.numKeys());
+      assertEquals(numKeys, map.numValues());
+      for (long i = 0; i < numKeys; i++) {
+        long[] key = word(i);
+        BytesToBytesMap.Location loc = map.lookup(key, Platform.LONG_ARRAY_OFFSET, 8);
+        assertTrue(loc.isDefined());
+        assertEquals(i, valueOf(loc));
+        assertFalse(loc.nextValue());
+      }
+      int iterated = 0;
+      BytesToBytesMap.MapIterator iter = map.iterator();
+      while (iter.hasNext()) {
+        BytesToBytesMap.Location loc = iter.next();
+        assertEquals(Platform.getLong(loc.getKeyBase(), loc.getKeyOffset()), valueOf(loc));
+        iterated++;
+      }
+      assertEquals(numKeys, iterated);
+    } finally {
+      map.free();
+    }
+  }
+
+  @Test
+  public void concurrentAppendsKeepEveryValue() throws Exception {
+    final int numKeys = 5000;
+    final int numThreads = 4;
+    final BytesToBytesMap map = new BytesToBytesMap(taskMemoryManager, 64, PAGE_SIZE_BYTES);
+    final BytesToBytesMap.ConcurrentBuild build = map.beginConcurrentBuild();
+    try {
+      runInParallel(numThreads, new Callable<Void>() {
+        @Override
+        public Void call() {
+          BytesToBytesMap.ConcurrentWriter writer = build.newWriter();
+          try {
+            for (long i = 0; i < numKeys; i++) {
+              long[] key = word(i);
+              long[] value = word(i * 10);
+              assertTrue(writer.append(
+                key, Platform.LONG_ARRAY_OFFSET, 8, value, Platform.LONG_ARRAY_OFFSET, 8));
+            }
+          } finally {
+            writer.close();
+          }
+          return null;
+        }
+      });
+      build.finish();
+
+      assertEquals(numKeys, map.numKeys());
+      assertEquals(numKeys * numThreads, map.numValues());
+      for (long i = 0; i < numKeys; i++) {
+        long[] key = word(i);
+        BytesToBytesMap.Location loc = map.lookup(key, Platform.LONG_ARRAY_OFFSET, 8);
+        assertTrue(loc.isDefined());
+        int values = 1;
+        assertEquals(i * 10, valueOf(loc));
+        while (loc.nextValue()) {
+          assertEquals(i * 10, valueOf(loc));
+          values++;
+        }
+        assertEquals(numThreads, values);
+      }
+    } finally {
+      map.free();
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void finishRequiresClosedWriters() {
+    BytesToBytesMap map = new BytesToBytesMap(taskMemoryManager, 64, PAGE_SIZE_BYTES);
+    try {
+      BytesToBytesMap.ConcurrentBuild build = map.beginConcurrentBuild();
+      build.newWriter();
+      build.finish();
+    } finally {
+      map.free();
+    }
+  }
+
+  private BytesToBytesMap newMap(double loadFactor, BytesToBytesMap.ProbingScheme probing) {
+    return new BytesToBytesMap(
+      taskMemoryManager, null, null, 64, loadFactor, PAGE_SIZE_BYTES, true, probing);
+  }
+
+  @Test
+  public void swissProbingAtHighLoadFactor() {
+    final int numKeys = 50000;
+    BytesToBytesMap map = newMap(0.875, BytesToBytesMap.ProbingScheme.SWISS);
+    try {
+      for (long i = 0; i < numKeys; i++) {
+        long[] key = word(i);
+        BytesToBytesMap.Location loc = map.lookup(key, Platform.LONG_ARRAY_OFFSET, 8);
+        assertFalse(loc.isDefined());
+        assertTrue(loc.append(
+          key, Platform.LONG_ARRAY_OFFSET, 8, key, Platform.LONG_ARRAY_OFFSET, 8));
+      }
+      assertEquals(numKeys, map.numKeys());
+      for (long i = 0; i < numKeys; i++) {
+        long[] key = word(i);
+        BytesToBytesMap.Location loc = map.lookup(key, Platform.LONG_ARRAY_OFFSET, 8);
+        assertTrue(loc.isDefined());
+        assertEquals(i, valueOf(loc));
+      }
+      for (long i = numKeys; i < 2 * numKeys; i++) {
+        long[] key = word(i);
+        assertFalse(map.lookup(key, Platform.LONG_ARRAY_OFFSET, 8).isDefined());
+      }
+      // Most lookups are answered by the first group even with 7 of 8 slots taken.
+      assertTrue(map.getAverageProbesPerLookup() < 2.0);
+    } finally {
+      map.free();
+    }
+  }
+
+  @Test
+  public void swissProbingKeepsMultipleValues() {
+    BytesToBytesMap map = newMap(0.5, BytesToBytesMap.ProbingScheme.SWISS);
+    try {
+      long[] key = word(7);
+      for (long v = 0; v < 3; v++) {
+        long[] value = word(v);
+        BytesToBytesMap.Location loc = map.lookup(key, Platform.LONG_ARRAY_OFFSET, 8);
+        assertEquals(v > 0, loc.isDefined());
+        assertTrue(loc.append(
+          key, Platform.LONG_ARRAY_OFFSET, 8, value, Platform.LONG_ARRAY_OFFSET, 8));
+      }
+      assertEquals(1, map.numKeys());
+      assertEquals(3, map.numValues());
+    } finally {
+      map.free();
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void concurrentBuildNeedsTriangularProbing() {
+    BytesToBytesMap map = newMap(0.5, BytesToBytesMap.ProbingScheme.SWISS);
+    try {
+      map.beginConcurrentBuild();
+    } finally {
+      map.free();
+    }
+  }
+
+  @Test
+  public void bloomFilterRejectsMostAbsentKeys() {
+    final int numKeys = 20000;
+    BytesToBytesMap map = newMap(0.5, BytesToBytesMap.ProbingScheme.TRIANGULAR);
+    try {
+      // Half the keys go in before the filter is enabled, half after.
+      for (long i = 0; i < numKeys; i++) {
+        if (i == numKeys / 2) {
+          long before = map.getTotalMemoryConsumption();
+          assertTrue(map.enableBloomFilter());
+          assertTrue(map.getTotalMemoryConsumption() > before);
+        }
+        long[] key = word(i);
+        BytesToBytesMap.Location loc = map.lookup(key, Platform.LONG_ARRAY_OFFSET, 8);
+        assertFalse(loc.isDefined());
+        assertTrue(loc.append(
+          key, Platform.LONG_ARRAY_OFFSET, 8, key, Platform.LONG_ARRAY_OFFSET, 8));
+      }
+      for (long i = 0; i < numKeys; i++) {
+        long[] key = word(i);
+        BytesToBytesMap.Location loc = map.lookup(key, Platform.LONG_ARRAY_OFFSET, 8);
+        assertTrue(loc.isDefined());
+        assertEquals(i, valueOf(loc));
+      }
+
+      BytesToBytesMap missMap = newMap(0.5, BytesToBytesMap.ProbingScheme.SWISS);
+      try {
+        assertTrue(missMap.enableBloomFilter());
+        for (long i = 0; i < numKeys; i++) {
+          long[] key = word(i);
+          missMap.lookup(key, Platform.LONG_ARRAY_OFFSET, 8).append(
+            key, Platform.LONG_ARRAY_OFFSET, 8, key, Platform.LONG_ARRAY_OFFSET, 8);
+        }
+        long probesBefore = (long) (missMap.getAverageProbesPerLookup() * numKeys);
+        for (long i = numKeys; i < 2 * numKeys; i++) {
+          long[] key = word(i);
+          assertFalse(missMap.lookup(key, Platform.LONG_ARRAY_OFFSET, 8).isDefined());
+        }
+        long missProbes =
+          (long) (missMap.getAverageProbesPerLookup() * 2 * numKeys) - probesBefore;
+        // Only the false positives of the filter probe the table.
+        assertTrue("probes for misses: " + missProbes, missProbes < numKeys / 20);
+      } finally {
+        missMap.free();
+      }
+    } finally {
+      map.free();
+    }
+  }
+
+  @Test
+  public void bloomFilterIsRebuiltAfterConcurrentBuild() throws Exception {
+    final int numKeys = 5000;
+    final BytesToBytesMap map = new BytesToBytesMap(taskMemoryManager, 64, PAGE_SIZE_BYTES);
+    try {
+      assertTrue(map.enableBloomFilter());
+      final BytesToBytesMap.ConcurrentBuild build = map.beginConcurrentBuild();
+      runInParallel(2, new Callable<Void>() {
+        @Override
+        public Void call() {
+          BytesToBytesMap.ConcurrentWriter writer = build.newWriter();
+          try {
+            for (long i = 0; i < numKeys; i++) {
+              long[] key = word(i);
+              assertNotNull(writer.putIfAbsent(
+                key, Platform.LONG_ARRAY_OFFSET, 8, key, Platform.LONG_ARRAY_OFFSET, 8));
+            }
+          } finally {
+            writer.close();
+          }
+          return null;
+        }
+      });
+      build.finish();
+      for (long i = 0; i < numKeys; i++) {
+        long[] key = word(i);
+        assertTrue(map.lookup(key, Platform.LONG_ARRAY_OFFSET, 8).isDefined());
+      }
+    } finally {
+      map.free();
+    }
+  }
+
+  @Test
+  public void bloomFilterIsDisabledIfItCannotBeRebuiltAfterConcurrentBuild() {
+    final int numKeys = 5000;
+    final BytesToBytesMap map = new BytesToBytesMap(taskMemoryManager, 64, PAGE_SIZE_BYTES);
+    try {
+      assertTrue(map.enableBloomFilter());
+      final BytesToBytesMap.ConcurrentBuild build = map.beginConcurrentBuild();
+      BytesToBytesMap.ConcurrentWriter writer = build.newWriter();
+      try {
+        for (long i = 0; i < numKeys; i++) {
+          long[] key = word(i);
+          assertNotNull(writer.putIfAbsent(
+            key, Platform.LONG_ARRAY_OFFSET, 8, key, Platform.LONG_ARRAY_OFFSET, 8));
+        }
+      } finally {
+        writer.close();
+      }
+      // The table grew during the build, so its filter needs more memory than the old one.
+      memoryManager.limit(0);
+      build.finish();
+      for (long i = 0; i < numKeys; i++) {
+        long[] key = word(i);
+        assertTrue(map.lookup(key, Platform.LONG_ARRAY_OFFSET, 8).isDefined());
+      }
+      assertFalse(map.lookup(word(numKeys), Platform.LONG_ARRAY_OFFSET, 8).isDefined());
+      memoryManager.limit(1L << 30);
+      assertTrue(map.enableBloomFilter());
+      for (long i = 0; i < numKeys; i++) {
+        long[] key = word(i);
+        assertTrue(map.lookup(key, Platform.LONG_ARRAY_OFFSET, 8).isDefined());
+      }
+    } finally {
+      map.free();
+    }
+  }
+
+  private void checkIncrementalGrowth(BytesToBytesMap.ProbingScheme probing, boolean bloom) {
+    final int numKeys = 30000;
+    BytesToBytesMap map = new BytesToBytesMap(taskMemoryManager, null, null, 64, 0.5,
+      PAGE_SIZE_BYTES, false, probing, HashMapGrowthStrategy.INCREMENTAL_DOUBLING);
+    try {
+      if (bloom) {
+        assertTrue(map.enableBloomFilter());
+      }
+      for (long i = 0; i < numKeys; i++) {
+        long[] key = word(i);
+        BytesToBytesMap.Location loc = map.lookup(key, Platform.LONG_ARRAY_OFFSET, 8);
+        assertFalse(loc.isDefined());
+        assertTrue(loc.append(
+          key, Platform.LONG_ARRAY_OFFSET, 8, key, Platform.LONG_ARRAY_OFFSET, 8));
+        // Keys inserted before the last resize must stay visible while they are being moved,
+        // and take more values wherever they are.
+        long[] earlier = word(i / 2);
+        loc = map.lookup(earlier, Platform.LONG_ARRAY_OFFSET, 8);
+        assertTrue(loc.isDefined());
+        if (i % 2 == 0) {
+          long[] value = word(-i);
+          assertTrue(loc.append(
+            earlier, Platform.LONG_ARRAY_OFFSET, 8, value, Platform.LONG_ARRAY_OFFSET, 8));
+        }
+      }
+      assertEquals(numKeys, map.numKeys());
+      assertEquals(numKeys + numKeys / 2, map.numValues());
+      for (long i = 0; i < numKeys; i++) {
+        long[] key = word(i);
+        BytesToBytesMap.Location loc = map.lookup(key, Platform.LONG_ARRAY_OFFSET, 8);
+        assertTrue(loc.isDefined());
+        int values = 1;
+        while (loc.nextValue()) {
+          values++;
+        }
+        assertEquals(i < numKeys / 2 ? 2 : 1, values);
+      }
+      assertFalse(map.lookup(word(numKeys), Platform.LONG_ARRAY_OFFSET, 8).isDefined());
+    } finally {
+      map.free();
+    }
+  }
+
+  @Test
+  public void incrementalGrowthWithTriangularProbing() {
+    checkIncrementalGrowth(BytesToBytesMap.ProbingScheme.TRIANGULAR, false);
+  }
+
+  @Test
+  public void incrementalGrowthWithSwissProbingAndBloomFilter() {
+    checkIncrementalGrowth(BytesToBytesMap.ProbingScheme.SWISS, true);
+  }
+
+  @Test
+  public void incrementalGrowthKeepsBothTablesUntilMoved() {
+    BytesToBytesMap map = new BytesToBytesMap(taskMemoryManager, null, null, 1024, 0.5,
+      PAGE_SIZE_BYTES, false, BytesToBytesMap.ProbingScheme.TRIANGULAR,
+      HashMapGrowthStrategy.INCREMENTAL_DOUBLING);
+    try {
+      long[] key = word(1);
+      map.lookup(key, Platform.LONG_ARRAY_OFFSET, 8).append(
+        key, Platform.LONG_ARRAY_OFFSET, 8, key, Platform.LONG_ARRAY_OFFSET, 8);
+      long before = map.getTotalMemoryConsumption();
+      map.growAndRehash();
+      // Old and new table: 1024 and 2048 slots of 16 bytes.
+      assertEquals(before + 2048 * 16, map.getTotalMemoryConsumption());
+      // getArray() finishes the move, e.g. before the array is reused for sorting.
+      map.getArray();
+      assertEquals(before + 1024 * 16, map.getTotalMemoryConsumption());
+      assertTrue(map.lookup(key, Platform.LONG_ARRAY_OFFSET, 8).isDefined());
+    } finally {
+      map.free();
+    }
+  }
+
+  private void check64BitHashing(UnsafeHashFunction hashFunction) {
+    final int numKeys = 20000;
+    BytesToBytesMap map = new BytesToBytesMap(taskMemoryManager, null, null, 64, 0.875,
+      PAGE_SIZE_BYTES, false, BytesToBytesMap.ProbingScheme.SWISS,
+      HashMapGrowthStrategy.INCREMENTAL_DOUBLING, hashFunction);
+    try {
+      assertTrue(map.enableBloomFilter());
+      // Keys of 1 to 3 words exercise the short and the long paths of the hash functions.
+      for (long i = 0; i < numKeys; i++) {
+        long[] key = {i, ~i, i * 31};
+        int keyLength = (int) (i % 3 + 1) * 8;
+        BytesToBytesMap.Location loc = map.lookup(key, Platform.LONG_ARRAY_OFFSET, keyLength);
+        assertFalse(loc.isDefined());
+        assertTrue(loc.append(
+          key, Platform.LONG_ARRAY_OFFSET, keyLength, key, Platform.LONG_ARRAY_OFFSET, 8));
+      }
+      assertEquals(numKeys, map.numKeys());
+      for (long i = 0; i < numKeys; i++) {
+        long[] key = {i, ~i, i * 31};
+        int keyLength = (int) (i % 3 + 1) * 8;
+        BytesToBytesMap.Location loc = map.lookup(key, Platform.LONG_ARRAY_OFFSET, keyLength);
+        assertTrue(loc.isDefined());
+        assertEquals(i, valueOf(loc));
+        // The same key with another length is another key.
+        int otherLength = keyLength % 24 + 8;
+        assertFalse(map.lookup(key, Platform.LONG_ARRAY_OFFSET, otherLength).isDefined());
+      }
+    } finally {
+      map.free();
+    }
+  }
+
+  @Test
+  public void xxHash64Keys() {
+    check64BitHashing(UnsafeHashFunction.XXHASH64);
+  }
+
+  @Test
+  public void wyhashKeys() {
+    check64BitHashing(UnsafeHashFunction.WYHASH);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void concurrentBuildNeeds32BitHashes() {
+    BytesToBytesMap map = new BytesToBytesMap(taskMemoryManager, null, null, 64, 0.5,
+      PAGE_SIZE_BYTES, false, BytesToBytesMap.ProbingScheme.TRIANGULAR,
+      HashMapGrowthStrategy.DOUBLING, UnsafeHashFunction.WYHASH);
+    try {
+      map.beginConcurrentBuild();
+    } finally {
+      map.free();
+    }
+  }
+}
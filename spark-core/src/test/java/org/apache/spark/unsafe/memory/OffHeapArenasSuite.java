@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.unsafe.memory;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.apache.spark.unsafe.Platform;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OffHeapArenasSuite {
+
+  private static final long MB = 1L << 20;
+
+  private OffHeapArenas arenas;
+
+  @Before
+  public void setUp() {
+    arenas = new OffHeapArenas(8 * MB, null, false);
+  }
+
+  @After
+  public void tearDown() {
+    arenas.close();
+  }
+
+  @Test
+  public void pagesAreCarvedOutOfOneArena() {
+    long small = arenas.allocate(5000);
+    long large = arenas.allocate(2 * MB);
+    assertNotEquals(0, small);
+    assertEquals(0, large % (2 * MB));
+    assertEquals(1, arenas.numArenas());
+    assertEquals(8192 + 2 * MB, arenas.allocatedBytes());
+
+    // The freed space is reused, first fit.
+    assertTrue(arenas.free(small));
+    assertEquals(small, arenas.allocate(4096));
+    assertFalse(arenas.free(12345));
+  }
+
+  @Test
+  public void arenasAreAddedAndReleasedAsNeeded() {
+    long first = arenas.allocate(6 * MB);
+    long second = arenas.allocate(6 * MB);
+    assertEquals(2, arenas.numArenas());
+    assertTrue(arenas.free(second));
+    assertEquals(1, arenas.numArenas());
+    // The last arena is kept even when empty.
+    assertTrue(arenas.free(first));
+    assertEquals(1, arenas.numArenas());
+    assertEquals(0, arenas.allocatedBytes());
+  }
+
+  @Test
+  public void pagesLargerThanAnArenaFallBack() {
+    assertEquals(0, arenas.allocate(9 * MB));
+    assertEquals(1, arenas.fallbacks());
+    assertEquals(1, arenas.allocations());
+  }
+
+  @Test
+  public void allocatorCarvesBlocksOutOfArenas() {
+    UnsafeMemoryAllocator allocator = new UnsafeMemoryAllocator(0, 0, arenas);
+    MemoryBlock block = allocator.allocate(3 * MB);
+    Platform.setMemory(block.offset, (byte) 1, block.size());
+    assertEquals(3 * MB, arenas.allocatedBytes());
+    assertTrue(arenas.pageStats().reservedBytes() >= 8 * MB);
+
+    MemoryBlock outside = allocator.allocate(80 * MB);
+    assertEquals(1, arenas.fallbacks());
+    allocator.free(outside);
+    allocator.free(block);
+    assertEquals(0, arenas.allocatedBytes());
+  }
+
+  @Test
+  public void arenasMappedFromFilesAreUsableAndUnmapped() throws Exception {
+    // Any directory works for the mapping; hugetlbfs only makes its pages huge.
+    File dir = Files.createTempDirectory("arenas").toFile();
+    OffHeapArenas mapped = new OffHeapArenas(8 * MB, dir, false);
+    try {
+      long page = mapped.allocate(3 * MB);
+      assertNotEquals(0, page);
+      Platform.putLong(null, page, 42L);
+      Platform.putLong(null, page + 3 * MB - 8, 43L);
+      assertEquals(42L, Platform.getLong(null, page));
+      assertEquals(43L, Platform.getLong(null, page + 3 * MB - 8));
+      assertTrue(mapped.free(page));
+    } finally {
+      mapped.close();
+      dir.delete();
+    }
+    // The backing file is deleted as soon as it is mapped.
+    assertFalse(dir.exists());
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.unsafe.memory;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SizeClassedPoolSuite {
+
+  @Test
+  public void sizeClassesFitEverySize() {
+    assertEquals(-1, SizeClassedPool.sizeClass(0));
+    assertEquals(-1, SizeClassedPool.sizeClass(1));
+    assertEquals(-1, SizeClassedPool.sizeClass((1 << 12) - 1));
+    assertEquals(0, SizeClassedPool.sizeClass(1 << 12));
+    assertEquals(SizeClassedPool.NUM_CLASSES - 1, SizeClassedPool.sizeClass(64L << 20));
+    assertEquals(-1, SizeClassedPool.sizeClass((64L << 20) + 1));
+    for (long size = 1 << 12; size <= 64L << 20; size += size < 1 << 16 ? 1 : 4093) {
+      int sizeClass = SizeClassedPool.sizeClass(size);
+      long classSize = SizeClassedPool.classSize(sizeClass);
+      assertTrue(classSize >= size);
+      assertEquals(0, classSize % 8);
+      if (sizeClass > 0) {
+        assertTrue(SizeClassedPool.classSize(sizeClass - 1) < size);
+        assertTrue(classSize - size < classSize / 5);
+      }
+    }
+  }
+
+  @Test
+  public void offHeapBlocksAreReusedByTheFreeingThread() {
+    UnsafeMemoryAllocator allocator = new UnsafeMemoryAllocator(1 << 20, 0);
+    MemoryBlock first = allocator.allocate(5000);
+    long address = first.offset;
+    allocator.free(first);
+    assertEquals(5120, allocator.poolStats().cachedBytes());
+
+    MemoryBlock second = allocator.allocate(4500);
+    assertEquals(address, second.offset);
+    assertEquals(4500, second.size());
+    MemoryPoolStats stats = allocator.poolStats();
+    assertEquals(1, stats.threadCacheHits());
+    assertEquals(1, stats.misses());
+    assertEquals(0, stats.cachedBytes());
+    assertEquals(5120, stats.inUseBytes());
+    assertEquals(5120 - 4500, stats.slackBytes());
+
+    allocator.free(second);
+    allocator.trimPool();
+    assertEquals(1, allocator.poolStats().released());
+    assertEquals(0, allocator.poolStats().cachedBytes());
+    assertEquals(0, allocator.poolStats().inUseBytes());
+  }
+
+  @Test
+  public void smallBlocksAreNotPooled() {
+    UnsafeMemoryAllocator offHeap = new UnsafeMemoryAllocator(1 << 20, 1 << 20);
+    MemoryBlock block = offHeap.allocate(100);
+    assertEquals(100, block.size());
+    offHeap.free(block);
+    MemoryPoolStats stats = offHeap.poolStats();
+    assertEquals(1, stats.unpooled());
+    assertEquals(0, stats.misses());
+    assertEquals(0, stats.cachedBytes());
+    assertEquals(0, stats.inUseBytes());
+
+    HeapMemoryAllocator onHeap = new HeapMemoryAllocator(1 << 20, 1 << 20);
+    MemoryBlock array = onHeap.allocate(100);
+    // Not padded to the smallest class.
+    assertEquals(13, ((long[]) array.obj).length);
+    onHeap.free(array);
+    assertEquals(0, onHeap.poolStats().cachedBytes());
+  }
+
+  @Test
+  public void blocksOverflowToTheDepot() throws Exception {
+    UnsafeMemoryAllocator allocator = new UnsafeMemoryAllocator(0, 1 << 20);
+    MemoryBlock block = allocator.allocate(1 << 16);
+    long address = block.offset;
+    allocator.free(block);
+
+    AtomicReference<MemoryBlock> reused = new AtomicReference<>();
+    Thread other = new Thread(() -> reused.set(allocator.allocate(1 << 16)));
+    other.start();
+    other.join();
+    assertEquals(address, reused.get().offset);
+    assertEquals(1, allocator.poolStats().depotHits());
+
+    allocator.free(reused.get());
+    // Too large for what is left of the depot.
+    allocator.free(allocator.allocate(1 << 20));
+    assertEquals(1, allocator.poolStats().released());
+    allocator.trimPool();
+  }
+
+  @Test
+  public void cachesOfDeadThreadsAreReclaimed() throws Exception {
+    UnsafeMemoryAllocator allocator = new UnsafeMemoryAllocator(1 << 20, 1 << 20);
+    Thread other = new Thread(() -> allocator.free(allocator.allocate(1 << 16)));
+    other.start();
+    other.join();
+    assertEquals(1 << 16, allocator.poolStats().cachedBytes());
+
+    // The dead thread's block moves to the depot, where this thread finds it.
+    allocator.free(allocator.allocate(1 << 16));
+    assertEquals(1, allocator.poolStats().depotHits());
+    allocator.trimPool();
+    assertEquals(0, allocator.poolStats().cachedBytes());
+  }
+
+  @Test
+  public void heapArraysAreReused() {
+    HeapMemoryAllocator allocator = new HeapMemoryAllocator(1 << 20, 1 << 20);
+    MemoryBlock first = allocator.allocate(5000);
+    Object array = first.obj;
+    allocator.free(first);
+    MemoryBlock second = allocator.allocate(4500);
+    // Unless the garbage collector cleared the weak reference in between.
+    if (allocator.poolStats().threadCacheHits() == 1) {
+      assertSame(array, second.obj);
+    }
+    assertEquals(4500, second.size());
+    allocator.free(second);
+
+    // Arrays that are not of the size of their class are not reused.
+    long[] wrapped = new long[600];
+    allocator.free(MemoryBlock.fromLongArray(wrapped));
+    assertNotSame(wrapped, allocator.allocate(4800).obj);
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.unsafe.types;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import static org.apache.spark.unsafe.types.UTF8String.fromString;
+import static org.junit.Assert.*;
+
+public class UTF8StringSuite {
+
+  private static final Random random = new Random(42);
+
+  /** A random string of the given characters, long enough to take the word-at-a-time paths. */
+  private static String randomString(String alphabet, int maxLength) {
+    int length = random.nextInt(maxLength + 1);
+    StringBuilder sb = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+    }
+    return sb.toString();
+  }
+
+  /** The string at an odd offset of a larger array, so that words are read unaligned. */
+  private static UTF8String unaligned(String s) {
+    byte[] bytes = fromString(s).getBytes();
+    byte[] padded = new byte[bytes.length + 11];
+    System.arraycopy(bytes, 0, padded, 3, bytes.length);
+    return UTF8String.fromBytes(padded, 3, bytes.length);
+  }
+
+  @Test
+  public void isAscii() {
+    assertTrue(fromString("").isAscii());
+    assertTrue(unaligned("the quick brown fox jumps over the lazy dog").isAscii());
+    assertFalse(unaligned("the quick brown fox jumps over the lazy dög").isAscii());
+    assertFalse(unaligned("数据 the quick brown fox jumps").isAscii());
+  }
+
+  @Test
+  public void searchMatchesString() {
+    for (String alphabet : new String[] {"ab ", "abcdefgh", "ab数 "}) {
+      for (int i = 0; i < 2000; i++) {
+        String s = randomString(alphabet, 80);
+        String pattern = randomString(alphabet, 5);
+        UTF8String u = unaligned(s);
+        UTF8String p = unaligned(pattern);
+        assertEquals(s + " / " + pattern, s.contains(pattern), u.contains(p));
+        if (!pattern.isEmpty()) {
+          int start = random.nextInt(s.length() + 2);
+          assertEquals(s + " / " + pattern + " / " + start,
+            s.indexOf(pattern, start), u.indexOf(p, start));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void caseConversionMatchesString() {
+    for (String alphabet : new String[] {"aZ@[`{09 ", "abcXYZ", "abc数XYZ"}) {
+      for (int i = 0; i < 500; i++) {
+        String s = randomString(alphabet, 40);
+        UTF8String u = unaligned(s);
+        assertEquals(fromString(s.toUpperCase()), u.toUpperCase());
+        assertEquals(fromString(s.toLowerCase()), u.toLowerCase());
+      }
+    }
+  }
+
+  @Test
+  public void trimMatchesString() {
+    for (String alphabet : new String[] {"    a", " ab数"}) {
+      for (int i = 0; i < 2000; i++) {
+        String s = randomString(alphabet, 40);
+        UTF8String u = unaligned(s);
+        assertEquals(fromString(s.trim()), u.trim());
+        assertEquals(fromString(s.replaceAll("^ +", "")), u.trimLeft());
+        assertEquals(fromString(s.replaceAll(" +$", "")), u.trimRight());
+      }
+    }
+  }
+
+  private static List<String> tokens(UTF8StringTokenizer tokenizer) {
+    List<String> tokens = new ArrayList<>();
+    while (tokenizer.next()) {
+      tokens.add(tokenizer.token().toString());
+    }
+    return tokens;
+  }
+
+  @Test
+  public void tokenizeMatchesSplit() {
+    UTF8StringTokenizer tokenizer = null;
+    for (String delimiter : new String[] {",", "数", "::", "a,b"}) {
+      UTF8String d = unaligned(delimiter);
+      UTF8StringTokenizer reused = new UTF8StringTokenizer(d);
+      for (int i = 0; i < 1000; i++) {
+        String s = randomString("ab,:数", 60);
+        int limit = random.nextInt(4);
+        List<String> expected = Arrays.asList(
+          s.split(Pattern.quote(delimiter), limit == 0 ? -1 : limit));
+        assertEquals(s + " / " + delimiter, expected, tokens(reused.reset(unaligned(s), limit)));
+        tokenizer = unaligned(s).tokenize(d);
+        assertEquals(s + " / " + delimiter,
+          s.split(Pattern.quote(delimiter), -1).length, tokens(tokenizer).size());
+      }
+    }
+    assertFalse(tokenizer.next());
+  }
+
+  @Test
+  public void tokensAreViews() {
+    UTF8String csv = fromString("id,name,,city");
+    UTF8StringTokenizer tokenizer = csv.tokenize(fromString(","));
+    assertTrue(tokenizer.next());
+    UTF8String token = tokenizer.token();
+    assertSame(csv.getBaseObject(), token.getBaseObject());
+    assertEquals(fromString("id"), token);
+    assertTrue(tokenizer.next());
+    assertSame(token, tokenizer.token());
+    assertEquals(fromString("name"), token);
+    assertEquals(fromString("NAME"), token.toUpperCase());
+    assertTrue(tokenizer.next());
+    assertEquals(0, token.numBytes());
+    assertTrue(tokenizer.next());
+    assertEquals(fromString("city"), token);
+    assertFalse(tokenizer.next());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void tokenizeNeedsADelimiter() {
+    fromString("abc").tokenize(UTF8String.EMPTY_UTF8);
+  }
+}
@@ -0,0 +1,71 @@
+package org.apache.spark.rpc.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.spark.rpc.RpcEndpointRef;
+import org.apache.spark.rpc.RpcEnv;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Many clients asking one endpoint at the same time. Every benchmark thread owns a client-only
+ * {@code RpcEnv} and so its own connection, which is how executors fan in to a driver endpoint.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(32)
+public class FanInBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Server {
+
+    @Param({"java", "compact"})
+    public String serializer;
+
+    @Param({"16", "1024"})
+    public int payloadSize;
+
+    RpcEnv env;
+
+    @Setup(Level.Trial)
+    public void setup() {
+      env = RpcBenchmarkSupport.startServer(RpcBenchmarkSupport.newConf(serializer));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      RpcBenchmarkSupport.stop(env);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Client {
+
+    private static final AtomicInteger ids = new AtomicInteger();
+
+    RpcEnv env;
+    RpcEndpointRef ref;
+    byte[] payload;
+
+    @Setup(Level.Trial)
+    public void setup(Server server) {
+      env = RpcBenchmarkSupport.startClient(
+        RpcBenchmarkSupport.newConf(server.serializer), "bench-client-" + ids.getAndIncrement());
+      ref = RpcBenchmarkSupport.connect(env, server.env);
+      payload = new byte[server.payloadSize];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      RpcBenchmarkSupport.stop(env);
+    }
+  }
+
+  @Benchmark
+  public byte[] ask(Client client) {
+    return RpcBenchmarkSupport.ask(client.ref, client.payload);
+  }
+}
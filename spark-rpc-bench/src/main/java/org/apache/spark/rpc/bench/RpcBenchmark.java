@@ -0,0 +1,70 @@
+package org.apache.spark.rpc.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.spark.rpc.RpcEndpointRef;
+import org.apache.spark.rpc.RpcEnv;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Single-client benchmarks of a loopback {@code NettyRpcEnv}: one-way {@code send} and
+ * {@code ask} round trips, from small control-plane messages up to large payloads.
+ *
+ * Each benchmark reports throughput and sampled latency, whose p50/p99/p999 JMH prints per run.
+ * Run through {@link RpcBenchmarks} to also get the allocation rate per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RpcBenchmark {
+
+  /**
+   * One-way messages are not acknowledged, so every this many sends the benchmark waits for the
+   * endpoint to catch up instead of letting the outbox grow without bound.
+   */
+  private static final int SEND_WINDOW = 256;
+
+  @Param({"java", "compact"})
+  public String serializer;
+
+  @Param({"16", "1024", "1048576"})
+  public int payloadSize;
+
+  private RpcEnv server;
+  private RpcEnv client;
+  private RpcEndpointRef ref;
+  private byte[] payload;
+  private int sent;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    server = RpcBenchmarkSupport.startServer(RpcBenchmarkSupport.newConf(serializer));
+    client = RpcBenchmarkSupport.startClient(RpcBenchmarkSupport.newConf(serializer), "bench-client");
+    ref = RpcBenchmarkSupport.connect(client, server);
+    payload = new byte[payloadSize];
+    new Random(42).nextBytes(payload);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    RpcBenchmarkSupport.stop(client);
+    RpcBenchmarkSupport.stop(server);
+  }
+
+  @Benchmark
+  public void send() {
+    RpcBenchmarkSupport.send(ref, payload);
+    if (++sent % SEND_WINDOW == 0) {
+      RpcBenchmarkSupport.barrier(ref);
+    }
+  }
+
+  @Benchmark
+  public byte[] ask() {
+    return RpcBenchmarkSupport.ask(ref, payload);
+  }
+}
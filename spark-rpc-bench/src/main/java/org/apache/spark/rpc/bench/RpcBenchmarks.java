@@ -0,0 +1,35 @@
+package org.apache.spark.rpc.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs every RPC benchmark with the GC profiler, which adds the allocation rate per operation
+ * ({@code gc.alloc.rate.norm}) next to throughput and latency percentiles, and writes the results
+ * to {@code target/jmh-result.json} so runs can be compared. JMH command line options given as
+ * arguments override these defaults, e.g. {@code RpcBenchmark.ask -p serializer=compact}.
+ */
+public final class RpcBenchmarks {
+
+  private RpcBenchmarks() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions cli = new CommandLineOptions(args);
+    OptionsBuilder builder = new OptionsBuilder();
+    if (cli.getIncludes().isEmpty()) {
+      builder.include(RpcBenchmarks.class.getPackage().getName() + ".*Benchmark.*");
+    }
+    Options options = builder
+      .parent(cli)
+      .addProfiler(GCProfiler.class)
+      .resultFormat(ResultFormatType.JSON)
+      .result("target/jmh-result.json")
+      .build();
+    new Runner(options).run();
+  }
+}
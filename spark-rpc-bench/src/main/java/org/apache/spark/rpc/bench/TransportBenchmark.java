@@ -0,0 +1,147 @@
+package org.apache.spark.rpc.bench;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.spark.network.TransportContext;
+import org.apache.spark.network.buffer.ManagedBuffer;
+import org.apache.spark.network.buffer.NioManagedBuffer;
+import org.apache.spark.network.client.ChunkReceivedCallback;
+import org.apache.spark.network.client.PipelinedChunkFetcher;
+import org.apache.spark.network.client.RpcResponseCallback;
+import org.apache.spark.network.client.TransportClient;
+import org.apache.spark.network.client.TransportClientFactory;
+import org.apache.spark.network.server.OneForOneStreamManager;
+import org.apache.spark.network.server.RpcHandler;
+import org.apache.spark.network.server.StreamManager;
+import org.apache.spark.network.server.TransportServer;
+import org.apache.spark.network.util.MapConfigProvider;
+import org.apache.spark.network.util.TransportConf;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares the NIO and native epoll transports on the raw transport layer, below the RPC env:
+ * how many connections per second a server accepts, with one or several SO_REUSEPORT acceptors,
+ * the throughput of small RPCs from several threads over one connection, and how fast a stream
+ * of chunks is fetched with a {@link PipelinedChunkFetcher} from a server reading ahead.
+ *
+ * EPOLL only differs from NIO on Linux; elsewhere it falls back to NIO and the rows match.
+ * {@code EPOLL-4} accepts with four SO_REUSEPORT acceptors, which NIO has no equivalent of.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransportBenchmark {
+
+  /** The IO mode, optionally followed by {@code -<acceptors>} for EPOLL. */
+  @Param({"NIO", "EPOLL", "EPOLL-4"})
+  public String transport;
+
+  private TransportContext context;
+  private TransportServer server;
+  private TransportClientFactory clientFactory;
+  private TransportClient client;
+  private TransportConf conf;
+  private EchoRpcHandler handler;
+  private final byte[] payload = new byte[16];
+
+  private static final int STREAM_CHUNKS = 64;
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    String[] modeAndAcceptors = transport.split("-");
+    Map<String, String> settings = new HashMap<>();
+    settings.put("spark.bench.io.mode", modeAndAcceptors[0]);
+    if (modeAndAcceptors.length > 1) {
+      settings.put("spark.bench.io.epoll.acceptors", modeAndAcceptors[1]);
+    }
+    settings.put("spark.bench.io.stream.readAheadChunks", "4");
+    conf = new TransportConf("bench", new MapConfigProvider(settings));
+    handler = new EchoRpcHandler(conf);
+    context = new TransportContext(conf, handler);
+    server = context.createServer();
+    clientFactory = context.createClientFactory();
+    client = clientFactory.createClient("localhost", server.getPort());
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    clientFactory.close();
+    server.close();
+  }
+
+  /** A new connection per operation, closed right away. */
+  @Benchmark
+  public void connect() throws Exception {
+    clientFactory.createUnmanagedClient("localhost", server.getPort()).close();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public ByteBuffer smallRpc() {
+    return client.sendRpcSync(ByteBuffer.wrap(payload), 10000);
+  }
+
+  /** Registers a stream of 64 chunks of 64 KB and fetches all of them. */
+  @Benchmark
+  public long fetchStream() throws Exception {
+    List<ManagedBuffer> chunks = new ArrayList<>(STREAM_CHUNKS);
+    for (int i = 0; i < STREAM_CHUNKS; i++) {
+      chunks.add(new NioManagedBuffer(ByteBuffer.allocate(CHUNK_SIZE)));
+    }
+    long streamId = handler.streamManager.registerStream(null, chunks.iterator());
+    final CountDownLatch done = new CountDownLatch(STREAM_CHUNKS);
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    final long[] bytes = new long[1];
+    new PipelinedChunkFetcher(client, conf, streamId, STREAM_CHUNKS, new ChunkReceivedCallback() {
+      @Override
+      public void onSuccess(int chunkIndex, ManagedBuffer buffer) {
+        bytes[0] += buffer.size();
+        done.countDown();
+      }
+
+      @Override
+      public void onFailure(int chunkIndex, Throwable e) {
+        failure.compareAndSet(null, e);
+        done.countDown();
+      }
+    }).start();
+    done.await();
+    if (failure.get() != null) {
+      throw new IllegalStateException("Fetch failed", failure.get());
+    }
+    return bytes[0];
+  }
+
+  private static final class EchoRpcHandler extends RpcHandler {
+    private final OneForOneStreamManager streamManager;
+
+    EchoRpcHandler(TransportConf conf) {
+      streamManager = new OneForOneStreamManager(conf);
+    }
+
+    @Override
+    public void receive(TransportClient client, ByteBuffer message, RpcResponseCallback callback) {
+      // The request buffer is released once receive returns, before the reply is written.
+      ByteBuffer reply = ByteBuffer.allocate(message.remaining());
+      reply.put(message);
+      reply.flip();
+      callback.onSuccess(reply);
+    }
+
+    @Override
+    public StreamManager getStreamManager() {
+      return streamManager;
+    }
+  }
+}
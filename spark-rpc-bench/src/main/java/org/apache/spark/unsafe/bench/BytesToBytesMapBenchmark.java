@@ -0,0 +1,124 @@
+package org.apache.spark.unsafe.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.memory.StaticMemoryManager;
+import org.apache.spark.memory.TaskMemoryManager;
+import org.apache.spark.unsafe.Platform;
+import org.apache.spark.unsafe.map.BytesToBytesMap;
+import org.apache.spark.unsafe.map.HashMapGrowthStrategy;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares the probing schemes of {@link BytesToBytesMap}: lookups of keys that are in the map
+ * and of keys that are not, and building a map from scratch, at the default load factor of 0.5
+ * and at 0.875, where triangular probing chains get long. Each is run with and without the
+ * Bloom filter, which should make misses cheap at the expense of hits and inserts.
+ *
+ * {@code insert} samples the latency of single inserts into a growing map, with the table moved
+ * at once on resize or a few slots per lookup, which should cut the tail at the expense of a
+ * slower average.
+ *
+ * Lookup keys are drawn at random from a map larger than the CPU caches, so each operation pays
+ * the cache misses of its probe sequence.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BytesToBytesMapBenchmark {
+
+  private static final long PAGE_SIZE_BYTES = 64L << 20;
+  private static final int NUM_KEYS = 1 << 21;
+
+  @Param({"TRIANGULAR", "SWISS"})
+  public BytesToBytesMap.ProbingScheme probing;
+
+  @Param({"0.5", "0.875"})
+  public double loadFactor;
+
+  @Param({"false", "true"})
+  public boolean bloomFilter;
+
+  @Param({"false", "true"})
+  public boolean incrementalGrowth;
+
+  private TaskMemoryManager taskMemoryManager;
+  private BytesToBytesMap map;
+  private BytesToBytesMap insertMap;
+  private int nextInsert;
+  private final long[] key = new long[1];
+  private final Random random = new Random(42);
+
+  @Setup(Level.Trial)
+  public void setup() {
+    SparkConf conf = new SparkConf().set("spark.memory.offHeap.enabled", "false");
+    taskMemoryManager = new TaskMemoryManager(
+      new StaticMemoryManager(conf, Long.MAX_VALUE, Long.MAX_VALUE, 1), 0);
+    map = newMap(NUM_KEYS);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    map.free();
+    if (insertMap != null) {
+      insertMap.free();
+      insertMap = null;
+    }
+  }
+
+  private BytesToBytesMap newMap(int numKeys) {
+    HashMapGrowthStrategy growth = incrementalGrowth
+      ? HashMapGrowthStrategy.INCREMENTAL_DOUBLING : HashMapGrowthStrategy.DOUBLING;
+    BytesToBytesMap m = new BytesToBytesMap(
+      taskMemoryManager, null, null, 64, loadFactor, PAGE_SIZE_BYTES, false, probing, growth);
+    if (bloomFilter) {
+      m.enableBloomFilter();
+    }
+    for (long i = 0; i < numKeys; i++) {
+      key[0] = i;
+      BytesToBytesMap.Location loc = m.lookup(key, Platform.LONG_ARRAY_OFFSET, 8);
+      loc.append(key, Platform.LONG_ARRAY_OFFSET, 8, key, Platform.LONG_ARRAY_OFFSET, 8);
+    }
+    return m;
+  }
+
+  @Benchmark
+  public boolean lookupHit() {
+    key[0] = random.nextInt(NUM_KEYS);
+    return map.lookup(key, Platform.LONG_ARRAY_OFFSET, 8).isDefined();
+  }
+
+  @Benchmark
+  public boolean lookupMiss() {
+    key[0] = NUM_KEYS + random.nextInt(NUM_KEYS);
+    return map.lookup(key, Platform.LONG_ARRAY_OFFSET, 8).isDefined();
+  }
+
+  /** Builds a map of 64K keys, growing it from the initial capacity. */
+  @Benchmark
+  @OperationsPerInvocation(1 << 16)
+  public void build() {
+    newMap(1 << 16).free();
+  }
+
+  /** Inserts the next key into a map that is rebuilt once it holds {@code NUM_KEYS} keys. */
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  public boolean insert() {
+    if (insertMap == null || nextInsert == NUM_KEYS) {
+      if (insertMap != null) {
+        insertMap.free();
+      }
+      insertMap = newMap(0);
+      nextInsert = 0;
+    }
+    key[0] = nextInsert++;
+    BytesToBytesMap.Location loc = insertMap.lookup(key, Platform.LONG_ARRAY_OFFSET, 8);
+    return loc.append(key, Platform.LONG_ARRAY_OFFSET, 8, key, Platform.LONG_ARRAY_OFFSET, 8);
+  }
+}
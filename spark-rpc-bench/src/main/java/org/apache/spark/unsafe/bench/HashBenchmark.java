@@ -0,0 +1,71 @@
+package org.apache.spark.unsafe.bench;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.spark.unsafe.hash.Murmur3_x86_32;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares hashing a column of a batch one value per call with the batch entry points of
+ * {@link Murmur3_x86_32}. Scores are per row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashBenchmark {
+
+  private static final int SEED = 42;
+  private static final int NUM_ROWS = 4096;
+
+  private final int[] ints = new int[NUM_ROWS];
+  private final long[] longs = new long[NUM_ROWS];
+  private final int[] hashes = new int[NUM_ROWS];
+
+  @Setup(Level.Trial)
+  public void setup() {
+    Random random = new Random(42);
+    for (int i = 0; i < NUM_ROWS; i++) {
+      ints[i] = random.nextInt();
+      longs[i] = random.nextLong();
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_ROWS)
+  public int[] intsOneByOne() {
+    for (int i = 0; i < NUM_ROWS; i++) {
+      hashes[i] = Murmur3_x86_32.hashInt(ints[i], SEED);
+    }
+    return hashes;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_ROWS)
+  public int[] intsBatch() {
+    Arrays.fill(hashes, SEED);
+    Murmur3_x86_32.hashInts(ints, 0, hashes, NUM_ROWS);
+    return hashes;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_ROWS)
+  public int[] longsOneByOne() {
+    for (int i = 0; i < NUM_ROWS; i++) {
+      hashes[i] = Murmur3_x86_32.hashLong(longs[i], SEED);
+    }
+    return hashes;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_ROWS)
+  public int[] longsBatch() {
+    Arrays.fill(hashes, SEED);
+    Murmur3_x86_32.hashLongs(longs, 0, hashes, NUM_ROWS);
+    return hashes;
+  }
+}
@@ -0,0 +1,109 @@
+package org.apache.spark.unsafe.bench;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.spark.unsafe.Platform;
+import org.apache.spark.unsafe.hash.UnsafeHashFunction;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares the throughput of the {@link UnsafeHashFunction}s on keys of several lengths. Keys are
+ * taken in turn from a buffer that fits in L1, so scores are the cost of hashing alone.
+ *
+ * {@link #main} counts the collisions of each function on a large number of distinct keys, in
+ * all 64 bits and in the low 32 bits that pick a slot of a {@code BytesToBytesMap}, e.g.
+ * {@code HashFunctionBenchmark 100000000}. A perfect 32-bit hash already collides on about
+ * n^2 / 2^33 pairs, over a million at 100M keys, while a 64-bit one should have none.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashFunctionBenchmark {
+
+  private static final int NUM_KEYS = 64;
+
+  @Param({"MURMUR3_32", "XXHASH64", "WYHASH"})
+  public String hashFunction;
+
+  @Param({"4", "8", "16", "32", "64", "256"})
+  public int keyLength;
+
+  private UnsafeHashFunction function;
+  private byte[] keys;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    function = functionFor(hashFunction);
+    keys = new byte[NUM_KEYS * keyLength];
+    new Random(42).nextBytes(keys);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_KEYS)
+  public long hash() {
+    long sum = 0;
+    for (int i = 0; i < NUM_KEYS; i++) {
+      sum += function.hashUnsafeBytes(
+        keys, Platform.BYTE_ARRAY_OFFSET + (long) i * keyLength, keyLength);
+    }
+    return sum;
+  }
+
+  private static UnsafeHashFunction functionFor(String name) {
+    switch (name) {
+      case "MURMUR3_32": return UnsafeHashFunction.MURMUR3_32;
+      case "XXHASH64": return UnsafeHashFunction.XXHASH64;
+      case "WYHASH": return UnsafeHashFunction.WYHASH;
+      default: throw new IllegalArgumentException("Unknown hash function " + name);
+    }
+  }
+
+  /**
+   * Hashes the given number of keys (default 2^26) of two longs, an id counting from 0 and the id
+   * divided by 1024, which differ in few bits like the ids and dates of real keys, and prints the
+   * number of colliding pairs of hashes.
+   */
+  public static void main(String[] args) {
+    int numKeys = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 26;
+    long[] hashes = new long[numKeys];
+    long[] key = new long[2];
+    for (String name : new String[] {"MURMUR3_32", "XXHASH64", "WYHASH"}) {
+      UnsafeHashFunction f = functionFor(name);
+      for (int i = 0; i < numKeys; i++) {
+        key[0] = i;
+        key[1] = i >>> 10;
+        hashes[i] = f.hashUnsafeBytes(key, Platform.LONG_ARRAY_OFFSET, 16);
+      }
+      long full = countCollisions(hashes);
+      for (int i = 0; i < numKeys; i++) {
+        hashes[i] = (int) hashes[i];
+      }
+      long low = countCollisions(hashes);
+      System.out.printf("%-10s %d keys: %d collisions in 64 bits, %d in the low 32 bits%n",
+        name, numKeys, full, low);
+    }
+    double expected = (double) numKeys * (numKeys - 1) / 2 / (1L << 32);
+    System.out.printf("Expected for a random 32-bit hash: %.0f%n", expected);
+  }
+
+  /** The number of pairs of equal values, which sorts {@code values}. */
+  private static long countCollisions(long[] values) {
+    Arrays.sort(values);
+    long collisions = 0;
+    long run = 0;
+    for (int i = 1; i < values.length; i++) {
+      if (values[i] == values[i - 1]) {
+        run++;
+        collisions += run;
+      } else {
+        run = 0;
+      }
+    }
+    return collisions;
+  }
+}
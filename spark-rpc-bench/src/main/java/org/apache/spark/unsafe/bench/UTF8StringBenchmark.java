@@ -0,0 +1,194 @@
+package org.apache.spark.unsafe.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.spark.unsafe.Platform;
+import org.apache.spark.unsafe.array.ByteArrayMethods;
+import org.apache.spark.unsafe.types.UTF8String;
+import org.apache.spark.unsafe.types.UTF8StringTokenizer;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares the word-at-a-time ASCII paths of {@link UTF8String} search, case conversion and
+ * trimming with the byte-at-a-time loops they replaced, which are kept here as the
+ * {@code *Bytewise} baselines. Lines look like log lines: ASCII text padded with spaces, with the
+ * searched token near the end, or absent for {@code containsMiss}. The ASCII flag of the line is
+ * computed by the first call and cached, as for a value that is tested by several predicates.
+ *
+ * {@code tokenize} splits the line into words with a reused {@link UTF8StringTokenizer}, against
+ * {@code split}, which copies every word; run with {@code -prof gc} to compare the allocations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UTF8StringBenchmark {
+
+  @Param({"64", "256", "4096"})
+  public int length;
+
+  private UTF8String line;
+  private UTF8String token;
+  private UTF8String absent;
+  private UTF8String space;
+  private UTF8StringTokenizer words;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    Random random = new Random(42);
+    String text = "INFO WARN request served from cache in ms user session GET POST ";
+    StringBuilder sb = new StringBuilder("   ");
+    while (sb.length() < length - 16) {
+      sb.append(text.charAt(random.nextInt(text.length())));
+    }
+    sb.append("ERROR:42");
+    while (sb.length() < length) {
+      sb.append(' ');
+    }
+    line = UTF8String.fromString(sb.toString());
+    token = UTF8String.fromString("ERROR:42");
+    absent = UTF8String.fromString("FATAL:42");
+    space = UTF8String.fromString(" ");
+    words = new UTF8StringTokenizer(space);
+  }
+
+  @Benchmark
+  public boolean containsHit() {
+    return line.contains(token);
+  }
+
+  @Benchmark
+  public boolean containsHitBytewise() {
+    return containsBytewise(line, token);
+  }
+
+  @Benchmark
+  public boolean containsMiss() {
+    return line.contains(absent);
+  }
+
+  @Benchmark
+  public boolean containsMissBytewise() {
+    return containsBytewise(line, absent);
+  }
+
+  @Benchmark
+  public int indexOf() {
+    return line.indexOf(token, 0);
+  }
+
+  @Benchmark
+  public int indexOfBytewise() {
+    return indexOfBytewise(line, token, 0);
+  }
+
+  @Benchmark
+  public UTF8String toUpperCase() {
+    return line.toUpperCase();
+  }
+
+  @Benchmark
+  public UTF8String toUpperCaseBytewise() {
+    return toUpperCaseBytewise(line);
+  }
+
+  @Benchmark
+  public UTF8String trim() {
+    return line.trim();
+  }
+
+  @Benchmark
+  public UTF8String trimBytewise() {
+    return trimBytewise(line);
+  }
+
+  @Benchmark
+  public int split() {
+    int numBytes = 0;
+    for (UTF8String word : line.split(space, -1)) {
+      numBytes += word.numBytes();
+    }
+    return numBytes;
+  }
+
+  @Benchmark
+  public int tokenize() {
+    int numBytes = 0;
+    words.reset(line);
+    while (words.next()) {
+      numBytes += words.token().numBytes();
+    }
+    return numBytes;
+  }
+
+  private static byte getByte(UTF8String s, int i) {
+    return Platform.getByte(s.getBaseObject(), s.getBaseOffset() + i);
+  }
+
+  private static boolean matchAt(UTF8String s, UTF8String sub, int pos) {
+    return ByteArrayMethods.arrayEquals(s.getBaseObject(), s.getBaseOffset() + pos,
+      sub.getBaseObject(), sub.getBaseOffset(), sub.numBytes());
+  }
+
+  private static boolean containsBytewise(UTF8String s, UTF8String sub) {
+    byte first = getByte(sub, 0);
+    for (int i = 0; i <= s.numBytes() - sub.numBytes(); i++) {
+      if (getByte(s, i) == first && matchAt(s, sub, i)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** The previous indexOf, which steps one character at a time even on ASCII input. */
+  private static int indexOfBytewise(UTF8String s, UTF8String v, int start) {
+    int i = 0;
+    int c = 0;
+    while (i < s.numBytes() && c < start) {
+      i += numBytesForFirstByte(getByte(s, i));
+      c += 1;
+    }
+    do {
+      if (i + v.numBytes() > s.numBytes()) {
+        return -1;
+      }
+      if (matchAt(s, v, i)) {
+        return c;
+      }
+      i += numBytesForFirstByte(getByte(s, i));
+      c += 1;
+    } while (i < s.numBytes());
+    return -1;
+  }
+
+  private static int numBytesForFirstByte(byte b) {
+    int offset = (b & 0xFF) - 192;
+    return offset >= 0 ? (offset < 32 ? 2 : offset < 48 ? 3 : 4) : 1;
+  }
+
+  private static UTF8String toUpperCaseBytewise(UTF8String s) {
+    byte[] bytes = new byte[s.numBytes()];
+    for (int i = 0; i < bytes.length; i++) {
+      byte b = getByte(s, i);
+      if (b < 0) {
+        return UTF8String.fromString(s.toString().toUpperCase());
+      }
+      bytes[i] = (byte) Character.toUpperCase((int) b);
+    }
+    return UTF8String.fromBytes(bytes);
+  }
+
+  private static UTF8String trimBytewise(UTF8String s) {
+    int start = 0;
+    while (start < s.numBytes() && getByte(s, start) == 0x20) start++;
+    int end = s.numBytes() - 1;
+    while (end > start && getByte(s, end) == 0x20) end--;
+    byte[] bytes = new byte[end - start + 1];
+    Platform.copyMemory(s.getBaseObject(), s.getBaseOffset() + start, bytes,
+      Platform.BYTE_ARRAY_OFFSET, bytes.length);
+    return UTF8String.fromBytes(bytes);
+  }
+}
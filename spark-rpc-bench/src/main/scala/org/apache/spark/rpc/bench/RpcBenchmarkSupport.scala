@@ -0,0 +1,76 @@
+package org.apache.spark.rpc.bench
+
+import org.apache.spark.RpcConf
+import org.apache.spark.rpc._
+import org.apache.spark.rpc.netty.NettyRpcEnvFactory
+import org.apache.spark.util.RpcUtils
+
+/** Asks the [[EchoEndpoint]] how many one-way messages it has processed so far. */
+case object Barrier
+
+/**
+  * Replies to every ask with the payload it received and counts one-way messages. Being a
+  * [[ThreadSafeRpcEndpoint]], it processes one message at a time in arrival order, so a
+  * [[Barrier]] reply means every message sent before it on the same connection has been handled.
+  */
+class EchoEndpoint(override val rpcEnv: RpcEnv) extends ThreadSafeRpcEndpoint {
+
+  private var received = 0L
+
+  override def receive: PartialFunction[Any, Unit] = {
+    case _: Array[Byte] => received += 1
+  }
+
+  override def receiveAndReply(context: RpcCallContext): PartialFunction[Any, Unit] = {
+    case Barrier => context.reply(received)
+    case payload: Array[Byte] => context.reply(payload)
+  }
+}
+
+/**
+  * Java-friendly entry points for the JMH benchmarks, which cannot easily deal with `ClassTag`s
+  * and Scala futures themselves.
+  */
+object RpcBenchmarkSupport {
+
+  val ENDPOINT_NAME = "rpc-bench"
+
+  /** Built once, so the measured calls don't allocate a fresh RpcConf. */
+  private lazy val timeout = RpcUtils.askRpcTimeout(new RpcConf())
+
+  def newConf(serializer: String): RpcConf = {
+    new RpcConf().set("spark.rpc.serializer", serializer)
+  }
+
+  /** Start a server on a random loopback port with an [[EchoEndpoint]] registered. */
+  def startServer(conf: RpcConf): RpcEnv = {
+    val env = NettyRpcEnvFactory.create(RpcEnvServerConfig(conf, "bench-server", "localhost", 0))
+    env.setupEndpoint(ENDPOINT_NAME, new EchoEndpoint(env))
+    env
+  }
+
+  /** Start a client-only env; each one opens its own connection to the server. */
+  def startClient(conf: RpcConf, name: String): RpcEnv = {
+    NettyRpcEnvFactory.create(RpcEnvClientConfig(conf, name))
+  }
+
+  def connect(client: RpcEnv, server: RpcEnv): RpcEndpointRef = {
+    client.setupEndpointRef(server.address, ENDPOINT_NAME)
+  }
+
+  def stop(env: RpcEnv): Unit = {
+    env.shutdown()
+    env.awaitTermination()
+  }
+
+  def send(ref: RpcEndpointRef, payload: Array[Byte]): Unit = ref.send(payload)
+
+  def ask(ref: RpcEndpointRef, payload: Array[Byte]): Array[Byte] = {
+    timeout.awaitResult(ref.ask[Array[Byte]](payload, timeout))
+  }
+
+  /** Wait until every one-way message sent through `ref` has been processed. */
+  def barrier(ref: RpcEndpointRef): Long = {
+    timeout.awaitResult(ref.ask[Long](Barrier, timeout))
+  }
+}
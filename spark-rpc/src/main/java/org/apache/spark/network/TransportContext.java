@@ -25,6 +25,7 @@ import org.apache.spark.network.client.TransportClient;
 import org.apache.spark.network.client.TransportClientBootstrap;
 import org.apache.spark.network.client.TransportClientFactory;
 import org.apache.spark.network.client.TransportResponseHandler;
+import org.apache.spark.network.metrics.TransportMetrics;
 import org.apache.spark.network.protocol.MessageDecoder;
 import org.apache.spark.network.protocol.MessageEncoder;
 import org.apache.spark.network.server.*;
@@ -58,6 +59,7 @@ public class TransportContext {
     private final TransportConf conf;
     private final RpcHandler rpcHandler;
     private final boolean closeIdleConnections;
+    private final TransportMetrics metrics = new TransportMetrics();
 
     /**
      * Force to create MessageEncoder and MessageDecoder so that we can make sure they will be created
@@ -183,9 +185,9 @@ public class TransportContext {
 
         //todo 构造pipeline
         TransportResponseHandler responseHandler = new TransportResponseHandler(channel);
-        TransportClient client = new TransportClient(channel, responseHandler);
+        TransportClient client = new TransportClient(channel, responseHandler, metrics);
         TransportRequestHandler requestHandler = new TransportRequestHandler(channel, client,
-                rpcHandler);
+                rpcHandler, metrics);
         return new TransportChannelHandler(client, responseHandler, requestHandler,
                 conf.connectionTimeoutMs(), closeIdleConnections);
     }
@@ -193,4 +195,12 @@ public class TransportContext {
     public TransportConf getConf() {
         return conf;
     }
+
+    /**
+     * The metrics of every client and server channel created through this context, e.g. the
+     * outstanding RPCs and the chunk fetch latency.
+     */
+    public TransportMetrics getMetrics() {
+        return metrics;
+    }
 }
@@ -0,0 +1,269 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.buffer;
+
+import com.google.common.annotations.VisibleForTesting;
+import io.netty.channel.DefaultFileRegion;
+import org.apache.spark.network.util.JavaUtils;
+import org.apache.spark.network.util.TransportConf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the {@link FileChannel}s of recently served files open, so that serving many segments of
+ * the same file, e.g. the blocks of a shuffle output, does not open and close the file for each
+ * segment. Channels are only used for positional reads and transfers, so one channel can serve
+ * any number of concurrent readers.
+ *
+ * Each cached file is reference counted: the cache holds one reference while the file is among
+ * the {@code maxOpenFiles} most recently used ones, and every reader holds one until it is done.
+ * The channel is closed when the last reference goes away.
+ *
+ * Files requested at least {@code hotThreshold} times are also mapped into memory as a whole,
+ * within a budget of {@code maxMappedBytes} over all files, so that later requests for large
+ * segments slice the existing mapping instead of mapping the segment again. The budget only
+ * covers the mappings the cache holds: a mapping dropped from the cache stays in memory until
+ * every segment sliced from it has been garbage collected.
+ *
+ * A cached file whose length or modification time has changed is reopened, so a file that was
+ * replaced is never served from a stale channel.
+ */
+public final class FileChannelCache {
+
+  private static final ConcurrentHashMap<String, FileChannelCache> CACHES =
+    new ConcurrentHashMap<>();
+
+  private final int maxOpenFiles;
+  private final int hotThreshold;
+  private final long maxMappedBytes;
+
+  /** In access order, so the eldest entry is the least recently used file. Guarded by this. */
+  private final LinkedHashMap<File, CachedFile> files = new LinkedHashMap<>(16, 0.75f, true);
+
+  /**
+   * Bytes of the mappings held by the files in {@link #files}, not counting mappings that were
+   * dropped but are still pinned by segments. Guarded by this.
+   */
+  private long cachedMappedBytes = 0;
+
+  @VisibleForTesting
+  FileChannelCache(int maxOpenFiles, int hotThreshold, long maxMappedBytes) {
+    this.maxOpenFiles = maxOpenFiles;
+    this.hotThreshold = hotThreshold;
+    this.maxMappedBytes = maxMappedBytes;
+  }
+
+  /**
+   * Returns the cache shared by all buffers of the module of {@code conf}, or null if
+   * {@link TransportConf#fileCacheMaxOpenFiles()} is 0. The first caller's settings win.
+   */
+  public static FileChannelCache get(TransportConf conf) {
+    if (conf.fileCacheMaxOpenFiles() <= 0) {
+      return null;
+    }
+    FileChannelCache cache = CACHES.get(conf.getModuleName());
+    if (cache == null) {
+      FileChannelCache created = new FileChannelCache(conf.fileCacheMaxOpenFiles(),
+        conf.fileCacheHotThreshold(), conf.fileCacheMaxMappedBytes());
+      cache = CACHES.putIfAbsent(conf.getModuleName(), created);
+      if (cache == null) {
+        cache = created;
+      }
+    }
+    return cache;
+  }
+
+  /**
+   * Returns the cached file for {@code file}, opening it if needed. The caller must call
+   * {@link CachedFile#release()} once it no longer uses the channel.
+   */
+  public CachedFile acquire(File file) throws IOException {
+    long length = file.length();
+    long lastModified = file.lastModified();
+    List<CachedFile> toRelease = new ArrayList<>();
+    try {
+      synchronized (this) {
+        CachedFile cached = files.get(file);
+        if (cached != null) {
+          if (cached.length == length && cached.lastModified == lastModified) {
+            cached.refCnt++;
+            cached.requests++;
+            return cached;
+          }
+          evict(cached, toRelease);
+        }
+      }
+
+      CachedFile opened = new CachedFile(
+        file, new RandomAccessFile(file, "r").getChannel(), length, lastModified);
+      synchronized (this) {
+        CachedFile raced = files.get(file);
+        if (raced != null && raced.length == length && raced.lastModified == lastModified) {
+          // Another thread opened it meanwhile; use theirs.
+          toRelease.add(opened);
+          raced.refCnt++;
+          raced.requests++;
+          return raced;
+        }
+        if (raced != null) {
+          evict(raced, toRelease);
+        }
+        // One reference for the cache and one for the caller.
+        opened.refCnt = 2;
+        files.put(file, opened);
+        Iterator<CachedFile> eldest = files.values().iterator();
+        while (files.size() > maxOpenFiles && eldest.hasNext()) {
+          CachedFile victim = eldest.next();
+          eldest.remove();
+          dropMapping(victim);
+          toRelease.add(victim);
+        }
+        return opened;
+      }
+    } finally {
+      // Closing channels does not need the lock.
+      for (CachedFile cached : toRelease) {
+        cached.release();
+      }
+    }
+  }
+
+  @VisibleForTesting
+  synchronized int numOpenFiles() {
+    return files.size();
+  }
+
+  @VisibleForTesting
+  synchronized long cachedMappedBytes() {
+    return cachedMappedBytes;
+  }
+
+  private void evict(CachedFile cached, List<CachedFile> toRelease) {
+    files.remove(cached.file);
+    dropMapping(cached);
+    toRelease.add(cached);
+  }
+
+  private void dropMapping(CachedFile cached) {
+    if (cached.mapped != null) {
+      cachedMappedBytes -= cached.length;
+      // Slices handed out keep the mapping alive until they are garbage collected.
+      cached.mapped = null;
+    }
+  }
+
+  /** An open file shared by the readers of its segments. */
+  public final class CachedFile {
+    private final File file;
+    private final FileChannel channel;
+    private final long length;
+    private final long lastModified;
+
+    // Guarded by the cache.
+    private int refCnt = 1;
+    private int requests = 1;
+    private MappedByteBuffer mapped;
+
+    private CachedFile(File file, FileChannel channel, long length, long lastModified) {
+      this.file = file;
+      this.channel = channel;
+      this.length = length;
+      this.lastModified = lastModified;
+    }
+
+    public FileChannel channel() {
+      return channel;
+    }
+
+    /**
+     * Returns the segment as a slice of a mapping of the whole file if the file is hot enough
+     * and fits in the mapping budget, or null otherwise.
+     */
+    public ByteBuffer mappedSegment(long offset, long segmentLength) throws IOException {
+      MappedByteBuffer mapping;
+      synchronized (FileChannelCache.this) {
+        if (mapped == null && requests >= hotThreshold && length <= Integer.MAX_VALUE &&
+            cachedMappedBytes + length <= maxMappedBytes && files.get(file) == this) {
+          mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+          cachedMappedBytes += length;
+        }
+        mapping = mapped;
+      }
+      if (mapping == null || offset + segmentLength > mapping.capacity()) {
+        return null;
+      }
+      ByteBuffer segment = mapping.duplicate();
+      segment.position((int) offset);
+      segment.limit((int) (offset + segmentLength));
+      return segment.slice();
+    }
+
+    /**
+     * Returns a zero-copy region over a segment of the file. The region holds its own reference,
+     * released when Netty releases the region, rather than closing the shared channel.
+     */
+    public DefaultFileRegion newRegion(long offset, long segmentLength) {
+      synchronized (FileChannelCache.this) {
+        refCnt++;
+      }
+      return new DefaultFileRegion(channel, offset, segmentLength) {
+        @Override
+        protected void deallocate() {
+          CachedFile.this.release();
+        }
+      };
+    }
+
+    public void release() {
+      boolean close;
+      synchronized (FileChannelCache.this) {
+        close = --refCnt == 0;
+      }
+      if (close) {
+        JavaUtils.closeQuietly(channel);
+      }
+    }
+  }
+
+  /** Closes every cached file that is not in use and empties the cache. */
+  @VisibleForTesting
+  void clear() {
+    List<CachedFile> toRelease;
+    synchronized (this) {
+      toRelease = new ArrayList<>(files.values());
+      for (Map.Entry<File, CachedFile> e : files.entrySet()) {
+        dropMapping(e.getValue());
+      }
+      files.clear();
+    }
+    for (CachedFile cached : toRelease) {
+      cached.release();
+    }
+  }
+}
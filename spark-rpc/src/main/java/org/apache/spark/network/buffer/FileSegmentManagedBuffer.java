@@ -31,6 +31,9 @@ import java.nio.channels.FileChannel;
 
 /**
  * A {@link ManagedBuffer} backed by a segment in a file.
+ *
+ * When {@link TransportConf#fileCacheMaxOpenFiles()} is set, the file is read through the shared
+ * {@link FileChannelCache} instead of being opened for every call.
  */
 public final class FileSegmentManagedBuffer extends ManagedBuffer {
   private final TransportConf conf;
@@ -52,6 +55,10 @@ public final class FileSegmentManagedBuffer extends ManagedBuffer {
 
   @Override
   public ByteBuffer nioByteBuffer() throws IOException {
+    FileChannelCache cache = FileChannelCache.get(conf);
+    if (cache != null) {
+      return cachedNioByteBuffer(cache);
+    }
     FileChannel channel = null;
     try {
       channel = new RandomAccessFile(file, "r").getChannel();
@@ -87,6 +94,38 @@ public final class FileSegmentManagedBuffer extends ManagedBuffer {
     }
   }
 
+  private ByteBuffer cachedNioByteBuffer(FileChannelCache cache) throws IOException {
+    FileChannelCache.CachedFile cached;
+    try {
+      cached = cache.acquire(file);
+    } catch (IOException e) {
+      throw new IOException("Error in opening " + this, e);
+    }
+    FileChannel channel = cached.channel();
+    try {
+      if (length < conf.memoryMapBytes()) {
+        ByteBuffer buf = ByteBuffer.allocate((int) length);
+        // Positional reads leave the shared channel's position alone.
+        while (buf.remaining() != 0) {
+          if (channel.read(buf, offset + buf.position()) == -1) {
+            throw new IOException(String.format("Reached EOF before filling buffer\n" +
+              "offset=%s\nfile=%s\nbuf.remaining=%s",
+              offset, file.getAbsoluteFile(), buf.remaining()));
+          }
+        }
+        buf.flip();
+        return buf;
+      }
+      ByteBuffer segment = cached.mappedSegment(offset, length);
+      return segment != null ? segment : channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    } catch (IOException e) {
+      throw new IOException("Error in reading " + this + " (actual file length " + file.length() +
+        ")", e);
+    } finally {
+      cached.release();
+    }
+  }
+
   @Override
   public InputStream createInputStream() throws IOException {
     FileInputStream is = null;
@@ -125,7 +164,15 @@ public final class FileSegmentManagedBuffer extends ManagedBuffer {
 
   @Override
   public Object convertToNetty() throws IOException {
-    if (conf.lazyFileDescriptor()) {
+    FileChannelCache cache = FileChannelCache.get(conf);
+    if (cache != null) {
+      FileChannelCache.CachedFile cached = cache.acquire(file);
+      try {
+        return cached.newRegion(offset, length);
+      } finally {
+        cached.release();
+      }
+    } else if (conf.lazyFileDescriptor()) {
       return new DefaultFileRegion(file, offset, length);
     } else {
       FileChannel fileChannel = new FileInputStream(file).getChannel();
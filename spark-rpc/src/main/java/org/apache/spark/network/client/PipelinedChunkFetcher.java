@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.client;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import org.apache.spark.network.buffer.ManagedBuffer;
+import org.apache.spark.network.util.TransportConf;
+
+/**
+ * Fetches all chunks of a stream through one {@link TransportClient}, keeping a window of
+ * requests outstanding instead of paying a full round trip per chunk. Chunks are still requested,
+ * and so delivered, in order.
+ *
+ * The window follows the bandwidth-delay product of the connection: it is the smallest round
+ * trip time seen so far divided by the average time between two arriving chunks, plus one, so it
+ * grows while chunks come back faster than a round trip and stops growing once the server or the
+ * network is the bottleneck. It is capped by {@code maxWindow} and by how many chunks of the
+ * average size seen so far fit in {@code maxBytesInFlight}.
+ *
+ * The callback gets exactly one call per chunk. After a failure no more chunks are requested and
+ * all chunks not requested yet are failed with the same cause.
+ */
+public class PipelinedChunkFetcher implements ChunkReceivedCallback {
+
+  /** Weight of a new sample in the moving averages. */
+  private static final double ALPHA = 0.125;
+
+  private final TransportClient client;
+  private final long streamId;
+  private final int numChunks;
+  private final ChunkReceivedCallback callback;
+  private final int maxWindow;
+  private final long maxBytesInFlight;
+
+  // Everything below is guarded by this fetcher.
+
+  /** When each outstanding chunk was requested, indexed by chunk index modulo maxWindow. */
+  private final long[] requestTimesNs;
+  private int nextChunk = 0;
+  private int outstanding = 0;
+  private int window = 1;
+  private boolean failed = false;
+  private long minRttNs = Long.MAX_VALUE;
+  private long lastArrivalNs = 0;
+  private double avgInterArrivalNs = 0;
+  private double avgChunkBytes = 0;
+
+  public PipelinedChunkFetcher(
+      TransportClient client,
+      TransportConf conf,
+      long streamId,
+      int numChunks,
+      ChunkReceivedCallback callback) {
+    this(client, streamId, numChunks, callback, conf.fetchMaxWindow(),
+      conf.fetchMaxBytesInFlight());
+  }
+
+  public PipelinedChunkFetcher(
+      TransportClient client,
+      long streamId,
+      int numChunks,
+      ChunkReceivedCallback callback,
+      int maxWindow,
+      long maxBytesInFlight) {
+    Preconditions.checkArgument(maxWindow > 0, "maxWindow must be positive");
+    Preconditions.checkArgument(maxBytesInFlight > 0, "maxBytesInFlight must be positive");
+    this.client = Preconditions.checkNotNull(client);
+    this.streamId = streamId;
+    this.numChunks = numChunks;
+    this.callback = Preconditions.checkNotNull(callback);
+    this.maxWindow = maxWindow;
+    this.maxBytesInFlight = maxBytesInFlight;
+    this.requestTimesNs = new long[maxWindow];
+  }
+
+  /** Sends the first requests. Responses are delivered on the client's event loop. */
+  public void start() {
+    fill();
+  }
+
+  @VisibleForTesting
+  synchronized int window() {
+    return window;
+  }
+
+  @Override
+  public void onSuccess(int chunkIndex, ManagedBuffer buffer) {
+    long now = System.nanoTime();
+    synchronized (this) {
+      outstanding--;
+      minRttNs = Math.min(minRttNs, now - requestTimesNs[chunkIndex % maxWindow]);
+      if (lastArrivalNs != 0) {
+        avgInterArrivalNs = average(avgInterArrivalNs, now - lastArrivalNs);
+      }
+      lastArrivalNs = now;
+      avgChunkBytes = average(avgChunkBytes, buffer.size());
+      window = nextWindow();
+    }
+    callback.onSuccess(chunkIndex, buffer);
+    fill();
+  }
+
+  @Override
+  public void onFailure(int chunkIndex, Throwable e) {
+    int firstUnrequested;
+    synchronized (this) {
+      outstanding--;
+      if (failed) {
+        firstUnrequested = numChunks;
+      } else {
+        failed = true;
+        firstUnrequested = nextChunk;
+        nextChunk = numChunks;
+      }
+    }
+    callback.onFailure(chunkIndex, e);
+    for (int i = firstUnrequested; i < numChunks; i++) {
+      callback.onFailure(i, e);
+    }
+  }
+
+  /**
+   * Requests chunks until the window is full. Requests are sent while holding the lock so that
+   * they leave in chunk order even when the caller of {@link #start()} and the event loop race.
+   * Sending only queues a write, so this never blocks on the network.
+   */
+  private synchronized void fill() {
+    while (!failed && nextChunk < numChunks && outstanding < window) {
+      int chunkIndex = nextChunk++;
+      outstanding++;
+      requestTimesNs[chunkIndex % maxWindow] = System.nanoTime();
+      client.fetchChunk(streamId, chunkIndex, this);
+    }
+  }
+
+  private int nextWindow() {
+    long target;
+    if (avgInterArrivalNs == 0) {
+      // A single chunk has arrived; there is no arrival rate to go by yet.
+      target = window + 1;
+    } else {
+      target = (long) Math.ceil(minRttNs / avgInterArrivalNs) + 1;
+    }
+    long fitting = Math.max(1L, (long) (maxBytesInFlight / Math.max(1.0, avgChunkBytes)));
+    return (int) Math.max(1L, Math.min(Math.min(target, fitting), maxWindow));
+  }
+
+  private static double average(double average, double sample) {
+    return average == 0 ? sample : average + ALPHA * (sample - average);
+  }
+}
@@ -25,7 +25,9 @@ import com.google.common.util.concurrent.SettableFuture;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
+import org.apache.spark.network.buffer.ManagedBuffer;
 import org.apache.spark.network.buffer.NioManagedBuffer;
+import org.apache.spark.network.metrics.TransportMetrics;
 import org.apache.spark.network.protocol.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -72,12 +74,21 @@ public class TransportClient implements Closeable {
 
   private final Channel channel;
   private final TransportResponseHandler handler;
+  private final TransportMetrics metrics;
   @Nullable private String clientId;
   private volatile boolean timedOut;
 
   public TransportClient(Channel channel, TransportResponseHandler handler) {
+    this(channel, handler, new TransportMetrics());
+  }
+
+  public TransportClient(
+      Channel channel,
+      TransportResponseHandler handler,
+      TransportMetrics metrics) {
     this.channel = Preconditions.checkNotNull(channel);
     this.handler = Preconditions.checkNotNull(handler);
+    this.metrics = Preconditions.checkNotNull(metrics);
     this.timedOut = false;
   }
 
@@ -131,38 +142,16 @@ public class TransportClient implements Closeable {
       long streamId,
       final int chunkIndex,
       final ChunkReceivedCallback callback) {
-    final long startTime = System.currentTimeMillis();
     if (logger.isDebugEnabled()) {
       logger.debug("Sending fetch chunk request {} to {}", chunkIndex, getRemoteAddress(channel));
     }
 
     final StreamChunkId streamChunkId = new StreamChunkId(streamId, chunkIndex);
-    handler.addFetchRequest(streamChunkId, callback);
-
-    channel.writeAndFlush(new ChunkFetchRequest(streamChunkId)).addListener(
-      new ChannelFutureListener() {
-        @Override
-        public void operationComplete(ChannelFuture future) throws Exception {
-          if (future.isSuccess()) {
-            long timeTaken = System.currentTimeMillis() - startTime;
-            if (logger.isTraceEnabled()) {
-              logger.trace("Sending request {} to {} took {} ms", streamChunkId,
-                getRemoteAddress(channel), timeTaken);
-            }
-          } else {
-            String errorMsg = String.format("Failed to send request %s to %s: %s", streamChunkId,
-              getRemoteAddress(channel), future.cause());
-            logger.error(errorMsg, future.cause());
-            handler.removeFetchRequest(streamChunkId);
-            channel.close();
-            try {
-              callback.onFailure(chunkIndex, new IOException(errorMsg, future.cause()));
-            } catch (Exception e) {
-              logger.error("Uncaught exception in RPC response callback handler!", e);
-            }
-          }
-        }
-      });
+    ChunkFetch fetch = new ChunkFetch(streamChunkId, callback);
+    metrics.outstandingFetches().inc();
+    handler.addFetchRequest(streamChunkId, fetch);
+
+    channel.writeAndFlush(new ChunkFetchRequest(streamChunkId)).addListener(fetch);
   }
 
   /**
@@ -217,7 +206,20 @@ public class TransportClient implements Closeable {
    * @return The RPC's id.
    */
   public long sendRpc(ByteBuffer message, final RpcResponseCallback callback) {
-    final long startTime = System.currentTimeMillis();
+    return sendRpc(message, callback, true);
+  }
+
+  /**
+   * Like {@link #sendRpc(ByteBuffer, RpcResponseCallback)}, but when {@code flush} is false the
+   * request is only queued in the channel's outbound buffer and goes out with the next
+   * {@link #flush()}. Several requests written this way leave in a single gathering write.
+   *
+   * @param message The message to send.
+   * @param callback Callback to handle the RPC's reply.
+   * @param flush Whether to flush the channel after writing the request.
+   * @return The RPC's id.
+   */
+  public long sendRpc(ByteBuffer message, final RpcResponseCallback callback, boolean flush) {
     // todo send rpc message
     logger.trace("client 2. remote rpc called {}",message);
     if (logger.isTraceEnabled()) {
@@ -226,32 +228,12 @@ public class TransportClient implements Closeable {
 
     // 构造请求ID
     final long requestId = Math.abs(UUID.randomUUID().getLeastSignificantBits());
-    handler.addRpcRequest(requestId, callback);
-
-    channel.writeAndFlush(new RpcRequest(requestId, new NioManagedBuffer(message))).addListener(
-      new ChannelFutureListener() {
-        @Override
-        public void operationComplete(ChannelFuture future) throws Exception {
-          if (future.isSuccess()) {
-            long timeTaken = System.currentTimeMillis() - startTime;
-            if (logger.isTraceEnabled()) {
-              logger.trace("Sending request {} to {} took {} ms", requestId,
-                getRemoteAddress(channel), timeTaken);
-            }
-          } else {
-            String errorMsg = String.format("Failed to send RPC %s to %s: %s", requestId,
-              getRemoteAddress(channel), future.cause());
-            logger.error(errorMsg, future.cause());
-            handler.removeRpcRequest(requestId);
-            channel.close();
-            try {
-              callback.onFailure(new IOException(errorMsg, future.cause()));
-            } catch (Exception e) {
-              logger.error("Uncaught exception in RPC response callback handler!", e);
-            }
-          }
-        }
-      });
+    RpcCall call = new RpcCall(requestId, message.remaining(), callback);
+    metrics.outstandingRpcs().inc();
+    metrics.bytesInFlight().add(call.bytes);
+    handler.addRpcRequest(requestId, call);
+
+    write(new RpcRequest(requestId, new NioManagedBuffer(message)), flush).addListener(call);
 
     return requestId;
   }
@@ -295,7 +277,27 @@ public class TransportClient implements Closeable {
    * @param message The message to send.
    */
   public void send(ByteBuffer message) {
-    channel.writeAndFlush(new OneWayMessage(new NioManagedBuffer(message)));
+    send(message, true);
+  }
+
+  /**
+   * Like {@link #send(ByteBuffer)}, but when {@code flush} is false the message is only queued in
+   * the channel's outbound buffer and goes out with the next {@link #flush()}.
+   *
+   * @param message The message to send.
+   * @param flush Whether to flush the channel after writing the message.
+   */
+  public void send(ByteBuffer message, boolean flush) {
+    write(new OneWayMessage(new NioManagedBuffer(message)), flush);
+  }
+
+  /** Flushes requests written with {@code flush = false} to the socket. */
+  public void flush() {
+    channel.flush();
+  }
+
+  private ChannelFuture write(Message message, boolean flush) {
+    return flush ? channel.writeAndFlush(message) : channel.write(message);
   }
 
   /**
@@ -304,7 +306,11 @@ public class TransportClient implements Closeable {
    * @param requestId The RPC id returned by {@link #sendRpc(ByteBuffer, RpcResponseCallback)}.
    */
   public void removeRpcRequest(long requestId) {
-    handler.removeRpcRequest(requestId);
+    RpcResponseCallback callback = handler.removeRpcRequest(requestId);
+    if (callback instanceof RpcCall) {
+      // The response will never be delivered, so the RPC is no longer outstanding.
+      ((RpcCall) callback).complete();
+    }
   }
 
   /** Mark this channel as having timed out. */
@@ -323,6 +329,134 @@ public class TransportClient implements Closeable {
     channel.close().awaitUninterruptibly(10, TimeUnit.SECONDS);
   }
 
+  /**
+   * One chunk fetch in flight. It is both the listener of the request's write and the callback
+   * registered with the response handler, so timing the fetch needs no object beyond the listener
+   * the write needs anyway.
+   */
+  private final class ChunkFetch implements ChannelFutureListener, ChunkReceivedCallback {
+    private final StreamChunkId streamChunkId;
+    private final ChunkReceivedCallback callback;
+    private final long startNs = System.nanoTime();
+    private boolean completed;
+
+    ChunkFetch(StreamChunkId streamChunkId, ChunkReceivedCallback callback) {
+      this.streamChunkId = streamChunkId;
+      this.callback = callback;
+    }
+
+    @Override
+    public void operationComplete(ChannelFuture future) throws Exception {
+      long timeTaken = System.nanoTime() - startNs;
+      metrics.writeQueueDelay().record(timeTaken);
+      if (future.isSuccess()) {
+        if (logger.isTraceEnabled()) {
+          logger.trace("Sending request {} to {} took {} ms", streamChunkId,
+            getRemoteAddress(channel), TimeUnit.NANOSECONDS.toMillis(timeTaken));
+        }
+      } else {
+        String errorMsg = String.format("Failed to send request %s to %s: %s", streamChunkId,
+          getRemoteAddress(channel), future.cause());
+        logger.error(errorMsg, future.cause());
+        handler.removeFetchRequest(streamChunkId);
+        channel.close();
+        try {
+          onFailure(streamChunkId.chunkIndex, new IOException(errorMsg, future.cause()));
+        } catch (Exception e) {
+          logger.error("Uncaught exception in RPC response callback handler!", e);
+        }
+      }
+    }
+
+    @Override
+    public void onSuccess(int chunkIndex, ManagedBuffer buffer) {
+      if (complete()) {
+        metrics.chunkFetchLatency().record(System.nanoTime() - startNs);
+      }
+      callback.onSuccess(chunkIndex, buffer);
+    }
+
+    @Override
+    public void onFailure(int chunkIndex, Throwable e) {
+      complete();
+      callback.onFailure(chunkIndex, e);
+    }
+
+    /** A failed write and a closed channel can both fail the fetch; count it only once. */
+    private synchronized boolean complete() {
+      if (completed) {
+        return false;
+      }
+      completed = true;
+      metrics.outstandingFetches().dec();
+      return true;
+    }
+  }
+
+  /** One RPC in flight, the counterpart of {@link ChunkFetch}. */
+  private final class RpcCall implements ChannelFutureListener, RpcResponseCallback {
+    private final long requestId;
+    private final long bytes;
+    private final RpcResponseCallback callback;
+    private final long startNs = System.nanoTime();
+    private boolean completed;
+
+    RpcCall(long requestId, long bytes, RpcResponseCallback callback) {
+      this.requestId = requestId;
+      this.bytes = bytes;
+      this.callback = callback;
+    }
+
+    @Override
+    public void operationComplete(ChannelFuture future) throws Exception {
+      long timeTaken = System.nanoTime() - startNs;
+      metrics.bytesInFlight().add(-bytes);
+      metrics.writeQueueDelay().record(timeTaken);
+      if (future.isSuccess()) {
+        if (logger.isTraceEnabled()) {
+          logger.trace("Sending request {} to {} took {} ms", requestId,
+            getRemoteAddress(channel), TimeUnit.NANOSECONDS.toMillis(timeTaken));
+        }
+      } else {
+        String errorMsg = String.format("Failed to send RPC %s to %s: %s", requestId,
+          getRemoteAddress(channel), future.cause());
+        logger.error(errorMsg, future.cause());
+        handler.removeRpcRequest(requestId);
+        channel.close();
+        try {
+          onFailure(new IOException(errorMsg, future.cause()));
+        } catch (Exception e) {
+          logger.error("Uncaught exception in RPC response callback handler!", e);
+        }
+      }
+    }
+
+    @Override
+    public void onSuccess(ByteBuffer response) {
+      if (complete()) {
+        metrics.rpcLatency().record(System.nanoTime() - startNs);
+      }
+      callback.onSuccess(response);
+    }
+
+    @Override
+    public void onFailure(Throwable e) {
+      if (complete()) {
+        metrics.rpcFailures().inc();
+      }
+      callback.onFailure(e);
+    }
+
+    private synchronized boolean complete() {
+      if (completed) {
+        return false;
+      }
+      completed = true;
+      metrics.outstandingRpcs().dec();
+      return true;
+    }
+  }
+
   @Override
   public String toString() {
     return Objects.toStringHelper(this)
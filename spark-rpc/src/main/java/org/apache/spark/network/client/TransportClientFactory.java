@@ -79,6 +79,7 @@ public class TransportClientFactory implements Closeable {
   private final Random rand;
   private final int numConnectionsPerPeer;
 
+  private final IOMode ioMode;
   private final Class<? extends Channel> socketChannelClass;
   private EventLoopGroup workerGroup;
   private PooledByteBufAllocator pooledAllocator;
@@ -93,14 +94,17 @@ public class TransportClientFactory implements Closeable {
     this.numConnectionsPerPeer = conf.numConnectionsPerPeer();
     this.rand = new Random();
 
-    IOMode ioMode = IOMode.valueOf(conf.ioMode());
+    this.ioMode = NettyUtils.resolveIOMode(conf.ioMode());
     this.socketChannelClass = NettyUtils.getClientChannelClass(ioMode);
     this.workerGroup = NettyUtils.createEventLoop(
         ioMode,
         conf.clientThreads(),
         conf.getModuleName() + "-client");
-    this.pooledAllocator = NettyUtils.createPooledByteBufAllocator(
-      conf.preferDirectBufs(), false /* allowCache */, conf.clientThreads());
+    this.pooledAllocator = NettyUtils.getPooledByteBufAllocator(
+      conf, false /* allowCache */, conf.clientThreads());
+    context.getMetrics().registerAllocator(
+      conf.sharedByteBufAllocators() ? "shared.client" : conf.getModuleName() + ".client",
+      pooledAllocator);
   }
 
   /**
@@ -206,6 +210,7 @@ public class TransportClientFactory implements Closeable {
       .option(ChannelOption.SO_KEEPALIVE, true)
       .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, conf.connectionTimeoutMs())
       .option(ChannelOption.ALLOCATOR, pooledAllocator);
+    NettyUtils.configureEpoll(ioMode, bootstrap, conf);
 
     final AtomicReference<TransportClient> clientRef = new AtomicReference<>();
     final AtomicReference<Channel> channelRef = new AtomicReference<>();
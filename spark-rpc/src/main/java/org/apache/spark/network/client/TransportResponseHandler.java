@@ -81,8 +81,8 @@ public class TransportResponseHandler extends MessageHandler<ResponseMessage> {
     outstandingRpcs.put(requestId, callback);
   }
 
-  public void removeRpcRequest(long requestId) {
-    outstandingRpcs.remove(requestId);
+  public RpcResponseCallback removeRpcRequest(long requestId) {
+    return outstandingRpcs.remove(requestId);
   }
 
   public void addStreamCallback(StreamCallback callback) {
@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A counter that may go up and down, e.g. to track a number of outstanding requests.
+ *
+ * Updates go to a {@link LongAdder}, which spreads contended updates over per-thread cells instead
+ * of making every event loop CAS the same word. Reading sums the cells, so reads are the expensive
+ * side, which suits a value that is updated on every message but only read when reporting.
+ */
+public final class Counter implements Metric {
+
+  private final LongAdder value = new LongAdder();
+
+  public void inc() {
+    value.increment();
+  }
+
+  public void dec() {
+    value.decrement();
+  }
+
+  public void add(long delta) {
+    value.add(delta);
+  }
+
+  /** The current value. Not an atomic snapshot when there are concurrent updates. */
+  public long get() {
+    return value.sum();
+  }
+
+  @Override
+  public String toString() {
+    return Long.toString(get());
+  }
+}
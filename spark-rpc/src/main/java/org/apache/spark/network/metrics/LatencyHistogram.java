@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in nanoseconds with fixed log-linear buckets, in the style of
+ * HdrHistogram: every power of two is split into {@code 2^SUB_BUCKET_BITS} equal sub-buckets, so
+ * a recorded value is off by at most ~3% whatever its magnitude. Values from 0 up to about 36
+ * minutes fit in 1184 buckets; anything larger is counted in the last bucket.
+ *
+ * {@link #record(long)} computes the bucket with a few shifts and does one atomic increment. It
+ * never allocates and never takes a lock, so it can be called from Netty event loops. Percentiles
+ * are computed when read.
+ */
+public final class LatencyHistogram implements Metric {
+
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MAX_EXPONENT = 40;
+  private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) << SUB_BUCKET_BITS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  /** Record one duration in nanoseconds. Negative values, e.g. from clock skew, count as 0. */
+  public void record(long valueNs) {
+    long value = Math.max(0L, valueNs);
+    counts.incrementAndGet(bucketOf(value));
+    count.increment();
+    sum.add(value);
+    long currentMax = max.get();
+    while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+      currentMax = max.get();
+    }
+  }
+
+  public long count() {
+    return count.sum();
+  }
+
+  public long max() {
+    return max.get();
+  }
+
+  public double mean() {
+    long n = count.sum();
+    return n == 0 ? 0.0 : (double) sum.sum() / n;
+  }
+
+  /**
+   * The value at or below which {@code percentile} percent of the recorded values fall, e.g.
+   * {@code percentile(99.9)}, rounded up to the top of its bucket. Returns 0 when nothing has been
+   * recorded.
+   */
+  public long percentile(double percentile) {
+    if (percentile < 0.0 || percentile > 100.0) {
+      throw new IllegalArgumentException("Percentile must be in [0, 100] but got " + percentile);
+    }
+    long[] snapshot = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0L;
+    }
+    long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(highestValueIn(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("count=%d mean=%.0f p50=%d p99=%d p999=%d max=%d",
+      count(), mean(), percentile(50), percentile(99), percentile(99.9), max());
+  }
+
+  static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent > MAX_EXPONENT) {
+      return BUCKETS - 1;
+    }
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+  }
+
+  static long highestValueIn(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = (bucket >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+    int subBucket = bucket & (SUB_BUCKETS - 1);
+    long width = 1L << (exponent - SUB_BUCKET_BITS);
+    return ((long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+  }
+}
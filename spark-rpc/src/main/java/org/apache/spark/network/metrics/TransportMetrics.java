@@ -0,0 +1,253 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.metrics;
+
+import io.netty.buffer.PoolArenaMetric;
+import io.netty.buffer.PoolChunkListMetric;
+import io.netty.buffer.PoolChunkMetric;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The metrics of one {@link org.apache.spark.network.TransportContext}, shared by every client and
+ * server channel it creates. Durations are in nanoseconds.
+ *
+ * The transport layer records into the metrics held in fields, so the hot path never looks a name
+ * up. Other layers may register their own metrics by name through {@link #counter(String)},
+ * {@link #histogram(String)} and {@link #gauge(String, Gauge)}, and {@link #getMetrics()} lists
+ * all of them for reporting.
+ */
+public class TransportMetrics {
+
+  private final ConcurrentMap<String, Metric> metrics = new ConcurrentHashMap<>();
+
+  // Client side.
+  private final Counter outstandingRpcs = counter("client.outstandingRpcs");
+  private final Counter outstandingFetches = counter("client.outstandingFetches");
+  private final LatencyHistogram rpcLatency = histogram("client.rpcLatency");
+  private final Counter rpcFailures = counter("client.rpcFailures");
+  private final LatencyHistogram chunkFetchLatency = histogram("client.chunkFetchLatency");
+
+  // Both sides.
+  private final Counter bytesInFlight = counter("bytesInFlight");
+  private final LatencyHistogram writeQueueDelay = histogram("writeQueueDelay");
+
+  // Server side.
+  private final Counter requestsReceived = counter("server.requestsReceived");
+  private final LatencyHistogram rpcProcessingTime = histogram("server.rpcProcessingTime");
+
+  /** RPCs sent whose response or failure has not arrived yet. */
+  public Counter outstandingRpcs() {
+    return outstandingRpcs;
+  }
+
+  /** Chunk fetches sent whose chunk or failure has not arrived yet. */
+  public Counter outstandingFetches() {
+    return outstandingFetches;
+  }
+
+  /** Time from sending an RPC to receiving its response. */
+  public LatencyHistogram rpcLatency() {
+    return rpcLatency;
+  }
+
+  /**
+   * RPCs that failed, because the request could not be written, the connection was lost before
+   * the response, or the server replied with a failure.
+   */
+  public Counter rpcFailures() {
+    return rpcFailures;
+  }
+
+  /** Time from sending a chunk fetch request to receiving the chunk. */
+  public LatencyHistogram chunkFetchLatency() {
+    return chunkFetchLatency;
+  }
+
+  /**
+   * Bytes of RPC requests and of responses that have been handed to a channel but not written to
+   * the socket yet. One-way messages are not tracked, as that would need a listener per message.
+   */
+  public Counter bytesInFlight() {
+    return bytesInFlight;
+  }
+
+  /**
+   * Time from handing a request or response to a channel until it has been written to the socket,
+   * i.e. how long it queued in the channel's outbound buffer behind other writes.
+   */
+  public LatencyHistogram writeQueueDelay() {
+    return writeQueueDelay;
+  }
+
+  /** Requests of any type received by server channels. */
+  public Counter requestsReceived() {
+    return requestsReceived;
+  }
+
+  /**
+   * Time from receiving an RPC until its response is handed to the channel, including any time
+   * the request waits for the {@link org.apache.spark.network.server.RpcHandler} to get to it.
+   */
+  public LatencyHistogram rpcProcessingTime() {
+    return rpcProcessingTime;
+  }
+
+  /** Return the counter registered under {@code name}, registering a new one if needed. */
+  public Counter counter(String name) {
+    return register(name, Counter.class);
+  }
+
+  /** Return the histogram registered under {@code name}, registering a new one if needed. */
+  public LatencyHistogram histogram(String name) {
+    return register(name, LatencyHistogram.class);
+  }
+
+  /**
+   * Register {@code gauge} under {@code name} unless a metric already has that name, and return
+   * the metric registered under it.
+   */
+  public Gauge gauge(String name, Gauge gauge) {
+    Metric existing = metrics.putIfAbsent(name, gauge);
+    if (existing == null) {
+      return gauge;
+    }
+    if (!(existing instanceof Gauge)) {
+      throw new IllegalArgumentException(String.format(
+        "Metric %s is a %s, not a Gauge", name, existing.getClass().getSimpleName()));
+    }
+    return (Gauge) existing;
+  }
+
+  /**
+   * Register the usage of every arena of {@code allocator} as gauges named
+   * {@code allocator.<name>.<heap|direct>.<arena index>.<stat>}: the buffers allocated and not
+   * yet released, the bytes taken from the arena's chunks, and the number of threads caching for
+   * the arena.
+   *
+   * The gauges of an allocator registered earlier under the same name are replaced, so they
+   * always report the allocator in use, e.g. that of a server restarted on the same context.
+   */
+  public synchronized void registerAllocator(String name, PooledByteBufAllocator allocator) {
+    String prefix = "allocator." + name + ".";
+    Iterator<String> names = metrics.keySet().iterator();
+    while (names.hasNext()) {
+      if (names.next().startsWith(prefix)) {
+        names.remove();
+      }
+    }
+    registerArenas(prefix + "heap", allocator.heapArenas());
+    registerArenas(prefix + "direct", allocator.directArenas());
+  }
+
+  private void registerArenas(String prefix, List<PoolArenaMetric> arenas) {
+    for (int i = 0; i < arenas.size(); i++) {
+      String arenaPrefix = prefix + "." + i + ".";
+      for (ArenaGauge.Stat stat : ArenaGauge.Stat.values()) {
+        metrics.put(arenaPrefix + stat.key, new ArenaGauge(arenas.get(i), stat));
+      }
+    }
+  }
+
+  /** All registered metrics, sorted by name. */
+  public SortedMap<String, Metric> getMetrics() {
+    return Collections.unmodifiableSortedMap(new TreeMap<>(metrics));
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, Metric> e : getMetrics().entrySet()) {
+      sb.append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+    }
+    return sb.toString();
+  }
+
+  private <T extends Metric> T register(String name, Class<T> type) {
+    Metric metric = metrics.get(name);
+    if (metric == null) {
+      Metric created = type == Counter.class ? new Counter() : new LatencyHistogram();
+      metric = metrics.putIfAbsent(name, created);
+      if (metric == null) {
+        metric = created;
+      }
+    }
+    if (!type.isInstance(metric)) {
+      throw new IllegalArgumentException(String.format(
+        "Metric %s is a %s, not a %s", name, metric.getClass().getSimpleName(),
+        type.getSimpleName()));
+    }
+    return type.cast(metric);
+  }
+
+  private static final class ArenaGauge implements Gauge {
+
+    enum Stat {
+      ACTIVE_ALLOCATIONS("activeAllocations"),
+      USED_BYTES("usedBytes"),
+      THREAD_CACHES("threadCaches");
+
+      final String key;
+
+      Stat(String key) {
+        this.key = key;
+      }
+    }
+
+    private final PoolArenaMetric arena;
+    private final Stat stat;
+
+    ArenaGauge(PoolArenaMetric arena, Stat stat) {
+      this.arena = arena;
+      this.stat = stat;
+    }
+
+    @Override
+    public long get() {
+      switch (stat) {
+        case ACTIVE_ALLOCATIONS:
+          return arena.numActiveAllocations();
+        case USED_BYTES:
+          long used = 0;
+          for (PoolChunkListMetric chunkList : arena.chunkLists()) {
+            for (PoolChunkMetric chunk : chunkList) {
+              used += chunk.chunkSize() - chunk.freeBytes();
+            }
+          }
+          return used;
+        case THREAD_CACHES:
+          return arena.numThreadCaches();
+        default:
+          throw new IllegalStateException("Unknown stat: " + stat);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return Long.toString(get());
+    }
+  }
+}
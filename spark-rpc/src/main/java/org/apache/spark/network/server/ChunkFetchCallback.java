@@ -0,0 +1,32 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.server;
+
+import org.apache.spark.network.buffer.ManagedBuffer;
+
+/**
+ * Receives the chunk asked for with {@link StreamManager#getChunk(long, int, ChunkFetchCallback)},
+ * which may be after that call returned, on another thread. Exactly one of the methods is called,
+ * once.
+ */
+public interface ChunkFetchCallback {
+  /** The buffer will be release()'d after being written to the network. */
+  void onSuccess(ManagedBuffer buffer);
+
+  void onFailure(Throwable e);
+}
@@ -22,6 +22,7 @@ import org.apache.spark.network.client.TransportClient;
 import org.apache.spark.network.server.OneForOneStreamManager;
 import org.apache.spark.network.server.RpcHandler;
 import org.apache.spark.network.server.StreamManager;
+import org.apache.spark.network.util.TransportConf;
 
 import java.nio.ByteBuffer;
 
@@ -33,6 +34,11 @@ public class NoOpRpcHandler extends RpcHandler {
     streamManager = new OneForOneStreamManager();
   }
 
+  /** Serves streams with the read-ahead of {@link TransportConf#streamReadAheadChunks()}. */
+  public NoOpRpcHandler(TransportConf conf) {
+    streamManager = new OneForOneStreamManager(conf);
+  }
+
   @Override
   public void receive(TransportClient client, ByteBuffer message, RpcResponseCallback callback) {
     throw new UnsupportedOperationException("Cannot handle messages");
@@ -18,22 +18,38 @@
 package org.apache.spark.network.server;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.SettableFuture;
 import io.netty.channel.Channel;
 import org.apache.spark.network.buffer.ManagedBuffer;
 import org.apache.spark.network.client.TransportClient;
 import org.apache.spark.network.server.StreamManager;
+import org.apache.spark.network.util.NettyUtils;
+import org.apache.spark.network.util.TransportConf;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * StreamManager which allows registration of an Iterator&lt;ManagedBuffer&gt;, which are
  * individually fetched as chunks by the client. Each registered buffer is one chunk.
+ *
+ * With a positive read-ahead, a background thread takes up to that many buffers from the iterator
+ * ahead of the chunks requested so far, so that a client keeping several fetches outstanding
+ * (see {@link org.apache.spark.network.client.PipelinedChunkFetcher}) does not wait for the
+ * iterator on the event loop. A request for a chunk that has not been read ahead yet is answered
+ * by the read-ahead thread once it has the chunk, never by waiting on the event loop.
  */
 public class OneForOneStreamManager extends StreamManager {
   private static final Logger logger = LoggerFactory.getLogger(org.apache.spark.network.server.OneForOneStreamManager.class);
@@ -41,8 +57,29 @@ public class OneForOneStreamManager extends StreamManager {
   private final AtomicLong nextStreamId;
   private final ConcurrentHashMap<Long, StreamState> streams;
 
+  /** Number of buffers to take from a stream's iterator ahead of the requests; 0 disables it. */
+  private final int readAheadChunks;
+
+  /**
+   * Runs the read-ahead of the streams of every manager. Its threads are daemons and idle ones
+   * exit, so it needs no shutdown.
+   */
+  private static class ReadAheadExecutor {
+    static final ExecutorService INSTANCE = newExecutor();
+
+    private static ExecutorService newExecutor() {
+      int numThreads = Runtime.getRuntime().availableProcessors();
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(numThreads, numThreads, 60L,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        NettyUtils.createThreadFactory("stream-read-ahead"));
+      executor.allowCoreThreadTimeOut(true);
+      return executor;
+    }
+  }
+
   /** State of a single stream. */
-  private static class StreamState {
+  private class StreamState {
+    final long streamId;
     final String appId;
     final Iterator<ManagedBuffer> buffers;
 
@@ -53,17 +90,198 @@ public class OneForOneStreamManager extends StreamManager {
     // that the caller only requests each chunk one at a time, in order.
     int curChunk = 0;
 
-    StreamState(String appId, Iterator<ManagedBuffer> buffers) {
+    // Buffers already taken from the iterator by the read-ahead. Guarded by this state, as are
+    // the fields below.
+    final ArrayDeque<ManagedBuffer> readAheadBuffers = new ArrayDeque<>();
+
+    // Requests accepted but not answered yet, in order. Only non-empty while the read-ahead runs,
+    // since it hands each buffer it takes to the first of them.
+    final ArrayDeque<ChunkFetchCallback> waiting = new ArrayDeque<>();
+
+    // Whether a read-ahead task owns the iterator. Nothing else touches it meanwhile.
+    boolean readingAhead = false;
+
+    // What the iterator threw on the read-ahead thread. It fails the requests accepted before the
+    // stream was removed.
+    Throwable readAheadFailure = null;
+
+    boolean closed = false;
+
+    StreamState(long streamId, String appId, Iterator<ManagedBuffer> buffers) {
+      this.streamId = streamId;
       this.appId = appId;
       this.buffers = Preconditions.checkNotNull(buffers);
     }
+
+    /**
+     * Answers the request for the next chunk with a buffer read ahead, or with one the read-ahead
+     * takes later. Callbacks are called under this lock, so they run in request order.
+     */
+    synchronized void nextChunk(int chunkIndex, ChunkFetchCallback callback) {
+      curChunk += 1;
+      if (readAheadFailure != null) {
+        callback.onFailure(readAheadFailure);
+      } else if (waiting.isEmpty() && !readAheadBuffers.isEmpty()) {
+        callback.onSuccess(readAheadBuffers.poll());
+        afterChunk();
+      } else if (readingAhead) {
+        waiting.add(callback);
+      } else if (!buffers.hasNext()) {
+        callback.onFailure(beyondEnd(chunkIndex));
+      } else if (readAheadChunks > 0) {
+        waiting.add(callback);
+        startReadAhead();
+      } else {
+        // No read-ahead: the iterator is read on the caller's thread, as it always was.
+        ManagedBuffer buffer;
+        try {
+          buffer = buffers.next();
+        } catch (RuntimeException e) {
+          callback.onFailure(e);
+          return;
+        }
+        callback.onSuccess(buffer);
+        afterChunk();
+      }
+    }
+
+    /**
+     * Called after each chunk is handed out: removes the stream once it has been fully read, or
+     * starts the read-ahead if it is enabled and not running yet.
+     */
+    private void afterChunk() {
+      if (readingAhead) {
+        return;
+      }
+      if (readAheadBuffers.isEmpty() && !buffers.hasNext()) {
+        logger.trace("Removing stream id {}", streamId);
+        streams.remove(streamId);
+      } else {
+        startReadAhead();
+      }
+    }
+
+    synchronized void startReadAhead() {
+      if (readAheadChunks > 0 && !readingAhead && readAheadFailure == null && !closed &&
+          readAheadBuffers.size() < readAheadChunks && buffers.hasNext()) {
+        readingAhead = true;
+        ReadAheadExecutor.INSTANCE.execute(new Runnable() {
+          @Override
+          public void run() {
+            readAhead();
+          }
+        });
+      }
+    }
+
+    private void readAhead() {
+      while (true) {
+        ManagedBuffer buffer = null;
+        Throwable failure = null;
+        try {
+          // Only this task may touch the iterator while readingAhead is set, so no lock is held
+          // while the iterator produces the buffer.
+          buffer = buffers.hasNext() ? buffers.next() : null;
+        } catch (Throwable t) {
+          logger.warn("Read-ahead of stream " + streamId + " failed", t);
+          failure = t;
+        }
+        synchronized (this) {
+          if (closed) {
+            if (buffer != null) {
+              buffer.release();
+            }
+            readingAhead = false;
+            waiting.clear();
+            releaseRemaining();
+            return;
+          }
+          if (failure != null) {
+            readingAhead = false;
+            readAheadFailure = failure;
+            while (!waiting.isEmpty()) {
+              waiting.poll().onFailure(failure);
+            }
+            // The iterator is unusable now, so the stream is done: drop it and the buffers read
+            // ahead, which nothing can request any more.
+            logger.trace("Removing failed stream id {}", streamId);
+            streams.remove(streamId);
+            while (!readAheadBuffers.isEmpty()) {
+              readAheadBuffers.poll().release();
+            }
+            if (failure instanceof Error) {
+              throw (Error) failure;
+            }
+            return;
+          }
+          if (buffer == null) {
+            readingAhead = false;
+            int chunkIndex = curChunk - waiting.size();
+            while (!waiting.isEmpty()) {
+              waiting.poll().onFailure(beyondEnd(chunkIndex++));
+            }
+            if (readAheadBuffers.isEmpty()) {
+              streams.remove(streamId);
+            }
+            return;
+          }
+          if (!waiting.isEmpty()) {
+            waiting.poll().onSuccess(buffer);
+          } else {
+            readAheadBuffers.add(buffer);
+            if (readAheadBuffers.size() >= readAheadChunks) {
+              readingAhead = false;
+              return;
+            }
+          }
+        }
+      }
+    }
+
+    /** Releases every buffer not handed out yet, now or once the read-ahead stops. */
+    synchronized void close() {
+      closed = true;
+      if (!readingAhead) {
+        waiting.clear();
+        releaseRemaining();
+      }
+    }
+
+    private void releaseRemaining() {
+      while (!readAheadBuffers.isEmpty()) {
+        readAheadBuffers.poll().release();
+      }
+      while (buffers.hasNext()) {
+        buffers.next().release();
+      }
+    }
+  }
+
+  private static IllegalStateException beyondEnd(int chunkIndex) {
+    return new IllegalStateException(String.format(
+      "Requested chunk index beyond end %s", chunkIndex));
   }
 
   public OneForOneStreamManager() {
+    this(0);
+  }
+
+  /** Reads ahead {@link TransportConf#streamReadAheadChunks()} chunks of each stream. */
+  public OneForOneStreamManager(TransportConf conf) {
+    this(conf.streamReadAheadChunks());
+  }
+
+  /**
+   * @param readAheadChunks how many buffers of each stream to take from its iterator ahead of the
+   *                        chunks requested so far, on a background thread; 0 to disable.
+   */
+  public OneForOneStreamManager(int readAheadChunks) {
+    Preconditions.checkArgument(readAheadChunks >= 0, "readAheadChunks must not be negative");
     // For debugging purposes, start with a random stream id to help identifying different streams.
     // This does not need to be globally unique, only unique to this class.
     nextStreamId = new AtomicLong((long) new Random().nextInt(Integer.MAX_VALUE) * 1000);
     streams = new ConcurrentHashMap<>();
+    this.readAheadChunks = readAheadChunks;
   }
 
   @Override
@@ -73,25 +291,47 @@ public class OneForOneStreamManager extends StreamManager {
     }
   }
 
+  /**
+   * Like {@link #getChunk(long, int, ChunkFetchCallback)}, but waits for a chunk that is still
+   * being read ahead, so it must not be called on an event loop.
+   */
   @Override
   public ManagedBuffer getChunk(long streamId, int chunkIndex) {
-    StreamState state = streams.get(streamId);
-    if (chunkIndex != state.curChunk) {
-      throw new IllegalStateException(String.format(
-        "Received out-of-order chunk index %s (expected %s)", chunkIndex, state.curChunk));
-    } else if (!state.buffers.hasNext()) {
-      throw new IllegalStateException(String.format(
-        "Requested chunk index beyond end %s", chunkIndex));
-    }
-    state.curChunk += 1;
-    ManagedBuffer nextChunk = state.buffers.next();
+    final SettableFuture<ManagedBuffer> result = SettableFuture.create();
+    getChunk(streamId, chunkIndex, new ChunkFetchCallback() {
+      @Override
+      public void onSuccess(ManagedBuffer buffer) {
+        result.set(buffer);
+      }
 
-    if (!state.buffers.hasNext()) {
-      logger.trace("Removing stream id {}", streamId);
-      streams.remove(streamId);
+      @Override
+      public void onFailure(Throwable e) {
+        result.setException(e);
+      }
+    });
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for chunk " + chunkIndex, e);
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
     }
+  }
 
-    return nextChunk;
+  @Override
+  public void getChunk(long streamId, int chunkIndex, ChunkFetchCallback callback) {
+    StreamState state = streams.get(streamId);
+    if (state == null) {
+      callback.onFailure(new IllegalStateException(String.format(
+        "Requested chunk index %s of unknown or fully read stream %s", chunkIndex, streamId)));
+      return;
+    } else if (chunkIndex != state.curChunk) {
+      callback.onFailure(new IllegalStateException(String.format(
+        "Received out-of-order chunk index %s (expected %s)", chunkIndex, state.curChunk)));
+      return;
+    }
+    state.nextChunk(chunkIndex, callback);
   }
 
   @Override
@@ -103,9 +343,7 @@ public class OneForOneStreamManager extends StreamManager {
         streams.remove(entry.getKey());
 
         // Release all remaining buffers.
-        while (state.buffers.hasNext()) {
-          state.buffers.next().release();
-        }
+        state.close();
       }
     }
   }
@@ -136,7 +374,9 @@ public class OneForOneStreamManager extends StreamManager {
    */
   public long registerStream(String appId, Iterator<ManagedBuffer> buffers) {
     long myStreamId = nextStreamId.getAndIncrement();
-    streams.put(myStreamId, new StreamState(appId, buffers));
+    StreamState state = new StreamState(myStreamId, appId, buffers);
+    streams.put(myStreamId, state);
+    state.startReadAhead();
     return myStreamId;
   }
 
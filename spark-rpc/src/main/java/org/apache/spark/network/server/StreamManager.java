@@ -46,6 +46,23 @@ public abstract class StreamManager {
    */
   public abstract ManagedBuffer getChunk(long streamId, int chunkIndex);
 
+  /**
+   * Called in response to a fetchChunk() request, like {@link #getChunk(long, int)}, but may
+   * complete the callback later, from another thread, so that a chunk that is not ready yet does
+   * not hold up the event loop of the connection. Requests of the same stream are completed in
+   * the order they were made. By default the chunk is got with {@link #getChunk(long, int)}.
+   */
+  public void getChunk(long streamId, int chunkIndex, ChunkFetchCallback callback) {
+    ManagedBuffer buffer;
+    try {
+      buffer = getChunk(streamId, chunkIndex);
+    } catch (Exception e) {
+      callback.onFailure(e);
+      return;
+    }
+    callback.onSuccess(buffer);
+  }
+
   /**
    * Called in response to a stream() request. The returned data is streamed to the client
    * through a single TCP connection.
@@ -25,6 +25,7 @@ import org.apache.spark.network.buffer.ManagedBuffer;
 import org.apache.spark.network.buffer.NioManagedBuffer;
 import org.apache.spark.network.client.RpcResponseCallback;
 import org.apache.spark.network.client.TransportClient;
+import org.apache.spark.network.metrics.TransportMetrics;
 import org.apache.spark.network.protocol.*;
 import org.apache.spark.network.server.MessageHandler;
 import org.apache.spark.network.server.RpcHandler;
@@ -60,14 +61,25 @@ public class TransportRequestHandler extends MessageHandler<RequestMessage> {
   /** Returns each chunk part of a stream. */
   private final StreamManager streamManager;
 
+  private final TransportMetrics metrics;
+
   public TransportRequestHandler(
       Channel channel,
       TransportClient reverseClient,
       RpcHandler rpcHandler) {
+    this(channel, reverseClient, rpcHandler, new TransportMetrics());
+  }
+
+  public TransportRequestHandler(
+      Channel channel,
+      TransportClient reverseClient,
+      RpcHandler rpcHandler,
+      TransportMetrics metrics) {
     this.channel = channel;
     this.reverseClient = reverseClient;
     this.rpcHandler = rpcHandler;
     this.streamManager = rpcHandler.getStreamManager();
+    this.metrics = metrics;
   }
 
   @Override
@@ -96,6 +108,7 @@ public class TransportRequestHandler extends MessageHandler<RequestMessage> {
 
   @Override
   public void handle(RequestMessage request) {
+    metrics.requestsReceived().inc();
     if (request instanceof ChunkFetchRequest) {
       logger.trace("channel got an RequestMessage and more detail >> is ChunkFetchRequest ");
       processFetchRequest((ChunkFetchRequest) request);
@@ -119,19 +132,28 @@ public class TransportRequestHandler extends MessageHandler<RequestMessage> {
         req.streamChunkId);
     }
 
-    ManagedBuffer buf;
+    ChunkFetchCallback callback = new ChunkFetchCallback() {
+      @Override
+      public void onSuccess(ManagedBuffer buffer) {
+        respond(new ChunkFetchSuccess(req.streamChunkId, buffer));
+      }
+
+      @Override
+      public void onFailure(Throwable e) {
+        logger.error(String.format("Error opening block %s for request from %s",
+          req.streamChunkId, getRemoteAddress(channel)), e);
+        respond(new ChunkFetchFailure(req.streamChunkId, Throwables.getStackTraceAsString(e)));
+      }
+    };
     try {
       streamManager.checkAuthorization(reverseClient, req.streamChunkId.streamId);
       streamManager.registerChannel(channel, req.streamChunkId.streamId);
-      buf = streamManager.getChunk(req.streamChunkId.streamId, req.streamChunkId.chunkIndex);
     } catch (Exception e) {
-      logger.error(String.format("Error opening block %s for request from %s",
-        req.streamChunkId, getRemoteAddress(channel)), e);
-      respond(new ChunkFetchFailure(req.streamChunkId, Throwables.getStackTraceAsString(e)));
+      callback.onFailure(e);
       return;
     }
-
-    respond(new ChunkFetchSuccess(req.streamChunkId, buf));
+    // May respond later, from another thread.
+    streamManager.getChunk(req.streamChunkId.streamId, req.streamChunkId.chunkIndex, callback);
   }
 
   private void processStreamRequest(final StreamRequest req) {
@@ -154,15 +176,18 @@ public class TransportRequestHandler extends MessageHandler<RequestMessage> {
   }
 
   private void processRpcRequest(final RpcRequest req) {
+    final long receivedNs = System.nanoTime();
     try {
       rpcHandler.receive(reverseClient, req.body().nioByteBuffer(), new RpcResponseCallback() {
         @Override
         public void onSuccess(ByteBuffer response) {
+          metrics.rpcProcessingTime().record(System.nanoTime() - receivedNs);
           respond(new RpcResponse(req.requestId, new NioManagedBuffer(response)));
         }
 
         @Override
         public void onFailure(Throwable e) {
+          metrics.rpcProcessingTime().record(System.nanoTime() - receivedNs);
           respond(new RpcFailure(req.requestId, Throwables.getStackTraceAsString(e)));
         }
       });
@@ -190,10 +215,15 @@ public class TransportRequestHandler extends MessageHandler<RequestMessage> {
    */
   private void respond(final Encodable result) {
     final SocketAddress remoteAddress = channel.remoteAddress();
+    final long startNs = System.nanoTime();
+    final long bytes = bodySize(result);
+    metrics.bytesInFlight().add(bytes);
     channel.writeAndFlush(result).addListener(
       new ChannelFutureListener() {
         @Override
         public void operationComplete(ChannelFuture future) throws Exception {
+          metrics.bytesInFlight().add(-bytes);
+          metrics.writeQueueDelay().record(System.nanoTime() - startNs);
           if (future.isSuccess()) {
             logger.trace("Sent result {} to client {}", result, remoteAddress);
           } else {
@@ -205,4 +235,14 @@ public class TransportRequestHandler extends MessageHandler<RequestMessage> {
       }
     );
   }
+
+  private static long bodySize(Encodable result) {
+    if (result instanceof Message) {
+      ManagedBuffer body = ((Message) result).body();
+      if (body != null) {
+        return body.size();
+      }
+    }
+    return 0L;
+  }
 }
@@ -38,6 +38,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -53,7 +54,8 @@ public class TransportServer implements Closeable {
   private final List<TransportServerBootstrap> bootstraps;
 
   private ServerBootstrap bootstrap;
-  private ChannelFuture channelFuture;
+  /** One bound channel, or several sharing the port with SO_REUSEPORT in EPOLL mode. */
+  private final List<ChannelFuture> channelFutures = new ArrayList<>();
   private int port = -1;
 
   /**
@@ -91,13 +93,16 @@ public class TransportServer implements Closeable {
 
 
     // todo 终于找到netty的模板代码了
-    IOMode ioMode = IOMode.valueOf(conf.ioMode());
+    IOMode ioMode = NettyUtils.resolveIOMode(conf.ioMode());
     EventLoopGroup bossGroup =
       NettyUtils.createEventLoop(ioMode, conf.serverThreads(), conf.getModuleName() + "-server");
     EventLoopGroup workerGroup = bossGroup;
 
-    PooledByteBufAllocator allocator = NettyUtils.createPooledByteBufAllocator(
-      conf.preferDirectBufs(), true /* allowCache */, conf.serverThreads());
+    PooledByteBufAllocator allocator = NettyUtils.getPooledByteBufAllocator(
+      conf, true /* allowCache */, conf.serverThreads());
+    context.getMetrics().registerAllocator(
+      conf.sharedByteBufAllocators() ? "shared.server" : conf.getModuleName() + ".server",
+      allocator);
 
     bootstrap = new ServerBootstrap()
       .group(bossGroup, workerGroup)
@@ -105,6 +110,8 @@ public class TransportServer implements Closeable {
       .option(ChannelOption.ALLOCATOR, allocator)
       .childOption(ChannelOption.ALLOCATOR, allocator);
 
+    NettyUtils.configureEpoll(ioMode, bootstrap, conf);
+
     if (conf.backLog() > 0) {
       bootstrap.option(ChannelOption.SO_BACKLOG, conf.backLog());
     }
@@ -136,20 +143,31 @@ public class TransportServer implements Closeable {
 
     InetSocketAddress address = hostToBind == null ?
         new InetSocketAddress(portToBind): new InetSocketAddress(hostToBind, portToBind);
-    channelFuture = bootstrap.bind(address);
+    ChannelFuture channelFuture = bootstrap.bind(address);
+    channelFutures.add(channelFuture);
     channelFuture.syncUninterruptibly();
 
     port = ((InetSocketAddress) channelFuture.channel().localAddress()).getPort();
-    logger.debug("Shuffle server started on port: {}", port);
+
+    // The other acceptors bind to the port the first one got, which may have been ephemeral.
+    int acceptors = ioMode == IOMode.EPOLL ? conf.epollAcceptors() : 1;
+    InetSocketAddress boundAddress = hostToBind == null ?
+        new InetSocketAddress(port) : new InetSocketAddress(hostToBind, port);
+    for (int i = 1; i < acceptors; i++) {
+      ChannelFuture acceptor = bootstrap.bind(boundAddress);
+      channelFutures.add(acceptor);
+      acceptor.syncUninterruptibly();
+    }
+    logger.debug("Shuffle server started on port: {} with {} acceptor(s)", port, acceptors);
   }
 
   @Override
   public void close() {
-    if (channelFuture != null) {
+    for (ChannelFuture channelFuture : channelFutures) {
       // close is a local operation and should finish within milliseconds; timeout just to be safe
       channelFuture.channel().close().awaitUninterruptibly(10, TimeUnit.SECONDS);
-      channelFuture = null;
     }
+    channelFutures.clear();
     if (bootstrap != null && bootstrap.group() != null) {
       bootstrap.group().shutdownGracefully();
     }
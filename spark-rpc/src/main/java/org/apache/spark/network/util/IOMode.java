@@ -21,7 +21,10 @@ package org.apache.spark.network.util;
  * Selector for which form of low-level IO we should use.
  * NIO is always available, while EPOLL is only available on Linux.
  * AUTO is used to select EPOLL if it's available, or NIO otherwise.
+ *
+ * Use {@link NettyUtils#resolveIOMode(String)} rather than {@code valueOf}, so that AUTO, and
+ * EPOLL on a platform without the native transport, fall back to NIO.
  */
 public enum IOMode {
-  NIO, EPOLL
+  NIO, EPOLL, AUTO
 }
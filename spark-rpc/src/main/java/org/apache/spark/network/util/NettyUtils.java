@@ -17,33 +17,104 @@
 
 package org.apache.spark.network.util;
 
+import com.google.common.annotations.VisibleForTesting;
+import io.netty.bootstrap.AbstractBootstrap;
+import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
 import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.ResourceLeakDetector;
 import io.netty.util.concurrent.DefaultThreadFactory;
 import io.netty.util.internal.PlatformDependent;
 import org.apache.spark.network.util.IOMode;
 import org.apache.spark.network.util.TransportFrameDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.Field;
+import java.util.Locale;
 import java.util.concurrent.ThreadFactory;
 
 /**
  * Utilities for creating various Netty constructs based on whether we're using EPOLL or NIO.
  */
 public class NettyUtils {
+  private static final Logger logger = LoggerFactory.getLogger(NettyUtils.class);
+
+  /** Allocators shared by all transport contexts, indexed by whether they have thread caches. */
+  private static final PooledByteBufAllocator[] SHARED_POOLED_ALLOCATORS =
+    new PooledByteBufAllocator[2];
+
   /** Creates a new ThreadFactory which prefixes each thread with the given name. */
   public static ThreadFactory createThreadFactory(String threadPoolPrefix) {
     return new DefaultThreadFactory(threadPoolPrefix, true);
   }
 
+  /**
+   * Parses the configured IO mode and picks the transport to use: AUTO means EPOLL if the native
+   * transport can be loaded and NIO otherwise, and EPOLL falls back to NIO with a warning when
+   * it cannot be loaded. Never returns AUTO.
+   */
+  public static IOMode resolveIOMode(String mode) {
+    return resolveIOMode(mode, Epoll.isAvailable());
+  }
+
+  /** Like {@link #resolveIOMode(String)}, given whether the native transport can be loaded. */
+  @VisibleForTesting
+  static IOMode resolveIOMode(String mode, boolean epollAvailable) {
+    IOMode ioMode = IOMode.valueOf(mode);
+    if (ioMode == IOMode.NIO) {
+      return ioMode;
+    }
+    if (epollAvailable) {
+      return IOMode.EPOLL;
+    }
+    if (ioMode == IOMode.EPOLL) {
+      logger.warn("Native epoll transport is not available, falling back to NIO",
+        Epoll.unavailabilityCause());
+    }
+    return IOMode.NIO;
+  }
+
+  /**
+   * Applies the epoll specific options of {@code conf} to the channels created by
+   * {@code bootstrap}, or to the children of a {@link ServerBootstrap}. Does nothing in NIO mode.
+   */
+  public static void configureEpoll(IOMode mode, AbstractBootstrap<?, ?> bootstrap,
+      TransportConf conf) {
+    if (mode != IOMode.EPOLL) {
+      return;
+    }
+    EpollMode epollMode =
+      conf.epollEdgeTriggered() ? EpollMode.EDGE_TRIGGERED : EpollMode.LEVEL_TRIGGERED;
+    if (bootstrap instanceof ServerBootstrap) {
+      ServerBootstrap serverBootstrap = (ServerBootstrap) bootstrap;
+      serverBootstrap.option(EpollChannelOption.EPOLL_MODE, epollMode)
+        .childOption(EpollChannelOption.EPOLL_MODE, epollMode);
+      if (conf.epollTcpCork()) {
+        serverBootstrap.childOption(EpollChannelOption.TCP_CORK, true);
+      }
+      if (conf.epollAcceptors() > 1) {
+        serverBootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+      }
+    } else {
+      bootstrap.option(EpollChannelOption.EPOLL_MODE, epollMode);
+      if (conf.epollTcpCork()) {
+        bootstrap.option(EpollChannelOption.TCP_CORK, true);
+      }
+    }
+  }
+
   /** Creates a Netty EventLoopGroup based on the IOMode. */
   public static EventLoopGroup createEventLoop(IOMode mode, int numThreads, String threadPrefix) {
     ThreadFactory threadFactory = createThreadFactory(threadPrefix);
@@ -123,6 +194,47 @@ public class NettyUtils {
     );
   }
 
+  /**
+   * Returns the pooled allocator a server ({@code allowCache} true) or a client factory
+   * ({@code allowCache} false) of the given module should use: one of the shared allocators if
+   * {@link TransportConf#sharedByteBufAllocators()} is set, or a new one otherwise.
+   */
+  public static PooledByteBufAllocator getPooledByteBufAllocator(
+      TransportConf conf,
+      boolean allowCache,
+      int numThreads) {
+    configureLeakDetection(conf);
+    if (conf.sharedByteBufAllocators()) {
+      return getSharedPooledByteBufAllocator(conf.preferDirectBufs(), allowCache);
+    }
+    int numArenas = conf.allocatorNumArenas() > 0 ? conf.allocatorNumArenas() : numThreads;
+    return createPooledByteBufAllocator(conf.preferDirectBufs(), allowCache, numArenas);
+  }
+
+  /**
+   * Returns the allocator shared by all transport contexts, with one arena per core. The first
+   * caller decides whether it allocates direct buffers.
+   */
+  public static synchronized PooledByteBufAllocator getSharedPooledByteBufAllocator(
+      boolean allowDirectBufs,
+      boolean allowCache) {
+    int index = allowCache ? 0 : 1;
+    if (SHARED_POOLED_ALLOCATORS[index] == null) {
+      SHARED_POOLED_ALLOCATORS[index] = createPooledByteBufAllocator(
+        allowDirectBufs, allowCache, Runtime.getRuntime().availableProcessors());
+    }
+    return SHARED_POOLED_ALLOCATORS[index];
+  }
+
+  /** Applies {@link TransportConf#leakDetectionLevel()}, which is global to the JVM, if set. */
+  public static void configureLeakDetection(TransportConf conf) {
+    String level = conf.leakDetectionLevel();
+    if (level != null) {
+      ResourceLeakDetector.setLevel(
+        ResourceLeakDetector.Level.valueOf(level.trim().toUpperCase(Locale.ROOT)));
+    }
+  }
+
   /** Used to get defaults from Netty's private static fields. */
   private static int getPrivateStaticField(String name) {
     try {
@@ -44,6 +44,16 @@ public class TransportConf {
   private final String SPARK_NETWORK_IO_MAXRETRIES_KEY;
   private final String SPARK_NETWORK_IO_RETRYWAIT_KEY;
   private final String SPARK_NETWORK_IO_LAZYFD_KEY;
+  private final String SPARK_NETWORK_IO_ALLOCATOR_NUMARENAS_KEY;
+  private final String SPARK_NETWORK_IO_EPOLL_EDGETRIGGERED_KEY;
+  private final String SPARK_NETWORK_IO_EPOLL_TCPCORK_KEY;
+  private final String SPARK_NETWORK_IO_EPOLL_ACCEPTORS_KEY;
+  private final String SPARK_NETWORK_IO_FETCH_MAXWINDOW_KEY;
+  private final String SPARK_NETWORK_IO_FETCH_MAXBYTESINFLIGHT_KEY;
+  private final String SPARK_NETWORK_IO_STREAM_READAHEAD_KEY;
+  private final String SPARK_NETWORK_IO_FILECACHE_MAXOPENFILES_KEY;
+  private final String SPARK_NETWORK_IO_FILECACHE_HOTTHRESHOLD_KEY;
+  private final String SPARK_NETWORK_IO_FILECACHE_MAXMAPPEDBYTES_KEY;
 
   private final ConfigProvider conf;
 
@@ -65,6 +75,16 @@ public class TransportConf {
     SPARK_NETWORK_IO_MAXRETRIES_KEY = getConfKey("io.maxRetries");
     SPARK_NETWORK_IO_RETRYWAIT_KEY = getConfKey("io.retryWait");
     SPARK_NETWORK_IO_LAZYFD_KEY = getConfKey("io.lazyFD");
+    SPARK_NETWORK_IO_ALLOCATOR_NUMARENAS_KEY = getConfKey("io.allocator.numArenas");
+    SPARK_NETWORK_IO_EPOLL_EDGETRIGGERED_KEY = getConfKey("io.epoll.edgeTriggered");
+    SPARK_NETWORK_IO_EPOLL_TCPCORK_KEY = getConfKey("io.epoll.tcpCork");
+    SPARK_NETWORK_IO_EPOLL_ACCEPTORS_KEY = getConfKey("io.epoll.acceptors");
+    SPARK_NETWORK_IO_FETCH_MAXWINDOW_KEY = getConfKey("io.fetch.maxWindow");
+    SPARK_NETWORK_IO_FETCH_MAXBYTESINFLIGHT_KEY = getConfKey("io.fetch.maxBytesInFlight");
+    SPARK_NETWORK_IO_STREAM_READAHEAD_KEY = getConfKey("io.stream.readAheadChunks");
+    SPARK_NETWORK_IO_FILECACHE_MAXOPENFILES_KEY = getConfKey("io.fileCache.maxOpenFiles");
+    SPARK_NETWORK_IO_FILECACHE_HOTTHRESHOLD_KEY = getConfKey("io.fileCache.hotThreshold");
+    SPARK_NETWORK_IO_FILECACHE_MAXMAPPEDBYTES_KEY = getConfKey("io.fileCache.maxMappedBytes");
   }
 
   public int getInt(String name, int defaultValue) {
@@ -79,7 +99,7 @@ public class TransportConf {
     return module;
   }
 
-  /** IO mode: nio or epoll */
+  /** IO mode: nio, epoll or auto */
   public String ioMode() { return conf.get(SPARK_NETWORK_IO_MODE_KEY, "NIO").toUpperCase(); }
 
   /** If true, we will prefer allocating off-heap byte buffers within Netty. */
@@ -87,6 +107,86 @@ public class TransportConf {
     return conf.getBoolean(SPARK_NETWORK_IO_PREFERDIRECTBUFS_KEY, true);
   }
 
+  /**
+   * If true, the servers and client factories of all modules share two pooled allocators, one
+   * with and one without thread-local caches, instead of creating their own. Every allocator
+   * reserves its arenas up front, so sharing them keeps the direct memory footprint bounded on
+   * nodes that run several transport contexts.
+   */
+  public boolean sharedByteBufAllocators() {
+    return conf.getBoolean("spark.network.sharedByteBufAllocators.enabled", false);
+  }
+
+  /**
+   * Number of arenas of a pooled allocator that is not shared. Threads are assigned to arenas
+   * round robin, so fewer arenas than IO threads means some contention for less reserved memory.
+   * Default to 0, which is one arena per IO thread.
+   */
+  public int allocatorNumArenas() {
+    return conf.getInt(SPARK_NETWORK_IO_ALLOCATOR_NUMARENAS_KEY, 0);
+  }
+
+  /**
+   * Netty's buffer leak detection level: disabled, simple, advanced or paranoid. Simple and
+   * advanced only track a sample of the allocated buffers; paranoid tracks all of them. The level
+   * is global to the JVM. Default to null, which leaves Netty's own setting alone.
+   */
+  public String leakDetectionLevel() {
+    return conf.get("spark.network.io.leakDetection", null);
+  }
+
+  /**
+   * Whether epoll channels use edge-triggered notifications, which need fewer epoll_wait wakeups
+   * than level-triggered ones as each readiness event is reported once. Only used in EPOLL mode.
+   */
+  public boolean epollEdgeTriggered() {
+    return conf.getBoolean(SPARK_NETWORK_IO_EPOLL_EDGETRIGGERED_KEY, true);
+  }
+
+  /**
+   * Whether to set TCP_CORK on epoll channels, so the kernel only sends full segments. This
+   * trades latency for fewer packets and only suits bulk transfers, as a partial segment may wait
+   * up to 200ms for more data. Only used in EPOLL mode.
+   */
+  public boolean epollTcpCork() {
+    return conf.getBoolean(SPARK_NETWORK_IO_EPOLL_TCPCORK_KEY, false);
+  }
+
+  /**
+   * Number of server channels bound to the same port with SO_REUSEPORT, each accepting on its own
+   * event loop, so that the kernel spreads incoming connections over them. Only used in EPOLL
+   * mode. Default 1, a single acceptor.
+   */
+  public int epollAcceptors() {
+    return conf.getInt(SPARK_NETWORK_IO_EPOLL_ACCEPTORS_KEY, 1);
+  }
+
+  /**
+   * Upper bound of the number of chunk fetches a
+   * {@link org.apache.spark.network.client.PipelinedChunkFetcher} keeps outstanding. The window
+   * itself adapts to the observed round trip time.
+   */
+  public int fetchMaxWindow() {
+    return conf.getInt(SPARK_NETWORK_IO_FETCH_MAXWINDOW_KEY, 16);
+  }
+
+  /**
+   * Upper bound of the bytes a {@link org.apache.spark.network.client.PipelinedChunkFetcher}
+   * expects to be in flight, given the average chunk size seen so far. Default 48m.
+   */
+  public long fetchMaxBytesInFlight() {
+    return JavaUtils.byteStringAsBytes(
+      conf.get(SPARK_NETWORK_IO_FETCH_MAXBYTESINFLIGHT_KEY, "48m"));
+  }
+
+  /**
+   * Number of chunks a {@link org.apache.spark.network.server.OneForOneStreamManager} created with
+   * this setting reads ahead of the requests of each stream. Default 0, no read-ahead.
+   */
+  public int streamReadAheadChunks() {
+    return conf.getInt(SPARK_NETWORK_IO_STREAM_READAHEAD_KEY, 0);
+  }
+
   /** Connect timeout in milliseconds. Default 120 secs. */
   public int connectionTimeoutMs() {
     long defaultNetworkTimeoutS = JavaUtils.timeStringAsSec(
@@ -151,6 +251,29 @@ public class TransportConf {
       conf.get("spark.storage.memoryMapThreshold", "2m")));
   }
 
+  /**
+   * Number of files whose channels {@link org.apache.spark.network.buffer.FileSegmentManagedBuffer}
+   * keeps open between segments, in a cache shared by the module. Default 0, which opens the file
+   * for every segment as before.
+   */
+  public int fileCacheMaxOpenFiles() {
+    return conf.getInt(SPARK_NETWORK_IO_FILECACHE_MAXOPENFILES_KEY, 0);
+  }
+
+  /** Number of requests after which a cached file is mapped into memory as a whole. */
+  public int fileCacheHotThreshold() {
+    return conf.getInt(SPARK_NETWORK_IO_FILECACHE_HOTTHRESHOLD_KEY, 2);
+  }
+
+  /**
+   * Total size of the files the file cache may keep mapped into memory. Default 256m. Mappings the
+   * cache has dropped are not counted, though they stay until their segments are collected.
+   */
+  public long fileCacheMaxMappedBytes() {
+    return JavaUtils.byteStringAsBytes(
+      conf.get(SPARK_NETWORK_IO_FILECACHE_MAXMAPPEDBYTES_KEY, "256m"));
+  }
+
   /**
    * Whether to initialize FileDescriptor lazily or not. If true, file descriptors are
    * created only when data is going to be transferred. This can reduce the number of open files.
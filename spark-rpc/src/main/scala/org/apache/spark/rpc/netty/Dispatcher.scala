@@ -2,7 +2,6 @@ package org.apache.spark.rpc.netty
 
 import java.util.concurrent._
 
-import javax.annotation.concurrent.GuardedBy
 import org.apache.spark.RpcException
 import org.apache.spark.network.client.RpcResponseCallback
 import org.apache.spark.rpc.{RpcEndpoint, RpcEndpointAddress, RpcEndpointRef, RpcEnvStoppedException}
@@ -25,7 +24,7 @@ private[netty] class Dispatcher(nettyEnv: NettyRpcEnv) {
   private class EndpointData(val name: String,
                               val endpoint: RpcEndpoint,
                               val ref: NettyRpcEndpointRef) {
-    val inbox = new Inbox(ref, endpoint)
+    val inbox: AbstractInbox = Inbox(nettyEnv.conf, ref, endpoint)
   }
 
   // 维护一个HaskMap，保存Name与EndpointData的关系
@@ -33,16 +32,29 @@ private[netty] class Dispatcher(nettyEnv: NettyRpcEnv) {
   // 维护一个HaskMap，保存RpcEndpoint与RpcEndpointRef的关系
   private val endpointRefs = new ConcurrentHashMap[RpcEndpoint, RpcEndpointRef]
 
+  /** A poison endpoint that indicates MessageLoop should exit its message loop. */
+  private val PoisonPill = new EndpointData(null, null, null)
+
   // Track the receivers whose inboxes may contain messages.
   //维护一个BlockingQueue的队列，用于保存拥有消息的EndpointData，注册Endpoint、
   //发送消息时、停止RpcEnv时、取消注册的Endpoint时，会在receivers中添加相应的EndpointData
-  private val receivers = new LinkedBlockingQueue[EndpointData]
+  private val receivers: Receivers = {
+    val numThreads = nettyEnv.conf.getInt("spark.rpc.netty.dispatcher.numThreads",
+      math.max(2, Runtime.getRuntime.availableProcessors()))
+    nettyEnv.conf.get("spark.rpc.netty.dispatcher.mode", "shared").toLowerCase match {
+      case "shared" => new SharedReceivers(numThreads)
+      case "sharded" => new ShardedReceivers(numThreads,
+        nettyEnv.conf.getTimeAsMs("spark.rpc.netty.dispatcher.stealInterval", "5ms"))
+      case other =>
+        throw new IllegalArgumentException(s"Unknown spark.rpc.netty.dispatcher.mode: $other")
+    }
+  }
 
   /**
     * True if the dispatcher has been stopped. Once stopped, all messages posted will be bounced
-    * immediately.
+    * immediately. Only changed while holding the dispatcher's lock, but read without it.
     */
-  @GuardedBy("this")
+  @volatile
   private var stopped = false
 
   def registerRpcEndpoint(name: String, endpoint: RpcEndpoint): NettyRpcEndpointRef = {
@@ -142,20 +154,18 @@ private[netty] class Dispatcher(nettyEnv: NettyRpcEnv) {
                            endpointName: String,
                            message: InboxMessage,
                            callbackIfStopped: (Exception) => Unit): Unit = {
-    val error = synchronized {
-      val data : EndpointData = endpoints.get(endpointName)
-      if (stopped) {
-        Some(new RpcEnvStoppedException())
-      } else if (data == null) {
-        Some(new RpcException(s"Could not find $endpointName."))
-      } else {
-        data.inbox.post(message)
-        receivers.offer(data)
-        None
-      }
+    // No lock here, so senders only contend in the inbox and the receivers queue they post to.
+    // Racing with unregister or stop is safe: an inbox drops what is posted after its stop(), and
+    // what was posted before it is processed along with the OnStop that stop() queues.
+    val data: EndpointData = endpoints.get(endpointName)
+    if (stopped) {
+      callbackIfStopped(new RpcEnvStoppedException())
+    } else if (data == null) {
+      callbackIfStopped(new RpcException(s"Could not find $endpointName."))
+    } else {
+      data.inbox.post(message)
+      receivers.offer(data)
     }
-    // We don't need to call `onStop` in the `synchronized` block
-    error.foreach(callbackIfStopped)
   }
 
   def stop(): Unit = {
@@ -168,12 +178,11 @@ private[netty] class Dispatcher(nettyEnv: NettyRpcEnv) {
     // Stop all endpoints. This will queue all endpoints for processing by the message loops.
     endpoints.keySet().asScala.foreach(unregisterRpcEndpoint)
     // Enqueue a message that tells the message loops to stop.
-    receivers.offer(PoisonPill)
-    threadpool.shutdown()
+    receivers.stop()
   }
 
   def awaitTermination(): Unit = {
-    threadpool.awaitTermination(Long.MaxValue, TimeUnit.MILLISECONDS)
+    receivers.awaitTermination()
   }
 
   /**
@@ -183,45 +192,178 @@ private[netty] class Dispatcher(nettyEnv: NettyRpcEnv) {
     endpoints.containsKey(name)
   }
 
-  /** Thread pool used for dispatching messages. */
-  private val threadpool: ThreadPoolExecutor = {
-    val numThreads = nettyEnv.conf.getInt("spark.rpc.netty.dispatcher.numThreads",
-      math.max(2, Runtime.getRuntime.availableProcessors()))
-    val pool = ThreadUtils.newDaemonFixedThreadPool(numThreads, "dispatcher-event-loop")
-    for (i <- 0 until numThreads) {
-      pool.execute(new MessageLoop)
-    }
-    log trace (s"1. server's dispatcher start a daemon threadpool with ${numThreads} thread to process messageloop ")
-    pool
-  }
-
-  /** Message loop used for dispatching messages. */
-  private class MessageLoop extends Runnable {
-    override def run(): Unit = {
-      try {
-        while (true) {
-          try {
-            val data = receivers.take()
-            log.trace("endpointdata queen take and data is {},{},{},{}",data.name,data.endpoint,data.ref,data.inbox)
-
-            if (data == PoisonPill) {
-              // Put PoisonPill back so that other MessageLoops can see it.
-              log.trace(s"before stop call the posionHook ${data} ")
-              receivers.offer(PoisonPill)
-              return
+  /** Queues the endpoints that have pending messages and runs the loops that process them. */
+  private trait Receivers {
+
+    def offer(data: EndpointData): Unit
+
+    /** Tell every message loop to exit once the endpoints queued before this call are processed. */
+    def stop(): Unit
+
+    def awaitTermination(): Unit
+  }
+
+  /**
+    * All endpoints go through one queue that every message loop takes from, so any thread may
+    * process any endpoint.
+    */
+  private class SharedReceivers(numThreads: Int) extends Receivers {
+
+    private val queue = new LinkedBlockingQueue[EndpointData]
+
+    /** Thread pool used for dispatching messages. */
+    private val threadpool: ThreadPoolExecutor = {
+      val pool = ThreadUtils.newDaemonFixedThreadPool(numThreads, "dispatcher-event-loop")
+      for (i <- 0 until numThreads) {
+        pool.execute(new MessageLoop)
+      }
+      log trace (s"1. server's dispatcher start a daemon threadpool with ${numThreads} thread to process messageloop ")
+      pool
+    }
+
+    override def offer(data: EndpointData): Unit = queue.offer(data)
+
+    override def stop(): Unit = {
+      queue.offer(PoisonPill)
+      threadpool.shutdown()
+    }
+
+    override def awaitTermination(): Unit = {
+      threadpool.awaitTermination(Long.MaxValue, TimeUnit.MILLISECONDS)
+    }
+
+    /** Message loop used for dispatching messages. */
+    private class MessageLoop extends Runnable {
+      override def run(): Unit = {
+        try {
+          while (true) {
+            try {
+              val data = queue.take()
+              log.trace("endpointdata queen take and data is {},{},{},{}",data.name,data.endpoint,data.ref,data.inbox)
+
+              if (data == PoisonPill) {
+                // Put PoisonPill back so that other MessageLoops can see it.
+                log.trace(s"before stop call the posionHook ${data} ")
+                queue.offer(PoisonPill)
+                return
+              }
+
+              data.inbox.process(Dispatcher.this)
+            } catch {
+              case NonFatal(e) => log.error(e.getMessage, e)
+            }
+          }
+        } catch {
+          case ie: InterruptedException => // exit
+        }
+      }
+    }
+  }
+
+  /**
+    * Every endpoint hashes by name to a fixed message loop with its own queue, so an endpoint's
+    * messages are normally processed on the same thread and its state stays in one CPU's cache.
+    * Posting takes no dispatcher-wide lock, so it only contends on the queue of that shard.
+    *
+    * A loop waits on its own queue for up to `stealIntervalMs`. If nothing came, it steals once
+    * from the tail of the other shards, so one stalled shard cannot leave the other threads idle.
+    * Each time there is nothing to steal the wait doubles, up to `MAX_STEAL_BACKOFF` times
+    * `stealIntervalMs`, so idle loops do not keep scanning every shard. The inbox already copes
+    * with being processed from several threads, so stealing stays correct.
+    */
+  private class ShardedReceivers(numThreads: Int, stealIntervalMs: Long) extends Receivers {
+
+    require(stealIntervalMs > 0,
+      s"spark.rpc.netty.dispatcher.stealInterval must be positive but got ${stealIntervalMs}ms")
+
+    private val maxIdleWaitMs = stealIntervalMs * Dispatcher.MAX_STEAL_BACKOFF
+
+    private val shards = Array.fill(numThreads)(new LinkedBlockingDeque[EndpointData])
+
+    private val threadpool: ThreadPoolExecutor = {
+      val pool = ThreadUtils.newDaemonFixedThreadPool(numThreads, "dispatcher-shard")
+      for (i <- 0 until numThreads) {
+        pool.execute(new ShardLoop(i))
+      }
+      log trace (s"1. server's dispatcher start ${numThreads} sharded message loops")
+      pool
+    }
+
+    override def offer(data: EndpointData): Unit = {
+      shards(Dispatcher.shardOf(data.name, numThreads)).offer(data)
+    }
+
+    override def stop(): Unit = {
+      // Each loop exits when it reaches the PoisonPill at the end of its own shard.
+      shards.foreach(_.offer(PoisonPill))
+      threadpool.shutdown()
+    }
+
+    override def awaitTermination(): Unit = {
+      threadpool.awaitTermination(Long.MaxValue, TimeUnit.MILLISECONDS)
+    }
+
+    private class ShardLoop(shard: Int) extends Runnable {
+
+      private val own = shards(shard)
+
+      override def run(): Unit = {
+        var idleWaitMs = stealIntervalMs
+        try {
+          while (true) {
+            try {
+              var data = own.poll(idleWaitMs, TimeUnit.MILLISECONDS)
+              if (data == null) {
+                data = steal()
+              }
+              idleWaitMs = if (data == null) {
+                math.min(idleWaitMs * 2, maxIdleWaitMs)
+              } else {
+                stealIntervalMs
+              }
+              if (data eq PoisonPill) {
+                return
+              }
+              if (data != null) {
+                data.inbox.process(Dispatcher.this)
+              }
+            } catch {
+              case NonFatal(e) => log.error(e.getMessage, e)
             }
+          }
+        } catch {
+          case ie: InterruptedException => // exit
+        }
+      }
 
-            data.inbox.process(Dispatcher.this)
-          } catch {
-            case NonFatal(e) => log.error(e.getMessage, e)
+      /** Take the newest entry of another shard, leaving the head to its owner. */
+      private def steal(): EndpointData = {
+        var i = 1
+        while (i < numThreads) {
+          val victim = shards((shard + i) % numThreads)
+          val data = victim.pollLast()
+          if (data eq PoisonPill) {
+            // That shard is stopping; its own loop must be the one to see this.
+            victim.offerLast(PoisonPill)
+          } else if (data != null) {
+            return data
           }
+          i += 1
         }
-      } catch {
-        case ie: InterruptedException => // exit
+        null
       }
     }
   }
+}
 
-  /** A poison endpoint that indicates MessageLoop should exit its message loop. */
-  private val PoisonPill = new EndpointData(null, null, null)
+private[netty] object Dispatcher {
+
+  /** How many times `spark.rpc.netty.dispatcher.stealInterval` an idle shard loop waits at most. */
+  val MAX_STEAL_BACKOFF = 64
+
+  /** The shard of the endpoint called `name`, out of `numShards`. */
+  def shardOf(name: String, numShards: Int): Int = {
+    val mod = name.hashCode % numShards
+    if (mod < 0) mod + numShards else mod
+  }
 }
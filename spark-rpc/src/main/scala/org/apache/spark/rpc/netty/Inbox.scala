@@ -1,7 +1,9 @@
 package org.apache.spark.rpc.netty
 
+import java.util.concurrent.atomic.AtomicBoolean
+
 import javax.annotation.concurrent.GuardedBy
-import org.apache.spark.RpcException
+import org.apache.spark.{RpcConf, RpcException}
 import org.apache.spark.rpc.{RpcAddress, RpcEndpoint, ThreadSafeRpcEndpoint}
 import org.slf4j.LoggerFactory
 
@@ -33,18 +35,122 @@ private[netty] case class RemoteProcessDisconnected(remoteAddress: RpcAddress) e
 private[netty] case class RemoteProcessConnectionError(cause: Throwable, remoteAddress: RpcAddress)
   extends InboxMessage
 
+/**
+  * The parts shared by every inbox implementation: how each [[InboxMessage]] is handed to the
+  * [[RpcEndpoint]], how dropped messages are reported and how endpoint errors are contained.
+  * Subclasses decide how messages are queued and which threads may process them.
+  */
+private[netty] abstract class AbstractInbox(val endpointRef: NettyRpcEndpointRef,
+                                            val endpoint: RpcEndpoint) {
+
+  protected val log = LoggerFactory.getLogger(classOf[Inbox])
+
+  /** Process stored messages. */
+  def process(dispatcher: Dispatcher): Unit
+
+  def post(message: InboxMessage): Unit
+
+  def stop(): Unit
+
+  def isEmpty: Boolean
+
+  /** Called after `endpoint.onStart()` returns. */
+  protected def onEndpointStarted(): Unit
+
+  /** Called after `endpoint.onStop()` returns. */
+  protected def onEndpointStopped(): Unit
+
+  /** The number of threads processing messages for this inbox. */
+  protected def activeThreads: Int
+
+  /**
+    * Hand one message to the endpoint.
+    * 对于入站的消息的处理 依据模式匹配可以对不同消息[[InboxMessage]]进行不同的操作
+    */
+  protected def handleMessage(dispatcher: Dispatcher, message: InboxMessage): Unit = {
+    safelyCall(endpoint) {
+      log.trace(s"${endpoint.getClass.getSimpleName} to proceess the inbox ${message.getClass.getSimpleName}")
+      message match {
+          // rpc 消息
+        case RpcMessage(_sender, content, context) =>
+          try {
+            log.trace(s" got an rpc message from ${_sender},content=${content.getClass.getSimpleName}")
+            endpoint.receiveAndReply(context).applyOrElse[Any, Unit](content, { msg =>
+              throw new RpcException(s"Unsupported message $message from ${_sender}")
+
+            })
+          } catch {
+            case NonFatal(e) =>
+              context.sendFailure(e)
+              // Throw the exception -- this exception will be caught by the safelyCall java.java.util.function.
+              // The endpoint's onError java.java.util.function will be called.
+              throw e
+          }
+
+        case OneWayMessage(_sender, content) =>
+          endpoint.receive.applyOrElse[Any, Unit](content, { msg =>
+            throw new RpcException(s"Unsupported message $message from ${_sender}")
+          })
+
+        case OnStart =>
+          endpoint.onStart()
+          onEndpointStarted()
+
+        case OnStop =>
+          val threads = activeThreads
+          assert(threads == 1,
+            s"There should be only a single active thread but found $threads threads.")
+          dispatcher.removeRpcEndpointRef(endpoint)
+          endpoint.onStop()
+          onEndpointStopped()
+
+        case RemoteProcessConnected(remoteAddress) =>
+          log.trace(s"dispatcher inbox's recieve ${RemoteProcessConnected.getClass.getSimpleName} -> ${remoteAddress} ")
+          endpoint.onConnected(remoteAddress)
+
+        case RemoteProcessDisconnected(remoteAddress) =>
+          log.trace(s"dispatcher inbox's recieve ${RemoteProcessDisconnected.getClass.getSimpleName} -> ${remoteAddress} ")
+          endpoint.onDisconnected(remoteAddress)
+
+        case RemoteProcessConnectionError(cause, remoteAddress) =>
+          log.trace(s"dispatcher inbox's recieve ${RemoteProcessConnectionError.getClass.getSimpleName} -> ${remoteAddress} ")
+          endpoint.onNetworkError(cause, remoteAddress)
+      }
+    }
+  }
+
+  /**
+    * Called when we are dropping a message. Test cases override this to test message dropping.
+    * Exposed for testing.
+    */
+  protected def onDrop(message: InboxMessage): Unit = {
+    log.warn(s"Drop $message because $endpointRef is stopped")
+  }
+
+  /**
+    * Calls action closure, and calls the endpoint's onError java.java.util.function in the case of exceptions.
+    */
+  private def safelyCall(endpoint: RpcEndpoint)(action: => Unit): Unit = {
+    try action catch {
+      case NonFatal(e) =>
+        try endpoint.onError(e) catch {
+          case NonFatal(ee) => log.error(s"Ignoring error", ee)
+        }
+    }
+  }
+
+}
+
 /**
   * An inbox that stores messages for an [[RpcEndpoint]] and posts messages to it thread-safely.
   * 邮件入站 ，发送到适当的[[RpcEndpoint]]
   * 主要包含入站消息
   */
-private[netty] class Inbox(val endpointRef: NettyRpcEndpointRef,
-                            val endpoint: RpcEndpoint) {
+private[netty] class Inbox(_endpointRef: NettyRpcEndpointRef,
+                            _endpoint: RpcEndpoint) extends AbstractInbox(_endpointRef, _endpoint) {
   inbox =>
   // Give this an alias so we can use it more clearly in closures.
 
-  private val log = LoggerFactory.getLogger(classOf[Inbox])
-
   @GuardedBy("this")
   protected val messages = new java.util.LinkedList[InboxMessage]()
 
@@ -67,9 +173,8 @@ private[netty] class Inbox(val endpointRef: NettyRpcEndpointRef,
 
   /**
     * Process stored messages.
-    * 对于入站的消息的处理 依据模式匹配可以对不同消息[[InboxMessage]]进行不同的操作
     */
-  def process(dispatcher: Dispatcher): Unit = {
+  override def process(dispatcher: Dispatcher): Unit = {
     var message: InboxMessage = null
     inbox.synchronized {
       if (!enableConcurrent && numActiveThreads != 0) {
@@ -85,63 +190,7 @@ private[netty] class Inbox(val endpointRef: NettyRpcEndpointRef,
     }
     while (true) {
       log.debug("whiletrue")
-      safelyCall(endpoint) {
-        log.trace(s"${endpoint.getClass.getSimpleName} to proceess the inbox ${message.getClass.getSimpleName}")
-        message match {
-            // rpc 消息
-          case RpcMessage(_sender, content, context) =>
-            try {
-              log.trace(s" got an rpc message from ${_sender},content=${content.getClass.getSimpleName}")
-              endpoint.receiveAndReply(context).applyOrElse[Any, Unit](content, { msg =>
-                throw new RpcException(s"Unsupported message $message from ${_sender}")
-
-              })
-            } catch {
-              case NonFatal(e) =>
-                context.sendFailure(e)
-                // Throw the exception -- this exception will be caught by the safelyCall java.java.util.function.
-                // The endpoint's onError java.java.util.function will be called.
-                throw e
-            }
-
-          case OneWayMessage(_sender, content) =>
-            endpoint.receive.applyOrElse[Any, Unit](content, { msg =>
-              throw new RpcException(s"Unsupported message $message from ${_sender}")
-            })
-
-          case OnStart =>
-            endpoint.onStart()
-            if (!endpoint.isInstanceOf[ThreadSafeRpcEndpoint]) {
-              inbox.synchronized {
-                if (!stopped) {
-                  enableConcurrent = true
-                }
-              }
-            }
-
-          case OnStop =>
-            val activeThreads = inbox.synchronized {
-              inbox.numActiveThreads
-            }
-            assert(activeThreads == 1,
-              s"There should be only a single active thread but found $activeThreads threads.")
-            dispatcher.removeRpcEndpointRef(endpoint)
-            endpoint.onStop()
-            assert(isEmpty, "OnStop should be the last message")
-
-          case RemoteProcessConnected(remoteAddress) =>
-            log.trace(s"dispatcher inbox's recieve ${RemoteProcessConnected.getClass.getSimpleName} -> ${remoteAddress} ")
-            endpoint.onConnected(remoteAddress)
-
-          case RemoteProcessDisconnected(remoteAddress) =>
-            log.trace(s"dispatcher inbox's recieve ${RemoteProcessDisconnected.getClass.getSimpleName} -> ${remoteAddress} ")
-            endpoint.onDisconnected(remoteAddress)
-
-          case RemoteProcessConnectionError(cause, remoteAddress) =>
-            log.trace(s"dispatcher inbox's recieve ${RemoteProcessConnectionError.getClass.getSimpleName} -> ${remoteAddress} ")
-            endpoint.onNetworkError(cause, remoteAddress)
-        }
-      }
+      handleMessage(dispatcher, message)
 
       inbox.synchronized {
         // "enableConcurrent" will be set to false after `onStop` is called, so we should check it
@@ -160,7 +209,25 @@ private[netty] class Inbox(val endpointRef: NettyRpcEndpointRef,
     }
   }
 
-  def post(message: InboxMessage): Unit = inbox.synchronized {
+  override protected def onEndpointStarted(): Unit = {
+    if (!endpoint.isInstanceOf[ThreadSafeRpcEndpoint]) {
+      inbox.synchronized {
+        if (!stopped) {
+          enableConcurrent = true
+        }
+      }
+    }
+  }
+
+  override protected def onEndpointStopped(): Unit = {
+    assert(isEmpty, "OnStop should be the last message")
+  }
+
+  override protected def activeThreads: Int = inbox.synchronized {
+    inbox.numActiveThreads
+  }
+
+  override def post(message: InboxMessage): Unit = inbox.synchronized {
     if (stopped) {
       // We already put "OnStop" into "messages", so we should drop further messages
       onDrop(message)
@@ -170,7 +237,7 @@ private[netty] class Inbox(val endpointRef: NettyRpcEndpointRef,
     }
   }
 
-  def stop(): Unit = inbox.synchronized {
+  override def stop(): Unit = inbox.synchronized {
     // The following codes should be in `synchronized` so that we can make sure "OnStop" is the last
     // message
     if (!stopped) {
@@ -184,28 +251,115 @@ private[netty] class Inbox(val endpointRef: NettyRpcEndpointRef,
     }
   }
 
-  def isEmpty: Boolean = inbox.synchronized {
+  override def isEmpty: Boolean = inbox.synchronized {
     messages.isEmpty
   }
 
+}
+
+/**
+  * A lock-free inbox. Senders append to a [[MpscChunkedQueue]] without taking any monitor, and
+  * a single thread at a time drains it in batches of `batchSize` messages. Messages are handled
+  * in the order they were posted, `OnStart` first and `OnStop` last, like [[Inbox]].
+  *
+  * Unlike [[Inbox]], messages are never processed concurrently, even for endpoints that are not
+  * a [[ThreadSafeRpcEndpoint]]: a single consumer is what lets the queue stay lock-free.
+  */
+private[netty] class MpscInbox(_endpointRef: NettyRpcEndpointRef,
+                               _endpoint: RpcEndpoint,
+                               batchSize: Int) extends AbstractInbox(_endpointRef, _endpoint) {
+
+  require(batchSize > 0, s"batchSize must be positive but got $batchSize")
+
+  private val messages = new MpscChunkedQueue[InboxMessage](Inbox.MPSC_CHUNK_SIZE)
+
+  /** Reused by whichever thread holds `processing` to receive each drained batch. */
+  private val batch = new Array[AnyRef](batchSize)
+
+  /** True once "OnStop" has been queued. Further posts are dropped. */
+  private val stopped = new AtomicBoolean(false)
+
+  /** Only the thread that flips this from false to true may consume `messages`. */
+  private val processing = new AtomicBoolean(false)
+
   /**
-    * Called when we are dropping a message. Test cases override this to test message dropping.
-    * Exposed for testing.
+    * True once "OnStop" has been handled. A post that checked `stopped` just before `stop` ran can
+    * still land behind "OnStop"; such messages are dropped here instead of reaching the endpoint.
     */
-  protected def onDrop(message: InboxMessage): Unit = {
-    log.warn(s"Drop $message because $endpointRef is stopped")
+  private var terminated = false
+
+  // OnStart should be the first message to process
+  messages.offer(OnStart)
+
+  override def process(dispatcher: Dispatcher): Unit = {
+    // A message posted after our last drain but before we released `processing` was seen as busy
+    // by the thread the dispatcher woke for it, so check again after releasing.
+    while (!messages.isEmpty && processing.compareAndSet(false, true)) {
+      try {
+        var n = messages.drain(batch)
+        while (n > 0) {
+          var i = 0
+          while (i < n) {
+            val message = batch(i).asInstanceOf[InboxMessage]
+            batch(i) = null
+            if (terminated) {
+              onDrop(message)
+            } else {
+              handleMessage(dispatcher, message)
+            }
+            i += 1
+          }
+          n = messages.drain(batch)
+        }
+      } finally {
+        processing.set(false)
+      }
+    }
+  }
+
+  override protected def onEndpointStarted(): Unit = {}
+
+  override protected def onEndpointStopped(): Unit = {
+    terminated = true
+  }
+
+  override protected def activeThreads: Int = if (processing.get) 1 else 0
+
+  override def post(message: InboxMessage): Unit = {
+    if (stopped.get) {
+      // We already put "OnStop" into "messages", so we should drop further messages
+      onDrop(message)
+    } else {
+      messages.offer(message)
+    }
+  }
+
+  override def stop(): Unit = {
+    if (stopped.compareAndSet(false, true)) {
+      messages.offer(OnStop)
+    }
   }
 
+  override def isEmpty: Boolean = messages.isEmpty
+
+}
+
+private[netty] object Inbox {
+
+  /** Messages per chunk of an [[MpscInbox]] queue; one chunk is allocated per this many posts. */
+  val MPSC_CHUNK_SIZE = 256
+
   /**
-    * Calls action closure, and calls the endpoint's onError java.java.util.function in the case of exceptions.
+    * Create the inbox selected by `spark.rpc.netty.inbox.mode`: "synchronized" (the default) for
+    * [[Inbox]], or "mpsc" for [[MpscInbox]].
     */
-  private def safelyCall(endpoint: RpcEndpoint)(action: => Unit): Unit = {
-    try action catch {
-      case NonFatal(e) =>
-        try endpoint.onError(e) catch {
-          case NonFatal(ee) => log.error(s"Ignoring error", ee)
-        }
+  def apply(conf: RpcConf, endpointRef: NettyRpcEndpointRef, endpoint: RpcEndpoint): AbstractInbox = {
+    conf.get("spark.rpc.netty.inbox.mode", "synchronized").toLowerCase match {
+      case "synchronized" => new Inbox(endpointRef, endpoint)
+      case "mpsc" =>
+        new MpscInbox(endpointRef, endpoint, conf.getInt("spark.rpc.netty.inbox.batchSize", 64))
+      case other =>
+        throw new IllegalArgumentException(s"Unknown spark.rpc.netty.inbox.mode: $other")
     }
   }
-
 }
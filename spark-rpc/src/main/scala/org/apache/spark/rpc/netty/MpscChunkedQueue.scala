@@ -0,0 +1,131 @@
+package org.apache.spark.rpc.netty
+
+import java.util.concurrent.atomic.{AtomicLong, AtomicReference, AtomicReferenceArray}
+
+/**
+  * An unbounded multi-producer / single-consumer queue built from linked fixed-size chunks.
+  *
+  * Producers claim a sequence number with one `getAndIncrement` on `tail` and store the element
+  * straight into the slot of the chunk that owns it, so no node is allocated per element and no
+  * lock is taken. A new chunk is only allocated every `chunkSize` elements.
+  *
+  * Only one thread may consume at a time; the caller is responsible for that (see [[MpscInbox]]).
+  */
+private[netty] class MpscChunkedQueue[T <: AnyRef](chunkSize: Int) {
+
+  require(chunkSize > 0 && Integer.bitCount(chunkSize) == 1,
+    s"chunkSize must be a positive power of 2 but got $chunkSize")
+
+  private val mask = chunkSize - 1
+  private val shift = Integer.numberOfTrailingZeros(chunkSize)
+
+  private final class Chunk(val index: Long) {
+    val slots = new AtomicReferenceArray[AnyRef](chunkSize)
+    val next = new AtomicReference[Chunk]()
+  }
+
+  /** The next sequence number a producer will claim. */
+  private val tail = new AtomicLong(0L)
+
+  /** The next sequence number the consumer will read. Only written by the consumer. */
+  private val head = new AtomicLong(0L)
+
+  /**
+    * The chunk the consumer is reading from. Producers read it too, because it is the only chunk
+    * that is guaranteed not to be ahead of a sequence number they have claimed but not yet filled.
+    */
+  private val consumerChunk = new AtomicReference[Chunk](new Chunk(0L))
+
+  /** The newest chunk a producer has reached. Only a hint, so producers don't walk from the head. */
+  private val producerChunk = new AtomicReference[Chunk](consumerChunk.get)
+
+  /** Add an element to the queue. Never blocks and never fails. */
+  def offer(e: T): Unit = {
+    if (e == null) {
+      throw new NullPointerException
+    }
+    val seq = tail.getAndIncrement()
+    chunkFor(seq >>> shift).slots.lazySet((seq & mask).toInt, e)
+  }
+
+  /** Remove and return the head of the queue, or null if it is empty. Consumer only. */
+  def poll(): T = {
+    val seq = head.get
+    if (seq >= tail.get) {
+      return null.asInstanceOf[T]
+    }
+    val e = take(seq)
+    head.lazySet(seq + 1)
+    e
+  }
+
+  /**
+    * Move up to `batch.length` elements into `batch` and return how many were moved. The consumer
+    * index is published once per batch rather than once per element. Consumer only.
+    */
+  def drain(batch: Array[AnyRef]): Int = {
+    val start = head.get
+    val available = math.min(tail.get - start, batch.length.toLong).toInt
+    var i = 0
+    while (i < available) {
+      batch(i) = take(start + i)
+      i += 1
+    }
+    if (available > 0) {
+      head.lazySet(start + available)
+    }
+    available
+  }
+
+  def isEmpty: Boolean = head.get >= tail.get
+
+  /** Approximate number of elements; exact only when there is no concurrent producer. */
+  def size: Int = math.max(0L, tail.get - head.get).toInt
+
+  /** Find the chunk with the given index, appending new chunks as needed. Producer side. */
+  private def chunkFor(index: Long): Chunk = {
+    var chunk = producerChunk.get
+    if (chunk.index > index) {
+      // Other producers have raced ahead of us. The consumer cannot pass our unfilled slot, so its
+      // chunk is never ahead of ours.
+      chunk = consumerChunk.get
+    }
+    while (chunk.index < index) {
+      var next = chunk.next.get
+      if (next == null) {
+        chunk.next.compareAndSet(null, new Chunk(chunk.index + 1))
+        next = chunk.next.get
+      }
+      chunk = next
+    }
+    var hint = producerChunk.get
+    while (hint.index < chunk.index && !producerChunk.compareAndSet(hint, chunk)) {
+      hint = producerChunk.get
+    }
+    chunk
+  }
+
+  /** Read and clear the element for `seq`, waiting for a producer that claimed it to store it. */
+  private def take(seq: Long): T = {
+    var chunk = consumerChunk.get
+    if (chunk.index != (seq >>> shift)) {
+      // The producer that claimed `seq` may not have linked the next chunk yet.
+      var next = chunk.next.get
+      while (next == null) {
+        Thread.`yield`()
+        next = chunk.next.get
+      }
+      consumerChunk.set(next)
+      chunk = next
+    }
+    val slot = (seq & mask).toInt
+    var e = chunk.slots.get(slot)
+    while (e == null) {
+      // Claimed but not stored yet; the window is a couple of instructions wide.
+      Thread.`yield`()
+      e = chunk.slots.get(slot)
+    }
+    chunk.slots.lazySet(slot, null)
+    e.asInstanceOf[T]
+  }
+}
@@ -12,7 +12,8 @@ import org.apache.spark.network.TransportContext
 import org.apache.spark.network.client._
 import org.apache.spark.network.server._
 import org.apache.spark.rpc._
-import org.apache.spark.serializer.{JavaSerializer, JavaSerializerInstance}
+import io.netty.buffer.ByteBuf
+import org.apache.spark.serializer._
 import org.apache.spark.util.{ThreadUtils, Utils}
 import org.slf4j.LoggerFactory
 
@@ -25,7 +26,7 @@ import scala.util.{DynamicVariable, Failure, Success}
 // 目前RpcEnv的唯一实现,新创建的NettyRpcEnv主要用于Endpoint的注册、启动transportServer、
 // 获得RPCEndpointRef、创建客户端等等；其主要成员有dispatcher、transportContext。
 class NettyRpcEnv(val conf: RpcConf,
-                   javaSerializerInstance: JavaSerializerInstance,
+                   serializerInstance: SerializerInstance,
                    host: String) extends RpcEnv(conf) {
 
   private val log = LoggerFactory.getLogger(classOf[NettyRpcEnv])
@@ -64,6 +65,14 @@ class NettyRpcEnv(val conf: RpcConf,
     "netty-rpc-connection",
     conf.getInt("spark.rpc.connect.threads", 64))
 
+  /** How many bytes an [[Outbox]] writes before it flushes the connection. */
+  private[netty] val outboxMaxBatchBytes =
+    conf.getSizeAsBytes("spark.rpc.netty.outbox.maxBatchBytes", "64k")
+
+  /** How long an [[Outbox]] may hold written messages of one batch before it flushes them. */
+  private[netty] val outboxMaxBatchDelayNanos =
+    TimeUnit.MILLISECONDS.toNanos(conf.getTimeAsMs("spark.rpc.netty.outbox.maxBatchDelay", "1ms"))
+
   @volatile private var server: TransportServer = _
 
   private val stopped = new AtomicBoolean(false)
@@ -207,7 +216,7 @@ class NettyRpcEnv(val conf: RpcConf,
         val rpcMessage = RpcOutboxMessage(serialize(message),
           onFailure,
          (client, response) => onSuccess(deserialize[Any](client, response)))
-      //  log.warn(s"rpc send message=${javaSerializerInstance.deserialize(rpcMessage.content)}")
+      //  log.warn(s"rpc send message=${serializerInstance.deserialize(rpcMessage.content)}")
         postToOutbox(message.receiver, rpcMessage)
         promise.future.onFailure {
           case _: TimeoutException => rpcMessage.onTimeout()
@@ -231,13 +240,13 @@ class NettyRpcEnv(val conf: RpcConf,
   }
 
   private[netty] def serialize(content: Any): ByteBuffer = {
-    javaSerializerInstance.serialize(content)
+    serializerInstance.serialize(content)
   }
 
   private[netty] def deserialize[T: ClassTag](client: TransportClient, bytes: ByteBuffer): T = {
     NettyRpcEnv.currentClient.withValue(client) {
       deserialize { () =>
-        javaSerializerInstance.deserialize[T](bytes)
+        serializerInstance.deserialize[T](bytes)
       }
     }
   }
@@ -309,6 +318,84 @@ private[netty] object NettyRpcEnv {
     */
   private[netty] val currentClient = new DynamicVariable[TransportClient](null)
 
+  /**
+    * Create the serializer selected by `spark.rpc.serializer`: "java" (the default) for
+    * [[JavaSerializer]], or "compact" for a [[CompactSerializer]] that knows the RPC messages.
+    */
+  private[netty] def createSerializer(conf: RpcConf): Serializer = {
+    conf.get("spark.rpc.serializer", "java").toLowerCase match {
+      case "java" => new JavaSerializer(conf)
+      case "compact" => newCompactSerializer(conf)
+      case other => throw new IllegalArgumentException(s"Unknown spark.rpc.serializer: $other")
+    }
+  }
+
+  /** A [[CompactSerializer]] with the classes every RPC carries registered. */
+  private[netty] def newCompactSerializer(conf: RpcConf): CompactSerializer = {
+    new CompactSerializer(conf)
+      .register(classOf[RequestMessage], RequestMessageCodec)
+      .register(classOf[NettyRpcEndpointRef], EndpointRefCodec)
+      .register(classOf[RpcEndpointVerifier.CheckExistence], CheckExistenceCodec)
+      .register(classOf[RpcFailure], RpcFailureCodec)
+  }
+
+  private object RequestMessageCodec extends CompactCodec[RequestMessage] {
+
+    override def write(ser: CompactSerializerInstance, out: ByteBuf, value: RequestMessage): Unit = {
+      ser.writeValue(out, value.senderAddress)
+      EndpointRefCodec.write(ser, out, value.receiver)
+      ser.writeValue(out, value.content)
+    }
+
+    override def read(ser: CompactSerializerInstance, in: ByteBuf): RequestMessage = {
+      val senderAddress = ser.readValue(in).asInstanceOf[RpcAddress]
+      val receiver = EndpointRefCodec.read(ser, in)
+      RequestMessage(senderAddress, receiver, ser.readValue(in))
+    }
+  }
+
+  /** Like `NettyRpcEndpointRef.readObject`, binds the ref to `currentEnv` and `currentClient`. */
+  private object EndpointRefCodec extends CompactCodec[NettyRpcEndpointRef] {
+
+    override def write(ser: CompactSerializerInstance, out: ByteBuf, value: NettyRpcEndpointRef): Unit = {
+      ser.writeValue(out, value.address)
+      ser.writeString(out, value.name)
+    }
+
+    override def read(ser: CompactSerializerInstance, in: ByteBuf): NettyRpcEndpointRef = {
+      val address = ser.readValue(in).asInstanceOf[RpcAddress]
+      val name = ser.readString(in)
+      val env = currentEnv.value
+      val conf = if (env != null) env.conf else new RpcConf()
+      val ref = new NettyRpcEndpointRef(conf, RpcEndpointAddress(address, name), env)
+      ref.client = currentClient.value
+      ref
+    }
+  }
+
+  private object CheckExistenceCodec extends CompactCodec[RpcEndpointVerifier.CheckExistence] {
+
+    override def write(ser: CompactSerializerInstance, out: ByteBuf,
+                       value: RpcEndpointVerifier.CheckExistence): Unit = {
+      ser.writeString(out, value.getName)
+    }
+
+    override def read(ser: CompactSerializerInstance, in: ByteBuf): RpcEndpointVerifier.CheckExistence = {
+      RpcEndpointVerifier.createCheckExistence(ser.readString(in))
+    }
+  }
+
+  /** The cause has no compact form; it goes through the Java fallback of `writeValue`. */
+  private object RpcFailureCodec extends CompactCodec[RpcFailure] {
+
+    override def write(ser: CompactSerializerInstance, out: ByteBuf, value: RpcFailure): Unit = {
+      ser.writeValue(out, value.e)
+    }
+
+    override def read(ser: CompactSerializerInstance, in: ByteBuf): RpcFailure = {
+      RpcFailure(ser.readValue(in).asInstanceOf[Throwable])
+    }
+  }
 }
 
 object NettyRpcEnvFactory extends RpcEnvFactory {
@@ -316,12 +403,13 @@ object NettyRpcEnvFactory extends RpcEnvFactory {
   def create(config: RpcEnvConfig): RpcEnv = {
     val conf = config.conf
 
-    // Use JavaSerializerInstance in multiple threads is safe. However, if we plan to support
-    // KryoSerializer in future, we have to use ThreadLocal to store SerializerInstance
+    // Use JavaSerializerInstance or CompactSerializerInstance in multiple threads is safe. However,
+    // if we plan to support KryoSerializer in future, we have to use ThreadLocal to store
+    // SerializerInstance
     //     //创建序列化
-    val javaSerializerInstance: JavaSerializerInstance= new JavaSerializer(conf).newInstance().asInstanceOf[JavaSerializerInstance]
+    val serializerInstance: SerializerInstance = NettyRpcEnv.createSerializer(conf).newInstance()
 
-    val nettyEnv = new NettyRpcEnv(conf, javaSerializerInstance, config.bindAddress)
+    val nettyEnv = new NettyRpcEnv(conf, serializerInstance, config.bindAddress)
     if (!config.clientMode) {
       // 一个函数
      def startNettyRpcEnv: Int => (NettyRpcEnv, Int) = { actualPort =>
@@ -14,7 +14,14 @@ import scala.util.control.NonFatal
 
 private[netty] sealed trait OutboxMessage {
 
-  def sendWith(client: TransportClient): Unit
+  /**
+    * Write this message to `client`. With `flush = false` it only reaches the socket on the next
+    * `client.flush()`, which lets [[Outbox]] send a whole batch in one write.
+    */
+  def sendWith(client: TransportClient, flush: Boolean = true): Unit
+
+  /** Serialized size of the message, used to cap how much an [[Outbox]] batches per flush. */
+  def size: Long
 
   def onFailure(e: Throwable): Unit
 
@@ -24,10 +31,12 @@ private[netty] case class OneWayOutboxMessage(content: ByteBuffer) extends Outbo
 
   private val log = LoggerFactory.getLogger(classOf[OneWayOutboxMessage])
 
-  override def sendWith(client: TransportClient): Unit = {
-    client.send(content)
+  override def sendWith(client: TransportClient, flush: Boolean): Unit = {
+    client.send(content, flush)
   }
 
+  override def size: Long = content.remaining()
+
   override def onFailure(e: Throwable): Unit = {
     e match {
       case e1: RpcEnvStoppedException => log.warn(e1.getMessage)
@@ -48,13 +57,15 @@ private[netty] case class RpcOutboxMessage(
   private var client: TransportClient = _
   private var requestId: Long = _
 
-  override def sendWith(client: TransportClient): Unit = {
+  override def sendWith(client: TransportClient, flush: Boolean): Unit = {
     this.client = client
 
     log.warn(s"try to send message with netty in  TransportClient ")
-    this.requestId = client.sendRpc(content, this)
+    this.requestId = client.sendRpc(content, this, flush)
   }
 
+  override def size: Long = content.remaining()
+
   def onTimeout(): Unit = {
     if (client != null) {
       client.removeRpcRequest(requestId)
@@ -78,7 +89,7 @@ private[netty] class Outbox(nettyEnv: NettyRpcEnv, val address: RpcAddress) exte
   outbox => // Give this an alias so we can use it more clearly in closures.
 
   @GuardedBy("this")
-  private val messages = new java.util.LinkedList[OutboxMessage]
+  private val messages = new java.util.LinkedList[Queued]
 
   @GuardedBy("this")
   private var client: TransportClient = null
@@ -99,6 +110,12 @@ private[netty] class Outbox(nettyEnv: NettyRpcEnv, val address: RpcAddress) exte
   @GuardedBy("this")
   private var draining = false
 
+  /** Stop adding messages to a batch once it holds this many bytes. */
+  private val maxBatchBytes = nettyEnv.outboxMaxBatchBytes
+
+  /** Flush written messages once the oldest of them was queued this long ago. */
+  private val maxBatchDelayNanos = nettyEnv.outboxMaxBatchDelayNanos
+
   /**
     * Send a message. If there is no active connection, cache it and launch a new connection. If
     * [[Outbox]] is stopped, the sender will be notified with a [[RpcException]].
@@ -108,7 +125,7 @@ private[netty] class Outbox(nettyEnv: NettyRpcEnv, val address: RpcAddress) exte
       if (stopped) {
         true
       } else {
-        messages.add(message)
+        messages.add(Queued(message, System.nanoTime()))
         false
       }
     }
@@ -123,9 +140,13 @@ private[netty] class Outbox(nettyEnv: NettyRpcEnv, val address: RpcAddress) exte
     * Drain the message queue. If there is other draining thread, just exit. If the connection has
     * not been established, launch a task in the `nettyEnv.clientConnectionExecutor` to setup the
     * connection.
+    *
+    * Pending messages are taken in batches of up to `maxBatchBytes` under one lock acquisition,
+    * written to the channel without flushing, and flushed once per batch, so a burst of small
+    * messages turns into a few gathering writes instead of one write and flush per message.
     */
   private def drainOutbox(): Unit = {
-    var message: OutboxMessage = null
+    val batch = new java.util.ArrayDeque[Queued]
     synchronized {
       if (stopped) {
         return
@@ -143,8 +164,8 @@ private[netty] class Outbox(nettyEnv: NettyRpcEnv, val address: RpcAddress) exte
         // There is some thread draining, so just exit
         return
       }
-      message = messages.poll()
-      if (message == null) {
+      pollBatch(batch)
+      if (batch.isEmpty) {
         return
       }
       draining = true
@@ -156,21 +177,29 @@ private[netty] class Outbox(nettyEnv: NettyRpcEnv, val address: RpcAddress) exte
 
 
           logTrace(s"message from outBox start send ")
-          message.sendWith(_client)
+          writeBatch(_client, batch)
         } else {
           assert(stopped == true)
         }
       } catch {
         case NonFatal(e) =>
+          // Messages of the batch that were not written yet are no longer in `messages`, so
+          // handleNetworkFailure cannot see them.
+          var queued = batch.poll()
+          while (queued != null) {
+            queued.message.onFailure(e)
+            queued = batch.poll()
+          }
           handleNetworkFailure(e)
           return
       }
+      batch.clear()
       synchronized {
         if (stopped) {
           return
         }
-        message = messages.poll()
-        if (message == null) {
+        pollBatch(batch)
+        if (batch.isEmpty) {
           draining = false
           return
         }
@@ -178,6 +207,36 @@ private[netty] class Outbox(nettyEnv: NettyRpcEnv, val address: RpcAddress) exte
     }
   }
 
+  /** Move pending messages into `batch` until they add up to `maxBatchBytes`. */
+  @GuardedBy("this")
+  private def pollBatch(batch: java.util.ArrayDeque[Queued]): Unit = {
+    var bytes = 0L
+    while (bytes < maxBatchBytes && !messages.isEmpty) {
+      val queued = messages.poll()
+      batch.add(queued)
+      bytes += queued.message.size
+    }
+  }
+
+  /**
+    * Write every message of `batch` without flushing and flush once at the end, or earlier as soon
+    * as the oldest unflushed message was queued `maxBatchDelayNanos` ago, so time spent waiting
+    * behind earlier batches counts against the delay too. A message is removed from `batch` once
+    * it is written, so if writing one throws, it and the rest are still in `batch`.
+    */
+  private def writeBatch(_client: TransportClient, batch: java.util.ArrayDeque[Queued]): Unit = {
+    var oldestUnflushed = batch.peek().queuedNanos
+    while (!batch.isEmpty) {
+      batch.peek().message.sendWith(_client, flush = false)
+      batch.poll()
+      if (!batch.isEmpty && System.nanoTime() - oldestUnflushed >= maxBatchDelayNanos) {
+        _client.flush()
+        oldestUnflushed = batch.peek().queuedNanos
+      }
+    }
+    _client.flush()
+  }
+
   private def launchConnectTask(): Unit = {
     logTrace(s"1. client try to connect remote ... ")
     connectFuture = nettyEnv.clientConnectionExecutor.submit(new Callable[Unit] {
@@ -229,10 +288,10 @@ private[netty] class Outbox(nettyEnv: NettyRpcEnv, val address: RpcAddress) exte
     //
     // We always check `stopped` before updating messages, so here we can make sure no thread will
     // update messages and it's safe to just drain the queue.
-    var message = messages.poll()
-    while (message != null) {
-      message.onFailure(e)
-      message = messages.poll()
+    var queued = messages.poll()
+    while (queued != null) {
+      queued.message.onFailure(e)
+      queued = messages.poll()
     }
     assert(messages.isEmpty)
   }
@@ -260,10 +319,13 @@ private[netty] class Outbox(nettyEnv: NettyRpcEnv, val address: RpcAddress) exte
 
     // We always check `stopped` before updating messages, so here we can make sure no thread will
     // update messages and it's safe to just drain the queue.
-    var message = messages.poll()
-    while (message != null) {
-      message.onFailure(new RpcException("Message is dropped because Outbox is stopped"))
-      message = messages.poll()
+    var queued = messages.poll()
+    while (queued != null) {
+      queued.message.onFailure(new RpcException("Message is dropped because Outbox is stopped"))
+      queued = messages.poll()
     }
   }
 }
+
+/** A message waiting in an [[Outbox]], with the `System.nanoTime()` it was queued at. */
+private case class Queued(message: OutboxMessage, queuedNanos: Long)
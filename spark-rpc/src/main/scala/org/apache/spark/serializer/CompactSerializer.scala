@@ -0,0 +1,285 @@
+package org.apache.spark.serializer
+
+import java.io._
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets.UTF_8
+
+import io.netty.buffer.{ByteBuf, ByteBufInputStream, ByteBufOutputStream, Unpooled}
+import org.apache.spark.RpcConf
+import org.apache.spark.rpc.RpcAddress
+
+import scala.reflect.ClassTag
+
+/**
+  * Writes and reads the body of one class registered with a [[CompactSerializer]]. Nested values
+  * should go back through `ser.writeValue` / `ser.readValue` so they get the compact encoding too.
+  */
+trait CompactCodec[T] {
+
+  def write(ser: CompactSerializerInstance, out: ByteBuf, value: T): Unit
+
+  def read(ser: CompactSerializerInstance, in: ByteBuf): T
+}
+
+/**
+  * A serializer for small control-plane messages. Every value is written as a one-byte tag followed
+  * by a compact body: strings, boxed primitives and byte arrays have built-in encodings, classes
+  * registered through [[register]] are written by their [[CompactCodec]] without any class
+  * descriptor, and anything else falls back to Java serialization for that value only.
+  *
+  * Values are written straight into a Netty [[ByteBuf]] and read back from one, so serializing into
+  * a pooled buffer, or deserializing a buffer received from the network, involves no intermediate
+  * stream or copy.
+  *
+  * Both sides must register the same classes in the same order, since a registered class is
+  * identified by its registration index only.
+  */
+class CompactSerializer(conf: RpcConf) extends Serializer {
+
+  private var codecs = Vector[(Class[_], CompactCodec[_])]()
+
+  register(classOf[RpcAddress], CompactSerializer.RpcAddressCodec)
+
+  /** Register a codec for values whose runtime class is exactly `clazz`. */
+  def register[T](clazz: Class[T], codec: CompactCodec[T]): CompactSerializer = synchronized {
+    require(codecs.size < CompactSerializer.MAX_REGISTRATIONS,
+      s"Cannot register more than ${CompactSerializer.MAX_REGISTRATIONS} classes")
+    require(!codecs.exists(_._1 == clazz), s"$clazz is already registered")
+    codecs :+= (clazz -> codec)
+    this
+  }
+
+  override def newInstance(): SerializerInstance = {
+    val classLoader = defaultClassLoader.getOrElse(Thread.currentThread.getContextClassLoader)
+    new CompactSerializerInstance(synchronized(codecs), classLoader)
+  }
+
+  /** Every value is self-contained, there is no stream header or back reference. */
+  override def supportsRelocationOfSerializedObjects: Boolean = true
+}
+
+private[spark] object CompactSerializer {
+
+  val NULL = 0
+  val STRING = 1
+  val INT = 2
+  val LONG = 3
+  val TRUE = 4
+  val FALSE = 5
+  val DOUBLE = 6
+  val BYTES = 7
+  val JAVA = 8
+
+  /** Tags from here on identify registered classes. */
+  val FIRST_REGISTERED = 16
+
+  val MAX_REGISTRATIONS = 256 - FIRST_REGISTERED
+
+  object RpcAddressCodec extends CompactCodec[RpcAddress] {
+
+    override def write(ser: CompactSerializerInstance, out: ByteBuf, value: RpcAddress): Unit = {
+      ser.writeString(out, value.host)
+      out.writeInt(value.port)
+    }
+
+    override def read(ser: CompactSerializerInstance, in: ByteBuf): RpcAddress = {
+      RpcAddress(ser.readString(in), in.readInt())
+    }
+  }
+}
+
+/**
+  * Holds no mutable state, so unlike most [[SerializerInstance]]s one instance can be shared by
+  * many threads.
+  */
+class CompactSerializerInstance private[serializer](
+                                                    codecs: Vector[(Class[_], CompactCodec[_])],
+                                                    defaultClassLoader: ClassLoader)
+  extends SerializerInstance {
+
+  import CompactSerializer._
+
+  private val tags: Map[Class[_], Int] = codecs.map(_._1).zipWithIndex.toMap
+
+  override def serialize[T: ClassTag](t: T): ByteBuffer = {
+    val buf = Unpooled.buffer(64)
+    writeValue(buf, t)
+    // A view over the heap buffer's array, not a copy.
+    buf.nioBuffer()
+  }
+
+  /** Serialize `t` at the writer index of `out`, e.g. a buffer taken from a pooled allocator. */
+  def serialize[T: ClassTag](t: T, out: ByteBuf): Unit = writeValue(out, t)
+
+  override def deserialize[T: ClassTag](bytes: ByteBuffer): T = {
+    deserialize(bytes, defaultClassLoader)
+  }
+
+  override def deserialize[T: ClassTag](bytes: ByteBuffer, loader: ClassLoader): T = {
+    // Wraps the buffer's memory without copying it.
+    readValue(Unpooled.wrappedBuffer(bytes), loader).asInstanceOf[T]
+  }
+
+  /** Deserialize one value from the reader index of `in`, e.g. a buffer received by Netty. */
+  def deserialize[T: ClassTag](in: ByteBuf): T = readValue(in, defaultClassLoader).asInstanceOf[T]
+
+  override def serializeStream(s: OutputStream): SerializationStream = {
+    new CompactSerializationStream(this, s)
+  }
+
+  override def deserializeStream(s: InputStream): DeserializationStream = {
+    new CompactDeserializationStream(this, s)
+  }
+
+  def writeValue(out: ByteBuf, value: Any): Unit = value match {
+    case null => out.writeByte(NULL)
+    case s: String =>
+      out.writeByte(STRING)
+      writeString(out, s)
+    case i: Int =>
+      out.writeByte(INT)
+      out.writeInt(i)
+    case l: Long =>
+      out.writeByte(LONG)
+      out.writeLong(l)
+    case b: Boolean => out.writeByte(if (b) TRUE else FALSE)
+    case d: Double =>
+      out.writeByte(DOUBLE)
+      out.writeDouble(d)
+    case bytes: Array[Byte] =>
+      out.writeByte(BYTES)
+      writeVarInt(out, bytes.length)
+      out.writeBytes(bytes)
+    case v: AnyRef =>
+      tags.get(v.getClass) match {
+        case Some(index) =>
+          out.writeByte(FIRST_REGISTERED + index)
+          codecs(index)._2.asInstanceOf[CompactCodec[AnyRef]].write(this, out, v)
+        case None =>
+          // Includes the boxed primitives without a tag (Short, Char, Float, ...), which are rare
+          // in RPC messages.
+          writeJava(out, v)
+      }
+  }
+
+  def readValue(in: ByteBuf): Any = readValue(in, defaultClassLoader)
+
+  private def readValue(in: ByteBuf, loader: ClassLoader): Any = {
+    val tag = in.readUnsignedByte().toInt
+    tag match {
+      case NULL => null
+      case STRING => readString(in)
+      case INT => in.readInt()
+      case LONG => in.readLong()
+      case TRUE => true
+      case FALSE => false
+      case DOUBLE => in.readDouble()
+      case BYTES =>
+        val bytes = new Array[Byte](readVarInt(in))
+        in.readBytes(bytes)
+        bytes
+      case JAVA => readJava(in, loader)
+      case _ if tag >= FIRST_REGISTERED && tag - FIRST_REGISTERED < codecs.size =>
+        codecs(tag - FIRST_REGISTERED)._2.read(this, in)
+      case _ => throw new StreamCorruptedException(s"Unknown value tag $tag")
+    }
+  }
+
+  /** A UTF-8 string with a var-int length prefix, without the tag of [[writeValue]]. */
+  def writeString(out: ByteBuf, s: String): Unit = {
+    val bytes = s.getBytes(UTF_8)
+    writeVarInt(out, bytes.length)
+    out.writeBytes(bytes)
+  }
+
+  def readString(in: ByteBuf): String = {
+    val length = readVarInt(in)
+    val s = in.toString(in.readerIndex(), length, UTF_8)
+    in.skipBytes(length)
+    s
+  }
+
+  def writeVarInt(out: ByteBuf, value: Int): Unit = {
+    var v = value
+    while ((v & ~0x7F) != 0) {
+      out.writeByte((v & 0x7F) | 0x80)
+      v >>>= 7
+    }
+    out.writeByte(v)
+  }
+
+  def readVarInt(in: ByteBuf): Int = {
+    var result = 0
+    var shift = 0
+    var b = 0
+    do {
+      if (shift > 28) {
+        throw new StreamCorruptedException("Malformed var-int")
+      }
+      b = in.readByte()
+      result |= (b & 0x7F) << shift
+      shift += 7
+    } while ((b & 0x80) != 0)
+    result
+  }
+
+  /** Java serialization of a single value, prefixed with its length. */
+  private def writeJava(out: ByteBuf, value: Any): Unit = {
+    out.writeByte(JAVA)
+    val lengthIndex = out.writerIndex()
+    out.writeInt(0)
+    val stream = new JavaSerializationStream(new ByteBufOutputStream(out), 0, false)
+    stream.writeObject(value)
+    stream.close()
+    out.setInt(lengthIndex, out.writerIndex() - lengthIndex - 4)
+  }
+
+  private def readJava(in: ByteBuf, loader: ClassLoader): Any = {
+    val length = in.readInt()
+    val start = in.readerIndex()
+    val stream = new JavaDeserializationStream(new ByteBufInputStream(in, length), loader)
+    try {
+      stream.readObject[Any]()
+    } finally {
+      stream.close()
+      // The object stream may stop short of, or buffer past, the end of the value, and the next
+      // value starts right after it.
+      in.readerIndex(start + length)
+    }
+  }
+}
+
+/** Writes each value with an int length prefix so the reader knows where it ends. */
+private[spark] class CompactSerializationStream(ser: CompactSerializerInstance, out: OutputStream)
+  extends SerializationStream {
+
+  private val dataOut = new DataOutputStream(out)
+  private val buf = Unpooled.buffer(64)
+
+  override def writeObject[T: ClassTag](t: T): SerializationStream = {
+    buf.clear()
+    ser.writeValue(buf, t)
+    dataOut.writeInt(buf.readableBytes())
+    buf.readBytes(dataOut, buf.readableBytes())
+    this
+  }
+
+  override def flush(): Unit = dataOut.flush()
+
+  override def close(): Unit = dataOut.close()
+}
+
+private[spark] class CompactDeserializationStream(ser: CompactSerializerInstance, in: InputStream)
+  extends DeserializationStream {
+
+  private val dataIn = new DataInputStream(in)
+
+  override def readObject[T: ClassTag](): T = {
+    // Throws EOFException at the end of the stream, which asIterator relies on.
+    val bytes = new Array[Byte](dataIn.readInt())
+    dataIn.readFully(bytes)
+    ser.readValue(Unpooled.wrappedBuffer(bytes)).asInstanceOf[T]
+  }
+
+  override def close(): Unit = dataIn.close()
+}
@@ -0,0 +1,53 @@
+package org.apache.spark.rpc.netty
+
+import org.apache.spark.RpcConf
+import org.apache.spark.rpc.{RpcAddress, RpcEndpointAddress}
+import org.apache.spark.serializer.{JavaSerializer, SerializerInstance}
+
+/**
+  * Compares JavaSerializer with the compact RPC serializer on a typical control-plane
+  * RequestMessage: time per round trip, serialized size and bytes allocated.
+  */
+object RpcSerializerBenchmark {
+
+  def main(args: Array[String]): Unit = {
+    val iterations = if (args.length > 0) args(0).toInt else 1000000
+    val conf = new RpcConf()
+    val receiver = new NettyRpcEndpointRef(conf,
+      RpcEndpointAddress(RpcAddress("localhost", 52345), "hello-service"), null)
+    val message = RequestMessage(RpcAddress("localhost", 40000), receiver, "hello")
+
+    val java = new JavaSerializer(conf).newInstance()
+    val compact = NettyRpcEnv.newCompactSerializer(conf).newInstance()
+    // Warm up both before measuring either
+    run("java", java, message, iterations / 10, report = false)
+    run("compact", compact, message, iterations / 10, report = false)
+    run("java", java, message, iterations, report = true)
+    run("compact", compact, message, iterations, report = true)
+  }
+
+  def run(name: String, ser: SerializerInstance, message: RequestMessage, iterations: Int,
+          report: Boolean): Unit = {
+    val allocated = allocatedBytes()
+    val starting = System.nanoTime()
+    var size = 0
+    for (i <- 1 to iterations) {
+      val bytes = ser.serialize(message)
+      size = bytes.remaining()
+      ser.deserialize[RequestMessage](bytes)
+    }
+    val cost = System.nanoTime() - starting
+    if (report) {
+      println(s"$name: serialized size (bytes): $size")
+      println(s"$name: average round trip (ns): ${cost / iterations}")
+      println(s"$name: allocated per round trip (bytes): ${(allocatedBytes() - allocated) / iterations}")
+    }
+  }
+
+  private def allocatedBytes(): Long = {
+    java.lang.management.ManagementFactory.getThreadMXBean match {
+      case bean: com.sun.management.ThreadMXBean => bean.getThreadAllocatedBytes(Thread.currentThread.getId)
+      case _ => 0L
+    }
+  }
+}
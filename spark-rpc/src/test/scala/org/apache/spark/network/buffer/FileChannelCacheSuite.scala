@@ -0,0 +1,95 @@
+package org.apache.spark.network.buffer
+
+import java.io.File
+import java.nio.charset.StandardCharsets.UTF_8
+
+import com.google.common.io.Files
+
+import org.apache.spark.SparkFunSuite
+import org.apache.spark.network.util.JavaUtils
+
+class FileChannelCacheSuite extends SparkFunSuite {
+
+  private def withFiles(n: Int)(body: Seq[File] => Unit): Unit = {
+    val dir = Files.createTempDir()
+    try {
+      body((0 until n).map { i =>
+        val file = new File(dir, s"file-$i")
+        Files.write(s"0123456789-$i", file, UTF_8)
+        file
+      })
+    } finally {
+      JavaUtils.deleteRecursively(dir)
+    }
+  }
+
+  test("channels are shared and closed after eviction once released") {
+    withFiles(2) { files =>
+      val cache = new FileChannelCache(1, Int.MaxValue, 0)
+      val first = cache.acquire(files(0))
+      val again = cache.acquire(files(0))
+      assert(first eq again)
+      again.release()
+
+      val other = cache.acquire(files(1))
+      assert(cache.numOpenFiles() === 1)
+      // Evicted but still in use.
+      assert(first.channel().isOpen)
+      first.release()
+      assert(!first.channel().isOpen)
+      other.release()
+      cache.clear()
+      assert(!other.channel().isOpen)
+    }
+  }
+
+  test("regions keep the channel open until they are released") {
+    withFiles(1) { files =>
+      val cache = new FileChannelCache(1, Int.MaxValue, 0)
+      val cached = cache.acquire(files(0))
+      val region = cached.newRegion(2, 3)
+      cached.release()
+      cache.clear()
+      assert(cached.channel().isOpen)
+      region.release()
+      assert(!cached.channel().isOpen)
+    }
+  }
+
+  test("a changed file is reopened") {
+    withFiles(1) { files =>
+      val cache = new FileChannelCache(4, Int.MaxValue, 0)
+      val before = cache.acquire(files(0))
+      before.release()
+      Files.write("a longer content", files(0), UTF_8)
+      val after = cache.acquire(files(0))
+      assert(after ne before)
+      assert(!before.channel().isOpen)
+      after.release()
+      cache.clear()
+    }
+  }
+
+  test("hot files are mapped within the budget") {
+    withFiles(2) { files =>
+      val cache = new FileChannelCache(4, 2, files(0).length())
+      val cold = cache.acquire(files(0))
+      assert(cold.mappedSegment(0, 4) === null)
+      val hot = cache.acquire(files(0))
+      val segment = hot.mappedSegment(2, 3)
+      val bytes = new Array[Byte](3)
+      segment.get(bytes)
+      assert(new String(bytes, UTF_8) === "234")
+      assert(cache.cachedMappedBytes() === files(0).length())
+
+      cache.acquire(files(1)).release()
+      val overBudget = cache.acquire(files(1))
+      assert(overBudget.mappedSegment(0, 4) === null)
+      Seq(cold, hot, overBudget).foreach(_.release())
+      cache.clear()
+      // The dropped mapping no longer counts, but the segment sliced from it is still readable.
+      assert(cache.cachedMappedBytes() === 0)
+      assert(segment.get(0) === '2'.toByte)
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package org.apache.spark.network.client
+
+import java.io.IOException
+import java.nio.ByteBuffer
+
+import scala.collection.mutable
+
+import org.mockito.Matchers.{any, anyInt, anyLong}
+import org.mockito.Mockito.{doAnswer, mock}
+import org.mockito.invocation.InvocationOnMock
+import org.mockito.stubbing.Answer
+
+import org.apache.spark.SparkFunSuite
+import org.apache.spark.network.buffer.{ManagedBuffer, NioManagedBuffer}
+
+class PipelinedChunkFetcherSuite extends SparkFunSuite {
+
+  /** A client that only records the chunks requested from it, in `requested` and `history`. */
+  private def recordingClient(
+      requested: mutable.Queue[Int],
+      history: mutable.ArrayBuffer[Int] = new mutable.ArrayBuffer[Int]): TransportClient = {
+    val client = mock(classOf[TransportClient])
+    doAnswer(new Answer[AnyRef] {
+      override def answer(invocation: InvocationOnMock): AnyRef = {
+        requested.synchronized {
+          requested += invocation.getArguments()(1).asInstanceOf[Int]
+          history += invocation.getArguments()(1).asInstanceOf[Int]
+        }
+        null
+      }
+    }).when(client).fetchChunk(anyLong(), anyInt(), any(classOf[ChunkReceivedCallback]))
+    client
+  }
+
+  private class RecordingCallback extends ChunkReceivedCallback {
+    val received = new mutable.ArrayBuffer[Int]
+    val failed = new mutable.ArrayBuffer[Int]
+
+    override def onSuccess(chunkIndex: Int, buffer: ManagedBuffer): Unit = received += chunkIndex
+
+    override def onFailure(chunkIndex: Int, e: Throwable): Unit = failed += chunkIndex
+  }
+
+  private def chunk(size: Int): ManagedBuffer = new NioManagedBuffer(ByteBuffer.allocate(size))
+
+  test("chunks are requested and delivered in order within the window") {
+    val requested = mutable.Queue[Int]()
+    val history = new mutable.ArrayBuffer[Int]
+    val callback = new RecordingCallback
+    val fetcher = new PipelinedChunkFetcher(
+      recordingClient(requested, history), 1L, 100, callback, 4, Long.MaxValue)
+    fetcher.start()
+    while (requested.nonEmpty) {
+      assert(requested.size <= 4)
+      Thread.sleep(1)
+      fetcher.onSuccess(requested.dequeue(), chunk(16))
+    }
+    assert(history === (0 until 100))
+    assert(callback.received === (0 until 100))
+    assert(fetcher.window() > 1)
+  }
+
+  test("window is capped by the bytes in flight") {
+    val requested = mutable.Queue[Int]()
+    val callback = new RecordingCallback
+    val fetcher = new PipelinedChunkFetcher(
+      recordingClient(requested), 1L, 20, callback, 8, 1024)
+    fetcher.start()
+    while (requested.nonEmpty) {
+      assert(requested.size === 1)
+      Thread.sleep(1)
+      fetcher.onSuccess(requested.dequeue(), chunk(1024))
+    }
+    assert(callback.received === (0 until 20))
+    assert(fetcher.window() === 1)
+  }
+
+  test("a failure fails every chunk not fetched yet") {
+    val requested = mutable.Queue[Int]()
+    val callback = new RecordingCallback
+    val fetcher = new PipelinedChunkFetcher(
+      recordingClient(requested), 1L, 5, callback, 4, Long.MaxValue)
+    fetcher.start()
+    fetcher.onSuccess(requested.dequeue(), chunk(16))
+    val outstanding = requested.toList
+    fetcher.onFailure(requested.dequeue(), new IOException("boom"))
+    requested.foreach(fetcher.onFailure(_, new IOException("closed")))
+    assert(callback.received === Seq(0))
+    assert(callback.failed.sorted === (1 until 5))
+    assert(requested.toList === outstanding.drop(1))
+  }
+}
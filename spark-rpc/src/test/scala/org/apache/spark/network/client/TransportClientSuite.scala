@@ -0,0 +1,74 @@
+package org.apache.spark.network.client
+
+import java.nio.ByteBuffer
+import java.util.concurrent.{ConcurrentLinkedQueue, CountDownLatch, TimeUnit}
+
+import scala.collection.JavaConverters._
+import scala.concurrent.duration._
+import scala.language.postfixOps
+
+import org.scalatest.concurrent.Eventually._
+
+import org.apache.spark.SparkFunSuite
+import org.apache.spark.network.TransportContext
+import org.apache.spark.network.server.{OneForOneStreamManager, RpcHandler, StreamManager}
+import org.apache.spark.network.util.{JavaUtils, MapConfigProvider, TransportConf}
+
+class TransportClientSuite extends SparkFunSuite {
+
+  test("messages written without flushing go out together on the next flush, in order") {
+    val received = new ConcurrentLinkedQueue[String]
+    val handler = new RpcHandler {
+      private val streamManager = new OneForOneStreamManager()
+
+      override def receive(
+          client: TransportClient,
+          message: ByteBuffer,
+          callback: RpcResponseCallback): Unit = {
+        val body = JavaUtils.bytesToString(message)
+        received.add(body)
+        callback.onSuccess(JavaUtils.stringToBytes(body))
+      }
+
+      override def receive(client: TransportClient, message: ByteBuffer): Unit = {
+        received.add(JavaUtils.bytesToString(message))
+      }
+
+      override def getStreamManager: StreamManager = streamManager
+    }
+    val conf =
+      new TransportConf("test", new MapConfigProvider(new java.util.HashMap[String, String]))
+    val context = new TransportContext(conf, handler)
+    val server = context.createServer()
+    val clientFactory = context.createClientFactory()
+    try {
+      val client = clientFactory.createClient("localhost", server.getPort)
+      val responses = new CountDownLatch(3)
+      val callback = new RpcResponseCallback {
+        override def onSuccess(response: ByteBuffer): Unit = responses.countDown()
+
+        override def onFailure(e: Throwable): Unit = fail(e)
+      }
+      client.send(JavaUtils.stringToBytes("one-way 0"), false)
+      client.sendRpc(JavaUtils.stringToBytes("rpc 1"), callback, false)
+      client.send(JavaUtils.stringToBytes("one-way 2"), false)
+      client.sendRpc(JavaUtils.stringToBytes("rpc 3"), callback, false)
+
+      // Nothing reaches the socket until the channel is flushed.
+      assert(!responses.await(200, TimeUnit.MILLISECONDS))
+      assert(received.isEmpty)
+
+      client.flush()
+      eventually(timeout(5 seconds), interval(10 millis)) {
+        assert(received.asScala.toSeq === Seq("one-way 0", "rpc 1", "one-way 2", "rpc 3"))
+      }
+
+      // The flushing overloads still flush on their own.
+      client.sendRpc(JavaUtils.stringToBytes("rpc 4"), callback)
+      assert(responses.await(5, TimeUnit.SECONDS))
+    } finally {
+      clientFactory.close()
+      server.close()
+    }
+  }
+}
@@ -0,0 +1,138 @@
+package org.apache.spark.network.metrics
+
+import java.nio.ByteBuffer
+
+import scala.concurrent.duration._
+import scala.language.postfixOps
+
+import io.netty.buffer.PooledByteBufAllocator
+import org.scalatest.concurrent.Eventually._
+
+import org.apache.spark.SparkFunSuite
+import org.apache.spark.network.TransportContext
+import org.apache.spark.network.client.{RpcResponseCallback, TransportClient}
+import org.apache.spark.network.server.{OneForOneStreamManager, RpcHandler, StreamManager}
+import org.apache.spark.network.util.{JavaUtils, MapConfigProvider, TransportConf}
+
+class TransportMetricsSuite extends SparkFunSuite {
+
+  test("every value falls in the bucket whose range covers it") {
+    var value = 0L
+    while (value < 10000000L) {
+      val bucket = LatencyHistogram.bucketOf(value)
+      assert(LatencyHistogram.highestValueIn(bucket) >= value)
+      if (bucket > 0) {
+        assert(LatencyHistogram.highestValueIn(bucket - 1) < value)
+      }
+      value += (if (value < 1000) 1 else 997)
+    }
+    assert(LatencyHistogram.bucketOf(Long.MaxValue) === LatencyHistogram.bucketOf((1L << 41) - 1))
+  }
+
+  test("percentiles are within the bucket precision") {
+    val histogram = new LatencyHistogram
+    (1 to 1000).foreach(i => histogram.record(i * 1000L))
+    assert(histogram.count() === 1000)
+    assert(histogram.max() === 1000000L)
+    assert(histogram.mean() === 500500.0)
+    assert(math.abs(histogram.percentile(50) - 500000L) <= 500000L / 32)
+    assert(math.abs(histogram.percentile(99) - 990000L) <= 990000L / 32)
+    assert(histogram.percentile(100) === 1000000L)
+    assert(new LatencyHistogram().percentile(99) === 0L)
+  }
+
+  test("registry") {
+    val metrics = new TransportMetrics
+    metrics.counter("custom").add(3)
+    assert(metrics.counter("custom").get() === 3)
+    assert(metrics.getMetrics.containsKey("client.outstandingRpcs"))
+    assert(metrics.getMetrics.get("custom") eq metrics.counter("custom"))
+    intercept[IllegalArgumentException] {
+      metrics.histogram("custom")
+    }
+  }
+
+  test("a client and a server record the RPCs between them") {
+    val conf =
+      new TransportConf("test", new MapConfigProvider(new java.util.HashMap[String, String]))
+    val handler = new RpcHandler {
+      private val streamManager = new OneForOneStreamManager()
+
+      override def receive(
+          client: TransportClient,
+          message: ByteBuffer,
+          callback: RpcResponseCallback): Unit = {
+        if (JavaUtils.bytesToString(message) == "fail") {
+          callback.onFailure(new IllegalStateException("failed on purpose"))
+        } else {
+          callback.onSuccess(message)
+        }
+      }
+
+      override def getStreamManager: StreamManager = streamManager
+    }
+    // One context per side, so each side's metrics can be told apart.
+    val serverContext = new TransportContext(conf, handler)
+    val clientContext = new TransportContext(conf, handler)
+    val server = serverContext.createServer()
+    val clientFactory = clientContext.createClientFactory()
+    try {
+      val client = clientFactory.createClient("localhost", server.getPort)
+      (0 until 10).foreach { i =>
+        val response = client.sendRpcSync(JavaUtils.stringToBytes(s"message $i"), 10000)
+        assert(JavaUtils.bytesToString(response) === s"message $i")
+      }
+      intercept[RuntimeException] {
+        client.sendRpcSync(JavaUtils.stringToBytes("fail"), 10000)
+      }
+
+      val clientMetrics = clientContext.getMetrics.getMetrics
+      assert(clientMetrics.get("client.rpcLatency").asInstanceOf[LatencyHistogram].count() === 10)
+      assert(clientMetrics.get("client.rpcFailures").asInstanceOf[Counter].get() === 1)
+      assert(clientMetrics.get("client.outstandingRpcs").asInstanceOf[Counter].get() === 0)
+
+      val serverMetrics = serverContext.getMetrics.getMetrics
+      assert(serverMetrics.get("server.requestsReceived").asInstanceOf[Counter].get() === 11)
+      assert(
+        serverMetrics.get("server.rpcProcessingTime").asInstanceOf[LatencyHistogram].count() === 11)
+
+      // Every request and response was written, so no bytes are in flight on either side.
+      eventually(timeout(5 seconds), interval(10 millis)) {
+        Seq(clientMetrics, serverMetrics).foreach { metrics =>
+          assert(metrics.get("bytesInFlight").asInstanceOf[Counter].get() === 0)
+          assert(metrics.get("writeQueueDelay").asInstanceOf[LatencyHistogram].count() === 11)
+        }
+      }
+    } finally {
+      clientFactory.close()
+      server.close()
+    }
+  }
+
+  test("allocator gauges follow the allocator registered last under a name") {
+    // One heap arena and no thread caches, so every allocation and release shows in the arena.
+    def newAllocator() = new PooledByteBufAllocator(false, 1, 0, 8192, 11, 0, 0, 0)
+    val metrics = new TransportMetrics
+    val replaced = newAllocator()
+    metrics.registerAllocator("test", replaced)
+    val allocator = newAllocator()
+    metrics.registerAllocator("test", allocator)
+
+    def arena(stat: String): Long = {
+      metrics.getMetrics.get(s"allocator.test.heap.0.$stat").asInstanceOf[Gauge].get()
+    }
+    assert(arena("activeAllocations") === 0)
+    assert(arena("usedBytes") === 0)
+
+    val buf = allocator.heapBuffer(1024)
+    assert(arena("activeAllocations") === 1)
+    assert(arena("usedBytes") > 0)
+    // The allocator registered first under the name is no longer reported.
+    val other = replaced.heapBuffer(1024)
+    assert(arena("activeAllocations") === 1)
+
+    buf.release()
+    other.release()
+    assert(arena("activeAllocations") === 0)
+  }
+}
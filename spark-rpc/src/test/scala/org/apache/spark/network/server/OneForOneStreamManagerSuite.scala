@@ -0,0 +1,158 @@
+package org.apache.spark.network.server
+
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+import java.util.concurrent.atomic.AtomicInteger
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
+import scala.concurrent.duration._
+import scala.language.postfixOps
+
+import io.netty.channel.Channel
+import org.mockito.Mockito.{mock, times, verify}
+import org.scalatest.concurrent.Eventually._
+
+import org.apache.spark.SparkFunSuite
+import org.apache.spark.network.buffer.ManagedBuffer
+
+class OneForOneStreamManagerSuite extends SparkFunSuite {
+
+  /** An iterator over `buffers` that counts how many of them have been taken. */
+  private class CountingIterator(buffers: Seq[ManagedBuffer])
+    extends java.util.Iterator[ManagedBuffer] {
+    val taken = new AtomicInteger()
+    private val it = buffers.iterator
+
+    override def hasNext: Boolean = it.hasNext
+
+    override def next(): ManagedBuffer = {
+      taken.incrementAndGet()
+      it.next()
+    }
+  }
+
+  test("chunks are served in order without read-ahead") {
+    val manager = new OneForOneStreamManager()
+    val buffers = Seq.fill(3)(mock(classOf[ManagedBuffer]))
+    val streamId = manager.registerStream("app", buffers.iterator.asJava)
+    assert((0 until 3).map(manager.getChunk(streamId, _)) === buffers)
+    intercept[IllegalStateException] {
+      manager.getChunk(streamId, 3)
+    }
+  }
+
+  test("read-ahead takes buffers before they are requested") {
+    val manager = new OneForOneStreamManager(2)
+    val buffers = Seq.fill(5)(mock(classOf[ManagedBuffer]))
+    val iterator = new CountingIterator(buffers)
+    val streamId = manager.registerStream("app", iterator)
+    eventually(timeout(5 seconds), interval(10 millis)) {
+      assert(iterator.taken.get === 2)
+    }
+    assert(manager.getChunk(streamId, 0) === buffers(0))
+    eventually(timeout(5 seconds), interval(10 millis)) {
+      assert(iterator.taken.get === 3)
+    }
+    intercept[IllegalStateException] {
+      manager.getChunk(streamId, 2)
+    }
+    assert((1 until 5).map(manager.getChunk(streamId, _)) === buffers.drop(1))
+    intercept[IllegalStateException] {
+      manager.getChunk(streamId, 5)
+    }
+  }
+
+  test("buffers read ahead are released when the connection terminates") {
+    val manager = new OneForOneStreamManager(2)
+    val buffers = Seq.fill(4)(mock(classOf[ManagedBuffer]))
+    val iterator = new CountingIterator(buffers)
+    val channel = mock(classOf[Channel])
+    val streamId = manager.registerStream("app", iterator)
+    manager.registerChannel(channel, streamId)
+    assert(manager.getChunk(streamId, 0) === buffers(0))
+    manager.connectionTerminated(channel)
+    eventually(timeout(5 seconds), interval(10 millis)) {
+      buffers.drop(1).foreach(verify(_, times(1)).release())
+    }
+  }
+
+  /** Records what each request got, in the order the callbacks were called. */
+  private class RecordingCallback(
+      chunkIndex: Int,
+      results: ArrayBuffer[String],
+      done: CountDownLatch) extends ChunkFetchCallback {
+    override def onSuccess(buffer: ManagedBuffer): Unit = {
+      results.synchronized { results += s"$chunkIndex" }
+      done.countDown()
+    }
+
+    override def onFailure(e: Throwable): Unit = {
+      results.synchronized { results += s"$chunkIndex: ${e.getMessage}" }
+      done.countDown()
+    }
+  }
+
+  test("requests for chunks not read ahead yet are answered later, in order") {
+    val manager = new OneForOneStreamManager(2)
+    val release = new CountDownLatch(1)
+    val buffers = Seq.fill(3)(mock(classOf[ManagedBuffer]))
+    val iterator = new CountingIterator(buffers) {
+      override def next(): ManagedBuffer = {
+        release.await()
+        super.next()
+      }
+    }
+    val streamId = manager.registerStream("app", iterator)
+    val results = new ArrayBuffer[String]
+    val done = new CountDownLatch(4)
+    // None of these may wait for the blocked iterator.
+    (0 until 4).foreach(i => manager.getChunk(streamId, i, new RecordingCallback(i, results, done)))
+    assert(results.synchronized(results.isEmpty))
+    release.countDown()
+    assert(done.await(5, TimeUnit.SECONDS))
+    assert(results === Seq("0", "1", "2", "3: Requested chunk index beyond end 3"))
+  }
+
+  test("an Error thrown by the iterator fails the requests waiting for the read-ahead") {
+    val manager = new OneForOneStreamManager(2)
+    val release = new CountDownLatch(1)
+    val iterator = new java.util.Iterator[ManagedBuffer] {
+      override def hasNext: Boolean = true
+      override def next(): ManagedBuffer = {
+        release.await()
+        throw new AssertionError("iterator broke")
+      }
+    }
+    val streamId = manager.registerStream("app", iterator)
+    val results = new ArrayBuffer[String]
+    val done = new CountDownLatch(2)
+    (0 until 2).foreach(i => manager.getChunk(streamId, i, new RecordingCallback(i, results, done)))
+    release.countDown()
+    assert(done.await(5, TimeUnit.SECONDS))
+    assert(results === Seq("0: iterator broke", "1: iterator broke"))
+  }
+
+  test("a stream whose read-ahead failed is removed and its buffers read ahead are released") {
+    val manager = new OneForOneStreamManager(2)
+    val buffer = mock(classOf[ManagedBuffer])
+    val iterator = new java.util.Iterator[ManagedBuffer] {
+      private var taken = false
+      override def hasNext: Boolean = true
+      override def next(): ManagedBuffer = {
+        if (taken) {
+          throw new IllegalStateException("iterator broke")
+        }
+        taken = true
+        buffer
+      }
+    }
+    val streamId = manager.registerStream("app", iterator)
+    eventually(timeout(5 seconds), interval(10 millis)) {
+      verify(buffer, times(1)).release()
+    }
+    val e = intercept[IllegalStateException] {
+      manager.getChunk(streamId, 0)
+    }
+    assert(e.getMessage.contains("unknown or fully read stream"))
+  }
+}
@@ -0,0 +1,36 @@
+package org.apache.spark.network.util
+
+import io.netty.channel.epoll.Epoll
+
+import org.apache.spark.SparkFunSuite
+
+class NettyUtilsSuite extends SparkFunSuite {
+
+  test("NIO is used as configured") {
+    assert(NettyUtils.resolveIOMode("NIO", true) === IOMode.NIO)
+    assert(NettyUtils.resolveIOMode("NIO", false) === IOMode.NIO)
+  }
+
+  test("EPOLL falls back to NIO without the native transport") {
+    assert(NettyUtils.resolveIOMode("EPOLL", true) === IOMode.EPOLL)
+    assert(NettyUtils.resolveIOMode("EPOLL", false) === IOMode.NIO)
+  }
+
+  test("AUTO picks EPOLL when the native transport is available") {
+    assert(NettyUtils.resolveIOMode("AUTO", true) === IOMode.EPOLL)
+    assert(NettyUtils.resolveIOMode("AUTO", false) === IOMode.NIO)
+  }
+
+  test("the public overload checks the platform") {
+    val expected = if (Epoll.isAvailable) IOMode.EPOLL else IOMode.NIO
+    assert(NettyUtils.resolveIOMode("EPOLL") === expected)
+    assert(NettyUtils.resolveIOMode("AUTO") === expected)
+    assert(NettyUtils.resolveIOMode("NIO") === IOMode.NIO)
+  }
+
+  test("an unknown mode is rejected") {
+    intercept[IllegalArgumentException] {
+      NettyUtils.resolveIOMode("KQUEUE")
+    }
+  }
+}
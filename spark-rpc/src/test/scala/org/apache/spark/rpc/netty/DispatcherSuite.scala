@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.rpc.netty
+
+import java.util.concurrent.{ConcurrentLinkedQueue, CountDownLatch, TimeUnit}
+
+import scala.collection.JavaConverters._
+import scala.concurrent.duration._
+import scala.language.postfixOps
+
+import org.scalatest.concurrent.Eventually._
+
+import org.apache.spark.{RpcConf, SparkFunSuite}
+import org.apache.spark.rpc.{RpcEnv, RpcEnvServerConfig, ThreadSafeRpcEndpoint}
+
+class DispatcherSuite extends SparkFunSuite {
+
+  private def withEnv(settings: (String, String)*)(body: RpcEnv => Unit): Unit = {
+    val conf = new RpcConf()
+    settings.foreach { case (key, value) => conf.set(key, value) }
+    val env = NettyRpcEnvFactory.create(RpcEnvServerConfig(conf, "test", "localhost", 0))
+    try {
+      body(env)
+    } finally {
+      env.shutdown()
+      env.awaitTermination()
+    }
+  }
+
+  /** Records every (sender, sequence number) it receives, in the order it receives them. */
+  private class RecordingEndpoint(override val rpcEnv: RpcEnv) extends ThreadSafeRpcEndpoint {
+    val received = new ConcurrentLinkedQueue[(Int, Int)]
+
+    override def receive: PartialFunction[Any, Unit] = {
+      case (sender: Int, seq: Int) => received.add((sender, seq))
+    }
+  }
+
+  /** Sends from many threads at once to one endpoint, and checks each sender's messages. */
+  private def manySendersToOneEndpoint(settings: (String, String)*): Unit = {
+    withEnv(settings: _*) { env =>
+      val endpoint = new RecordingEndpoint(env)
+      val ref = env.setupEndpoint("sink", endpoint)
+      val numSenders = 8
+      val numMessages = 5000
+      val start = new CountDownLatch(1)
+      val senders = (0 until numSenders).map { sender =>
+        val thread = new Thread(s"sender-$sender") {
+          override def run(): Unit = {
+            start.await()
+            (0 until numMessages).foreach(seq => ref.send((sender, seq)))
+          }
+        }
+        thread.start()
+        thread
+      }
+      start.countDown()
+      senders.foreach(_.join())
+
+      eventually(timeout(10 seconds), interval(10 millis)) {
+        assert(endpoint.received.size === numSenders * numMessages)
+      }
+      val bySender = endpoint.received.asScala.toSeq.groupBy(_._1)
+      (0 until numSenders).foreach { sender =>
+        assert(bySender(sender).map(_._2) === (0 until numMessages))
+      }
+    }
+  }
+
+  test("many senders to one endpoint: nothing is lost or reordered, synchronized inbox") {
+    manySendersToOneEndpoint("spark.rpc.netty.inbox.mode" -> "synchronized")
+  }
+
+  test("many senders to one endpoint: nothing is lost or reordered, mpsc inbox") {
+    manySendersToOneEndpoint("spark.rpc.netty.inbox.mode" -> "mpsc")
+  }
+
+  test("sharded: many senders to one endpoint: nothing is lost or reordered") {
+    manySendersToOneEndpoint("spark.rpc.netty.dispatcher.mode" -> "sharded")
+    manySendersToOneEndpoint(
+      "spark.rpc.netty.dispatcher.mode" -> "sharded",
+      "spark.rpc.netty.inbox.mode" -> "mpsc")
+  }
+
+  /** Records the thread each message is processed on. */
+  private class ThreadRecordingEndpoint(override val rpcEnv: RpcEnv)
+    extends ThreadSafeRpcEndpoint {
+    val threads = new ConcurrentLinkedQueue[String]
+
+    override def receive: PartialFunction[Any, Unit] = {
+      case _ => threads.add(Thread.currentThread.getName)
+    }
+  }
+
+  test("sharded: each endpoint is processed on the loop of its shard") {
+    val numThreads = 4
+    withEnv(
+      "spark.rpc.netty.dispatcher.mode" -> "sharded",
+      "spark.rpc.netty.dispatcher.numThreads" -> numThreads.toString,
+      // So long that no loop steals during the test.
+      "spark.rpc.netty.dispatcher.stealInterval" -> "1h") { env =>
+      val endpoints = (0 until 8).map { i =>
+        val endpoint = new ThreadRecordingEndpoint(env)
+        (s"endpoint-$i", endpoint, env.setupEndpoint(s"endpoint-$i", endpoint))
+      }
+      for (_ <- 0 until 100; (_, _, ref) <- endpoints) {
+        ref.send("ping")
+      }
+      eventually(timeout(10 seconds), interval(10 millis)) {
+        endpoints.foreach { case (_, endpoint, _) => assert(endpoint.threads.size === 100) }
+      }
+
+      val threadOfShard = endpoints.map { case (name, endpoint, _) =>
+        val threads = endpoint.threads.asScala.toSet
+        assert(threads.size === 1, s"$name was processed on $threads")
+        Dispatcher.shardOf(name, numThreads) -> threads.head
+      }
+      // Endpoints of a shard share its thread, and different shards have different threads.
+      threadOfShard.groupBy(_._1).values.foreach { sameShard =>
+        assert(sameShard.map(_._2).distinct.size === 1)
+      }
+      assert(threadOfShard.map(_._2).distinct.size === threadOfShard.map(_._1).distinct.size)
+    }
+  }
+
+  test("sharded: the work of a stalled shard is stolen by another loop") {
+    val numThreads = 2
+    withEnv(
+      "spark.rpc.netty.dispatcher.mode" -> "sharded",
+      "spark.rpc.netty.dispatcher.numThreads" -> numThreads.toString,
+      "spark.rpc.netty.dispatcher.stealInterval" -> "10ms") { env =>
+      val blockerName = "blocker"
+      // An endpoint of the same shard, whose messages queue behind the blocked one.
+      val otherName = Iterator.from(0).map(i => s"other-$i").find { name =>
+        Dispatcher.shardOf(name, numThreads) == Dispatcher.shardOf(blockerName, numThreads)
+      }.get
+      val blocked = new CountDownLatch(1)
+      val release = new CountDownLatch(1)
+      @volatile var blockedThread: String = null
+      val blocker = env.setupEndpoint(blockerName, new ThreadSafeRpcEndpoint {
+        override val rpcEnv = env
+
+        override def receive: PartialFunction[Any, Unit] = {
+          case _ =>
+            blockedThread = Thread.currentThread.getName
+            blocked.countDown()
+            release.await()
+        }
+      })
+      val other = new ThreadRecordingEndpoint(env)
+      val otherRef = env.setupEndpoint(otherName, other)
+      try {
+        blocker.send("block")
+        assert(blocked.await(10, TimeUnit.SECONDS))
+        otherRef.send("ping")
+        eventually(timeout(10 seconds), interval(10 millis)) {
+          assert(other.threads.size === 1)
+        }
+        assert(other.threads.peek() !== blockedThread)
+      } finally {
+        release.countDown()
+      }
+    }
+  }
+
+  test("sharded: a steal interval that is not positive is rejected") {
+    intercept[IllegalArgumentException] {
+      withEnv(
+        "spark.rpc.netty.dispatcher.mode" -> "sharded",
+        "spark.rpc.netty.dispatcher.stealInterval" -> "0ms") { _ => }
+    }
+  }
+}
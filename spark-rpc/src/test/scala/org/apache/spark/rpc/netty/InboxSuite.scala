@@ -22,7 +22,7 @@ import java.util.concurrent.atomic.AtomicInteger
 
 import org.mockito.Mockito._
 
-import org.apache.spark.SparkFunSuite
+import org.apache.spark.{RpcConf, SparkFunSuite}
 import org.apache.spark.rpc.{RpcAddress, TestRpcEndpoint}
 
 class InboxSuite extends SparkFunSuite {
@@ -147,4 +147,81 @@ class InboxSuite extends SparkFunSuite {
 
     endpoint.verifySingleOnNetworkErrorMessage(cause, remoteAddress)
   }
+
+  test("mpsc: post keeps order") {
+    val endpoint = new TestRpcEndpoint
+    val endpointRef = mock(classOf[NettyRpcEndpointRef])
+    when(endpointRef.name).thenReturn("hello")
+
+    val dispatcher = mock(classOf[Dispatcher])
+
+    // A batch smaller than the number of messages so the inbox drains more than once
+    val inbox = new MpscInbox(endpointRef, endpoint, 3)
+    for (i <- 0 until 10) {
+      inbox.post(OneWayMessage(null, i))
+    }
+    inbox.process(dispatcher)
+    assert(inbox.isEmpty)
+
+    endpoint.verifyReceiveMessages(0 until 10)
+
+    inbox.stop()
+    inbox.process(dispatcher)
+    assert(inbox.isEmpty)
+    endpoint.verifyStarted()
+    endpoint.verifyStopped()
+  }
+
+  test("mpsc: post: multiple threads") {
+    val endpoint = new TestRpcEndpoint
+    val endpointRef = mock(classOf[NettyRpcEndpointRef])
+    when(endpointRef.name).thenReturn("hello")
+
+    val dispatcher = mock(classOf[Dispatcher])
+
+    val numDroppedMessages = new AtomicInteger(0)
+    val inbox = new MpscInbox(endpointRef, endpoint, 16) {
+      override def onDrop(message: InboxMessage): Unit = {
+        numDroppedMessages.incrementAndGet()
+      }
+    }
+
+    val exitLatch = new CountDownLatch(10)
+
+    for (_ <- 0 until 10) {
+      new Thread {
+        override def run(): Unit = {
+          // More than one chunk in total so producers race on linking new chunks
+          for (_ <- 0 until 100) {
+            val message = OneWayMessage(null, "hi")
+            inbox.post(message)
+          }
+          exitLatch.countDown()
+        }
+      }.start()
+    }
+    // Try to process some messages
+    inbox.process(dispatcher)
+    inbox.stop()
+    exitLatch.await(30, TimeUnit.SECONDS)
+    // Messages that raced with `stop` may sit behind OnStop; they are dropped while draining.
+    inbox.process(dispatcher)
+    assert(inbox.isEmpty)
+
+    assert(1000 === endpoint.numReceiveMessages + numDroppedMessages.get)
+    endpoint.verifyStarted()
+    endpoint.verifyStopped()
+  }
+
+  test("mode is selected through RpcConf") {
+    val endpoint = new TestRpcEndpoint
+    val endpointRef = mock(classOf[NettyRpcEndpointRef])
+
+    assert(Inbox(new RpcConf(false), endpointRef, endpoint).isInstanceOf[Inbox])
+    val conf = new RpcConf(false).set("spark.rpc.netty.inbox.mode", "mpsc")
+    assert(Inbox(conf, endpointRef, endpoint).isInstanceOf[MpscInbox])
+    intercept[IllegalArgumentException] {
+      Inbox(conf.set("spark.rpc.netty.inbox.mode", "nope"), endpointRef, endpoint)
+    }
+  }
 }
@@ -1,87 +1,111 @@
-///*
-// * Licensed to the Apache Software Foundation (ASF) under one or more
-// * contributor license agreements.  See the NOTICE file distributed with
-// * this work for additional information regarding copyright ownership.
-// * The ASF licenses this file to You under the Apache License, Version 2.0
-// * (the "License"); you may not use this file except in compliance with
-// * the License.  You may obtain a copy of the License at
-// *
-// *    http://www.apache.org/licenses/LICENSE-2.0
-// *
-// * Unless required by applicable law or agreed to in writing, software
-// * distributed under the License is distributed on an "AS IS" BASIS,
-// * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-// * See the License for the specific language governing permissions and
-// * limitations under the License.
-// */
-//
-//package org.apache.spark.rpc.netty
-//
-//import org.scalatest.mockito.MockitoSugar
-//
-//import org.apache.spark._
-//import org.apache.spark.network.client.TransportClient
-//import org.apache.spark.rpc._
-//
-//class NettyRpcEnvSuite extends RpcEnvSuite with MockitoSugar {
-//
-//  override def createRpcEnv(
-//      conf: RpcConf,
-//      name: String,
-//      port: Int,
-//      clientMode: Boolean = false): RpcEnv = {
-//    val config = RpcEnvConfig(conf, "test", "localhost", port,
-//     clientMode)
-//    new NettyRpcEnvFactory().create(config)
-//  }
-//
-//  test("non-existent endpoint") {
-//    val uri = RpcEndpointAddress(env.address, "nonexist-endpoint").toString
-//    val e = intercept[SparkException] {
-//      env.setupEndpointRef(env.address, "nonexist-endpoint")
-//    }
-//    assert(e.getCause.isInstanceOf[RpcEndpointNotFoundException])
-//    assert(e.getCause.getMessage.contains(uri))
-//  }
-//
-//  test("advertise address different from bind address") {
-//    val RpcConf = new RpcConf()
-//    val config = RpcEnvConfig(RpcConf, "test", "localhost", "example.com", 0,
-//      new SecurityManager(RpcConf), 0, false)
-//    val env = new NettyRpcEnvFactory().create(config)
-//    try {
-//      assert(env.address.hostPort.startsWith("example.com:"))
-//    } finally {
-//      env.shutdown()
-//    }
-//  }
-//
-//  test("RequestMessage serialization") {
-//    def assertRequestMessageEquals(expected: RequestMessage, actual: RequestMessage): Unit = {
-//      assert(expected.senderAddress === actual.senderAddress)
-//      assert(expected.receiver === actual.receiver)
-//      assert(expected.content === actual.content)
-//    }
-//
-//    val nettyEnv = env.asInstanceOf[NettyRpcEnv]
-//    val client = mock[TransportClient]
-//    val senderAddress = RpcAddress("locahost", 12345)
-//    val receiverAddress = RpcEndpointAddress("localhost", 54321, "test")
-//    val receiver = new NettyRpcEndpointRef(nettyEnv.conf, receiverAddress, nettyEnv)
-//
-//    val msg = new RequestMessage(senderAddress, receiver, "foo")
-//    assertRequestMessageEquals(
-//      msg,
-//      RequestMessage(nettyEnv, client, msg.serialize(nettyEnv)))
-//
-//    val msg2 = new RequestMessage(null, receiver, "foo")
-//    assertRequestMessageEquals(
-//      msg2,
-//      RequestMessage(nettyEnv, client, msg2.serialize(nettyEnv)))
-//
-//    val msg3 = new RequestMessage(senderAddress, receiver, null)
-//    assertRequestMessageEquals(
-//      msg3,
-//      RequestMessage(nettyEnv, client, msg3.serialize(nettyEnv)))
-//  }
-//}
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.rpc.netty
+
+import org.scalatest.mockito.MockitoSugar
+
+import org.apache.spark._
+import org.apache.spark.network.client.TransportClient
+import org.apache.spark.rpc._
+
+/** Runs the [[RpcEnvSuite]] against a [[NettyRpcEnv]] using `spark.rpc.serializer`. */
+class NettyRpcEnvSuite extends RpcEnvSuite with MockitoSugar {
+
+  /** The value of `spark.rpc.serializer` every env of this suite is created with. */
+  def serializer: String = "java"
+
+  override def createRpcEnv(
+      conf: RpcConf,
+      name: String,
+      port: Int,
+      clientMode: Boolean = false): RpcEnv = {
+    conf.set("spark.rpc.serializer", serializer)
+    val config = if (clientMode) {
+      RpcEnvClientConfig(conf, name)
+    } else {
+      RpcEnvServerConfig(conf, name, "localhost", port)
+    }
+    NettyRpcEnvFactory.create(config)
+  }
+
+  test("non-existent endpoint") {
+    val uri = RpcEndpointAddress(env.address, "nonexist-endpoint").toString
+    val e = intercept[RpcException] {
+      env.setupEndpointRef(env.address, "nonexist-endpoint")
+    }
+    assert(e.getCause.isInstanceOf[RpcEndpointNotFoundException])
+    assert(e.getCause.getMessage.contains(uri))
+  }
+
+  test("RequestMessage serialization") {
+    val nettyEnv = env.asInstanceOf[NettyRpcEnv]
+    val client = mock[TransportClient]
+    val senderAddress = RpcAddress("locahost", 12345)
+    val receiverAddress = RpcEndpointAddress("localhost", 54321, "test")
+    val receiver = new NettyRpcEndpointRef(nettyEnv.conf, receiverAddress, nettyEnv)
+
+    def roundTrip(msg: RequestMessage): RequestMessage = {
+      nettyEnv.deserialize[RequestMessage](client, nettyEnv.serialize(msg))
+    }
+
+    def assertRoundTrip(msg: RequestMessage): RequestMessage = {
+      val actual = roundTrip(msg)
+      assert(actual.senderAddress === msg.senderAddress)
+      assert(actual.receiver === msg.receiver)
+      // Bound to the env and client that deserialized it.
+      assert(actual.receiver.client === client)
+      actual
+    }
+
+    // Contents of every kind: built-in encodings, registered classes and the Java fallback.
+    Seq[Any]("foo", null, 42, 42L, true, 1.5d, senderAddress, Seq(1, 2, 3), Map("a" -> 1))
+      .foreach { content =>
+        val actual = assertRoundTrip(RequestMessage(senderAddress, receiver, content))
+        assert(actual.content === content)
+      }
+    assert(assertRoundTrip(RequestMessage(null, receiver, "foo")).content === "foo")
+    assert(assertRoundTrip(RequestMessage(senderAddress, receiver, receiver)).content === receiver)
+
+    val bytes = assertRoundTrip(RequestMessage(senderAddress, receiver, Array[Byte](1, 2, 3)))
+      .content.asInstanceOf[Array[Byte]]
+    assert(bytes.toSeq === Seq[Byte](1, 2, 3))
+
+    val checkExistence = assertRoundTrip(RequestMessage(senderAddress, receiver,
+      RpcEndpointVerifier.createCheckExistence("test"))).content
+    assert(checkExistence.asInstanceOf[RpcEndpointVerifier.CheckExistence].getName === "test")
+  }
+
+  test("RpcFailure serialization") {
+    val nettyEnv = env.asInstanceOf[NettyRpcEnv]
+    val failure = nettyEnv.deserialize[RpcFailure](mock[TransportClient],
+      nettyEnv.serialize(RpcFailure(new IllegalStateException("oops"))))
+    assert(failure.e.isInstanceOf[IllegalStateException])
+    assert(failure.e.getMessage === "oops")
+  }
+
+  test("an endpoint ref without an address") {
+    val nettyEnv = env.asInstanceOf[NettyRpcEnv]
+    val client = mock[TransportClient]
+    val ref =
+      new NettyRpcEndpointRef(nettyEnv.conf, RpcEndpointAddress(null, "client-side"), nettyEnv)
+    val actual = nettyEnv.deserialize[NettyRpcEndpointRef](client, nettyEnv.serialize(ref))
+    assert(actual.address === null)
+    assert(actual.name === "client-side")
+    assert(actual.client === client)
+  }
+}
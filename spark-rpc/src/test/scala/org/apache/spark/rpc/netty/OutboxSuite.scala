@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.rpc.netty
+
+import java.nio.ByteBuffer
+import java.util.concurrent.{ConcurrentLinkedQueue, CountDownLatch, TimeUnit}
+
+import scala.collection.JavaConverters._
+import scala.concurrent.duration._
+import scala.language.postfixOps
+
+import org.mockito.Matchers.{any, anyBoolean}
+import org.mockito.Mockito.{doAnswer, mock, when}
+import org.mockito.invocation.InvocationOnMock
+import org.mockito.stubbing.Answer
+import org.scalatest.concurrent.Eventually._
+
+import org.apache.spark.SparkFunSuite
+import org.apache.spark.network.client.{RpcResponseCallback, TransportClient}
+import org.apache.spark.rpc.RpcAddress
+import org.apache.spark.util.ThreadUtils
+
+class OutboxSuite extends SparkFunSuite {
+
+  private val address = RpcAddress("localhost", 12345)
+
+  /**
+   * Run `body` with an [[Outbox]] whose connection to `client` is only established once `body`
+   * counts down the latch it is given, so everything sent before that is queued.
+   */
+  private def withOutbox(
+      client: TransportClient,
+      maxBatchBytes: Long,
+      maxBatchDelayNanos: Long)(body: (Outbox, CountDownLatch) => Unit): Unit = {
+    val executor = ThreadUtils.newDaemonCachedThreadPool("outbox-suite-connect")
+    val connect = new CountDownLatch(1)
+    val nettyEnv = mock(classOf[NettyRpcEnv])
+    when(nettyEnv.outboxMaxBatchBytes).thenReturn(maxBatchBytes)
+    when(nettyEnv.outboxMaxBatchDelayNanos).thenReturn(maxBatchDelayNanos)
+    when(nettyEnv.clientConnectionExecutor).thenReturn(executor)
+    when(nettyEnv.createClient(address)).thenAnswer(new Answer[TransportClient] {
+      override def answer(invocation: InvocationOnMock): TransportClient = {
+        connect.await()
+        client
+      }
+    })
+    try {
+      body(new Outbox(nettyEnv, address), connect)
+    } finally {
+      executor.shutdownNow()
+    }
+  }
+
+  /** A message of `size` bytes starting with `id`. */
+  private def content(id: Int, size: Int): ByteBuffer = {
+    val buf = ByteBuffer.allocate(size)
+    buf.putInt(0, id)
+    buf
+  }
+
+  /** A client that records the id of every one-way message it writes, and every flush. */
+  private def recordingClient(events: ConcurrentLinkedQueue[String]): TransportClient = {
+    val client = mock(classOf[TransportClient])
+    doAnswer(new Answer[AnyRef] {
+      override def answer(invocation: InvocationOnMock): AnyRef = {
+        events.add("send " + invocation.getArguments()(0).asInstanceOf[ByteBuffer].getInt(0))
+        null
+      }
+    }).when(client).send(any(classOf[ByteBuffer]), anyBoolean())
+    doAnswer(new Answer[AnyRef] {
+      override def answer(invocation: InvocationOnMock): AnyRef = {
+        events.add("flush")
+        null
+      }
+    }).when(client).flush()
+    client
+  }
+
+  /** The events of writing the messages `ids` without flushing, then flushing once. */
+  private def batch(ids: Range): Seq[String] = ids.map(id => s"send $id") :+ "flush"
+
+  test("queued messages go out in batches of up to maxBatchBytes, in order") {
+    val events = new ConcurrentLinkedQueue[String]
+    withOutbox(recordingClient(events), 100, Long.MaxValue) { (outbox, connect) =>
+      (0 until 10).foreach(id => outbox.send(OneWayOutboxMessage(content(id, 40))))
+      connect.countDown()
+      // A batch takes messages until it holds 100 bytes or more: three of 40 bytes.
+      eventually(timeout(5 seconds), interval(10 millis)) {
+        assert(events.asScala.toSeq ===
+          batch(0 until 3) ++ batch(3 until 6) ++ batch(6 until 9) ++ batch(9 until 10))
+      }
+    }
+  }
+
+  test("messages sent while connected keep their order across batches") {
+    val events = new ConcurrentLinkedQueue[String]
+    withOutbox(recordingClient(events), 100, Long.MaxValue) { (outbox, connect) =>
+      connect.countDown()
+      (0 until 1000).foreach(id => outbox.send(OneWayOutboxMessage(content(id, 40))))
+      eventually(timeout(5 seconds), interval(10 millis)) {
+        assert(events.asScala.filter(_ != "flush").toSeq === (0 until 1000).map(id => s"send $id"))
+        assert(events.asScala.last === "flush")
+      }
+    }
+  }
+
+  test("a failed write fails the message being written and every message after it") {
+    val client = mock(classOf[TransportClient])
+    doAnswer(new Answer[AnyRef] {
+      override def answer(invocation: InvocationOnMock): AnyRef = {
+        if (invocation.getArguments()(0).asInstanceOf[ByteBuffer].getInt(0) == 4) {
+          throw new IllegalStateException("broken connection")
+        }
+        java.lang.Long.valueOf(0L)
+      }
+    }).when(client).sendRpc(any(classOf[ByteBuffer]), any(classOf[RpcResponseCallback]),
+      anyBoolean())
+    val failed = new ConcurrentLinkedQueue[Int]
+    withOutbox(client, 100, Long.MaxValue) { (outbox, connect) =>
+      (0 until 10).foreach { id =>
+        outbox.send(RpcOutboxMessage(content(id, 40), e => {
+          assert(e.getMessage === "broken connection")
+          failed.add(id)
+        }, (_, _) => ()))
+      }
+      connect.countDown()
+      // Message 4 is in the second batch, after 3 that was written, and before 5 of the same batch
+      // and the messages still queued.
+      eventually(timeout(5 seconds), interval(10 millis)) {
+        assert(failed.asScala.toSeq === (4 until 10))
+      }
+    }
+  }
+
+  test("a lone message is flushed right after it is written") {
+    val events = new ConcurrentLinkedQueue[String]
+    withOutbox(recordingClient(events), 64 * 1024, TimeUnit.MILLISECONDS.toNanos(50)) {
+      (outbox, connect) =>
+        connect.countDown()
+        outbox.send(OneWayOutboxMessage(content(0, 4)))
+        eventually(timeout(5 seconds), interval(10 millis)) {
+          assert(events.asScala.toSeq === batch(0 until 1))
+        }
+        // Once connected, a message sent on its own is a batch of one, flushed as soon as written.
+        outbox.send(OneWayOutboxMessage(content(1, 4)))
+        eventually(timeout(5 seconds), interval(10 millis)) {
+          assert(events.asScala.toSeq === batch(0 until 1) ++ batch(1 until 2))
+        }
+    }
+  }
+
+  test("messages queued longer than maxBatchDelay are flushed as soon as they are written") {
+    val events = new ConcurrentLinkedQueue[String]
+    withOutbox(recordingClient(events), 64 * 1024, TimeUnit.MILLISECONDS.toNanos(10)) {
+      (outbox, connect) =>
+        (0 until 3).foreach(id => outbox.send(OneWayOutboxMessage(content(id, 4))))
+        Thread.sleep(50)
+        connect.countDown()
+        eventually(timeout(5 seconds), interval(10 millis)) {
+          assert(events.asScala.toSeq ===
+            batch(0 until 1) ++ batch(1 until 2) ++ batch(2 until 3))
+        }
+    }
+  }
+}
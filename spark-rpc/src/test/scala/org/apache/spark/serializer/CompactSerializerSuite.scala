@@ -0,0 +1,102 @@
+package org.apache.spark.serializer
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream}
+
+import io.netty.buffer.{ByteBuf, PooledByteBufAllocator}
+
+import org.apache.spark.{RpcConf, SparkFunSuite}
+import org.apache.spark.rpc.RpcAddress
+
+case class Point(x: Int, y: Int)
+
+object PointCodec extends CompactCodec[Point] {
+  override def write(ser: CompactSerializerInstance, out: ByteBuf, value: Point): Unit = {
+    out.writeInt(value.x)
+    out.writeInt(value.y)
+  }
+
+  override def read(ser: CompactSerializerInstance, in: ByteBuf): Point = {
+    Point(in.readInt(), in.readInt())
+  }
+}
+
+class CompactSerializerSuite extends SparkFunSuite {
+
+  private def roundTrip[T](ser: SerializerInstance, value: T): T = {
+    ser.deserialize[T](ser.serialize(value))
+  }
+
+  test("built-in values") {
+    val ser = new CompactSerializer(new RpcConf()).newInstance()
+    Seq[Any](null, "", "hi 你好", 0, -1, Int.MaxValue, Long.MinValue, true, false, 1.5d,
+      RpcAddress("localhost", 12345)).foreach { value =>
+      assert(roundTrip(ser, value) === value)
+    }
+    assert(roundTrip(ser, Array[Byte](1, 2, 3)).toSeq === Seq[Byte](1, 2, 3))
+  }
+
+  test("unregistered values fall back to Java serialization") {
+    val ser = new CompactSerializer(new RpcConf()).newInstance()
+    assert(roundTrip(ser, Seq(1, 2, 3)) === Seq(1, 2, 3))
+    assert(roundTrip(ser, 'c') === 'c')
+  }
+
+  test("registered classes are written without a class descriptor") {
+    val compact = new CompactSerializer(new RpcConf()).register(classOf[Point], PointCodec)
+      .newInstance()
+    val java = new JavaSerializer(new RpcConf()).newInstance()
+    val bytes = compact.serialize(Point(1, 2))
+    assert(bytes.remaining() === 9)
+    assert(bytes.remaining() < java.serialize(Point(1, 2)).remaining())
+    assert(compact.deserialize[Point](bytes) === Point(1, 2))
+  }
+
+  test("registering a class twice fails") {
+    val serializer = new CompactSerializer(new RpcConf()).register(classOf[Point], PointCodec)
+    intercept[IllegalArgumentException] {
+      serializer.register(classOf[Point], PointCodec)
+    }
+  }
+
+  test("serialize into and read from a pooled ByteBuf") {
+    val ser = new CompactSerializer(new RpcConf()).newInstance()
+      .asInstanceOf[CompactSerializerInstance]
+    val buf = PooledByteBufAllocator.DEFAULT.directBuffer()
+    try {
+      ser.serialize("first", buf)
+      ser.serialize(RpcAddress("host", 1), buf)
+      assert(ser.deserialize[String](buf) === "first")
+      assert(ser.deserialize[RpcAddress](buf) === RpcAddress("host", 1))
+      assert(buf.readableBytes() === 0)
+    } finally {
+      buf.release()
+    }
+  }
+
+  test("a value after a Java fallback value is read from where the fallback value ends") {
+    val ser = new CompactSerializer(new RpcConf()).newInstance()
+      .asInstanceOf[CompactSerializerInstance]
+    val buf = PooledByteBufAllocator.DEFAULT.heapBuffer()
+    try {
+      ser.serialize(Seq(1, 2, 3), buf)
+      ser.serialize('c', buf)
+      ser.serialize("after", buf)
+      assert(ser.deserialize[Seq[Int]](buf) === Seq(1, 2, 3))
+      assert(ser.deserialize[Char](buf) === 'c')
+      assert(ser.deserialize[String](buf) === "after")
+      assert(buf.readableBytes() === 0)
+    } finally {
+      buf.release()
+    }
+  }
+
+  test("streams") {
+    val ser = new CompactSerializer(new RpcConf()).newInstance()
+    val bytes = new ByteArrayOutputStream()
+    val out = ser.serializeStream(bytes)
+    out.writeAll(Iterator("a", 1, RpcAddress("host", 2)))
+    out.close()
+    val in = ser.deserializeStream(new ByteArrayInputStream(bytes.toByteArray))
+    assert(in.asIterator.toList === List("a", 1, RpcAddress("host", 2)))
+  }
+}